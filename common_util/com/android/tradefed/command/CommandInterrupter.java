@@ -91,6 +91,10 @@ public class CommandInterrupter {
                 () -> {
                     CLog.e("Interrupt allowed asynchronously");
                     mInterruptible.put(thread, true);
+                    // Wake up a thread flagged while uninterruptible, it may be blocked waiting.
+                    if (mInterruptMessage.containsKey(thread)) {
+                        thread.interrupt();
+                    }
                 },
                 delay,
                 unit);
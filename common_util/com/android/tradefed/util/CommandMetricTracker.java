@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A utility to track the latency and the results of the commands run through {@link RunUtil}, per
+ * binary. Commands are tracked per ThreadGroup as a proxy to invocation since an invocation runs
+ * within one ThreadGroup.
+ */
+public class CommandMetricTracker {
+
+    /** The metrics of the commands of one binary. */
+    public static class CommandMetric {
+        private long mCount = 0L;
+        private long mFailedCount = 0L;
+        private long mTimedOutCount = 0L;
+        private long mTotalTime = 0L;
+        private long mMaxTime = 0L;
+
+        private CommandMetric() {}
+
+        private CommandMetric(CommandMetric other) {
+            mCount = other.mCount;
+            mFailedCount = other.mFailedCount;
+            mTimedOutCount = other.mTimedOutCount;
+            mTotalTime = other.mTotalTime;
+            mMaxTime = other.mMaxTime;
+        }
+
+        /** Returns the number of commands run. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Returns the number of commands that did not succeed, including the timed out ones. */
+        public long getFailedCount() {
+            return mFailedCount;
+        }
+
+        /** Returns the number of commands that timed out. */
+        public long getTimedOutCount() {
+            return mTimedOutCount;
+        }
+
+        /** Returns the total time spent running the commands, in milliseconds. */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+
+        /** Returns the time of the longest command, in milliseconds. */
+        public long getMaxTime() {
+            return mMaxTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "count=%d failed=%d timed_out=%d time_ms=%d max_ms=%d",
+                    mCount, mFailedCount, mTimedOutCount, mTotalTime, mMaxTime);
+        }
+    }
+
+    private CommandMetricTracker() {}
+
+    private static final Map<ThreadGroup, Map<String, CommandMetric>> sPerGroupMetrics =
+            new ConcurrentHashMap<ThreadGroup, Map<String, CommandMetric>>();
+
+    /**
+     * Record one command that was run.
+     *
+     * @param command the command line, its first element is the binary.
+     * @param status the {@link CommandStatus} of the command.
+     * @param elapsedTime the time the command took, in milliseconds.
+     */
+    public static void record(List<String> command, CommandStatus status, long elapsedTime) {
+        if (command == null || command.isEmpty()) {
+            return;
+        }
+        String binary = new File(command.get(0)).getName();
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        Map<String, CommandMetric> metrics =
+                sPerGroupMetrics.computeIfAbsent(group, k -> new ConcurrentHashMap<>());
+        CommandMetric metric = metrics.computeIfAbsent(binary, k -> new CommandMetric());
+        synchronized (metric) {
+            metric.mCount++;
+            if (!CommandStatus.SUCCESS.equals(status)) {
+                metric.mFailedCount++;
+            }
+            if (CommandStatus.TIMED_OUT.equals(status)) {
+                metric.mTimedOutCount++;
+            }
+            metric.mTotalTime += elapsedTime;
+            metric.mMaxTime = Math.max(metric.mMaxTime, elapsedTime);
+        }
+    }
+
+    /** Returns a copy of the metrics of the current invocation, sorted by binary. */
+    public static Map<String, CommandMetric> getMetrics() {
+        Map<String, CommandMetric> copy = new TreeMap<>();
+        Map<String, CommandMetric> metrics =
+                sPerGroupMetrics.get(Thread.currentThread().getThreadGroup());
+        if (metrics == null) {
+            return copy;
+        }
+        for (Map.Entry<String, CommandMetric> entry : metrics.entrySet()) {
+            synchronized (entry.getValue()) {
+                copy.put(entry.getKey(), new CommandMetric(entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    /** Stop tracking the current invocation. This is called automatically by the harness. */
+    public static void clearTracking() {
+        sPerGroupMetrics.remove(Thread.currentThread().getThreadGroup());
+    }
+}
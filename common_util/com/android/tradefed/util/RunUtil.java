@@ -30,15 +30,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 
@@ -51,9 +66,22 @@ public class RunUtil implements IRunUtil {
     public static final String INHERITIO_PREFIX = "inheritio-";
 
     private static final int POLL_TIME_INCREASE_FACTOR = 4;
-    private static final long THREAD_JOIN_POLL_INTERVAL = 30 * 1000;
     private static final long IO_THREAD_JOIN_INTERVAL = 5 * 1000;
     private static final long PROCESS_DESTROY_TIMEOUT_SEC = 2;
+    private static final long WORKER_KEEP_ALIVE_SEC = 60;
+    private static final String WORKER_NAME_PREFIX = "RunUtil-worker-";
+    private static final int MAX_POOLED_BUFFERS = 32;
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Threads reading the output of the processes started by {@link RunUtil}, per invocation
+     * {@link ThreadGroup}. Idle threads are reused by the next commands instead of creating new
+     * threads for each command.
+     */
+    private static final Map<ThreadGroup, ThreadPoolExecutor> sWorkers = new WeakHashMap<>();
+    /** Released output buffers, reused to avoid growing a new buffer for each command. */
+    private static final Deque<ByteArrayOutputStream> sBufferPool = new ArrayDeque<>();
+
     private static IRunUtil sDefaultInstance = null;
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
@@ -153,9 +181,25 @@ public class RunUtil implements IRunUtil {
     public CommandResult runTimedCmd(final long timeout, OutputStream stdout,
             OutputStream stderr, final String... command) {
         RunnableResult osRunnable = createRunnableResult(stdout, stderr, command);
-        CommandStatus status = runTimed(timeout, osRunnable, true);
+        return runCommand(timeout, osRunnable, true);
+    }
+
+    /**
+     * Runs the command of the {@link RunnableResult} and records its latency and status in the
+     * {@link CommandMetricTracker}.
+     */
+    private CommandResult runCommand(long timeout, RunnableResult osRunnable, boolean logErrors) {
+        long startTime = System.currentTimeMillis();
+        CommandStatus status = runTimed(timeout, osRunnable, logErrors);
         CommandResult result = osRunnable.getResult();
         result.setStatus(status);
+        CommandMetricTracker.record(
+                osRunnable.getCommand(), status, System.currentTimeMillis() - startTime);
+        if (CommandStatus.FAILED.equals(status) && osRunnable.mLogErrors) {
+            CLog.d(
+                    "%s command failed. return code %d",
+                    osRunnable.getCommand(), result.getExitCode());
+        }
         return result;
     }
 
@@ -192,44 +236,57 @@ public class RunUtil implements IRunUtil {
         return result;
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(String... command) {
+    private ProcessBuilder createProcessBuilder(String... command) {
         return createProcessBuilder(Arrays.asList(command));
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(Redirect redirect, String... command) {
+    private ProcessBuilder createProcessBuilder(Redirect redirect, String... command) {
         return createProcessBuilder(redirect, Arrays.asList(command));
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(List<String> commandList) {
+    private ProcessBuilder createProcessBuilder(List<String> commandList) {
         return createProcessBuilder(null, commandList);
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(
-            Redirect redirect, List<String> commandList) {
+    private ProcessBuilder createProcessBuilder(Redirect redirect, List<String> commandList) {
+        // Only hold the lock to read the settings, copying the environment of the process is
+        // comparatively slow and would serialize all the commands of the default instance.
+        File workingDir;
+        Map<String, String> envVariables;
+        Set<String> unsetEnvVariables;
+        EnvPriority envVariablePriority;
+        boolean redirectStderr;
+        synchronized (this) {
+            workingDir = mWorkingDir;
+            envVariables = new HashMap<>(mEnvVariables);
+            unsetEnvVariables = new HashSet<>(mUnsetEnvVariables);
+            envVariablePriority = mEnvVariablePriority;
+            redirectStderr = mRedirectStderr;
+        }
         ProcessBuilder processBuilder = new ProcessBuilder();
-        if (mWorkingDir != null) {
-            processBuilder.directory(mWorkingDir);
+        if (workingDir != null) {
+            processBuilder.directory(workingDir);
         }
         // By default unset an env. for process has higher priority, but in some case we might want
         // the 'set' to have priority.
-        if (EnvPriority.UNSET.equals(mEnvVariablePriority)) {
-            if (!mEnvVariables.isEmpty()) {
-                processBuilder.environment().putAll(mEnvVariables);
+        if (EnvPriority.UNSET.equals(envVariablePriority)) {
+            if (!envVariables.isEmpty()) {
+                processBuilder.environment().putAll(envVariables);
             }
-            if (!mUnsetEnvVariables.isEmpty()) {
+            if (!unsetEnvVariables.isEmpty()) {
                 // in this implementation, the unsetEnv's priority is higher than set.
-                processBuilder.environment().keySet().removeAll(mUnsetEnvVariables);
+                processBuilder.environment().keySet().removeAll(unsetEnvVariables);
             }
         } else {
-            if (!mUnsetEnvVariables.isEmpty()) {
-                processBuilder.environment().keySet().removeAll(mUnsetEnvVariables);
+            if (!unsetEnvVariables.isEmpty()) {
+                processBuilder.environment().keySet().removeAll(unsetEnvVariables);
             }
-            if (!mEnvVariables.isEmpty()) {
+            if (!envVariables.isEmpty()) {
                 // in this implementation, the setEnv's priority is higher than set.
-                processBuilder.environment().putAll(mEnvVariables);
+                processBuilder.environment().putAll(envVariables);
             }
         }
-        processBuilder.redirectErrorStream(mRedirectStderr);
+        processBuilder.redirectErrorStream(redirectStderr);
         if (redirect != null) {
             processBuilder.redirectOutput(redirect);
             processBuilder.redirectError(redirect);
@@ -253,10 +310,7 @@ public class RunUtil implements IRunUtil {
     public CommandResult runTimedCmdWithInput(final long timeout, String input,
             final List<String> command) {
         RunnableResult osRunnable = new RunnableResult(input, createProcessBuilder(command));
-        CommandStatus status = runTimed(timeout, osRunnable, true);
-        CommandResult result = osRunnable.getResult();
-        result.setStatus(status);
-        return result;
+        return runCommand(timeout, osRunnable, true);
     }
 
     /** {@inheritDoc} */
@@ -271,10 +325,7 @@ public class RunUtil implements IRunUtil {
                         /* stderrStream= */ null,
                         inputRedirect,
                         true);
-        CommandStatus status = runTimed(timeout, osRunnable, true);
-        CommandResult result = osRunnable.getResult();
-        result.setStatus(status);
-        return result;
+        return runCommand(timeout, osRunnable, true);
     }
 
     /**
@@ -283,10 +334,7 @@ public class RunUtil implements IRunUtil {
     @Override
     public CommandResult runTimedCmdSilently(final long timeout, final String... command) {
         RunnableResult osRunnable = new RunnableResult(null, createProcessBuilder(command), false);
-        CommandStatus status = runTimed(timeout, osRunnable, false);
-        CommandResult result = osRunnable.getResult();
-        result.setStatus(status);
-        return result;
+        return runCommand(timeout, osRunnable, false);
     }
 
     /**
@@ -367,7 +415,7 @@ public class RunUtil implements IRunUtil {
     public CommandStatus runTimed(long timeout, IRunUtil.IRunnableResult runnable,
             boolean logErrors) {
         mInterrupter.checkInterrupted();
-        RunnableNotifier runThread = new RunnableNotifier(runnable, logErrors);
+        RunnableNotifier runThread = new RunnableNotifier(runnable);
         if (logErrors) {
             if (timeout > 0l) {
                 CLog.d(
@@ -380,17 +428,17 @@ public class RunUtil implements IRunUtil {
         CommandStatus status = CommandStatus.TIMED_OUT;
         try {
             runThread.start();
-            long startTime = System.currentTimeMillis();
-            long pollInterval = 0;
-            if (timeout > 0L && timeout < THREAD_JOIN_POLL_INTERVAL) {
-                // only set the pollInterval if we have a timeout
-                pollInterval = timeout;
-            } else {
-                pollInterval = THREAD_JOIN_POLL_INTERVAL;
-            }
-            do {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!runThread.isDone()) {
+                long remaining = 0L;
+                if (timeout > 0L) {
+                    remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0L) {
+                        break;
+                    }
+                }
                 try {
-                    runThread.join(pollInterval);
+                    runThread.await(remaining);
                 } catch (InterruptedException e) {
                     if (isInterruptAllowed()) {
                         CLog.i("runTimed: interrupted while joining the runnable");
@@ -400,8 +448,7 @@ public class RunUtil implements IRunUtil {
                     }
                 }
                 mInterrupter.checkInterrupted();
-            } while ((timeout == 0L || (System.currentTimeMillis() - startTime) < timeout)
-                    && runThread.isAlive());
+            }
         } catch (RunInterruptedException e) {
             runThread.cancel();
             throw e;
@@ -414,6 +461,15 @@ public class RunUtil implements IRunUtil {
                 runThread.cancel();
             }
         }
+        if (CommandStatus.EXCEPTION.equals(status)) {
+            Exception e = runThread.getException();
+            if (e instanceof InterruptedException) {
+                CLog.i("runutil interrupted");
+            } else if (logErrors && e != null) {
+                CLog.e("Exception occurred when executing runnable");
+                CLog.e(e);
+            }
+        }
         mInterrupter.checkInterrupted();
         return status;
     }
@@ -541,43 +597,94 @@ public class RunUtil implements IRunUtil {
     }
 
     /**
-     * Helper thread that wraps a runnable, and notifies when done.
+     * Helper that wraps a runnable, and notifies when done. Exceptions are kept to be logged by
+     * the thread waiting for the runnable, so they end up in the log of its invocation.
      */
-    private static class RunnableNotifier extends Thread {
+    private static class RunnableNotifier implements Runnable {
 
         private final IRunUtil.IRunnableResult mRunnable;
+        private final CompletableFuture<Void> mDone = new CompletableFuture<>();
         private CommandStatus mStatus = CommandStatus.TIMED_OUT;
-        private boolean mLogErrors = true;
+        private Exception mException = null;
+
+        RunnableNotifier(IRunUtil.IRunnableResult runnable) {
+            mRunnable = runnable;
+        }
 
-        RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
+        /**
+         * Starts the runnable. Our own commands complete when their process exits, no thread waits
+         * on them meanwhile. Other runnables get a dedicated thread in the ThreadGroup of the
+         * caller, since they may depend on its invocation.
+         */
+        void start() {
+            if (mRunnable instanceof RunnableResult) {
+                try {
+                    ((RunnableResult) mRunnable)
+                            .start()
+                            .whenComplete((success, error) -> complete(success, error));
+                } catch (Exception e) {
+                    complete(null, e);
+                }
+                return;
+            }
+            Thread thread = new Thread(this, RUNNABLE_NOTIFIER_NAME);
             // Set this thread to be a daemon so that it does not prevent
             // TF from shutting down.
-            setName(RUNNABLE_NOTIFIER_NAME);
-            setDaemon(true);
-            mRunnable = runnable;
-            mLogErrors = logErrors;
+            thread.setDaemon(true);
+            thread.start();
         }
 
         @Override
         public void run() {
-            CommandStatus status;
             try {
-                status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
-            } catch (InterruptedException e) {
-                CLog.i("runutil interrupted");
-                status = CommandStatus.EXCEPTION;
-                backFillException(mRunnable.getResult(), e);
+                complete(mRunnable.run(), null);
             } catch (Exception e) {
-                if (mLogErrors) {
-                    CLog.e("Exception occurred when executing runnable");
-                    CLog.e(e);
-                }
+                complete(null, e);
+            }
+        }
+
+        private void complete(Boolean success, Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            CommandStatus status;
+            Exception exception = null;
+            if (error == null) {
+                status =
+                        Boolean.TRUE.equals(success) ? CommandStatus.SUCCESS : CommandStatus.FAILED;
+            } else {
                 status = CommandStatus.EXCEPTION;
-                backFillException(mRunnable.getResult(), e);
+                exception =
+                        error instanceof Exception
+                                ? (Exception) error
+                                : new ExecutionException(error);
+                backFillException(mRunnable.getResult(), exception);
             }
             synchronized (this) {
                 mStatus = status;
+                mException = exception;
             }
+            mDone.complete(null);
+        }
+
+        /** Waits for the runnable to complete, for at most timeout ms unless timeout is 0. */
+        void await(long timeout) throws InterruptedException {
+            try {
+                if (timeout > 0L) {
+                    mDone.get(timeout, TimeUnit.MILLISECONDS);
+                } else {
+                    mDone.get();
+                }
+            } catch (TimeoutException e) {
+                // The caller checks isDone()
+            } catch (ExecutionException e) {
+                // mDone is never completed exceptionally
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean isDone() {
+            return mDone.isDone();
         }
 
         public void cancel() {
@@ -588,6 +695,10 @@ public class RunUtil implements IRunUtil {
             return mStatus;
         }
 
+        synchronized Exception getException() {
+            return mException;
+        }
+
         private void backFillException(CommandResult result, Exception e) {
             if (result == null) {
                 return;
@@ -604,6 +715,8 @@ public class RunUtil implements IRunUtil {
         private final String mInput;
         private Process mProcess = null;
         private CountDownLatch mCountDown = null;
+        /** The thread saving the result after the process exited, only set meanwhile. */
+        // Guarded by mLock
         private Thread mExecutionThread;
         private OutputStream mStdOut = null;
         private OutputStream mStdErr = null;
@@ -653,9 +766,9 @@ public class RunUtil implements IRunUtil {
             mCountDown = new CountDownLatch(1);
 
             // Redirect IO, so that the outputstream for the spawn process does not fill up
-            // and cause deadlock.
-            mStdOut = stdoutStream != null ? stdoutStream : new ByteArrayOutputStream();
-            mStdErr = stderrStream != null ? stderrStream : new ByteArrayOutputStream();
+            // and cause deadlock. Null streams are replaced by a buffer when running.
+            mStdOut = stdoutStream;
+            mStdErr = stderrStream;
         }
 
         @Override
@@ -676,117 +789,184 @@ public class RunUtil implements IRunUtil {
 
         @Override
         public boolean run() throws Exception {
-            Thread stdoutThread = null;
-            Thread stderrThread = null;
-            synchronized (mLock) {
-                if (mCancelled) {
-                    // if cancel() was called before run() took the lock, we do not even attempt
-                    // to run.
-                    return false;
+            try {
+                return start().get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CompletionException && cause.getCause() != null) {
+                    cause = cause.getCause();
                 }
-                mExecutionThread = Thread.currentThread();
-                mProcess = startProcess();
-                if (mInput != null) {
-                    BufferedOutputStream processStdin =
-                            new BufferedOutputStream(mProcess.getOutputStream());
-                    processStdin.write(mInput.getBytes("UTF-8"));
-                    processStdin.flush();
-                    processStdin.close();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
                 }
-                // Log the command for thread tracking purpose.
-                stdoutThread =
-                        inheritIO(
-                                mProcess.getInputStream(),
-                                mStdOut,
-                                String.format("inheritio-stdout-%s", mProcessBuilder.command()));
-                stderrThread =
-                        inheritIO(
-                                mProcess.getErrorStream(),
-                                mStdErr,
-                                String.format("inheritio-stderr-%s", mProcessBuilder.command()));
-
-                // Close the stdout/err streams if created by us. Streams provided by the caller
-                // should be closed by the caller.
-                if (mCreatedStdoutStream) {
-                    mStdOut.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Starts the process. The returned future completes with the result of {@link #run()} once
+         * the process exited and its output was read, and no thread waits on the process
+         * meanwhile.
+         */
+        CompletableFuture<Boolean> start() throws IOException {
+            ExecutorService workers = getWorkers();
+            OutputStream stdout = mStdOut != null ? mStdOut : acquireBuffer();
+            OutputStream stderr = mStdErr != null ? mStdErr : acquireBuffer();
+            Future<?> stdoutReader = null;
+            Future<?> stderrReader = null;
+            boolean started = false;
+            try {
+                synchronized (mLock) {
+                    if (mCancelled) {
+                        // if cancel() was called before run() took the lock, we do not even
+                        // attempt to run.
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    mProcess = startProcess();
+                    if (mInput != null) {
+                        // The process may only read its input later, don't block the caller.
+                        writeInput(workers, mProcess.getOutputStream(), mInput);
+                    }
+                    // Log the command for thread tracking purpose.
+                    stdoutReader =
+                            readOutput(
+                                    workers,
+                                    mProcess.getInputStream(),
+                                    stdout,
+                                    String.format(
+                                            INHERITIO_PREFIX + "stdout-%s",
+                                            mProcessBuilder.command()));
+                    stderrReader =
+                            readOutput(
+                                    workers,
+                                    mProcess.getErrorStream(),
+                                    stderr,
+                                    String.format(
+                                            INHERITIO_PREFIX + "stderr-%s",
+                                            mProcessBuilder.command()));
+
+                    // Close the stdout/err streams if created by us. Streams provided by the
+                    // caller should be closed by the caller.
+                    if (mCreatedStdoutStream) {
+                        stdout.close();
+                    }
+                    if (mCreatedStderrStream) {
+                        stderr.close();
+                    }
+                    started = true;
                 }
-                if (mCreatedStderrStream) {
-                    mStdErr.close();
+            } finally {
+                if (!started) {
+                    releaseBuffers(stdout, stderr, stdoutReader, stderrReader);
                 }
             }
-            // Wait for process to complete.
-            Integer rc = null;
+            final Future<?> stdoutRead = stdoutReader;
+            final Future<?> stderrRead = stderrReader;
+            // A command outliving shutdownWorkers() still completes, on the thread of onExit().
+            Executor completion =
+                    task -> {
+                        try {
+                            workers.execute(task);
+                        } catch (RejectedExecutionException e) {
+                            task.run();
+                        }
+                    };
+            return mProcess.onExit()
+                    .thenApplyAsync(
+                            process ->
+                                    complete(process, stdout, stderr, stdoutRead, stderrRead),
+                            completion);
+        }
+
+        /** Saves the result of the exited process once its output was read. */
+        private boolean complete(
+                Process process,
+                OutputStream stdout,
+                OutputStream stderr,
+                Future<?> stdoutReader,
+                Future<?> stderrReader) {
+            synchronized (mLock) {
+                mExecutionThread = Thread.currentThread();
+            }
             try {
                 try {
-                    rc = mProcess.waitFor();
                     // wait for stdout and stderr to be read
-                    if (stdoutThread != null) {
-                        stdoutThread.join(IO_THREAD_JOIN_INTERVAL);
-                        if (stdoutThread.isAlive()) {
-                            CLog.d("stdout read thread %s still alive.", stdoutThread.toString());
-                        }
-                    }
-                    if (stderrThread != null) {
-                        stderrThread.join(IO_THREAD_JOIN_INTERVAL);
-                        if (stderrThread.isAlive()) {
-                            CLog.d("stderr read thread %s still alive.", stderrThread.toString());
-                        }
-                    }
+                    waitForOutput(stdoutReader, "stdout");
+                    waitForOutput(stderrReader, "stderr");
                 } finally {
-                    rc = (rc != null) ? rc : 1; // In case of interruption ReturnCode is null
-                    mCommandResult.setExitCode(rc);
+                    mCommandResult.setExitCode(process.exitValue());
 
                     // Write out the streams to the result.
-                    if (mStdOut instanceof ByteArrayOutputStream) {
-                        mCommandResult.setStdout(
-                                ((ByteArrayOutputStream) mStdOut).toString("UTF-8"));
-                    } else {
-                        mCommandResult.setStdout(
-                                "redirected to " + mStdOut.getClass().getSimpleName());
-                    }
-                    if (mStdErr instanceof ByteArrayOutputStream) {
-                        mCommandResult.setStderr(
-                                ((ByteArrayOutputStream) mStdErr).toString("UTF-8"));
-                    } else {
-                        mCommandResult.setStderr(
-                                "redirected to " + mStdErr.getClass().getSimpleName());
-                    }
+                    mCommandResult.setStdout(getOutput(stdout));
+                    mCommandResult.setStderr(getOutput(stderr));
                 }
+                return process.exitValue() == 0;
+            } catch (InterruptedException | IOException e) {
+                throw new CompletionException(e);
             } finally {
+                // The worker thread goes back to the pool, it must not be interrupted anymore.
+                synchronized (mLock) {
+                    mExecutionThread = null;
+                }
+                // Clear a cancel() interrupt that arrived after the output was read.
+                Thread.interrupted();
                 mCountDown.countDown();
+                releaseBuffers(stdout, stderr, stdoutReader, stderrReader);
+            }
+        }
+
+        /** Returns the buffers created by us to the pool, once their readers are done. */
+        private void releaseBuffers(
+                OutputStream stdout,
+                OutputStream stderr,
+                Future<?> stdoutReader,
+                Future<?> stderrReader) {
+            // Buffers still being written to are left to the garbage collector.
+            if (mStdOut == null && (stdoutReader == null || stdoutReader.isDone())) {
+                releaseBuffer((ByteArrayOutputStream) stdout);
+            }
+            if (mStdErr == null && (stderrReader == null || stderrReader.isDone())) {
+                releaseBuffer((ByteArrayOutputStream) stderr);
             }
+        }
 
-            if (rc != null && rc == 0) {
-                return true;
-            } else if (mLogErrors) {
-                CLog.d("%s command failed. return code %d", mProcessBuilder.command(), rc);
+        private String getOutput(OutputStream output) throws IOException {
+            if (output instanceof ByteArrayOutputStream) {
+                return ((ByteArrayOutputStream) output).toString("UTF-8");
             }
-            return false;
+            return "redirected to " + output.getClass().getSimpleName();
         }
 
         @Override
         public void cancel() {
-            if (mCancelled) {
-                return;
-            }
-            mCancelled = true;
             synchronized (mLock) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
                 if (mProcess == null || !mProcess.isAlive()) {
                     return;
                 }
                 CLog.d("Cancelling the process execution");
                 mProcess.destroy();
-                try {
-                    // Only allow to continue if the Stdout has been read
-                    // RunnableNotifier#Interrupt is the next call and will terminate the thread
-                    if (!mCountDown.await(PROCESS_DESTROY_TIMEOUT_SEC, TimeUnit.SECONDS)) {
-                        CLog.i("Process still not terminated, interrupting the execution thread");
-                        mExecutionThread.interrupt();
-                        mCountDown.await();
+            }
+            try {
+                // Only allow to continue if the Stdout has been read
+                // RunnableNotifier#Interrupt is the next call and will terminate the thread
+                if (!mCountDown.await(PROCESS_DESTROY_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    synchronized (mLock) {
+                        // Once run() returned, the thread may be executing another command.
+                        if (mExecutionThread != null) {
+                            CLog.i(
+                                    "Process still not terminated, interrupting the execution "
+                                            + "thread");
+                            mExecutionThread.interrupt();
+                        }
                     }
-                } catch (InterruptedException e) {
-                    CLog.i("interrupted while waiting for process output to be saved");
+                    mCountDown.await();
                 }
+            } catch (InterruptedException e) {
+                CLog.i("interrupted while waiting for process output to be saved");
             }
         }
 
@@ -828,6 +1008,171 @@ public class RunUtil implements IRunUtil {
         return t;
     }
 
+    /**
+     * Returns the pool of workers of the calling invocation, identified by its {@link
+     * ThreadGroup}. Workers are created in that group so that they are attributed to the
+     * invocation. Idle workers are named after {@link #WORKER_NAME_PREFIX} and stopped after
+     * {@link #WORKER_KEEP_ALIVE_SEC}, or by {@link #shutdownWorkers()}.
+     */
+    @VisibleForTesting
+    static ThreadPoolExecutor getWorkers() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        synchronized (sWorkers) {
+            ThreadPoolExecutor workers = sWorkers.get(group);
+            if (workers == null) {
+                workers = createWorkers(group);
+                sWorkers.put(group, workers);
+            }
+            return workers;
+        }
+    }
+
+    private static ThreadPoolExecutor createWorkers(ThreadGroup group) {
+        // The pool is a value of a weak map keyed by the group, it must not hold the group.
+        WeakReference<ThreadGroup> groupRef = new WeakReference<>(group);
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                WORKER_KEEP_ALIVE_SEC,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                runnable -> {
+                    String name = WORKER_NAME_PREFIX + count.incrementAndGet();
+                    Thread t = new Thread(groupRef.get(), runnable, name);
+                    // Set this thread to be a daemon so that it does not prevent
+                    // TF from shutting down.
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Stops the workers of the calling invocation, so they are not left in its {@link
+     * ThreadGroup}. Commands started after this get a new pool.
+     */
+    public static void shutdownWorkers() {
+        ThreadPoolExecutor workers;
+        synchronized (sWorkers) {
+            workers = sWorkers.remove(Thread.currentThread().getThreadGroup());
+        }
+        if (workers == null) {
+            return;
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(PROCESS_DESTROY_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                CLog.w("%d command workers still running.", workers.getActiveCount());
+            }
+        } catch (InterruptedException e) {
+            CLog.i("interrupted while waiting for the command workers to stop");
+        }
+    }
+
+    /** Runs the task on a worker, which is named after the task while running it. */
+    private static Future<?> submitToWorker(
+            ExecutorService workers, String name, Runnable task) {
+        return workers.submit(
+                () -> {
+                    Thread current = Thread.currentThread();
+                    String idleName = current.getName();
+                    current.setName(name);
+                    try {
+                        task.run();
+                    } finally {
+                        current.setName(idleName);
+                    }
+                });
+    }
+
+    /**
+     * Helper method to read an output stream of a process on a worker.
+     *
+     * @param workers the pool of workers to read on
+     * @param src {@link InputStream} to read from
+     * @param dest {@link OutputStream} to write to
+     * @param name the name of the worker while reading.
+     * @return a {@link Future} completed when the stream is fully read, null if no stream.
+     */
+    private static Future<?> readOutput(
+            ExecutorService workers,
+            final InputStream src,
+            final OutputStream dest,
+            String name) {
+        // In case of some Process redirect, source stream can be null.
+        if (src == null) {
+            return null;
+        }
+        return submitToWorker(
+                workers,
+                name,
+                () -> {
+                    try {
+                        StreamUtil.copyStreams(src, dest);
+                    } catch (IOException e) {
+                        CLog.e("Failed to read input stream %s.", name);
+                    }
+                });
+    }
+
+    /** Writes the input of a process on a worker, and closes it. */
+    private static void writeInput(ExecutorService workers, OutputStream dest, String input) {
+        submitToWorker(
+                workers,
+                INHERITIO_PREFIX + "stdin",
+                () -> {
+                    try (BufferedOutputStream processStdin = new BufferedOutputStream(dest)) {
+                        processStdin.write(input.getBytes("UTF-8"));
+                        processStdin.flush();
+                    } catch (IOException e) {
+                        CLog.e("Failed to write the input of the process: %s", e.getMessage());
+                    }
+                });
+    }
+
+    /** Waits for an output stream of a process to be fully read. */
+    private static void waitForOutput(Future<?> reader, String name)
+            throws InterruptedException {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.get(IO_THREAD_JOIN_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            CLog.d("%s read thread still alive.", name);
+        } catch (ExecutionException e) {
+            CLog.e("Failed to read %s.", name);
+            CLog.e(e);
+        }
+    }
+
+    /** Returns an empty buffer for the output of a command. */
+    @VisibleForTesting
+    static ByteArrayOutputStream acquireBuffer() {
+        synchronized (sBufferPool) {
+            ByteArrayOutputStream buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new ByteArrayOutputStream();
+    }
+
+    /** Returns a buffer to the pool once its content has been read. */
+    @VisibleForTesting
+    static void releaseBuffer(ByteArrayOutputStream buffer) {
+        // Buffers cannot shrink, don't keep the large ones around.
+        if (buffer.size() > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+        buffer.reset();
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public void setEnvVariablePriority(EnvPriority priority) {
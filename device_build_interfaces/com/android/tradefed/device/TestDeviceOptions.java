@@ -148,6 +148,50 @@ public class TestDeviceOptions {
     )
     private boolean mUseContentProvider = true;
 
+    @Option(
+        name = "persistent-shell-session",
+        description =
+                "Run shell commands through one long running 'adb shell' per device instead of "
+                        + "a new adb connection per command. Falls back to the regular execution "
+                        + "if the session cannot be used."
+    )
+    private boolean mPersistentShellSession = false;
+
+    @Option(
+        name = "device-push-cache",
+        description =
+                "Keep the files pushed to the device in a cache directory of the device, keyed "
+                        + "by the md5 of their content. Pushing a file already on the device, or "
+                        + "in the cache, does not transfer it again. The cache is invalidated "
+                        + "when the device is flashed or wiped."
+    )
+    private boolean mUsePushCache = false;
+
+    @Option(
+        name = "device-push-cache-max-size",
+        description =
+                "The maximum total size in bytes of the files kept in the device push cache. The "
+                        + "least recently used files are evicted first."
+    )
+    private long mPushCacheMaxSize = 1024L * 1024L * 1024L;
+
+    @Option(
+        name = "manifest-sync",
+        description =
+                "Sync directories to the device by collecting the state of the device tree in "
+                        + "one shell command and pushing only the files that changed, instead of "
+                        + "listing each directory of the device."
+    )
+    private boolean mUseManifestSync = false;
+
+    @Option(
+        name = "manifest-sync-hash",
+        description =
+                "With manifest-sync, compare the md5 of the files instead of their modification "
+                        + "time, to detect content changes."
+    )
+    private boolean mUseManifestSyncHash = false;
+
     // ====================== Options Related to Virtual Devices ======================
     @Option(
             name = INSTANCE_TYPE_OPTION,
@@ -185,6 +229,14 @@ public class TestDeviceOptions {
             description = "path to the ssh key private key location.")
     private File mSshPrivateKeyPath = new File("~/.ssh/id_rsa");
 
+    @Option(
+            name = "remote-ssh-multiplexing",
+            description =
+                    "Share one ssh connection per remote instance between the ssh and scp "
+                            + "commands run against it, and fetch the instance logs in one "
+                            + "transfer. Requires OpenSSH connection multiplexing support.")
+    private boolean mUseSshMultiplexing = false;
+
     @Option(name = "gce-driver-log-level", description = "Log level for gce driver")
     private LogLevel mGceDriverLogLevel = LogLevel.DEBUG;
 
@@ -224,6 +276,29 @@ public class TestDeviceOptions {
             description = "Whether or not to block on gce teardown before proceeding.")
     private boolean mWaitForGceTearDown = false;
 
+    @Option(
+            name = "local-avd-image-cache",
+            description =
+                    "Share the host package and device images extracted for local virtual "
+                            + "devices between the devices and invocations of the host. Each "
+                            + "instance gets its own image directory linking to the shared files.")
+    private boolean mUseLocalAvdImageCache = false;
+
+    @Option(
+            name = "local-avd-image-cache-max-unused",
+            description =
+                    "The maximum number of extracted archives kept by the local virtual device "
+                            + "image cache while no device uses them.")
+    private int mLocalAvdImageCacheMaxUnused = 2;
+
+    @Option(
+            name = "keep-local-avd-warm",
+            description =
+                    "Keep the local virtual device running after the invocation, and reset it "
+                            + "with powerwash_cvd for the next invocation if it uses the same "
+                            + "build. Implies local-avd-image-cache.")
+    private boolean mKeepLocalAvdWarm = false;
+
     @Option(
             name = "instance-user",
             description =
@@ -508,6 +583,31 @@ public class TestDeviceOptions {
         return mUseContentProvider;
     }
 
+    /** Returns whether shell commands should run through a persistent 'adb shell' session. */
+    public boolean usePersistentShellSession() {
+        return mPersistentShellSession;
+    }
+
+    /** Returns whether the files pushed to the device should go through a device side cache. */
+    public boolean usePushCache() {
+        return mUsePushCache;
+    }
+
+    /** Returns the maximum total size in bytes of the files in the device push cache. */
+    public long getPushCacheMaxSize() {
+        return mPushCacheMaxSize;
+    }
+
+    /** Returns whether directories should be synced using a manifest of the device tree. */
+    public boolean useManifestSync() {
+        return mUseManifestSync;
+    }
+
+    /** Returns whether the manifest sync should compare the md5 of the files. */
+    public boolean useManifestSyncHash() {
+        return mUseManifestSyncHash;
+    }
+
     // =========================== Getter and Setter for Virtual Devices
     /** Return the Gce Avd timeout for the instance to come online. */
     public long getGceCmdTimeout() {
@@ -568,6 +668,16 @@ public class TestDeviceOptions {
         mSshPrivateKeyPath = sshPrivateKeyPath;
     }
 
+    /** Returns true if the ssh connections to remote instances should be multiplexed. */
+    public boolean useSshMultiplexing() {
+        return mUseSshMultiplexing;
+    }
+
+    /** Set whether the ssh connections to remote instances should be multiplexed. */
+    public void setUseSshMultiplexing(boolean useSshMultiplexing) {
+        mUseSshMultiplexing = useSshMultiplexing;
+    }
+
     /** Return the log level of the Gce Avd driver. */
     public LogLevel getGceDriverLogLevel() {
         return mGceDriverLogLevel;
@@ -626,6 +736,31 @@ public class TestDeviceOptions {
         return mWaitForGceTearDown;
     }
 
+    /** Returns true if local virtual devices should share their extracted images. */
+    public boolean useLocalAvdImageCache() {
+        return mUseLocalAvdImageCache || mKeepLocalAvdWarm;
+    }
+
+    /** Set whether local virtual devices should share their extracted images. */
+    public void setUseLocalAvdImageCache(boolean useLocalAvdImageCache) {
+        mUseLocalAvdImageCache = useLocalAvdImageCache;
+    }
+
+    /** Returns the number of extracted archives kept while no local virtual device uses them. */
+    public int getLocalAvdImageCacheMaxUnused() {
+        return mLocalAvdImageCacheMaxUnused;
+    }
+
+    /** Returns true if local virtual devices should be kept running between invocations. */
+    public boolean keepLocalAvdWarm() {
+        return mKeepLocalAvdWarm;
+    }
+
+    /** Set whether local virtual devices should be kept running between invocations. */
+    public void setKeepLocalAvdWarm(boolean keepLocalAvdWarm) {
+        mKeepLocalAvdWarm = keepLocalAvdWarm;
+    }
+
     /** Returns the instance type of GCE virtual device that should be created */
     public String getInstanceUser() {
         return mInstanceUser;
@@ -23,6 +23,7 @@ public interface IHostMonitor {
     public enum HostMetricType {
         NONE,
         INVOCATION_STRAY_THREAD,
+        REMOTE_MANAGER_REQUEST_LATENCY,
     }
 
     /**
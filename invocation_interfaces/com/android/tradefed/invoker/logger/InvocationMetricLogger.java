@@ -47,7 +47,32 @@ public class InvocationMetricLogger {
         CF_FETCH_ARTIFACT_TIME("cf_fetch_artifact_time_ms", false),
         CF_GCE_CREATE_TIME("cf_gce_create_time_ms", false),
         CF_LAUNCH_CVD_TIME("cf_launch_cvd_time_ms", false),
-        CF_INSTANCE_COUNT("cf_instance_count", false);
+        CF_INSTANCE_COUNT("cf_instance_count", false),
+        SUBPROCESS_COUNT("subprocess_count", true),
+        SUBPROCESS_FAILURE_COUNT("subprocess_failure_count", true),
+        SUBPROCESS_TIME("subprocess_time_ms", true),
+        SUBPROCESS_BINARIES("subprocess_binaries", true),
+        PERSISTENT_SHELL_COMMANDS("persistent_shell_commands", true),
+        PERSISTENT_SHELL_TIME("persistent_shell_time_ms", true),
+        PERSISTENT_SHELL_FALLBACKS("persistent_shell_fallbacks", true),
+        DEVICE_SETUP_PROPS_TIME("device_setup_props_time_ms", true),
+        DEVICE_SETUP_SETTINGS_TIME("device_setup_settings_time_ms", true),
+        DEVICE_SETUP_SKIPPED_CHANGES("device_setup_skipped_changes", true),
+        APK_INSTALL_BYTES("apk_install_bytes", true),
+        APK_INSTALL_TIME("apk_install_time_ms", true),
+        APK_INSTALL_SKIPPED_COUNT("apk_install_skipped_count", true),
+        APK_INSTALL_SKIPPED_BYTES("apk_install_skipped_bytes", true),
+        PARALLEL_RETRY_COUNT("parallel_retry_count", true),
+        PARALLEL_RETRY_TIME("parallel_retry_time_ms", true),
+        FLASHING_STEP_TIMES("flashing_step_times_ms", true),
+        PUSH_CACHE_SAVED_BYTES("push_cache_saved_bytes", true),
+        PUSH_CACHE_MODULE_SAVED_BYTES("push_cache_module_saved_bytes", true),
+        SYNC_TRANSFERRED_BYTES("sync_transferred_bytes", true),
+        SYNC_SKIPPED_BYTES("sync_skipped_bytes", true),
+        SYNC_TIME("sync_time_ms", true),
+        MODULE_STAGE_WAIT_TIMES("module_stage_wait_times_ms", true),
+        DYNAMIC_FILE_RESOLVER_TIMES("dynamic_file_resolver_times_ms", true),
+        DYNAMIC_FILE_RESOLVER_DEDUPLICATED("dynamic_file_resolver_deduplicated", true);
 
         private final String mKeyName;
         // Whether or not to add the value when the key is added again.
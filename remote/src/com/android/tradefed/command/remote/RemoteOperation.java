@@ -45,6 +45,7 @@ abstract class RemoteOperation<T> {
         HANDOVER_COMPLETE,
         ADD_COMMAND_FILE,
         HANDOVER_INIT_COMPLETE,
+        SUBSCRIBE_DEVICE_STATE,
     }
 
     /**
@@ -99,6 +100,9 @@ abstract class RemoteOperation<T> {
                 case ADD_COMMAND_FILE:
                     rc = AddCommandFileOp.createFromJson(jsonData);
                     break;
+                case SUBSCRIBE_DEVICE_STATE:
+                    rc = SubscribeDeviceStateOp.createFromJson(jsonData);
+                    break;
                 default:
                     throw new RemoteException(String.format("unknown remote command '%s'", data));
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command.remote;
+
+import com.android.tradefed.device.DeviceAllocationState;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remote operation subscribing the connection to device state changes.
+ *
+ * <p>The response contains the current list of devices, in the same format as {@link
+ * ListDevicesOp}. Afterwards, the remote manager streams one JSON line per device state change on
+ * the same connection, interleaved with the responses to further operations. Event lines are
+ * recognized with {@link #isEvent(JSONObject)}.
+ */
+class SubscribeDeviceStateOp extends ListDevicesOp {
+
+    static final String EVENT = "event";
+    static final String DEVICE_STATE_EVENT = "DEVICE_STATE";
+    static final String SERIAL = "serial";
+    static final String OLD_STATE = "old_state";
+    static final String NEW_STATE = "new_state";
+
+    SubscribeDeviceStateOp() {
+    }
+
+    /**
+     * Factory method for creating a {@link SubscribeDeviceStateOp} from JSON data.
+     *
+     * @param json the data as a {@link JSONObject}
+     * @return a {@link SubscribeDeviceStateOp}
+     * @throws JSONException if failed to extract out data
+     */
+    static SubscribeDeviceStateOp createFromJson(JSONObject json) throws JSONException {
+        return new SubscribeDeviceStateOp();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected OperationType getType() {
+        return OperationType.SUBSCRIBE_DEVICE_STATE;
+    }
+
+    /**
+     * Packs a device state change event to stream to the subscribed clients.
+     */
+    static JSONObject packEventIntoJson(String serial, DeviceAllocationState oldState,
+            DeviceAllocationState newState) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put(EVENT, DEVICE_STATE_EVENT);
+        event.put(SERIAL, serial);
+        event.put(OLD_STATE, oldState == null ? JSONObject.NULL : oldState.toString());
+        event.put(NEW_STATE, newState == null ? JSONObject.NULL : newState.toString());
+        return event;
+    }
+
+    /**
+     * Returns true if the given line received from the remote manager is a streamed event rather
+     * than the response to an operation.
+     */
+    static boolean isEvent(JSONObject j) {
+        return j.has(EVENT);
+    }
+}
@@ -17,6 +17,7 @@ package com.android.tradefed.cluster;
 
 import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.build.BuildRetrievalError;
+import com.android.tradefed.build.FileDownloadCacheFactory;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.IBuildProvider;
 import com.android.tradefed.config.Option;
@@ -26,6 +27,8 @@ import com.android.tradefed.util.ZipUtil2;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -48,15 +51,46 @@ public class ClusterBuildProvider implements IBuildProvider {
     @Option(name = "build-target", description = "Build target name")
     private String mBuildTarget = "stub";
 
+    @Option(
+        name = "parallel-downloads",
+        description = "Maximum number of test resources downloaded at the same time."
+    )
+    private int mParallelDownloads = 4;
+
+    @Option(
+        name = "download-chunks",
+        description = "Number of parallel range requests used to download a large HTTP resource."
+    )
+    private int mDownloadChunks = 4;
+
+    @Option(
+        name = "download-chunk-threshold",
+        description = "Minimum size in bytes of a HTTP resource to download it in chunks."
+    )
+    private long mDownloadChunkThreshold = 128L * 1024 * 1024;
+
+    @Option(
+        name = "download-cache-dir",
+        description =
+                "Host directory used to cache remote test resources, so resources shared between "
+                        + "commands are only downloaded once. No caching if not set."
+    )
+    private File mDownloadCacheDir = null;
+
     @Override
     public IBuildInfo getBuild() throws BuildRetrievalError {
         try {
             mRootDir.mkdirs();
             final IBuildInfo buildInfo = new ClusterBuildInfo(mRootDir, mBuildId, mBuildTarget);
-            final TestResourceDownloader downloader = new TestResourceDownloader(mRootDir);
+            final TestResourceDownloader downloader = createTestResourceDownloader();
+            final List<TestResource> resources = new ArrayList<>();
             for (final Entry<String, String> entry : mTestResources.entrySet()) {
-                final TestResource resource = new TestResource(entry.getKey(), entry.getValue());
-                final File file = downloader.download(resource);
+                resources.add(new TestResource(entry.getKey(), entry.getValue()));
+            }
+            final List<File> files = downloader.download(resources);
+            for (int i = 0; i < resources.size(); i++) {
+                final TestResource resource = resources.get(i);
+                final File file = files.get(i);
                 buildInfo.setFile(resource.getName(), file, DEFAULT_FILE_VERSION);
                 if (file.getName().endsWith(".zip")) {
                     // If a zip file is downloaded to a subfolder, unzip there.
@@ -69,6 +103,18 @@ public class ClusterBuildProvider implements IBuildProvider {
         }
     }
 
+    @VisibleForTesting
+    TestResourceDownloader createTestResourceDownloader() {
+        final TestResourceDownloader downloader = new TestResourceDownloader(mRootDir);
+        downloader.setParallelDownloads(mParallelDownloads);
+        downloader.setChunking(mDownloadChunks, mDownloadChunkThreshold);
+        if (mDownloadCacheDir != null) {
+            downloader.setDownloadCache(
+                    FileDownloadCacheFactory.getInstance().getCache(mDownloadCacheDir));
+        }
+        return downloader;
+    }
+
     /** Extracts the zip to a root dir. */
     private void extractZip(File zip, File destDir) throws IOException {
         try (ZipFile zipFile = new ZipFile(zip)) {
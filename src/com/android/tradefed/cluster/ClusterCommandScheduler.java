@@ -36,9 +36,10 @@ import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestSummaryListener;
-import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.result.StatusCountingTestListener;
+import com.android.tradefed.result.StatusCountingTestListener.RunCounts;
+import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.result.TestSummary;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.MultiMap;
@@ -51,7 +52,6 @@ import org.json.JSONException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -136,7 +136,7 @@ public class ClusterCommandScheduler extends CommandScheduler {
      * A {@link com.android.tradefed.command.ICommandScheduler.IScheduledInvocationListener} to
      * upload events to TFC.
      */
-    class InvocationEventHandler extends CollectingTestListener
+    class InvocationEventHandler extends StatusCountingTestListener
             implements IScheduledInvocationListener, ITestSummaryListener {
 
         private ScheduledFuture<?> mHeartbeat;
@@ -181,8 +181,8 @@ public class ClusterCommandScheduler extends CommandScheduler {
                 return;
             }
             final InvocationStatus obj = new InvocationStatus();
-            final Collection<TestRunResult> testRunResults = this.getMergedTestRunResults();
-            for (final TestRunResult result : testRunResults) {
+            final List<RunCounts> testRunCounts = getTestRunCounts();
+            for (final RunCounts result : testRunCounts) {
                 final TestGroupStatus testGroupStatus =
                         new TestGroupStatus(
                                 result.getName(),
@@ -313,6 +313,9 @@ public class ClusterCommandScheduler extends CommandScheduler {
                 mHeartbeat.cancel(true);
             }
             updateInvocationStatus();
+            for (Map.Entry<TestDescription, String> sample : getFailureSamples().entrySet()) {
+                CLog.i("Failed test %s: %s", sample.getKey(), sample.getValue());
+            }
             final ClusterCommandEvent.Builder eventBuilder =
                     createEventBuilder()
                             .setType(ClusterCommandEvent.Type.InvocationCompleted)
@@ -16,33 +16,134 @@
 package com.android.tradefed.cluster;
 
 import com.android.loganalysis.util.ArrayUtil;
+import com.android.tradefed.build.BuildRetrievalError;
+import com.android.tradefed.build.FileDownloadCache;
+import com.android.tradefed.build.IFileDownloader;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-/** A class to download test resource files from file system/GCS/HTTP. */
+/**
+ * A class to download test resource files from file system/GCS/HTTP.
+ *
+ * <p>HTTP(S) resources are downloaded in-process. Large files served with range support are split
+ * in chunks downloaded in parallel, and partially downloaded data is kept between attempts so that
+ * retries resume where the previous attempt stopped. Partial data is only resumed when the server
+ * confirms, with {@code If-Range}, that the file did not change since. Several resources can be
+ * downloaded in parallel with {@link #download(List)}, and a {@link FileDownloadCache} can be set
+ * so resources shared between commands on the same host are fetched once.
+ */
 public class TestResourceDownloader {
 
     private static final long DOWNLOAD_TIMEOUT_MS = 30 * 60 * 1000;
     private static final long RETRY_INTERVAL_MS = 10 * 1000;
     private static final int MAX_RETRY_COUNT = 2;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TIMEOUT_MS = 60 * 1000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final long GCS_STAT_TIMEOUT_MS = 60 * 1000;
+    static final String PARTIAL_SUFFIX = ".part";
+    /** Suffix of the file holding the ETag or Last-Modified of the data of a partial file. */
+    static final String VALIDATOR_SUFFIX = ".validator";
 
     private final File mRootDir;
     private IRunUtil mRunUtil = null;
+    private FileDownloadCache mDownloadCache = null;
+    private int mParallelDownloads = 1;
+    private int mChunksPerFile = 1;
+    private long mChunkThreshold = Long.MAX_VALUE;
 
     public TestResourceDownloader(final File rootDir) {
         mRootDir = rootDir;
     }
 
+    /** Sets the maximum number of resources downloaded at the same time. */
+    public void setParallelDownloads(int parallelDownloads) {
+        mParallelDownloads = Math.max(1, parallelDownloads);
+    }
+
+    /**
+     * Sets how HTTP files are split in chunks downloaded in parallel.
+     *
+     * @param chunksPerFile the number of chunks to split a file into.
+     * @param chunkThreshold the minimum size in bytes for a file to be split.
+     */
+    public void setChunking(int chunksPerFile, long chunkThreshold) {
+        mChunksPerFile = Math.max(1, chunksPerFile);
+        mChunkThreshold = chunkThreshold;
+    }
+
+    /** Sets the {@link FileDownloadCache} to fetch remote resources through, or null for none. */
+    public void setDownloadCache(FileDownloadCache downloadCache) {
+        mDownloadCache = downloadCache;
+    }
+
+    /**
+     * Download several resources, at most {@link #setParallelDownloads(int)} at a time.
+     *
+     * @param resources the {@link TestResource}s to download.
+     * @return the downloaded files, in the same order as the resources.
+     * @throws IOException if any of the resources failed to download.
+     */
+    public List<File> download(List<TestResource> resources) throws IOException {
+        if (mParallelDownloads <= 1 || resources.size() <= 1) {
+            List<File> files = new ArrayList<>();
+            for (TestResource resource : resources) {
+                files.add(download(resource));
+            }
+            return files;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(mParallelDownloads, resources.size()));
+        try {
+            List<Future<File>> futures = new ArrayList<>();
+            for (final TestResource resource : resources) {
+                futures.add(executor.submit(() -> download(resource)));
+            }
+            List<File> files = new ArrayList<>();
+            for (Future<File> future : futures) {
+                files.add(getResult(future));
+            }
+            return files;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public File download(TestResource resource) throws IOException {
-        final URL url = new URL(resource.getUrl());
+        final URL url = parseUrl(resource.getUrl());
         final String protocol = url.getProtocol();
         final File dest = new File(mRootDir, resource.getName());
         final File parent = dest.getParentFile();
@@ -54,7 +155,45 @@ public class TestResourceDownloader {
             FileUtil.hardlinkFile(src, dest);
             return dest;
         }
+        if (mDownloadCache != null) {
+            try {
+                mDownloadCache.fetchRemoteFile(
+                        new ResourceFileDownloader(url), getCacheKey(url), dest);
+            } catch (BuildRetrievalError e) {
+                throw new IOException(String.format("Failed to download %s", url), e);
+            }
+            return dest;
+        }
+        downloadToFile(url, dest);
+        return dest;
+    }
+
+    /**
+     * Parses a resource url. Java has no handler for gs:// urls, they are parsed with one that
+     * cannot open connections since they are downloaded with gsutil.
+     */
+    static URL parseUrl(String url) throws IOException {
+        if (url.startsWith("gs://")) {
+            return new URL(
+                    null,
+                    url,
+                    new URLStreamHandler() {
+                        @Override
+                        protected URLConnection openConnection(URL u) throws IOException {
+                            throw new IOException(String.format("Cannot open %s", u));
+                        }
+                    });
+        }
+        return new URL(url);
+    }
 
+    /** Download the content of the url to the destination file, without any caching. */
+    private void downloadToFile(URL url, File dest) throws IOException {
+        final String protocol = url.getProtocol();
+        if ("http".equals(protocol) || "https".equals(protocol)) {
+            downloadHttp(url, dest);
+            return;
+        }
         final List<String> cmdArgs = buildDownloadCommandArgs(url, dest);
         final CommandResult result =
                 getRunUtil()
@@ -72,7 +211,6 @@ public class TestResourceDownloader {
             CLog.d("stderr:\n'''\n%s'''\n", result.getStderr());
             throw new RuntimeException(msg);
         }
-        return dest;
     }
 
     /** Build a list of command line arguments to download a file. */
@@ -82,14 +220,510 @@ public class TestResourceDownloader {
             // FIXME: Check whether gsutil is available on a host.
             return ArrayUtil.list("gsutil", "cp", url.toString(), file.getAbsolutePath());
         }
-        if ("http".equals(protocol) || "https".equals(protocol)) {
-            // FIXME: Check whether curl is available on a host.
-            // Add -L option to handle redirect.
-            return ArrayUtil.list("curl", "-o", file.getAbsolutePath(), "-fL", url.toString());
-        }
         throw new UnsupportedOperationException("protocol " + protocol + " is not supported");
     }
 
+    /**
+     * Download a HTTP(S) url, retrying on failures. Partial data from a failed attempt is kept
+     * and the next attempt resumes from it.
+     */
+    private void downloadHttp(URL url, File dest) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= MAX_RETRY_COUNT; attempt++) {
+            if (attempt > 0) {
+                CLog.w("Retrying download of %s: %s", url, lastError.getMessage());
+                getRunUtil().sleep(RETRY_INTERVAL_MS);
+            }
+            try {
+                long start = System.currentTimeMillis();
+                RemoteFileInfo info = getChunkableInfo(url);
+                if (info != null && info.mLength >= mChunkThreshold && mChunksPerFile > 1) {
+                    downloadChunks(url, dest, info);
+                } else {
+                    File partial = new File(dest.getPath() + PARTIAL_SUFFIX);
+                    downloadRange(url, partial, 0, -1, null);
+                    FileUtil.deleteFile(dest);
+                    if (!partial.renameTo(dest)) {
+                        throw new IOException(
+                                String.format("Failed to rename %s to %s", partial, dest));
+                    }
+                    FileUtil.deleteFile(getValidatorFile(partial));
+                }
+                CLog.d(
+                        "Downloaded %s (%d bytes) in %d ms",
+                        url, dest.length(), System.currentTimeMillis() - start);
+                return;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        CLog.e("Failed to download %s", url);
+        throw lastError;
+    }
+
+    /** The length and validator of a remote file. */
+    private static class RemoteFileInfo {
+        final long mLength;
+        final String mValidator;
+
+        RemoteFileInfo(long length, String validator) {
+            mLength = length;
+            mValidator = validator;
+        }
+    }
+
+    /**
+     * Returns the length and validator of the remote file if the server supports range requests,
+     * or null if the file cannot be downloaded in chunks.
+     */
+    private RemoteFileInfo getChunkableInfo(URL url) {
+        if (mChunksPerFile <= 1) {
+            return null;
+        }
+        HttpURLConnection conn = null;
+        try {
+            conn = openConnection(url, "HEAD", null, null);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK
+                    || !"bytes".equals(conn.getHeaderField("Accept-Ranges"))) {
+                return null;
+            }
+            return new RemoteFileInfo(conn.getContentLengthLong(), getValidator(conn));
+        } catch (IOException e) {
+            // Some servers do not allow HEAD requests, use a single stream.
+            CLog.d("Failed to query %s, downloading it in one stream: %s", url, e.getMessage());
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /** Download a file as parallel range requests, then concatenate the chunks. */
+    private void downloadChunks(final URL url, File dest, RemoteFileInfo info) throws IOException {
+        final long length = info.mLength;
+        long chunkSize = (length + mChunksPerFile - 1) / mChunksPerFile;
+        List<File> chunks = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(mChunksPerFile);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < mChunksPerFile; i++) {
+                final long chunkStart = i * chunkSize;
+                final long chunkEnd = Math.min(length, chunkStart + chunkSize) - 1;
+                if (chunkStart > chunkEnd) {
+                    break;
+                }
+                final File chunk = new File(dest.getPath() + PARTIAL_SUFFIX + i);
+                chunks.add(chunk);
+                futures.add(
+                        executor.submit(
+                                new Callable<Void>() {
+                                    @Override
+                                    public Void call() throws IOException {
+                                        downloadRange(
+                                                url, chunk, chunkStart, chunkEnd, info.mValidator);
+                                        return null;
+                                    }
+                                }));
+            }
+            for (Future<Void> future : futures) {
+                getResult(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        FileUtil.deleteFile(dest);
+        try (FileChannel out = new FileOutputStream(dest).getChannel()) {
+            for (File chunk : chunks) {
+                try (FileChannel in = new FileInputStream(chunk).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            FileUtil.deleteFile(dest);
+            throw e;
+        }
+        if (dest.length() != length) {
+            FileUtil.deleteFile(dest);
+            for (File chunk : chunks) {
+                deletePartial(chunk);
+            }
+            throw new IOException(
+                    String.format(
+                            "Downloaded %d bytes from %s, expected %d",
+                            dest.length(), url, length));
+        }
+        for (File chunk : chunks) {
+            deletePartial(chunk);
+        }
+    }
+
+    /**
+     * Download the bytes [start, end] of the url into the partial file, resuming after the bytes
+     * already present in it.
+     *
+     * @param url the {@link URL} to download.
+     * @param partial the file holding the downloaded bytes.
+     * @param start the first byte to download.
+     * @param end the last byte to download, or -1 to download until the end of the file.
+     * @param currentValidator the validator of the current version of the file, or null if
+     *     unknown. Partial data of another version is discarded.
+     */
+    private void downloadRange(
+            URL url, File partial, long start, long end, String currentValidator)
+            throws IOException {
+        long existing = partial.exists() ? partial.length() : 0;
+        String validator = existing > 0 ? readValidator(partial) : null;
+        if (existing > 0
+                && (validator == null
+                        || (currentValidator != null && !currentValidator.equals(validator)))) {
+            // The data cannot be checked to be from the current version of the file.
+            deletePartial(partial);
+            existing = 0;
+            validator = null;
+        }
+        if (end >= 0 && existing > end - start + 1) {
+            // Leftover from another version of the file.
+            deletePartial(partial);
+            existing = 0;
+            validator = null;
+        }
+        if (end >= 0 && existing == end - start + 1) {
+            return;
+        }
+        long from = start + existing;
+        String range = null;
+        if (from > 0 || end >= 0) {
+            range = String.format("bytes=%d-%s", from, end >= 0 ? Long.toString(end) : "");
+        }
+        // Only get the remaining bytes if the file did not change, otherwise get all of them.
+        HttpURLConnection conn = openConnection(url, "GET", range, validator);
+        try {
+            int status = conn.getResponseCode();
+            boolean append = false;
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                append = existing > 0;
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                if (start > 0 || end >= 0) {
+                    deletePartial(partial);
+                    throw new IOException(
+                            String.format(
+                                    "%s does not support range requests or changed during the "
+                                            + "download",
+                                    url));
+                }
+                // Range ignored by the server or file changed, start over.
+                if (existing > 0) {
+                    CLog.d("Cannot resume download of %s, restarting it.", url);
+                }
+            } else if (status == HTTP_RANGE_NOT_SATISFIABLE && end < 0 && existing > 0) {
+                // The file did not change and a previous attempt already got all of it.
+                if (isCompleteLength(conn, existing)) {
+                    return;
+                }
+                deletePartial(partial);
+                throw new IOException(
+                        String.format(
+                                "Failed to resume download of %s: HTTP status %d", url, status));
+            } else {
+                throw new IOException(
+                        String.format("Failed to download %s: HTTP status %d", url, status));
+            }
+            if (!append) {
+                String newValidator = getValidator(conn);
+                if (newValidator != null) {
+                    FileUtil.writeToFile(newValidator, getValidatorFile(partial));
+                } else {
+                    FileUtil.deleteFile(getValidatorFile(partial));
+                }
+            }
+            try (InputStream in = conn.getInputStream();
+                    OutputStream out =
+                            new BufferedOutputStream(new FileOutputStream(partial, append))) {
+                StreamUtil.copyStreams(in, out);
+            }
+        } finally {
+            conn.disconnect();
+        }
+        if (end >= 0 && partial.length() != end - start + 1) {
+            throw new IOException(
+                    String.format(
+                            "Incomplete download of %s: got %d bytes out of %d",
+                            url, partial.length(), end - start + 1));
+        }
+    }
+
+    /**
+     * Returns the validator of a response that can be sent in {@code If-Range}: a strong ETag,
+     * or else the Last-Modified date. Returns null if there is none.
+     */
+    private static String getValidator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /** Whether a 416 response reports a file of the given length, or no length at all. */
+    private static boolean isCompleteLength(HttpURLConnection conn, long length) {
+        // Content-Range: bytes */<length>
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.contains("/")) {
+            return true;
+        }
+        String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+        return total.equals("*") || total.equals(Long.toString(length));
+    }
+
+    private static File getValidatorFile(File partial) {
+        return new File(partial.getPath() + VALIDATOR_SUFFIX);
+    }
+
+    private static String readValidator(File partial) {
+        File validatorFile = getValidatorFile(partial);
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        try {
+            return FileUtil.readStringFromFile(validatorFile).trim();
+        } catch (IOException e) {
+            CLog.w("Failed to read %s: %s", validatorFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void deletePartial(File partial) {
+        FileUtil.deleteFile(partial);
+        FileUtil.deleteFile(getValidatorFile(partial));
+    }
+
+    /**
+     * Open a connection to the url, following redirects including across protocols.
+     *
+     * @param url the {@link URL} to open.
+     * @param method the HTTP method.
+     * @param range the Range header, or null for none.
+     * @param ifRange the If-Range header sent with the range, or null for none.
+     */
+    private HttpURLConnection openConnection(URL url, String method, String range, String ifRange)
+            throws IOException {
+        URL current = url;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            HttpURLConnection conn = (HttpURLConnection) current.openConnection();
+            conn.setRequestMethod(method);
+            conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+            conn.setReadTimeout(HTTP_TIMEOUT_MS);
+            if (range != null) {
+                conn.setRequestProperty("Range", range);
+                if (ifRange != null) {
+                    conn.setRequestProperty("If-Range", ifRange);
+                }
+            }
+            int status = conn.getResponseCode();
+            if (status != HttpURLConnection.HTTP_MOVED_PERM
+                    && status != HttpURLConnection.HTTP_MOVED_TEMP
+                    && status != HttpURLConnection.HTTP_SEE_OTHER
+                    && status != 307
+                    && status != 308) {
+                return conn;
+            }
+            String location = conn.getHeaderField("Location");
+            conn.disconnect();
+            if (location == null) {
+                throw new IOException(String.format("Redirect without location from %s", current));
+            }
+            current = new URL(current, location);
+        }
+        throw new IOException(String.format("Too many redirects from %s", url));
+    }
+
+    /** Returns the path under which the url is stored in the {@link FileDownloadCache}. */
+    static String getCacheKey(URL url) {
+        StringBuilder key = new StringBuilder("test_resources/");
+        key.append(url.getProtocol()).append('/').append(url.getHost());
+        if (url.getPort() != -1) {
+            key.append('_').append(url.getPort());
+        }
+        key.append(url.getPath().replace("..", "__"));
+        if (url.getQuery() != null) {
+            key.append('_').append(sha256(url.getQuery()));
+        }
+        return key.toString();
+    }
+
+    private static String sha256(String data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(data.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Unwrap the result of a download task. */
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while downloading test resources", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** {@link IFileDownloader} filling the {@link FileDownloadCache} with a test resource. */
+    private class ResourceFileDownloader implements IFileDownloader {
+        private final URL mUrl;
+
+        ResourceFileDownloader(URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        public File downloadFile(String remoteFilePath) throws BuildRetrievalError {
+            File dest = null;
+            try {
+                dest = FileUtil.createTempFile("test_resource", null);
+                downloadFile(remoteFilePath, dest);
+                return dest;
+            } catch (IOException e) {
+                FileUtil.deleteFile(dest);
+                throw new BuildRetrievalError(String.format("Failed to download %s", mUrl), e);
+            }
+        }
+
+        /**
+         * Checks a cached resource against the Last-Modified date and length of the remote one.
+         * The cached resource is kept if the server cannot be queried.
+         */
+        @Override
+        public boolean isFresh(File localFile, String remoteFilePath) {
+            String protocol = mUrl.getProtocol();
+            if ("gs".equals(protocol)) {
+                return isGcsObjectFresh(mUrl, localFile);
+            }
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                return true;
+            }
+            HttpURLConnection conn = null;
+            try {
+                conn = openConnection(mUrl, "HEAD", null, null);
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    return true;
+                }
+                long length = conn.getContentLengthLong();
+                if (length >= 0 && length != localFile.length()) {
+                    CLog.d("%s changed size, downloading it again.", mUrl);
+                    return false;
+                }
+                long lastModified = conn.getLastModified();
+                if (lastModified > localFile.lastModified()) {
+                    CLog.d("%s was modified since cached, downloading it again.", mUrl);
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                CLog.d("Failed to check %s, using the cached copy: %s", mUrl, e.getMessage());
+                return true;
+            } finally {
+                if (conn != null) {
+                    conn.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public void downloadFile(String relativeRemotePath, File destFile)
+                throws BuildRetrievalError {
+            try {
+                downloadToFile(mUrl, destFile);
+            } catch (IOException | RuntimeException e) {
+                throw new BuildRetrievalError(String.format("Failed to download %s", mUrl), e);
+            }
+        }
+    }
+
+    /**
+     * Checks a cached resource against the metadata of a GCS object: its length, then its md5, or
+     * its update time for composite objects that have no md5. The cached resource is kept if the
+     * metadata cannot be read.
+     */
+    @VisibleForTesting
+    boolean isGcsObjectFresh(URL url, File localFile) {
+        CommandResult result =
+                getRunUtil().runTimedCmd(GCS_STAT_TIMEOUT_MS, "gsutil", "stat", url.toString());
+        if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+            CLog.d("Failed to check %s, using the cached copy: %s", url, result.getStderr());
+            return true;
+        }
+        Long length = null;
+        String md5 = null;
+        Long updateTime = null;
+        for (String line : result.getStdout().split("\n")) {
+            String[] field = line.trim().split(":", 2);
+            if (field.length != 2) {
+                continue;
+            }
+            String value = field[1].trim();
+            try {
+                switch (field[0].trim()) {
+                    case "Content-Length":
+                        length = Long.parseLong(value);
+                        break;
+                    case "Hash (md5)":
+                        md5 = value;
+                        break;
+                    case "Update time":
+                        updateTime =
+                                ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                        .toInstant()
+                                        .toEpochMilli();
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                CLog.d("Unexpected metadata of %s: %s", url, line);
+            }
+        }
+        if (length != null && length != localFile.length()) {
+            CLog.d("%s changed size, downloading it again.", url);
+            return false;
+        }
+        if (md5 != null) {
+            try {
+                if (!md5.equals(FileUtil.calculateBase64Md5(localFile))) {
+                    CLog.d("%s changed content, downloading it again.", url);
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                CLog.d("Failed to hash the cached copy of %s: %s", url, e.getMessage());
+                return false;
+            }
+        }
+        if (updateTime != null && updateTime > localFile.lastModified()) {
+            CLog.d("%s was modified since cached, downloading it again.", url);
+            return false;
+        }
+        return true;
+    }
+
     IRunUtil getRunUtil() {
         if (mRunUtil == null) {
             mRunUtil = new RunUtil();
@@ -22,6 +22,14 @@ import com.android.tradefed.util.RunUtil;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,18 +38,33 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A simple class to watch a set of command files for changes, and to trigger a
- * reload of _all_ manually-loaded command files when such a change happens.
+ * A simple class to watch a set of command files for changes, and to trigger a reload of the
+ * changed command files when such a change happens.
+ *
+ * <p>When filesystem notifications are available, the parent directories of the watched files are
+ * registered with a {@link WatchService} and only the command files affected by a notification are
+ * checked. Otherwise, or for directories that cannot be registered, the files are polled every
+ * {@link #POLL_TIME_MS}.
  */
 class CommandFileWatcher extends Thread {
     private static final long POLL_TIME_MS = 20 * 1000;  // 20 seconds
+    // Time to wait for further events before acting on a notification, so that a burst of writes
+    // to the same file (e.g. editor save, rsync) only triggers one reload.
+    private static final long DEBOUNCE_TIME_MS = 500;
     // thread-safe (for read-writes, not write during iteration) structure holding all commands
     // being watched. map of absolute file system path to command file
     private Map<String, CommandFile> mCmdFileMap = new Hashtable<>();
     boolean mCancelled = false;
     private final ICommandFileListener mListener;
+    // null when watching is disabled or not supported by the filesystem: poll instead
+    private WatchService mWatchService = null;
+    // map of registered watch key to the directory it watches
+    private Map<WatchKey, Path> mWatchedDirs = new Hashtable<>();
+    // true if some watched files could not be registered and need to be polled
+    private volatile boolean mPollingRequired = false;
 
     static interface ICommandFileListener {
         public void notifyFileChanged(File cmdFile, List<String> extraArgs);
@@ -107,9 +130,23 @@ class CommandFileWatcher extends Thread {
     }
 
     public CommandFileWatcher(ICommandFileListener listener) {
+        this(listener, false);
+    }
+
+    /**
+     * Create a {@link CommandFileWatcher}.
+     *
+     * @param listener the {@link ICommandFileListener} to notify of changes
+     * @param useWatchService whether to rely on filesystem notifications instead of polling. If
+     *     notifications are not supported, polling is used.
+     */
+    public CommandFileWatcher(ICommandFileListener listener, boolean useWatchService) {
         super("CommandFileWatcher");  // set the thread name
         mListener = listener;
         setDaemon(true);  // Don't keep the JVM alive for this thread
+        if (useWatchService) {
+            mWatchService = createWatchService();
+        }
     }
 
     /**
@@ -117,12 +154,145 @@ class CommandFileWatcher extends Thread {
      */
     @Override
     public void run() {
+        if (mWatchService != null) {
+            watchForUpdates();
+        }
+        // Polling mode, also used as fallback if the watch service stopped working.
         while (!isCancelled()) {
             checkForUpdates();
             getRunUtil().sleep(POLL_TIME_MS);
         }
     }
 
+    /**
+     * Create the {@link WatchService} used to receive change notifications.
+     * <p />
+     * Exposed for unit testing.
+     *
+     * @return the {@link WatchService} or null if notifications are not supported.
+     */
+    WatchService createWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.w("Filesystem notifications are not supported, polling command files: %s", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if change notifications are used to detect command file updates.
+     */
+    public boolean isUsingWatchService() {
+        return mWatchService != null;
+    }
+
+    /**
+     * Returns true if some watched files cannot rely on notifications and need to be polled.
+     */
+    boolean isPollingRequired() {
+        return mWatchService == null || mPollingRequired;
+    }
+
+    /**
+     * Wait for change notifications and check the command files they affect. Returns when the
+     * watcher is cancelled or when the watch service stops working.
+     */
+    private void watchForUpdates() {
+        while (!isCancelled()) {
+            Set<String> changedPaths = new HashSet<>();
+            boolean overflow = false;
+            try {
+                WatchKey key = mWatchService.poll(POLL_TIME_MS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    if (mPollingRequired) {
+                        checkForUpdates();
+                    }
+                    continue;
+                }
+                // Debounce: keep collecting until no events arrive for DEBOUNCE_TIME_MS
+                while (key != null) {
+                    overflow |= collectChangedPaths(key, changedPaths);
+                    key = mWatchService.poll(DEBOUNCE_TIME_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Loop condition will take care of cancellation.
+                continue;
+            } catch (ClosedWatchServiceException e) {
+                if (!isCancelled()) {
+                    CLog.w("Watch service was closed, falling back to polling command files.");
+                }
+                mWatchService = null;
+                return;
+            }
+            if (overflow) {
+                // Some events were lost, check everything.
+                checkForUpdates();
+            } else {
+                checkForUpdates(changedPaths);
+            }
+        }
+    }
+
+    /**
+     * Add the absolute paths of the files reported by the given {@link WatchKey} to the set of
+     * changed paths.
+     *
+     * @return true if events were lost and all files need to be checked.
+     */
+    private boolean collectChangedPaths(WatchKey key, Set<String> changedPaths) {
+        boolean overflow = false;
+        Path dir = mWatchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (StandardWatchEventKinds.OVERFLOW.equals(event.kind()) || dir == null) {
+                overflow = true;
+                continue;
+            }
+            changedPaths.add(dir.resolve((Path) event.context()).toFile().getAbsolutePath());
+        }
+        if (!key.reset()) {
+            // Directory is no longer accessible (e.g. deleted): poll its files from now on.
+            CLog.w("Directory %s is no longer watched, polling its command files.", dir);
+            mWatchedDirs.remove(key);
+            mPollingRequired = true;
+        }
+        return overflow;
+    }
+
+    /**
+     * Register the parent directory of the given file with the watch service, if not already
+     * registered. If registration fails, the file will be polled.
+     */
+    private void watchParentDirectory(File file) {
+        WatchService watchService = mWatchService;
+        if (watchService == null) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            mPollingRequired = true;
+            return;
+        }
+        Path dir = parent.toPath();
+        synchronized (mWatchedDirs) {
+            if (mWatchedDirs.containsValue(dir)) {
+                return;
+            }
+            try {
+                WatchKey key =
+                        dir.register(
+                                watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+                mWatchedDirs.put(key, dir);
+            } catch (IOException | RuntimeException e) {
+                CLog.w("Failed to watch directory %s, polling its command files: %s", dir, e);
+                mPollingRequired = true;
+            }
+        }
+    }
+
     /**
      * Same as {@link #addCmdFile(File, List, Collection)} but accepts a list of {@link File}s
      * as dependencies
@@ -131,6 +301,10 @@ class CommandFileWatcher extends Thread {
     void addCmdFile(File cmdFile, List<String> extraArgs, List<File> dependencies) {
         CommandFile f = new CommandFile(cmdFile, extraArgs, dependencies);
         mCmdFileMap.put(cmdFile.getAbsolutePath(), f);
+        watchParentDirectory(f.file);
+        for (CommandFile dep : f.dependencies) {
+            watchParentDirectory(dep.file);
+        }
     }
 
     /**
@@ -145,6 +319,14 @@ class CommandFileWatcher extends Thread {
      */
     public void cancel() {
         mCancelled = true;
+        WatchService watchService = mWatchService;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+        }
         interrupt();
     }
 
@@ -162,6 +344,17 @@ class CommandFileWatcher extends Thread {
      * Exposed for unit testing
      */
     void checkForUpdates() {
+        checkForUpdates(null);
+    }
+
+    /**
+     * Check the command files that are affected by the given changed paths.
+     * <p />
+     * Exposed for unit testing
+     *
+     * @param changedPaths the absolute paths reported as changed, or null to check all files.
+     */
+    void checkForUpdates(Set<String> changedPaths) {
         final Set<File> checkedFiles = new HashSet<File>();
 
         // iterate through a copy of the command list to limit time lock needs to be held
@@ -170,12 +363,30 @@ class CommandFileWatcher extends Thread {
             cmdCopy = new ArrayList<CommandFile>(mCmdFileMap.values());
         }
         for (CommandFile cmd : cmdCopy) {
+            if (changedPaths != null && !isAffectedBy(cmd, changedPaths)) {
+                continue;
+            }
             if (checkCommandFileForUpdate(cmd, checkedFiles)) {
                 mListener.notifyFileChanged(cmd.file, cmd.extraArgs);
             }
         }
     }
 
+    /**
+     * Returns true if the command file or one of its dependencies is part of the changed paths.
+     */
+    private boolean isAffectedBy(CommandFile cmd, Set<String> changedPaths) {
+        if (changedPaths.contains(cmd.file.getAbsolutePath())) {
+            return true;
+        }
+        for (CommandFile dep : cmd.dependencies) {
+            if (isAffectedBy(dep, changedPaths)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     boolean checkCommandFileForUpdate(CommandFile cmd, Set<File> checkedFiles) {
         if (checkedFiles.contains(cmd.file)) {
             return false;
@@ -249,6 +460,13 @@ class CommandFileWatcher extends Thread {
      */
     public void removeAllFiles() {
         mCmdFileMap.clear();
+        synchronized (mWatchedDirs) {
+            for (WatchKey key : mWatchedDirs.keySet()) {
+                key.cancel();
+            }
+            mWatchedDirs.clear();
+            mPollingRequired = false;
+        }
     }
 
     /**
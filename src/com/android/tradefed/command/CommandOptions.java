@@ -219,6 +219,13 @@ public class CommandOptions implements ICommandOptions {
                             + "in the queryArgs.")
     private Map<String, String> mDynamicDownloadArgs = new LinkedHashMap<>();
 
+    @Option(
+            name = "dynamic-download-max-parallel",
+            description =
+                    "Maximum number of remote files of the options downloaded at once. Set to 1 "
+                            + "to download them one after the other.")
+    private int mDynamicDownloadMaxParallel = 4;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -547,4 +554,10 @@ public class CommandOptions implements ICommandOptions {
     public Map<String, String> getDynamicDownloadArgs() {
         return mDynamicDownloadArgs;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getDynamicDownloadMaxParallel() {
+        return mDynamicDownloadMaxParallel;
+    }
 }
@@ -178,6 +178,14 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     // FIXME: enable this to be enabled or disabled on a per-cmdfile basis
     private boolean mReloadCmdfiles = false;
 
+    @Option(
+        name = "reload-cmdfiles-use-notifications",
+        description =
+                "Whether to detect command file changes through filesystem notifications instead "
+                        + "of polling. Falls back to polling if notifications are not supported."
+    )
+    private boolean mUseCmdfileNotifications = true;
+
     @Option(
         name = "max-poll-time",
         description = "ms between forced command scheduler execution time"
@@ -916,7 +924,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     public synchronized CommandFileWatcher getCommandFileWatcher() {
         assertStarted();
         if (mCommandFileWatcher == null) {
-            mCommandFileWatcher = new CommandFileWatcher(this);
+            mCommandFileWatcher = new CommandFileWatcher(this, mUseCmdfileNotifications);
             mCommandFileWatcher.start();
         }
         return mCommandFileWatcher;
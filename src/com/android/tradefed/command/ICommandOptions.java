@@ -202,4 +202,7 @@ public interface ICommandOptions {
 
     /** Returns the map of args to pass to the dynamic download query. */
     public Map<String, String> getDynamicDownloadArgs();
+
+    /** Returns the maximum number of remote option files downloaded at once. */
+    public int getDynamicDownloadMaxParallel();
 }
@@ -18,15 +18,22 @@ package com.android.tradefed.command.remote;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.command.ICommandScheduler;
 import com.android.tradefed.command.remote.CommandResult.Status;
+import com.android.tradefed.command.remote.RemoteOperation.OperationType;
 import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceMonitor;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.hostmetric.IHostMonitor;
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostDataPoint;
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -34,19 +41,40 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that receives {@link com.android.tradefed.command.remote.RemoteOperation}s via a socket.
  * <p/>
- * Currently accepts only one remote connection at one time, and processes incoming commands
- * serially.
+ * Accepts many concurrent, persistent remote connections through a non-blocking server. Each
+ * connection may pipeline several operations: they are processed in order for a given connection
+ * and responses are sent back in the same order, while operations from different connections are
+ * processed concurrently. A connection that sent a {@link SubscribeDeviceStateOp} additionally
+ * receives a stream of device state change events.
  * <p/>
  * Usage:
  * <pre>
@@ -60,11 +88,25 @@ import java.net.SocketTimeoutException;
 @OptionClass(alias = "remote-manager")
 public class RemoteManager extends Thread {
 
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final byte NEW_LINE = '\n';
+    /** Longest operation accepted, a connection sending a longer line is closed. */
+    @VisibleForTesting static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private ServerSocketChannel mServerChannel = null;
     private ServerSocket mServerSocket = null;
-    private boolean mCancel = false;
+    private volatile Selector mSelector = null;
+    private ExecutorService mRequestExecutor = null;
+    private volatile boolean mCancel = false;
     private final IDeviceManager mDeviceManager;
     private final ICommandScheduler mScheduler;
 
+    /** All the currently opened client connections. */
+    private final Set<ClientConnection> mConnections = ConcurrentHashMap.newKeySet();
+    /** Connections with responses waiting to be registered for writing by the selector thread. */
+    private final Queue<ClientConnection> mPendingWrites = new ConcurrentLinkedQueue<>();
+    private final DeviceStateMonitor mDeviceStateMonitor = new DeviceStateMonitor();
+
     @Option(name = "start-remote-mgr",
             description = "Whether or not to start a remote manager on boot.")
     private static boolean mStartRemoteManagerOnBoot = false;
@@ -82,6 +124,10 @@ public class RemoteManager extends Thread {
             description = "Timeout for when accepting connections with the remote manager socket.")
     private static int mSocketTimeout = 2000;
 
+    @Option(name = "remote-mgr-request-threads",
+            description = "Maximum number of remote operations processed concurrently.")
+    private static int mRequestThreads = 4;
+
     public boolean getStartRemoteMgrOnBoot() {
         return mStartRemoteManagerOnBoot;
     }
@@ -141,19 +187,24 @@ public class RemoteManager extends Thread {
      * @return true if we successfully connect to the port, false otherwise.
      */
     protected boolean connect(int port) {
-        mServerSocket = openSocket(port);
+        mServerChannel = openSocket(port);
+        mServerSocket = mServerChannel != null ? mServerChannel.socket() : null;
         return mServerSocket != null;
     }
 
     /**
      * Attempts to open server socket at given port.
      * @param port to open the socket at.
-     * @return the ServerSocket or null if attempt failed.
+     * @return the ServerSocketChannel or null if attempt failed.
      */
-    private ServerSocket openSocket(int port) {
+    private ServerSocketChannel openSocket(int port) {
+        ServerSocketChannel channel = null;
         try {
-            return new ServerSocket(port);
+            channel = ServerSocketChannel.open();
+            channel.socket().bind(new InetSocketAddress(port));
+            return channel;
         } catch (IOException e) {
+            StreamUtil.close(channel);
             // avoid printing a scary stack that is due to handover.
             CLog.w(
                     "Failed to open server socket: %s. Probably due to another instance of TF "
@@ -167,24 +218,61 @@ public class RemoteManager extends Thread {
     /**
      * The main thread body of the remote manager.
      * <p/>
-     * Creates a server socket, and waits for client connections.
+     * Waits for client connections and dispatches their operations until cancelled.
      */
     @Override
     public void run() {
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             CLog.e("Started remote manager thread without connecting");
             return;
         }
+        mRequestExecutor = Executors.newFixedThreadPool(mRequestThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RemoteManager-request-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (mDeviceManager != null) {
+            mDeviceManager.addDeviceMonitor(mDeviceStateMonitor);
+        }
         try {
-            // Set a timeout as we don't want to be blocked listening for connections,
-            // we could receive a request for cancel().
-            mServerSocket.setSoTimeout(mSocketTimeout);
-            processClientConnections(mServerSocket);
-        } catch (SocketException e) {
-            CLog.e("Error when setting socket timeout");
+            synchronized (this) {
+                mSelector = Selector.open();
+            }
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+            processClientConnections(mSelector);
+        } catch (IOException | ClosedSelectorException e) {
+            CLog.e("Error in remote manager server");
             CLog.e(e);
         } finally {
+            if (mDeviceManager != null) {
+                mDeviceManager.removeDeviceMonitor(mDeviceStateMonitor);
+            }
+            mRequestExecutor.shutdown();
+            try {
+                mRequestExecutor.awaitTermination(mSocketTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+            // Answer the operations processed before the cancel, like the CLOSE ack.
+            try {
+                if (mSelector != null && mSelector.isOpen()) {
+                    flushPendingResponses(mSelector);
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                CLog.e("Failed to send the remaining remote manager responses");
+                CLog.e(e);
+            }
+            for (ClientConnection connection : mConnections) {
+                connection.close();
+            }
             freeAllDevices();
+            StreamUtil.close(mSelector);
             closeSocket(mServerSocket);
         }
     }
@@ -210,29 +298,98 @@ public class RemoteManager extends Thread {
         return mServerSocket.getLocalPort();
     }
 
-    private void processClientConnections(ServerSocket serverSocket) {
+    /**
+     * Selector loop: accepts new connections, reads incoming operations and writes back the
+     * pending responses until the remote manager is cancelled.
+     */
+    private void processClientConnections(Selector selector) throws IOException {
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         while (!mCancel) {
-            Socket clientSocket = null;
-            BufferedReader in = null;
-            PrintWriter out = null;
-            try {
-                clientSocket = serverSocket.accept();
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                processClientOperations(in, out);
-            } catch (SocketTimeoutException e) {
-                // ignore.
-            } catch (IOException e) {
-                CLog.e("Failed to accept connection");
-                CLog.e(e);
-            } finally {
-                closeReader(in);
-                closeWriter(out);
-                closeSocket(clientSocket);
+            // Use a timeout as we could receive a request for cancel().
+            selector.select(mSocketTimeout);
+            ClientConnection pending;
+            while ((pending = mPendingWrites.poll()) != null) {
+                pending.enableWrite();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isAcceptable()) {
+                        acceptConnection(selector);
+                        continue;
+                    }
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    CLog.e("Failed to handle remote connection");
+                    CLog.e(e);
+                    if (key.attachment() != null) {
+                        ((ClientConnection) key.attachment()).close();
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Write the responses still queued once the selector loop stopped, waiting at most the socket
+     * timeout for the clients to read them.
+     */
+    private void flushPendingResponses(Selector selector) throws IOException {
+        long deadline = System.currentTimeMillis() + mSocketTimeout;
+        while (true) {
+            boolean pending = false;
+            for (ClientConnection connection : mConnections) {
+                if (connection.hasPendingResponses()) {
+                    connection.enableWrite();
+                    pending = true;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!pending || remaining <= 0) {
+                return;
+            }
+            selector.select(remaining);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid() || !key.isWritable()) {
+                    continue;
+                }
+                ClientConnection connection = (ClientConnection) key.attachment();
+                try {
+                    connection.write();
+                } catch (IOException e) {
+                    CLog.e(e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void acceptConnection(Selector selector) throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        ClientConnection connection = new ClientConnection(channel);
+        connection.mKey = channel.register(selector, SelectionKey.OP_READ, connection);
+        mConnections.add(connection);
+        CLog.d("Accepted remote connection from %s", channel.socket().getRemoteSocketAddress());
+    }
+
     /**
      * Process {@link com.android.tradefed.command.remote.RemoteClient} operations.
      *
@@ -244,61 +401,81 @@ public class RemoteManager extends Thread {
     void processClientOperations(BufferedReader in, PrintWriter out) throws IOException {
         String line = null;
         while ((line = in.readLine()) != null && !mCancel) {
-            JSONObject result = new JSONObject();
-            RemoteOperation<?> rc;
-            Thread postOp = null;
-            try {
-                rc = RemoteOperation.createRemoteOpFromString(line);
-                switch (rc.getType()) {
-                    case ADD_COMMAND:
-                        processAdd((AddCommandOp)rc, result);
-                        break;
-                    case ADD_COMMAND_FILE:
-                        processAddCommandFile((AddCommandFileOp)rc, result);
-                        break;
-                    case CLOSE:
-                        processClose((CloseOp)rc, result);
-                        break;
-                    case ALLOCATE_DEVICE:
-                        processAllocate((AllocateDeviceOp)rc, result);
-                        break;
-                    case FREE_DEVICE:
-                        processFree((FreeDeviceOp)rc, result);
-                        break;
-                    case START_HANDOVER:
-                        postOp = processStartHandover((StartHandoverOp)rc, result);
-                        break;
-                    case HANDOVER_INIT_COMPLETE:
-                        processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
-                        break;
-                    case HANDOVER_COMPLETE:
-                        postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
-                        break;
-                    case LIST_DEVICES:
-                        processListDevices((ListDevicesOp)rc, result);
-                        break;
-                    case EXEC_COMMAND:
-                        processExecCommand((ExecCommandOp)rc, result);
-                        break;
-                    case GET_LAST_COMMAND_RESULT:
-                        processGetLastCommandResult((GetLastCommandResultOp)rc, result);
-                        break;
-                    default:
-                        result.put(RemoteOperation.ERROR, "Unrecognized operation");
-                        break;
-                }
-            } catch (RemoteException e) {
-                addErrorToResult(result, e);
-            } catch (JSONException e) {
-                addErrorToResult(result, e);
-            } catch (RuntimeException e) {
-                addErrorToResult(result, e);
+            OperationResult result = processClientOperation(line, null);
+            sendAck(result.mResponse, out);
+            if (result.mPostOp != null) {
+                result.mPostOp.start();
             }
-            sendAck(result, out);
-            if (postOp != null) {
-                postOp.start();
+        }
+    }
+
+    /**
+     * Process a single {@link com.android.tradefed.command.remote.RemoteClient} operation.
+     *
+     * @param line the serialized operation.
+     * @param connection the {@link ClientConnection} the operation was received from, or null.
+     * @return the {@link OperationResult} holding the response to send back.
+     */
+    @VisibleForTesting
+    OperationResult processClientOperation(String line, ClientConnection connection) {
+        long startTime = System.nanoTime();
+        JSONObject result = new JSONObject();
+        RemoteOperation<?> rc = null;
+        Thread postOp = null;
+        try {
+            rc = RemoteOperation.createRemoteOpFromString(line);
+            switch (rc.getType()) {
+                case ADD_COMMAND:
+                    processAdd((AddCommandOp)rc, result);
+                    break;
+                case ADD_COMMAND_FILE:
+                    processAddCommandFile((AddCommandFileOp)rc, result);
+                    break;
+                case CLOSE:
+                    processClose((CloseOp)rc, result);
+                    break;
+                case ALLOCATE_DEVICE:
+                    processAllocate((AllocateDeviceOp)rc, result);
+                    break;
+                case FREE_DEVICE:
+                    processFree((FreeDeviceOp)rc, result);
+                    break;
+                case START_HANDOVER:
+                    postOp = processStartHandover((StartHandoverOp)rc, result);
+                    break;
+                case HANDOVER_INIT_COMPLETE:
+                    processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
+                    break;
+                case HANDOVER_COMPLETE:
+                    postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
+                    break;
+                case LIST_DEVICES:
+                    processListDevices((ListDevicesOp)rc, result);
+                    break;
+                case EXEC_COMMAND:
+                    processExecCommand((ExecCommandOp)rc, result);
+                    break;
+                case GET_LAST_COMMAND_RESULT:
+                    processGetLastCommandResult((GetLastCommandResultOp)rc, result);
+                    break;
+                case SUBSCRIBE_DEVICE_STATE:
+                    processSubscribeDeviceState((SubscribeDeviceStateOp)rc, connection, result);
+                    break;
+                default:
+                    result.put(RemoteOperation.ERROR, "Unrecognized operation");
+                    break;
             }
+        } catch (RemoteException e) {
+            addErrorToResult(result, e);
+        } catch (JSONException e) {
+            addErrorToResult(result, e);
+        } catch (RuntimeException e) {
+            addErrorToResult(result, e);
         }
+        recordRequestLatency(
+                rc != null ? rc.getType().toString() : "INVALID",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return new OperationResult(result, postOp);
     }
 
     private void addErrorToResult(JSONObject result, Exception e) {
@@ -321,6 +498,19 @@ public class RemoteManager extends Thread {
         }
     }
 
+    private void processSubscribeDeviceState(SubscribeDeviceStateOp rc,
+            ClientConnection connection, JSONObject result) throws JSONException {
+        if (connection == null) {
+            result.put(RemoteOperation.ERROR,
+                    "Subscriptions are only supported on persistent connections");
+            return;
+        }
+        // Subscribe before listing so no state change can be missed in between. The events are
+        // held until the response is queued, so the client receives the response first.
+        connection.subscribe();
+        rc.packResponseIntoJson(mDeviceManager.listAllDevices(), result);
+    }
+
     @VisibleForTesting
     DeviceTracker getDeviceTracker() {
         return DeviceTracker.getInstance();
@@ -483,6 +673,9 @@ public class RemoteManager extends Thread {
         if (!mCancel) {
             mCancel  = true;
             CLog.logAndDisplay(LogLevel.INFO, "Closing remote manager at port %d", getPort());
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
         }
     }
 
@@ -502,22 +695,275 @@ public class RemoteManager extends Thread {
         StreamUtil.close(serverSocket);
     }
 
-    private void closeSocket(Socket clientSocket) {
-        StreamUtil.close(clientSocket);
+    /**
+     * @return <code>true</code> if a cancel has been requested
+     */
+    public boolean isCanceled() {
+        return mCancel;
+    }
+
+    /** Reports the processing time of an operation to the host monitors. */
+    private void recordRequestLatency(String operation, long latencyMs) {
+        List<IHostMonitor> hostMonitors = getHostMonitors();
+        if (hostMonitors == null) {
+            return;
+        }
+        HostDataPoint data = new HostDataPoint(operation, (int) latencyMs);
+        for (IHostMonitor hm : hostMonitors) {
+            hm.addHostEvent(HostMetricType.REMOTE_MANAGER_REQUEST_LATENCY, data);
+        }
+    }
+
+    @VisibleForTesting
+    List<IHostMonitor> getHostMonitors() {
+        try {
+            return GlobalConfiguration.getHostMonitorInstances();
+        } catch (IllegalStateException e) {
+            // No global configuration to report to.
+            return null;
+        }
     }
 
-    private void closeReader(BufferedReader in) {
-        StreamUtil.close(in);
+    /** Response to a remote operation, and the optional action to run once it has been sent. */
+    @VisibleForTesting
+    static class OperationResult {
+        final JSONObject mResponse;
+        final Thread mPostOp;
+
+        OperationResult(JSONObject response, Thread postOp) {
+            mResponse = response;
+            mPostOp = postOp;
+        }
     }
 
-    private void closeWriter(PrintWriter out) {
-        StreamUtil.close(out);
+    /** {@link IDeviceMonitor} streaming device state changes to the subscribed connections. */
+    private class DeviceStateMonitor implements IDeviceMonitor {
+        @Override
+        public void run() {
+            // ignore
+        }
+
+        @Override
+        public void stop() {
+            // ignore
+        }
+
+        @Override
+        public void setDeviceLister(DeviceLister lister) {
+            // ignore
+        }
+
+        @Override
+        public void notifyDeviceStateChange(String serial, DeviceAllocationState oldState,
+                DeviceAllocationState newState) {
+            String event = null;
+            for (ClientConnection connection : mConnections) {
+                if (!connection.mSubscribed) {
+                    continue;
+                }
+                if (event == null) {
+                    try {
+                        event = SubscribeDeviceStateOp.packEventIntoJson(serial, oldState,
+                                newState).toString();
+                    } catch (JSONException e) {
+                        CLog.e(e);
+                        return;
+                    }
+                }
+                connection.sendEvent(event);
+            }
+        }
     }
 
     /**
-     * @return <code>true</code> if a cancel has been requested
+     * A persistent client connection. Reads and writes happen on the selector thread, operations
+     * are processed in order on the request executor, one at a time per connection.
      */
-    public boolean isCanceled() {
-        return mCancel;
+    @VisibleForTesting
+    class ClientConnection {
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+        /** Bytes of the incoming line being read. Only accessed from the selector thread. */
+        private final ByteArrayOutputStream mLineBuffer = new ByteArrayOutputStream();
+        /** Received operations waiting to be processed. Guarded by this. */
+        private final Queue<String> mPendingRequests = new ArrayDeque<>();
+        /** Whether a request executor task is processing this connection. Guarded by this. */
+        private boolean mProcessing = false;
+        private final Queue<ByteBuffer> mPendingResponses = new ConcurrentLinkedQueue<>();
+        private volatile boolean mSubscribed = false;
+        /** Events waiting for the subscription response to be queued. Guarded by this. */
+        private List<String> mHeldEvents = null;
+        private volatile boolean mEndOfInput = false;
+        private volatile boolean mClosed = false;
+
+        ClientConnection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /** Read the available data and queue the complete operations for processing. */
+        void read(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int read = mChannel.read(readBuffer);
+            if (read < 0) {
+                mEndOfInput = true;
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == NEW_LINE) {
+                    String line = new String(mLineBuffer.toByteArray(), StandardCharsets.UTF_8);
+                    mLineBuffer.reset();
+                    enqueueRequest(line.trim());
+                } else if (mLineBuffer.size() < MAX_LINE_LENGTH) {
+                    mLineBuffer.write(b);
+                } else {
+                    CLog.w(
+                            "Closing remote connection, operation longer than %d bytes",
+                            MAX_LINE_LENGTH);
+                    close();
+                    return;
+                }
+            }
+        }
+
+        private void enqueueRequest(String line) {
+            if (line.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                mPendingRequests.add(line);
+                if (mProcessing) {
+                    return;
+                }
+                mProcessing = true;
+            }
+            mRequestExecutor.execute(this::processRequests);
+        }
+
+        /** Process the pending operations in order until none are left. */
+        private void processRequests() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    line = mPendingRequests.poll();
+                    if (line == null || mCancel) {
+                        mPendingRequests.clear();
+                        mProcessing = false;
+                        break;
+                    }
+                }
+                OperationResult result = processClientOperation(line, this);
+                send(result.mResponse.toString());
+                releaseEvents();
+                if (result.mPostOp != null) {
+                    result.mPostOp.start();
+                }
+            }
+            closeIfDone();
+        }
+
+        /** Queue a line to be sent to the client. Can be called from any thread. */
+        void send(String line) {
+            if (mClosed) {
+                return;
+            }
+            mPendingResponses.add(
+                    ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            mPendingWrites.add(this);
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        /** Start receiving the device state events, held until {@link #releaseEvents()}. */
+        synchronized void subscribe() {
+            if (!mSubscribed) {
+                mHeldEvents = new ArrayList<>();
+                mSubscribed = true;
+            }
+        }
+
+        /** Queue a device state event, or hold it if the subscription is not answered yet. */
+        synchronized void sendEvent(String event) {
+            if (mHeldEvents != null) {
+                mHeldEvents.add(event);
+            } else {
+                send(event);
+            }
+        }
+
+        /** Send the events held while the subscription response was not queued yet. */
+        private synchronized void releaseEvents() {
+            if (mHeldEvents != null) {
+                for (String event : mHeldEvents) {
+                    send(event);
+                }
+                mHeldEvents = null;
+            }
+        }
+
+        boolean hasPendingResponses() {
+            return !mClosed && !mPendingResponses.isEmpty();
+        }
+
+        /** Register interest in writing. Called from the selector thread. */
+        void enableWrite() {
+            if (!mClosed && mKey.isValid()) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /** Write as many pending responses as possible. Called from the selector thread. */
+        void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = mPendingResponses.peek()) != null) {
+                mChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // socket buffer is full, wait for the next writable event.
+                    return;
+                }
+                mPendingResponses.poll();
+            }
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        /** Close the connection once the client stopped sending and everything was answered. */
+        private void closeIfDone() {
+            if (!mEndOfInput) {
+                return;
+            }
+            synchronized (this) {
+                if (mProcessing || !mPendingRequests.isEmpty()) {
+                    return;
+                }
+            }
+            if (mPendingResponses.isEmpty()) {
+                close();
+            } else {
+                // let the selector thread flush the remaining responses first.
+                mPendingWrites.add(this);
+                Selector selector = mSelector;
+                if (selector != null) {
+                    selector.wakeup();
+                }
+            }
+        }
+
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mConnections.remove(this);
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            StreamUtil.close(mChannel);
+        }
     }
 }
@@ -23,6 +23,8 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.logger.CurrentInvocation;
 import com.android.tradefed.invoker.logger.CurrentInvocation.InvocationInfo;
 import com.android.tradefed.invoker.logger.InvocationLocal;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.InfraErrorIdentifier;
 import com.android.tradefed.util.FileUtil;
@@ -48,6 +50,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 import javax.annotation.Nullable;
@@ -96,6 +103,7 @@ public class DynamicRemoteFileResolver {
     // Populated from {@link ICommandOptions#getDynamicDownloadArgs()}
     private Map<String, String> mExtraArgs = new LinkedHashMap<>();
     private ITestDevice mDevice;
+    private int mMaxParallelResolutions = 1;
 
     public DynamicRemoteFileResolver() {
         this(DEFAULT_FILE_RESOLVER_LOADER);
@@ -116,6 +124,15 @@ public class DynamicRemoteFileResolver {
         mDevice = device;
     }
 
+    /**
+     * Sets the maximum number of remote files resolved at once by {@link
+     * #validateRemoteFilePath()}. Files are resolved one after the other by default. When more
+     * than one, a path used by several options is only resolved once.
+     */
+    public void setMaxParallelResolutions(int maxParallelResolutions) {
+        mMaxParallelResolutions = maxParallelResolutions;
+    }
+
     /** Add extra args for the query. */
     public void addExtraArgs(Map<String, String> extraArgs) {
         mExtraArgs.putAll(extraArgs);
@@ -128,149 +145,344 @@ public class DynamicRemoteFileResolver {
      * @throws BuildRetrievalError
      */
     public final Set<File> validateRemoteFilePath() throws BuildRetrievalError {
+        Map<String, Long> resolverTimes = new ConcurrentHashMap<>();
         Set<File> downloadedFiles = new HashSet<>();
         try {
-            Map<Field, Object> fieldSeen = new HashMap<>();
-            for (Map.Entry<String, OptionFieldsForName> optionPair : mOptionMap.entrySet()) {
-                final OptionFieldsForName optionFields = optionPair.getValue();
-                for (Map.Entry<Object, Field> fieldEntry : optionFields) {
-
-                    final Object obj = fieldEntry.getKey();
-                    final Field field = fieldEntry.getValue();
-                    final Option option = field.getAnnotation(Option.class);
-                    if (option == null) {
+            if (mMaxParallelResolutions <= 1) {
+                walkFileOptions(
+                        (file, option) ->
+                                resolveRemoteFiles(file.getPath(), option, resolverTimes, true),
+                        downloadedFiles);
+            } else {
+                resolveInParallel(resolverTimes, downloadedFiles);
+            }
+        } catch (RuntimeException | BuildRetrievalError e) {
+            // Clean up the files before throwing
+            for (File f : downloadedFiles) {
+                FileUtil.recursiveDelete(f);
+            }
+            throw e;
+        } finally {
+            for (Map.Entry<String, Long> time : resolverTimes.entrySet()) {
+                InvocationMetricLogger.addInvocationMetrics(
+                        InvocationMetricKey.DYNAMIC_FILE_RESOLVER_TIMES,
+                        String.format("%s:%d", time.getKey(), time.getValue()));
+            }
+        }
+        return downloadedFiles;
+    }
+
+    /**
+     * Resolves each distinct path of the options once, with up to {@link
+     * #setMaxParallelResolutions(int)} remote paths resolved at once. Each other option using the
+     * same path gets its own hardlinked copy of the resolved file.
+     */
+    private void resolveInParallel(Map<String, Long> resolverTimes, Set<File> downloadedFiles)
+            throws BuildRetrievalError {
+        // Only collect the paths first, the options keep their value.
+        Map<String, Option> filesToResolve = new LinkedHashMap<>();
+        int[] references = new int[] {0};
+        walkFileOptions(
+                (file, option) -> {
+                    references[0]++;
+                    filesToResolve.putIfAbsent(file.getPath(), option);
+                    return null;
+                },
+                new HashSet<>());
+        if (references[0] > filesToResolve.size()) {
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.DYNAMIC_FILE_RESOLVER_DEDUPLICATED,
+                    references[0] - filesToResolve.size());
+        }
+
+        Map<String, File> resolvedFiles = new HashMap<>();
+        try {
+            resolveFiles(filesToResolve, resolverTimes, resolvedFiles);
+            Set<String> usedPaths = new HashSet<>();
+            walkFileOptions(
+                    (file, option) -> {
+                        File resolved = resolvedFiles.get(file.getPath());
+                        if (resolved == null || usedPaths.add(file.getPath())) {
+                            return resolved;
+                        }
+                        return copyResolvedFile(resolved);
+                    },
+                    downloadedFiles);
+        } finally {
+            // Files resolved but not given to any option, when failing.
+            for (File f : resolvedFiles.values()) {
+                if (!downloadedFiles.contains(f)) {
+                    FileUtil.recursiveDelete(f);
+                }
+            }
+        }
+    }
+
+    /** Returns a hardlinked copy of a resolved file or directory. */
+    private static File copyResolvedFile(File resolved) throws BuildRetrievalError {
+        File copy = null;
+        try {
+            if (resolved.isDirectory()) {
+                copy = FileUtil.createTempDir(resolved.getName());
+                FileUtil.recursiveHardlink(resolved, copy);
+            } else {
+                copy =
+                        FileUtil.createTempFile(
+                                FileUtil.getBaseName(resolved.getName()),
+                                FileUtil.getExtension(resolved.getName()));
+                copy.delete();
+                FileUtil.hardlinkFile(resolved, copy);
+            }
+            return copy;
+        } catch (IOException e) {
+            FileUtil.recursiveDelete(copy);
+            throw new BuildRetrievalError(
+                    String.format("Failed to copy %s due to '%s'", resolved, e.getMessage()),
+                    e,
+                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+        }
+    }
+
+    /** Resolves one file of an option, returns the resolved file or null if not resolved. */
+    private interface FileOptionResolution {
+        File resolve(File consideredFile, Option option) throws BuildRetrievalError;
+    }
+
+    /**
+     * Runs through all the {@link File} option type and replace them by their resolution.
+     *
+     * @param resolution the {@link FileOptionResolution} giving the replacement of each file.
+     * @param downloadedFiles the set where the replacement files are added.
+     * @throws BuildRetrievalError
+     */
+    private void walkFileOptions(FileOptionResolution resolution, Set<File> downloadedFiles)
+            throws BuildRetrievalError {
+        Map<Field, Object> fieldSeen = new HashMap<>();
+        for (Map.Entry<String, OptionFieldsForName> optionPair : mOptionMap.entrySet()) {
+            final OptionFieldsForName optionFields = optionPair.getValue();
+            for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+
+                final Object obj = fieldEntry.getKey();
+                final Field field = fieldEntry.getValue();
+                final Option option = field.getAnnotation(Option.class);
+                if (option == null) {
+                    continue;
+                }
+                // At this point, we know this is an option field; make sure it's set
+                field.setAccessible(true);
+                final Object value;
+                try {
+                    value = field.get(obj);
+                    if (value == null) {
                         continue;
                     }
-                    // At this point, we know this is an option field; make sure it's set
-                    field.setAccessible(true);
-                    final Object value;
-                    try {
-                        value = field.get(obj);
-                        if (value == null) {
-                            continue;
+                } catch (IllegalAccessException e) {
+                    throw new BuildRetrievalError(
+                            String.format("internal error: %s", e.getMessage()),
+                            InfraErrorIdentifier.ARTIFACT_UNSUPPORTED_PATH);
+                }
+
+                if (fieldSeen.get(field) != null && fieldSeen.get(field).equals(obj)) {
+                    continue;
+                }
+                // Keep track of the field set on each object
+                fieldSeen.put(field, obj);
+
+                // The below contains unchecked casts that are mostly safe because we add/remove
+                // items of a type already in the collection; assuming they're not instances of
+                // some subclass of File. This is unlikely since we populate the items during
+                // option injection. The possibility still exists that constructors of
+                // initialized objects add objects that are instances of a File subclass. A
+                // safer approach would be to have a custom type that can be deferenced to
+                // access the resolved target file. This would also have the benefit of not
+                // having to modify any user collections and preserve the ordering.
+
+                if (value instanceof File) {
+                    File consideredFile = (File) value;
+                    File downloadedFile = resolution.resolve(consideredFile, option);
+                    if (downloadedFile != null) {
+                        downloadedFiles.add(downloadedFile);
+                        // Replace the field value
+                        try {
+                            field.set(obj, downloadedFile);
+                        } catch (IllegalAccessException e) {
+                            CLog.e(e);
+                            throw new BuildRetrievalError(
+                                    String.format(
+                                            "Failed to download %s due to '%s'",
+                                            consideredFile.getPath(), e.getMessage()),
+                                    e);
                         }
-                    } catch (IllegalAccessException e) {
-                        throw new BuildRetrievalError(
-                                String.format("internal error: %s", e.getMessage()),
-                                InfraErrorIdentifier.ARTIFACT_UNSUPPORTED_PATH);
                     }
-
-                    if (fieldSeen.get(field) != null && fieldSeen.get(field).equals(obj)) {
-                        continue;
+                } else if (value instanceof Collection) {
+                    @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
+                    Collection<Object> c = (Collection<Object>) value;
+                    Collection<Object> copy = new ArrayList<>(c);
+                    for (Object o : copy) {
+                        if (o instanceof File) {
+                            File consideredFile = (File) o;
+                            File downloadedFile = resolution.resolve(consideredFile, option);
+                            if (downloadedFile != null) {
+                                downloadedFiles.add(downloadedFile);
+                                // TODO: See if order could be preserved.
+                                c.remove(consideredFile);
+                                c.add(downloadedFile);
+                            }
+                        }
                     }
-                    // Keep track of the field set on each object
-                    fieldSeen.put(field, obj);
-
-                    // The below contains unchecked casts that are mostly safe because we add/remove
-                    // items of a type already in the collection; assuming they're not instances of
-                    // some subclass of File. This is unlikely since we populate the items during
-                    // option injection. The possibility still exists that constructors of
-                    // initialized objects add objects that are instances of a File subclass. A
-                    // safer approach would be to have a custom type that can be deferenced to
-                    // access the resolved target file. This would also have the benefit of not
-                    // having to modify any user collections and preserve the ordering.
-
-                    if (value instanceof File) {
-                        File consideredFile = (File) value;
-                        File downloadedFile = resolveRemoteFiles(consideredFile, option);
-                        if (downloadedFile != null) {
-                            downloadedFiles.add(downloadedFile);
-                            // Replace the field value
-                            try {
-                                field.set(obj, downloadedFile);
-                            } catch (IllegalAccessException e) {
-                                CLog.e(e);
-                                throw new BuildRetrievalError(
-                                        String.format(
-                                                "Failed to download %s due to '%s'",
-                                                consideredFile.getPath(), e.getMessage()),
-                                        e);
+                } else if (value instanceof Map) {
+                    @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
+                    Map<Object, Object> m = (Map<Object, Object>) value;
+                    Map<Object, Object> copy = new LinkedHashMap<>(m);
+                    for (Entry<Object, Object> entry : copy.entrySet()) {
+                        Object key = entry.getKey();
+                        Object val = entry.getValue();
+
+                        Object finalKey = key;
+                        Object finalVal = val;
+                        if (key instanceof File) {
+                            key = resolution.resolve((File) key, option);
+                            if (key != null) {
+                                downloadedFiles.add((File) key);
+                                finalKey = key;
                             }
                         }
-                    } else if (value instanceof Collection) {
-                        @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
-                        Collection<Object> c = (Collection<Object>) value;
-                        Collection<Object> copy = new ArrayList<>(c);
-                        for (Object o : copy) {
-                            if (o instanceof File) {
-                                File consideredFile = (File) o;
-                                File downloadedFile = resolveRemoteFiles(consideredFile, option);
-                                if (downloadedFile != null) {
-                                    downloadedFiles.add(downloadedFile);
-                                    // TODO: See if order could be preserved.
-                                    c.remove(consideredFile);
-                                    c.add(downloadedFile);
-                                }
+                        if (val instanceof File) {
+                            val = resolution.resolve((File) val, option);
+                            if (val != null) {
+                                downloadedFiles.add((File) val);
+                                finalVal = val;
                             }
                         }
-                    } else if (value instanceof Map) {
-                        @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
-                        Map<Object, Object> m = (Map<Object, Object>) value;
-                        Map<Object, Object> copy = new LinkedHashMap<>(m);
-                        for (Entry<Object, Object> entry : copy.entrySet()) {
-                            Object key = entry.getKey();
-                            Object val = entry.getValue();
 
+                        m.remove(entry.getKey());
+                        m.put(finalKey, finalVal);
+                    }
+                } else if (value instanceof MultiMap) {
+                    @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
+                    MultiMap<Object, Object> m = (MultiMap<Object, Object>) value;
+                    synchronized (m) {
+                        MultiMap<Object, Object> copy = new MultiMap<>(m);
+                        for (Object key : copy.keySet()) {
+                            List<Object> mapValues = copy.get(key);
+
+                            m.remove(key);
                             Object finalKey = key;
-                            Object finalVal = val;
                             if (key instanceof File) {
-                                key = resolveRemoteFiles((File) key, option);
+                                key = resolution.resolve((File) key, option);
                                 if (key != null) {
                                     downloadedFiles.add((File) key);
                                     finalKey = key;
                                 }
                             }
-                            if (val instanceof File) {
-                                val = resolveRemoteFiles((File) val, option);
-                                if (val != null) {
-                                    downloadedFiles.add((File) val);
-                                    finalVal = val;
-                                }
-                            }
-
-                            m.remove(entry.getKey());
-                            m.put(finalKey, finalVal);
-                        }
-                    } else if (value instanceof MultiMap) {
-                        @SuppressWarnings("unchecked")  // Mostly-safe, see above comment.
-                        MultiMap<Object, Object> m = (MultiMap<Object, Object>) value;
-                        synchronized (m) {
-                            MultiMap<Object, Object> copy = new MultiMap<>(m);
-                            for (Object key : copy.keySet()) {
-                                List<Object> mapValues = copy.get(key);
-
-                                m.remove(key);
-                                Object finalKey = key;
-                                if (key instanceof File) {
-                                    key = resolveRemoteFiles((File) key, option);
-                                    if (key != null) {
-                                        downloadedFiles.add((File) key);
-                                        finalKey = key;
+                            for (Object mapValue : mapValues) {
+                                if (mapValue instanceof File) {
+                                    File f = resolution.resolve((File) mapValue, option);
+                                    if (f != null) {
+                                        downloadedFiles.add(f);
+                                        mapValue = f;
                                     }
                                 }
-                                for (Object mapValue : mapValues) {
-                                    if (mapValue instanceof File) {
-                                        File f = resolveRemoteFiles((File) mapValue, option);
-                                        if (f != null) {
-                                            downloadedFiles.add(f);
-                                            mapValue = f;
-                                        }
-                                    }
-                                    m.put(finalKey, mapValue);
-                                }
+                                m.put(finalKey, mapValue);
                             }
                         }
                     }
                 }
             }
-        } catch (RuntimeException | BuildRetrievalError e) {
-            // Clean up the files before throwing
-            for (File f : downloadedFiles) {
-                FileUtil.recursiveDelete(f);
+        }
+    }
+
+    /**
+     * Resolves distinct file paths, in parallel for the remote ones. Waits for all the resolutions
+     * to complete, even when one of them fails, so that all the resolved files can be cleaned up.
+     *
+     * @param filesToResolve the paths to resolve and the first option they were found in.
+     * @param resolverTimes the total resolution time of each protocol.
+     * @param resolvedFiles where the resolved files are added by path, the paths that are not
+     *     resolved are not added.
+     * @throws BuildRetrievalError if one of the files cannot be resolved.
+     */
+    private void resolveFiles(
+            Map<String, Option> filesToResolve,
+            Map<String, Long> resolverTimes,
+            Map<String, File> resolvedFiles)
+            throws BuildRetrievalError {
+        Map<String, Option> remoteFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, Option> file : filesToResolve.entrySet()) {
+            if (getProtocol(file.getKey()) != null) {
+                remoteFiles.put(file.getKey(), file.getValue());
+                continue;
+            }
+            File resolved =
+                    resolveRemoteFiles(file.getKey(), file.getValue(), resolverTimes, true);
+            if (resolved != null) {
+                resolvedFiles.put(file.getKey(), resolved);
             }
-            throw e;
         }
-        return downloadedFiles;
+        if (remoteFiles.isEmpty()) {
+            return;
+        }
+        // Resolvers are shared by the resolutions, give them the device before they start.
+        Set<String> protocols = new HashSet<>();
+        for (String path : remoteFiles.keySet()) {
+            protocols.add(getProtocol(path));
+        }
+        for (String protocol : protocols) {
+            try {
+                IRemoteFileResolver resolver = getResolver(protocol);
+                if (resolver != null) {
+                    resolver.setPrimaryDevice(mDevice);
+                }
+            } catch (BuildRetrievalError e) {
+                // Reported by the resolution of the files of that protocol.
+            }
+        }
+        // The threads inherit the thread group of the invocation, and so its metrics.
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(mMaxParallelResolutions, remoteFiles.size()),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "DynamicRemoteFileResolver");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        Map<String, Future<File>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, Option> file : remoteFiles.entrySet()) {
+            futures.put(
+                    file.getKey(),
+                    executor.submit(
+                            () ->
+                                    resolveRemoteFiles(
+                                            file.getKey(),
+                                            file.getValue(),
+                                            resolverTimes,
+                                            false)));
+        }
+        executor.shutdown();
+        Throwable failure = null;
+        for (Map.Entry<String, Future<File>> future : futures.entrySet()) {
+            try {
+                File resolved = future.getValue().get();
+                if (resolved != null) {
+                    resolvedFiles.put(future.getKey(), resolved);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (failure instanceof BuildRetrievalError) {
+            throw (BuildRetrievalError) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
     }
 
     /**
@@ -368,7 +580,37 @@ public class DynamicRemoteFileResolver {
         return downloadedFile;
     }
 
-    private File resolveRemoteFiles(File consideredFile, Option option) throws BuildRetrievalError {
+    /**
+     * Resolves a file and adds the time it took to the total time of its protocol.
+     *
+     * @param setDevice whether to give the device to the resolver, false if it was already given.
+     */
+    private File resolveRemoteFiles(
+            String path, Option option, Map<String, Long> resolverTimes, boolean setDevice)
+            throws BuildRetrievalError {
+        long startTime = System.currentTimeMillis();
+        try {
+            return resolveRemoteFiles(new File(path), option, setDevice);
+        } finally {
+            String protocol = getProtocol(path);
+            if (protocol != null) {
+                resolverTimes.merge(
+                        protocol, System.currentTimeMillis() - startTime, (a, b) -> a + b);
+            }
+        }
+    }
+
+    /** Returns the protocol of a path, or null if it does not have one. */
+    private static String getProtocol(String path) {
+        try {
+            return new URI(path).getScheme();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private File resolveRemoteFiles(File consideredFile, Option option, boolean setDevice)
+            throws BuildRetrievalError {
         File fileToResolve;
         String path = consideredFile.getPath();
         String protocol;
@@ -390,7 +632,9 @@ public class DynamicRemoteFileResolver {
             }
 
             CLog.d("Considering option '%s' with path: '%s' for download.", option.name(), path);
-            resolver.setPrimaryDevice(mDevice);
+            if (setDevice) {
+                resolver.setPrimaryDevice(mDevice);
+            }
             return resolver.resolveRemoteFiles(fileToResolve, query);
         } catch (BuildRetrievalError e) {
             if (isOptional(query)) {
@@ -57,7 +57,7 @@ public class GcsRemoteFileResolver implements IRemoteFileResolver {
     }
 
     @VisibleForTesting
-    protected GCSDownloaderHelper getDownloader() {
+    protected synchronized GCSDownloaderHelper getDownloader() {
         if (mHelper == null) {
             mHelper = new GCSDownloaderHelper();
         }
@@ -17,7 +17,11 @@ package com.android.tradefed.config.remote;
 
 import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.build.BuildRetrievalError;
+import com.android.tradefed.build.FileDownloadCacheWrapper;
+import com.android.tradefed.build.IFileDownloader;
 import com.android.tradefed.config.DynamicRemoteFileResolver;
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.net.HttpHelper;
 import com.android.tradefed.util.net.IHttpHelper;
@@ -34,6 +38,16 @@ public class HttpRemoteFileResolver implements IRemoteFileResolver {
 
     public static final String PROTOCOL_HTTP = "http";
 
+    @Option(
+            name = "http-use-download-cache",
+            description =
+                    "Keep the downloaded files in the download cache of the host, so that a url "
+                            + "used by several invocations is only downloaded once. Only suitable "
+                            + "for urls whose content never changes.")
+    private boolean mUseDownloadCache = false;
+
+    private IFileDownloader mCachedDownloader = null;
+
     @Override
     public File resolveRemoteFiles(File consideredFile, Map<String, String> queryArgs)
             throws BuildRetrievalError {
@@ -42,15 +56,21 @@ public class HttpRemoteFileResolver implements IRemoteFileResolver {
         // Replace the very first / by // to be http:// again.
         path = path.replaceFirst(":/", "://");
 
-        IHttpHelper downloader = getDownloader();
         File downloadedFile = null;
         try {
             downloadedFile =
                     FileUtil.createTempFile(
                             FileUtil.getBaseName(consideredFile.getName()),
                             FileUtil.getExtension(consideredFile.getName()));
-            downloader.doGet(path, new FileOutputStream(downloadedFile));
+            if (mUseDownloadCache) {
+                getCachedDownloader().downloadFile(path, downloadedFile);
+            } else {
+                download(getDownloader(), path, downloadedFile);
+            }
             return DynamicRemoteFileResolver.unzipIfRequired(downloadedFile, queryArgs);
+        } catch (BuildRetrievalError e) {
+            FileUtil.deleteFile(downloadedFile);
+            throw e;
         } catch (IOException | RuntimeException e) {
             FileUtil.deleteFile(downloadedFile);
             throw new BuildRetrievalError(
@@ -67,4 +87,58 @@ public class HttpRemoteFileResolver implements IRemoteFileResolver {
     protected IHttpHelper getDownloader() {
         return new HttpHelper();
     }
+
+    /** Returns the directory of the download cache of the host. */
+    @VisibleForTesting
+    protected File getDownloadCacheDir() {
+        return GlobalConfiguration.getInstance().getHostOptions().getDownloadCacheDir();
+    }
+
+    private synchronized IFileDownloader getCachedDownloader() {
+        if (mCachedDownloader == null) {
+            mCachedDownloader =
+                    new FileDownloadCacheWrapper(getDownloadCacheDir(), new HttpFileDownloader());
+        }
+        return mCachedDownloader;
+    }
+
+    private static void download(IHttpHelper downloader, String url, File destFile)
+            throws IOException {
+        try (FileOutputStream output = new FileOutputStream(destFile)) {
+            downloader.doGet(url, output);
+        }
+    }
+
+    /** {@link IFileDownloader} downloading the files of the download cache over http. */
+    private class HttpFileDownloader implements IFileDownloader {
+
+        @Override
+        public File downloadFile(String remoteFilePath) throws BuildRetrievalError {
+            File destFile = null;
+            try {
+                destFile = FileUtil.createTempFile(new File(remoteFilePath).getName(), null);
+            } catch (IOException e) {
+                throw new BuildRetrievalError(
+                        String.format(
+                                "Failed to download %s due to: %s", remoteFilePath, e.getMessage()),
+                        e);
+            }
+            downloadFile(remoteFilePath, destFile);
+            return destFile;
+        }
+
+        @Override
+        public void downloadFile(String remoteFilePath, File destFile)
+                throws BuildRetrievalError {
+            try {
+                download(getDownloader(), remoteFilePath, destFile);
+            } catch (IOException | RuntimeException e) {
+                FileUtil.deleteFile(destFile);
+                throw new BuildRetrievalError(
+                        String.format(
+                                "Failed to download %s due to: %s", remoteFilePath, e.getMessage()),
+                        e);
+            }
+        }
+    }
 }
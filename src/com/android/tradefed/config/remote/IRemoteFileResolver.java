@@ -27,6 +27,11 @@ import javax.annotation.Nonnull;
 /**
  * Interface for objects that can resolve a remote file into a local one. For example:
  * gs://bucket/dir/file.txt would be downloaded and changed to a local path.
+ *
+ * <p>A single instance of each implementation is shared, and several files can be resolved
+ * through it at the same time, so implementations must be thread-safe. This includes {@link
+ * #setPrimaryDevice(ITestDevice)}, which can be called by other invocations while files are being
+ * resolved.
  */
 public interface IRemoteFileResolver {
 
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the files pushed to a device, kept in a directory of the device and keyed by the md5
+ * of their content, so that a file pushed again during the invocation is not transferred again.
+ *
+ * <p>Before a push, the destination is checked on the device: a destination already holding the
+ * content of the local file is left untouched, otherwise a cached file with the same md5 is copied
+ * to it on the device. Cached files are checked against their md5 before being copied, so a file
+ * modified on the device is never restored. The least recently used files are evicted to keep the
+ * cache under a maximum size. The cache is cleared when the device is flashed or wiped, and its
+ * directory is deleted from the device before the next file is cached.
+ */
+public class DevicePushCache {
+
+    /** The directory of the device holding the cached files, named after their md5. */
+    public static final String DEFAULT_CACHE_DIR = "/data/local/tmp/.tf_push_cache";
+
+    /** Smaller files are pushed directly, checking them costs about as much as pushing them. */
+    @VisibleForTesting static final long MIN_CACHED_SIZE = 64 * 1024L;
+
+    private final String mCacheDir;
+    private final long mMaxSize;
+    /**
+     * The sizes of the files in the cache directory of the device by md5, from the least recently
+     * used.
+     */
+    private final LinkedHashMap<String, Long> mManifest = new LinkedHashMap<>(16, 0.75f, true);
+    /** The total size of the cached files. Guarded by mManifest. */
+    private long mCachedBytes = 0L;
+    /**
+     * Whether the cache directory of the device may hold files missing from the manifest, left by
+     * a previous invocation or before the device was wiped. Guarded by mManifest.
+     */
+    private boolean mCleanPending = true;
+    /** Digests of the local files, by path, size and modification time of the file. */
+    private final Map<String, String> mDigests = new HashMap<>();
+    /** The number of bytes that did not need to be pushed. */
+    private long mSavedBytes = 0L;
+
+    /** @param maxSize the maximum total size of the cached files, in bytes. */
+    public DevicePushCache(long maxSize) {
+        this(DEFAULT_CACHE_DIR, maxSize);
+    }
+
+    @VisibleForTesting
+    DevicePushCache(String cacheDir, long maxSize) {
+        mCacheDir = cacheDir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns whether a push of a file to a device path should go through the cache.
+     *
+     * @param localFile the file to push.
+     * @param remotePath the destination path on the device.
+     */
+    public boolean accepts(File localFile, String remotePath) {
+        // A destination directory would receive the file under its own name.
+        return localFile.isFile()
+                && localFile.length() >= MIN_CACHED_SIZE
+                && !remotePath.endsWith("/");
+    }
+
+    /**
+     * Returns the md5 of a local file, computed once as long as the file is not modified.
+     *
+     * @param localFile the file to push.
+     * @return the md5 of the file content, or null if it cannot be read.
+     */
+    public String getDigest(File localFile) {
+        String fileKey =
+                String.format(
+                        "%s:%d:%d",
+                        localFile.getAbsolutePath(), localFile.length(), localFile.lastModified());
+        synchronized (mDigests) {
+            String digest = mDigests.get(fileKey);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        try {
+            String digest = FileUtil.calculateMd5(localFile);
+            synchronized (mDigests) {
+                mDigests.put(fileKey, digest);
+            }
+            return digest;
+        } catch (IOException e) {
+            CLog.w("Failed to compute the md5 of %s: %s", localFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Put the content of a local file at a device path without transferring it, if the device
+     * already has it.
+     *
+     * @param device the {@link INativeDevice} to push to.
+     * @param localFile the file to push.
+     * @param digest the md5 of the file, from {@link #getDigest(File)}.
+     * @param remotePath the destination path on the device.
+     * @return true if the destination holds the content of the file, false if it must be pushed.
+     * @throws DeviceNotAvailableException
+     */
+    public boolean restore(
+            INativeDevice device, File localFile, String digest, String remotePath)
+            throws DeviceNotAvailableException {
+        String cachedPath = getCachedPath(digest);
+        boolean cached;
+        synchronized (mManifest) {
+            // Also marks the file as the most recently used.
+            cached = mManifest.get(digest) != null;
+        }
+        StringBuilder md5Command = new StringBuilder();
+        md5Command.append(String.format("md5sum \"%s\"", remotePath));
+        if (cached) {
+            md5Command.append(String.format(" \"%s\"", cachedPath));
+        }
+        Map<String, String> deviceDigests = new HashMap<>();
+        String output = device.executeShellCommand(md5Command.toString() + " 2>/dev/null");
+        for (String line : output.split("\n")) {
+            // <md5>  <path>
+            String[] parts = line.trim().split("\\s+", 2);
+            if (parts.length == 2) {
+                deviceDigests.put(parts[1], parts[0]);
+            }
+        }
+
+        if (digest.equals(deviceDigests.get(remotePath))) {
+            CLog.d("%s already holds the content of %s, skipping push", remotePath, localFile);
+            addSavedBytes(localFile.length());
+            return true;
+        }
+        if (!cached) {
+            return false;
+        }
+        if (!digest.equals(deviceDigests.get(cachedPath))) {
+            CLog.d("Cached %s is missing or was modified, dropping it", cachedPath);
+            synchronized (mManifest) {
+                Long size = mManifest.remove(digest);
+                if (size != null) {
+                    mCachedBytes -= size;
+                }
+            }
+            return false;
+        }
+        // Copy rather than link so that the destination gets the attributes of a pushed file.
+        CommandResult result =
+                device.executeShellV2Command(
+                        String.format("cp -f \"%s\" \"%s\"", cachedPath, remotePath));
+        if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+            CLog.d("Failed to copy %s to %s: %s", cachedPath, remotePath, result.getStderr());
+            return false;
+        }
+        CLog.d("Copied cached content of %s to %s", localFile, remotePath);
+        addSavedBytes(localFile.length());
+        return true;
+    }
+
+    /**
+     * Add a file just pushed to the cache of the device.
+     *
+     * @param device the {@link INativeDevice} pushed to.
+     * @param digest the md5 of the pushed file, from {@link #getDigest(File)}.
+     * @param remotePath the path the file was pushed to.
+     * @param size the size of the pushed file, in bytes.
+     * @throws DeviceNotAvailableException
+     */
+    public void store(INativeDevice device, String digest, String remotePath, long size)
+            throws DeviceNotAvailableException {
+        if (size > mMaxSize) {
+            CLog.d("%s is larger than the device push cache, not caching it", remotePath);
+            return;
+        }
+        StringBuilder command = new StringBuilder();
+        boolean clean;
+        synchronized (mManifest) {
+            if (mManifest.containsKey(digest)) {
+                return;
+            }
+            clean = mCleanPending;
+            mCleanPending = false;
+            if (clean) {
+                command.append(String.format("rm -rf \"%s\" && ", mCacheDir));
+            } else {
+                List<String> evicted = new ArrayList<>();
+                Iterator<Map.Entry<String, Long>> it = mManifest.entrySet().iterator();
+                while (mCachedBytes + size > mMaxSize && it.hasNext()) {
+                    Map.Entry<String, Long> entry = it.next();
+                    evicted.add(getCachedPath(entry.getKey()));
+                    mCachedBytes -= entry.getValue();
+                    it.remove();
+                }
+                if (!evicted.isEmpty()) {
+                    CLog.d("Evicting %d files from the device push cache.", evicted.size());
+                    command.append("rm -f");
+                    for (String path : evicted) {
+                        command.append(String.format(" \"%s\"", path));
+                    }
+                    command.append(" && ");
+                }
+            }
+        }
+        String cachedPath = getCachedPath(digest);
+        // The cache is checked before use, linking is enough when both are on the same partition.
+        command.append(
+                String.format(
+                        "mkdir -p \"%s\" && (ln -f \"%s\" \"%s\" 2>/dev/null "
+                                + "|| cp -f \"%s\" \"%s\")",
+                        mCacheDir, remotePath, cachedPath, remotePath, cachedPath));
+        CommandResult result = device.executeShellV2Command(command.toString());
+        if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+            CLog.d("Failed to cache %s: %s", remotePath, result.getStderr());
+            if (clean) {
+                synchronized (mManifest) {
+                    mCleanPending = true;
+                }
+            }
+            return;
+        }
+        synchronized (mManifest) {
+            if (mManifest.put(digest, size) == null) {
+                mCachedBytes += size;
+            }
+        }
+    }
+
+    /**
+     * Forget the cached files, after the device was flashed or wiped. The cache directory is
+     * deleted from the device before the next file is cached.
+     */
+    public void invalidate() {
+        synchronized (mManifest) {
+            if (!mManifest.isEmpty()) {
+                CLog.d("Invalidating the %d files of the device push cache.", mManifest.size());
+            }
+            mManifest.clear();
+            mCachedBytes = 0L;
+            mCleanPending = true;
+        }
+    }
+
+    /** Returns the number of bytes that did not need to be pushed thanks to the cache. */
+    public synchronized long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    /** Returns the number of files in the cache. */
+    @VisibleForTesting
+    int size() {
+        synchronized (mManifest) {
+            return mManifest.size();
+        }
+    }
+
+    /** Returns the total size of the cached files, in bytes. */
+    @VisibleForTesting
+    long getCachedBytes() {
+        synchronized (mManifest) {
+            return mCachedBytes;
+        }
+    }
+
+    private String getCachedPath(String digest) {
+        return String.format("%s/%s", mCacheDir, digest);
+    }
+
+    private void addSavedBytes(long bytes) {
+        synchronized (this) {
+            mSavedBytes += bytes;
+        }
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.PUSH_CACHE_SAVED_BYTES, bytes);
+    }
+}
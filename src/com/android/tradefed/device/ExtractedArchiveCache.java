@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.TarUtil;
+import com.android.tradefed.util.ZipUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A host level cache of extracted tar.gz and zip archives, shared by the local virtual devices of
+ * the host so that identical images are extracted once.
+ *
+ * <p>Archives are identified by the md5 of their content, so the same artifact downloaded to
+ * different files by different invocations is extracted once. Extracted directories are reference
+ * counted: they are kept while in use, and a limited number of them is kept for later use once
+ * released. The directories are shared, so users must not modify their content.
+ */
+public class ExtractedArchiveCache {
+
+    // use the "singleton inner class" pattern
+    private static class SingletonHolder {
+        public static final ExtractedArchiveCache INSTANCE = new ExtractedArchiveCache();
+
+        static {
+            Runtime.getRuntime()
+                    .addShutdownHook(
+                            new Thread(INSTANCE::deleteAll, "ExtractedArchiveCache-cleanup"));
+        }
+    }
+
+    /** An extracted archive. */
+    private static class Entry {
+        private final String mDigest;
+        private File mDir = null;
+        private int mRefCount = 0;
+        private long mLastUsed = 0;
+
+        Entry(String digest) {
+            mDigest = digest;
+        }
+    }
+
+    /** The maximum number of archive digests to remember. */
+    @VisibleForTesting static final int MAX_DIGEST_COUNT = 256;
+
+    /** Extracted archives by digest of the archive. */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /**
+     * Digests of the recently used archive files, by path, size and modification time of the
+     * file.
+     */
+    private final Map<String, String> mDigests =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_DIGEST_COUNT;
+                }
+            };
+    /** The number of releases, which orders the entries from the least recently used. */
+    private long mReleaseCount = 0;
+
+    /** Get the singleton instance of {@link ExtractedArchiveCache}. */
+    public static ExtractedArchiveCache getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    @VisibleForTesting
+    ExtractedArchiveCache() {}
+
+    /**
+     * Returns the md5 of an archive. The digest of a file is only computed once as long as the
+     * file is not modified.
+     *
+     * @param archive the archive file.
+     * @return the md5 of the file content.
+     * @throws IOException if the file cannot be read.
+     */
+    public String getDigest(File archive) throws IOException {
+        String fileKey =
+                String.format(
+                        "%s:%d:%d",
+                        archive.getAbsolutePath(), archive.length(), archive.lastModified());
+        synchronized (mDigests) {
+            String digest = mDigests.get(fileKey);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        String digest = FileUtil.calculateMd5(archive);
+        synchronized (mDigests) {
+            mDigests.put(fileKey, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Get the directory where an archive is extracted, extracting it if no other archive with the
+     * same content was. The directory must be given back to {@link #release(File, int)} once it
+     * is not used anymore.
+     *
+     * @param archive the tar.gz or zip file.
+     * @return the directory containing the extracted content, which must not be modified.
+     * @throws IOException if the archive cannot be extracted.
+     */
+    public File acquire(File archive) throws IOException {
+        String digest = getDigest(archive);
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.computeIfAbsent(digest, Entry::new);
+            entry.mRefCount++;
+        }
+        try {
+            // Other users of the same archive wait for the extraction.
+            synchronized (entry) {
+                if (entry.mDir == null) {
+                    entry.mDir = extract(archive, digest);
+                } else {
+                    CLog.d("Use %s extracted in %s", archive.getName(), entry.mDir);
+                }
+                return entry.mDir;
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (mEntries) {
+                entry.mRefCount--;
+                if (entry.mRefCount == 0 && entry.mDir == null) {
+                    mEntries.remove(digest);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Release a directory returned by {@link #acquire(File)}. Directories not used anymore are
+     * deleted, starting from the least recently used, until only <var>maxUnused</var> are left.
+     *
+     * @param dir the directory returned by {@link #acquire(File)}.
+     * @param maxUnused the number of directories not in use to keep.
+     */
+    public void release(File dir, int maxUnused) {
+        List<Entry> evicted;
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                if (dir.equals(entry.mDir) && entry.mRefCount > 0) {
+                    entry.mRefCount--;
+                    entry.mLastUsed = ++mReleaseCount;
+                    break;
+                }
+            }
+            List<Entry> unused =
+                    mEntries.values()
+                            .stream()
+                            .filter(entry -> entry.mRefCount == 0)
+                            .sorted(Comparator.comparingLong(entry -> entry.mLastUsed))
+                            .collect(Collectors.toList());
+            evicted = unused.subList(0, Math.max(0, unused.size() - Math.max(0, maxUnused)));
+            for (Entry entry : evicted) {
+                mEntries.remove(entry.mDigest);
+            }
+        }
+        for (Entry entry : evicted) {
+            CLog.d("Delete %s from the extracted archive cache.", entry.mDir);
+            FileUtil.recursiveDelete(entry.mDir);
+        }
+    }
+
+    /** Returns the number of archive digests remembered by the cache. */
+    @VisibleForTesting
+    int getDigestCount() {
+        synchronized (mDigests) {
+            return mDigests.size();
+        }
+    }
+
+    /** Returns the number of extracted archives in the cache, used or not. */
+    @VisibleForTesting
+    int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /** Delete all the extracted archives. */
+    @VisibleForTesting
+    void deleteAll() {
+        List<Entry> entries;
+        synchronized (mEntries) {
+            entries = new ArrayList<>(mEntries.values());
+            mEntries.clear();
+        }
+        for (Entry entry : entries) {
+            FileUtil.recursiveDelete(entry.mDir);
+        }
+    }
+
+    private static File extract(File archive, String digest) throws IOException {
+        long startTime = System.currentTimeMillis();
+        String nameHint = String.format("%s_%s", archive.getName(), digest);
+        File dir;
+        if (TarUtil.isGzip(archive)) {
+            dir = TarUtil.extractTarGzipToTemp(archive, nameHint);
+        } else {
+            dir = ZipUtil.extractZipToTemp(archive, nameHint);
+        }
+        CLog.d(
+                "Extracted %s to %s in %d ms",
+                archive.getName(), dir, System.currentTimeMillis() - startTime);
+        return dir;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of a tree of files, by path relative to the root of the tree, used to sync a local
+ * directory to a device by transferring only the files that changed.
+ *
+ * <p>The state of the device tree is collected by a single shell command, see {@link
+ * #getRemoteCommand(String, boolean)}. Files are compared by size and modification time, and by
+ * md5 when hashing is enabled, which also detects changes that keep the size and time.
+ */
+public class FileSyncManifest {
+
+    private static final String HASH_SEPARATOR = "--md5--";
+
+    /** The state of one file of the tree. */
+    public static class Entry {
+        private final long mSize;
+        /** Modification time, in seconds. */
+        private final long mModifiedTime;
+
+        private String mMd5 = null;
+
+        Entry(long size, long modifiedTime) {
+            mSize = size;
+            mModifiedTime = modifiedTime;
+        }
+
+        /** Returns the size of the file, in bytes. */
+        public long getSize() {
+            return mSize;
+        }
+
+        /** Returns the modification time of the file, in seconds. */
+        public long getModifiedTime() {
+            return mModifiedTime;
+        }
+
+        /** Returns the md5 of the file, or null if not hashed. */
+        public String getMd5() {
+            return mMd5;
+        }
+    }
+
+    private final Map<String, Entry> mEntries;
+
+    private FileSyncManifest(Map<String, Entry> entries) {
+        mEntries = entries;
+    }
+
+    /** Returns the entries of the manifest, by path relative to the root of the tree. */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(mEntries);
+    }
+
+    /**
+     * Build the manifest of a local directory. Hidden files and directories are ignored, like
+     * {@link INativeDevice#syncFiles(File, String)} does.
+     *
+     * @param localDir the directory to sync.
+     * @param hash whether to compute the md5 of the files, in parallel.
+     * @return the {@link FileSyncManifest} of the directory.
+     * @throws IOException if a file cannot be hashed.
+     */
+    public static FileSyncManifest fromLocalDir(File localDir, boolean hash) throws IOException {
+        Map<String, File> files = new TreeMap<>();
+        listFiles(localDir, "", files);
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            entries.put(
+                    file.getKey(),
+                    new Entry(file.getValue().length(), file.getValue().lastModified() / 1000));
+        }
+        if (hash) {
+            try {
+                files.entrySet()
+                        .parallelStream()
+                        .forEach(
+                                file -> {
+                                    try {
+                                        entries.get(file.getKey()).mMd5 =
+                                                FileUtil.calculateMd5(file.getValue());
+                                    } catch (IOException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                });
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return new FileSyncManifest(entries);
+    }
+
+    /**
+     * Returns the shell command printing the state of a device tree, to be parsed by {@link
+     * #fromRemoteOutput(String)}. A missing tree prints nothing.
+     *
+     * @param remoteDir the root of the tree on the device.
+     * @param hash whether to print the md5 of the files too.
+     */
+    public static String getRemoteCommand(String remoteDir, boolean hash) {
+        StringBuilder command = new StringBuilder();
+        command.append(String.format("cd \"%s\" 2>/dev/null || exit 0; ", remoteDir));
+        command.append("find . -type f -exec stat -c '%s %Y %n' {} +");
+        if (hash) {
+            command.append(String.format("; echo %s; ", HASH_SEPARATOR));
+            command.append("find . -type f -exec md5sum {} +");
+        }
+        return command.toString();
+    }
+
+    /**
+     * Parse the output of the command returned by {@link #getRemoteCommand(String, boolean)}.
+     *
+     * @param output the stdout of the command.
+     * @return the {@link FileSyncManifest} of the device tree.
+     */
+    public static FileSyncManifest fromRemoteOutput(String output) {
+        Map<String, Entry> entries = new HashMap<>();
+        boolean hashes = false;
+        for (String line : output.split("\r?\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (HASH_SEPARATOR.equals(line.trim())) {
+                hashes = true;
+                continue;
+            }
+            try {
+                if (hashes) {
+                    // <md5>  ./<path>
+                    String[] parts = line.split("\\s+", 2);
+                    Entry entry = entries.get(getRelativePath(parts[1]));
+                    if (entry != null) {
+                        entry.mMd5 = parts[0];
+                    }
+                } else {
+                    // <size> <modification time> ./<path>
+                    String[] parts = line.split(" ", 3);
+                    entries.put(
+                            getRelativePath(parts[2]),
+                            new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                CLog.w("Ignoring unexpected file state '%s'", line);
+            }
+        }
+        return new FileSyncManifest(entries);
+    }
+
+    /**
+     * Returns the files of this local manifest that are missing or different in a remote one.
+     * Without md5s, files are considered different when their size differs or when the local file
+     * is newer.
+     *
+     * @param remote the {@link FileSyncManifest} of the device tree.
+     * @return the relative paths of the files to transfer.
+     */
+    public List<String> getChangedFiles(FileSyncManifest remote) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, Entry> local : new TreeMap<>(mEntries).entrySet()) {
+            Entry remoteEntry = remote.mEntries.get(local.getKey());
+            Entry localEntry = local.getValue();
+            if (remoteEntry == null || remoteEntry.mSize != localEntry.mSize) {
+                changed.add(local.getKey());
+            } else if (localEntry.mMd5 != null && remoteEntry.mMd5 != null) {
+                if (!localEntry.mMd5.equals(remoteEntry.mMd5)) {
+                    changed.add(local.getKey());
+                }
+            } else if (localEntry.mModifiedTime > remoteEntry.mModifiedTime) {
+                changed.add(local.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private static void listFiles(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                listFiles(child, path + "/", files);
+            } else if (child.isFile()) {
+                files.put(path, child);
+            }
+        }
+    }
+
+    private static String getRelativePath(String path) {
+        return path.startsWith("./") ? path.substring(2) : path;
+    }
+}
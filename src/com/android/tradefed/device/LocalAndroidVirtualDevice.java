@@ -44,7 +44,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /** The class for local virtual devices running on TradeFed host. */
 public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements ITestLoggerReceiver {
@@ -53,6 +55,7 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
 
     // Environment variables.
     private static final String ANDROID_HOST_OUT = "ANDROID_HOST_OUT";
+    private static final String HOME = "HOME";
     private static final String TMPDIR = "TMPDIR";
 
     // The name of the GZIP file containing launch_cvd and stop_cvd.
@@ -60,6 +63,19 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
 
     private static final String ACLOUD_CVD_TEMP_DIR_NAME = "acloud_cvd_temp";
     private static final String CUTTLEFISH_RUNTIME_DIR_NAME = "cuttlefish_runtime";
+    private static final String POWERWASH_CVD_NAME = "powerwash_cvd";
+
+    // The images that launch_cvd and the device write to, which cannot be shared between
+    // instances.
+    private static final Set<String> WRITABLE_IMAGE_NAMES =
+            new HashSet<>(
+                    Arrays.asList(
+                            "userdata.img",
+                            "misc.img",
+                            "metadata.img",
+                            "sdcard.img",
+                            "persistent.img",
+                            "uboot_env.img"));
 
     private ITestLogger mTestLogger = null;
 
@@ -67,9 +83,17 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
     private File mImageDir = null;
     private File mHostPackageDir = null;
     private List<File> mTempDirs = new ArrayList<File>();
+    // Directories shared with the other devices through the ExtractedArchiveCache.
+    private List<File> mCachedDirs = new ArrayList<File>();
+    // The digests of the host package and the device images, if the instance can be kept warm.
+    private List<String> mArtifactKeys = null;
 
     private GceAvdInfo mGceAvdInfo = null;
 
+    // The instance kept running after the previous invocation.
+    private GceAvdInfo mWarmAvdInfo = null;
+    private Thread mWarmInstanceCleanup = null;
+
     public LocalAndroidVirtualDevice(
             IDevice device, IDeviceStateMonitor stateMonitor, IDeviceMonitor allocationMonitor) {
         super(device, stateMonitor, allocationMonitor);
@@ -82,8 +106,32 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         // The setup method in super class does not require the device to be online.
         super.preInvocationSetup(info);
 
-        createTempDirs(info);
+        if (mWarmAvdInfo != null) {
+            resumeWarmInstance(info);
+        }
+        if (mGceAvdInfo == null) {
+            createTempDirs(info);
+            createInstance();
+        }
 
+        HostAndPort hostAndPort = mGceAvdInfo.hostAndPort();
+        replaceStubDevice(hostAndPort.toString());
+
+        RecoveryMode previousMode = getRecoveryMode();
+        try {
+            setRecoveryMode(RecoveryMode.NONE);
+            if (!adbTcpConnect(hostAndPort.getHost(), Integer.toString(hostAndPort.getPort()))) {
+                throw new TargetSetupError(
+                        String.format("Cannot connect to %s.", hostAndPort), getDeviceDescriptor());
+            }
+            waitForDeviceAvailable();
+        } finally {
+            setRecoveryMode(previousMode);
+        }
+    }
+
+    /** Launch the virtual device with acloud. */
+    private void createInstance() throws TargetSetupError {
         CommandResult result = null;
         File report = null;
         try {
@@ -101,21 +149,38 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
                     String.format("Cannot execute acloud command. stderr:\n%s", result.getStderr()),
                     getDeviceDescriptor());
         }
+    }
 
-        HostAndPort hostAndPort = mGceAvdInfo.hostAndPort();
-        replaceStubDevice(hostAndPort.toString());
+    /**
+     * Reset the instance kept running after the previous invocation if it runs the same build, or
+     * stop it otherwise.
+     */
+    private void resumeWarmInstance(IBuildInfo info) {
+        GceAvdInfo warmAvdInfo = mWarmAvdInfo;
+        List<String> artifactKeys = getArtifactKeys(info);
+        if (artifactKeys != null
+                && artifactKeys.equals(mArtifactKeys)
+                && resetInstance(warmAvdInfo.instanceName())) {
+            CLog.i("Reuse the virtual device %s.", warmAvdInfo.instanceName());
+            mWarmAvdInfo = null;
+            mGceAvdInfo = warmAvdInfo;
+            return;
+        }
+        stopWarmInstance();
+    }
 
-        RecoveryMode previousMode = getRecoveryMode();
-        try {
-            setRecoveryMode(RecoveryMode.NONE);
-            if (!adbTcpConnect(hostAndPort.getHost(), Integer.toString(hostAndPort.getPort()))) {
-                throw new TargetSetupError(
-                        String.format("Cannot connect to %s.", hostAndPort), getDeviceDescriptor());
-            }
-            waitForDeviceAvailable();
-        } finally {
-            setRecoveryMode(previousMode);
+    /** Stop the instance kept running after the previous invocation and release its files. */
+    private void stopWarmInstance() {
+        if (mWarmAvdInfo == null) {
+            return;
         }
+        CLog.i("Stop the virtual device %s.", mWarmAvdInfo.instanceName());
+        CommandResult result = acloudDelete(mWarmAvdInfo.instanceName(), getOptions());
+        if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+            CLog.e("Cannot stop the virtual device.");
+        }
+        mWarmAvdInfo = null;
+        deleteTempDirs();
     }
 
     /** Execute common tear-down procedure and stop the virtual device. */
@@ -124,6 +189,14 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         TestDeviceOptions options = getOptions();
         HostAndPort hostAndPort = getHostAndPortFromAvdInfo();
         String instanceName = (mGceAvdInfo != null ? mGceAvdInfo.instanceName() : null);
+        // Only an instance that completed the invocation without error is reused.
+        boolean keepWarm =
+                options.keepLocalAvdWarm()
+                        && !options.shouldSkipTearDown()
+                        && exception == null
+                        && hostAndPort != null
+                        && instanceName != null
+                        && mArtifactKeys != null;
         try {
             if (!options.shouldSkipTearDown() && hostAndPort != null) {
                 if (!adbTcpDisconnect(
@@ -132,7 +205,9 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
                 }
             }
 
-            if (!options.shouldSkipTearDown() && instanceName != null) {
+            if (keepWarm) {
+                CLog.i("Keep the virtual device %s running for the next invocation.", instanceName);
+            } else if (!options.shouldSkipTearDown() && instanceName != null) {
                 CommandResult result = acloudDelete(instanceName, options);
                 if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
                     CLog.e("Cannot stop the virtual device.");
@@ -147,7 +222,10 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         } finally {
             restoreStubDevice();
 
-            if (!options.shouldSkipTearDown()) {
+            if (keepWarm) {
+                mWarmAvdInfo = mGceAvdInfo;
+                registerWarmInstanceCleanup();
+            } else if (!options.shouldSkipTearDown()) {
                 deleteTempDirs();
             } else {
                 CLog.i(
@@ -155,6 +233,8 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
                                 + "Address: %s\nName: %s\nHost package: %s\nImage: %s",
                         hostAndPort, instanceName, mHostPackageDir, mImageDir);
                 mTempDirs.clear();
+                mCachedDirs.clear();
+                mArtifactKeys = null;
                 mHostPackageDir = null;
                 mImageDir = null;
             }
@@ -182,18 +262,73 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         if (file.isDirectory()) {
             return file;
         }
-        if (TarUtil.isGzip(file)) {
+        boolean isGzip = TarUtil.isGzip(file);
+        if (!isGzip && !ZipUtil.isZipFileValid(file, false)) {
+            CLog.w("Cannot extract %s.", file);
+            return file;
+        }
+        if (getOptions().useLocalAvdImageCache()) {
+            file = getImageCache().acquire(file);
+            mCachedDirs.add(file);
+        } else if (isGzip) {
             file = TarUtil.extractTarGzipToTemp(file, file.getName());
             mTempDirs.add(file);
-        } else if (ZipUtil.isZipFileValid(file, false)) {
+        } else {
             file = ZipUtil.extractZipToTemp(file, file.getName());
             mTempDirs.add(file);
-        } else {
-            CLog.w("Cannot extract %s.", file);
         }
         return file;
     }
 
+    /**
+     * Create a directory for the instance from a shared image directory. The images that are
+     * written to while the instance runs are copied, the other files are linked to the shared ones.
+     */
+    @VisibleForTesting
+    File createImageOverlay(File sharedImageDir) throws IOException {
+        File[] files = sharedImageDir.listFiles();
+        if (files == null) {
+            throw new IOException(String.format("Cannot list %s.", sharedImageDir));
+        }
+        File overlayDir = FileUtil.createTempDir("local-avd-image");
+        mTempDirs.add(overlayDir);
+        for (File file : files) {
+            File overlayFile = new File(overlayDir, file.getName());
+            if (WRITABLE_IMAGE_NAMES.contains(file.getName())) {
+                FileUtil.copyFile(file, overlayFile);
+            } else {
+                FileUtil.symlinkFile(file, overlayFile);
+            }
+        }
+        return overlayDir;
+    }
+
+    /**
+     * Get the digests of the host package and the device images of a build.
+     *
+     * @return the digests, or null if they cannot be computed.
+     */
+    private List<String> getArtifactKeys(IBuildInfo buildInfo) {
+        List<String> keys = new ArrayList<String>();
+        File[] artifacts = {
+            buildInfo.getFile(CVD_HOST_PACKAGE_NAME),
+            buildInfo.getFile(BuildInfoFileKey.DEVICE_IMAGE)
+        };
+        try {
+            for (File artifact : artifacts) {
+                if (artifact == null || artifact.isDirectory()) {
+                    keys.add(String.valueOf(artifact));
+                } else {
+                    keys.add(getImageCache().getDigest(artifact));
+                }
+            }
+        } catch (IOException ex) {
+            CLog.e(ex);
+            return null;
+        }
+        return keys;
+    }
+
     /** Find host package in build info and extract to a temporary directory. */
     private File findHostPackage(IBuildInfo buildInfo) throws TargetSetupError {
         File hostPackageDir = null;
@@ -234,7 +369,11 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
                     "Cannot find image zip in build info.", getDeviceDescriptor());
         }
         try {
-            return extractArchive(imageZip);
+            File imageDir = extractArchive(imageZip);
+            if (mCachedDirs.contains(imageDir)) {
+                return createImageOverlay(imageDir);
+            }
+            return imageDir;
         } catch (IOException ex) {
             throw new TargetSetupError("Cannot extract image zip.", ex, getDeviceDescriptor());
         }
@@ -245,6 +384,9 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         try {
             mHostPackageDir = findHostPackage(info);
             mImageDir = findDeviceImages(info);
+            if (getOptions().keepLocalAvdWarm()) {
+                mArtifactKeys = getArtifactKeys(info);
+            }
         } catch (TargetSetupError ex) {
             deleteTempDirs();
             throw ex;
@@ -258,10 +400,49 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
             FileUtil.recursiveDelete(tempDir);
         }
         mTempDirs.clear();
+        for (File cachedDir : mCachedDirs) {
+            getImageCache().release(cachedDir, getOptions().getLocalAvdImageCacheMaxUnused());
+        }
+        mCachedDirs.clear();
+        mArtifactKeys = null;
         mImageDir = null;
         mHostPackageDir = null;
     }
 
+    /** Stop the instance kept running for the next invocation when TradeFed exits. */
+    private void registerWarmInstanceCleanup() {
+        if (mWarmInstanceCleanup == null) {
+            mWarmInstanceCleanup =
+                    new Thread(this::stopWarmInstance, "LocalAndroidVirtualDevice-cleanup");
+            Runtime.getRuntime().addShutdownHook(mWarmInstanceCleanup);
+        }
+    }
+
+    /**
+     * Reset an instance to the state it was in after its creation.
+     *
+     * @param instanceName the name of the instance.
+     * @return true if the instance was reset; false if it cannot be.
+     */
+    private boolean resetInstance(String instanceName) {
+        File powerwash = FileUtil.getFileForPath(mHostPackageDir, "bin", POWERWASH_CVD_NAME);
+        if (!powerwash.isFile()) {
+            CLog.w("Cannot reset the virtual device as %s does not exist.", powerwash);
+            return false;
+        }
+        IRunUtil runUtil = createRunUtil();
+        // acloud runs the instance with its directory as home.
+        runUtil.setEnvVariable(
+                HOME,
+                FileUtil.getFileForPath(getTmpDir(), ACLOUD_CVD_TEMP_DIR_NAME, instanceName)
+                        .getAbsolutePath());
+        CommandResult result =
+                runUtil.runTimedCmd(getOptions().getGceCmdTimeout(), powerwash.getAbsolutePath());
+        CLog.i("powerwash_cvd stdout:\n%s", result.getStdout());
+        CLog.i("powerwash_cvd stderr:\n%s", result.getStderr());
+        return CommandStatus.SUCCESS.equals(result.getStatus());
+    }
+
     /**
      * Change the initial serial number of {@link StubLocalAndroidVirtualDevice}.
      *
@@ -450,6 +631,11 @@ public class LocalAndroidVirtualDevice extends RemoteAndroidDevice implements IT
         }
     }
 
+    @VisibleForTesting
+    ExtractedArchiveCache getImageCache() {
+        return ExtractedArchiveCache.getInstance();
+    }
+
     @VisibleForTesting
     IRunUtil createRunUtil() {
         return new RunUtil();
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.loganalysis.item.JavaCrashItem;
+import com.android.loganalysis.item.LogcatItem;
+import com.android.loganalysis.parser.LogcatParser;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes crashes from a logcat stream as it is received.
+ *
+ * <p>Each line of logcat in 'threadtime' format is tokenized once. Lines belonging to a Java crash,
+ * a native crash or an ANR are grouped into events, which are kept sorted by timestamp in a rolling
+ * index so crashes since a given time can be looked up without reading the logcat again.
+ */
+public class LogcatCrashIndexer implements IShellOutputReceiver {
+
+    /** Default maximum number of crash events kept in the index. */
+    public static final int DEFAULT_MAX_EVENTS = 500;
+    /** Maximum number of lines kept for a single event. */
+    static final int MAX_EVENT_LINES = 500;
+    /** Number of lines from other sources after which an open event is considered complete. */
+    static final int MAX_INTERLEAVED_LINES = 1000;
+
+    // MM-DD HH:MM:SS.mmm [UID] PID TID LEVEL TAG: MESSAGE
+    private static final Pattern THREADTIME_LINE =
+            Pattern.compile(
+                    "^(\\d{2})-(\\d{2})\\s+(\\d{2}):(\\d{2}):(\\d{2})\\.(\\d{3})\\s+(?:\\S+\\s+)?"
+                            + "(\\d+)\\s+(\\d+)\\s+([VDIWEFA])\\s+(.*?)\\s*: (.*)$");
+
+    /** Type of crash events that are indexed. */
+    public enum CrashType {
+        JAVA_CRASH,
+        NATIVE_CRASH,
+        ANR,
+    }
+
+    /** A crash event found in the logcat. */
+    public static class CrashEvent {
+        private final CrashType mType;
+        private final long mTimestamp;
+        private final List<String> mLines = new ArrayList<>();
+        private List<JavaCrashItem> mJavaCrashes = null;
+
+        CrashEvent(CrashType type, long timestamp) {
+            mType = type;
+            mTimestamp = timestamp;
+        }
+
+        /** Returns the type of the crash. */
+        public CrashType getType() {
+            return mType;
+        }
+
+        /** Returns the timestamp of the first line of the crash, in milliseconds. */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        synchronized void addLine(String line) {
+            mLines.add(line);
+            // Parse again if the crash is looked up before and after this line.
+            mJavaCrashes = null;
+        }
+
+        synchronized int getLineCount() {
+            return mLines.size();
+        }
+
+        /** Returns the raw logcat lines of the crash received so far. */
+        public synchronized List<String> getLines() {
+            return new ArrayList<>(mLines);
+        }
+
+        /** Returns the parsed Java crashes of the event, empty if not a Java crash. */
+        public synchronized List<JavaCrashItem> getJavaCrashes() {
+            if (mJavaCrashes == null) {
+                if (CrashType.JAVA_CRASH.equals(mType)) {
+                    LogcatItem item = new LogcatParser().parse(mLines);
+                    mJavaCrashes = item.getJavaCrashes();
+                } else {
+                    mJavaCrashes = new ArrayList<>();
+                }
+            }
+            return mJavaCrashes;
+        }
+    }
+
+    private final int mMaxEvents;
+    private final ByteArrayOutputStream mPartialLine = new ByteArrayOutputStream();
+    /** Events sorted by timestamp. */
+    private final List<CrashEvent> mEvents = new ArrayList<>();
+    /** Events still receiving lines, by source (pid, tid, level and tag). */
+    private final Map<String, OpenEvent> mOpenEvents = new LinkedHashMap<>();
+    /** The earliest timestamp from which the index is complete, null if nothing was indexed. */
+    private Long mIndexedSince = null;
+    private long mLineCount = 0L;
+    private boolean mIsCancelled = false;
+
+    private static class OpenEvent {
+        final CrashEvent mEvent;
+        long mLastLine;
+
+        OpenEvent(CrashEvent event, long lastLine) {
+            mEvent = event;
+            mLastLine = lastLine;
+        }
+    }
+
+    public LogcatCrashIndexer() {
+        this(DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * Creates a {@link LogcatCrashIndexer}.
+     *
+     * @param maxEvents the maximum number of crash events to keep, oldest ones are dropped first.
+     */
+    public LogcatCrashIndexer(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return;
+        }
+        int start = offset;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '\n') {
+                mPartialLine.write(data, start, i - start);
+                processLine(new String(mPartialLine.toByteArray(), StandardCharsets.UTF_8));
+                mPartialLine.reset();
+                start = i + 1;
+            }
+        }
+        mPartialLine.write(data, start, offset + length - start);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void flush() {
+        // Events spanning several chunks of output stay open until complete.
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /** Stops indexing any further output. */
+    public synchronized void cancel() {
+        mIsCancelled = true;
+    }
+
+    /** Drops all the indexed events, the index restarts from the next received line. */
+    public synchronized void clear() {
+        mPartialLine.reset();
+        mEvents.clear();
+        mOpenEvents.clear();
+        mIndexedSince = null;
+    }
+
+    /**
+     * Returns true if the index starts at or before the given time, i.e. lookups since that time
+     * return all the crashes received so far. The receiver can lag behind the device, so the most
+     * recent crashes may not be indexed yet.
+     */
+    public synchronized boolean isIndexedSince(long timestamp) {
+        return mIndexedSince != null && mIndexedSince <= timestamp;
+    }
+
+    /** Returns the crash events with a timestamp at or after the given time, oldest first. */
+    public synchronized List<CrashEvent> getEventsSince(long timestamp) {
+        return new ArrayList<>(mEvents.subList(findFirstIndex(timestamp), mEvents.size()));
+    }
+
+    /** Returns the Java crashes that happened at or after the given time, oldest first. */
+    public List<JavaCrashItem> getJavaCrashesSince(long timestamp) {
+        List<JavaCrashItem> crashes = new ArrayList<>();
+        for (CrashEvent event : getEventsSince(timestamp)) {
+            crashes.addAll(event.getJavaCrashes());
+        }
+        return crashes;
+    }
+
+    /** Returns the index of the first event at or after the timestamp, by binary search. */
+    private int findFirstIndex(long timestamp) {
+        int low = 0;
+        int high = mEvents.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEvents.get(mid).getTimestamp() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void processLine(String line) {
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        Matcher m = THREADTIME_LINE.matcher(line);
+        if (!m.matches()) {
+            return;
+        }
+        Long timestamp = parseTimestamp(m);
+        if (timestamp == null) {
+            return;
+        }
+        mLineCount++;
+        if (mIndexedSince == null) {
+            mIndexedSince = timestamp;
+        }
+        // Lines of an event all come from the same thread, tag and level.
+        String source =
+                String.format("%s-%s-%s-%s", m.group(7), m.group(8), m.group(9), m.group(10));
+        String tag = m.group(10);
+        String message = m.group(11);
+
+        CrashType type = getCrashType(m.group(9), tag, message);
+        OpenEvent open = mOpenEvents.get(source);
+        if (type != null && (open == null || isExplicitStart(type, message))) {
+            CrashEvent event = new CrashEvent(type, timestamp);
+            event.addLine(line);
+            addEvent(event);
+            mOpenEvents.put(source, new OpenEvent(event, mLineCount));
+        } else {
+            if (open != null && open.mEvent.getLineCount() < MAX_EVENT_LINES) {
+                open.mEvent.addLine(line);
+                open.mLastLine = mLineCount;
+            }
+        }
+        // Close events whose source has been silent for a while
+        Iterator<OpenEvent> it = mOpenEvents.values().iterator();
+        while (it.hasNext()) {
+            if (mLineCount - it.next().mLastLine > MAX_INTERLEAVED_LINES) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the type of crash the line can start, or null if it does not start a crash. Any
+     * AndroidRuntime error starts a Java crash if none is in progress for its source.
+     */
+    private static CrashType getCrashType(String level, String tag, String message) {
+        if ("AndroidRuntime".equals(tag) && "E".equals(level)) {
+            return CrashType.JAVA_CRASH;
+        }
+        if ("DEBUG".equals(tag)
+                && message.startsWith("*** *** *** *** *** *** *** *** *** *** *** *** *** ***")) {
+            return CrashType.NATIVE_CRASH;
+        }
+        if ("ActivityManager".equals(tag) && "E".equals(level) && message.startsWith("ANR in")) {
+            return CrashType.ANR;
+        }
+        return null;
+    }
+
+    /** Returns true if the line starts a new crash even if one is in progress for its source. */
+    private static boolean isExplicitStart(CrashType type, String message) {
+        return !CrashType.JAVA_CRASH.equals(type) || message.startsWith("FATAL EXCEPTION");
+    }
+
+    private void addEvent(CrashEvent event) {
+        // Logcat is mostly ordered, insert from the end to keep the index sorted.
+        int index = mEvents.size();
+        while (index > 0 && mEvents.get(index - 1).getTimestamp() > event.getTimestamp()) {
+            index--;
+        }
+        mEvents.add(index, event);
+        if (mEvents.size() > mMaxEvents) {
+            CrashEvent dropped = mEvents.remove(0);
+            // The index is only complete after the dropped event.
+            mIndexedSince = Math.max(mIndexedSince, dropped.getTimestamp() + 1);
+        }
+    }
+
+    /**
+     * Converts the logcat timestamp, which has no year, to milliseconds. The current year is
+     * assumed unless that would put the timestamp in the future. Returns null if the timestamp is
+     * not a valid date.
+     */
+    private Long parseTimestamp(Matcher m) {
+        long now = getCurrentTime();
+        int year = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault()).getYear();
+        try {
+            long timestamp = toMillis(year, m);
+            if (timestamp > now + 24 * 60 * 60 * 1000L) {
+                timestamp = toMillis(year - 1, m);
+            }
+            return timestamp;
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    private static long toMillis(int year, Matcher m) {
+        LocalDateTime dateTime =
+                LocalDateTime.of(
+                        year,
+                        Integer.parseInt(m.group(1)),
+                        Integer.parseInt(m.group(2)),
+                        Integer.parseInt(m.group(3)),
+                        Integer.parseInt(m.group(4)),
+                        Integer.parseInt(m.group(5)),
+                        Integer.parseInt(m.group(6)) * 1000000);
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @VisibleForTesting
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
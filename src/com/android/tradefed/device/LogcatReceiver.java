@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.device;
 
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.result.InputStreamSource;
 
 import com.google.errorprone.annotations.MustBeClosed;
@@ -26,6 +27,7 @@ import com.google.errorprone.annotations.MustBeClosed;
 public class LogcatReceiver implements ILogcatReceiver {
     private BackgroundDeviceAction mDeviceAction;
     private LargeOutputReceiver mReceiver;
+    private LogcatCrashIndexer mCrashIndexer;
 
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
@@ -43,10 +45,11 @@ public class LogcatReceiver implements ILogcatReceiver {
 
         mReceiver = new LargeOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
                 maxFileSize);
+        mCrashIndexer = new LogcatCrashIndexer();
         // FIXME: remove mLogStartDelay. Currently delay starting logcat, as starting
         // immediately after a device comes online has caused adb instability
         mDeviceAction = new BackgroundDeviceAction(logcatCmd, LOGCAT_DESC, device,
-                mReceiver, logStartDelay);
+                new IndexingReceiver(), logStartDelay);
     }
 
     /**
@@ -69,6 +72,16 @@ public class LogcatReceiver implements ILogcatReceiver {
         mDeviceAction.cancel();
         mReceiver.cancel();
         mReceiver.delete();
+        mCrashIndexer.cancel();
+        mCrashIndexer.clear();
+    }
+
+    /**
+     * Returns the {@link LogcatCrashIndexer} fed with the logcat collected by this receiver, to
+     * look up crashes without reading the logcat data again.
+     */
+    public LogcatCrashIndexer getCrashIndexer() {
+        return mCrashIndexer;
     }
 
     @MustBeClosed
@@ -91,5 +104,27 @@ public class LogcatReceiver implements ILogcatReceiver {
     @Override
     public void clear() {
         mReceiver.clear();
+        mCrashIndexer.clear();
+    }
+
+    /** Receiver that writes the logcat to the file receiver and indexes it at the same time. */
+    private class IndexingReceiver implements IShellOutputReceiver {
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            mReceiver.addOutput(data, offset, length);
+            mCrashIndexer.addOutput(data, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            mReceiver.flush();
+            mCrashIndexer.flush();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mReceiver.isCancelled();
+        }
     }
 }
@@ -34,9 +34,13 @@ import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.device.PersistentShellSession.CommandSentException;
+import com.android.tradefed.device.PersistentShellSession.ShellOutput;
 import com.android.tradefed.device.contentprovider.ContentProviderHandler;
 import com.android.tradefed.error.HarnessRuntimeException;
 import com.android.tradefed.host.IHostOptions;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.log.LogUtil;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -78,6 +82,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Clock;
@@ -87,6 +92,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -155,6 +161,10 @@ public class NativeDevice implements IManagedTestDevice {
     /** Encrypting with wipe can take up to 20 minutes. */
     private static final long ENCRYPTION_WIPE_TIMEOUT_MIN = 20;
 
+    /** The fastboot commands and options that flash or wipe the device. */
+    private static final List<String> FASTBOOT_WIPING_COMMANDS =
+            Arrays.asList("flash", "flashall", "update", "erase", "format", "-w");
+
     /** The maximum system_server start delay in seconds after device boot up */
     private static final int MAX_SYSTEM_SERVER_DELAY_AFTER_BOOT_UP_SEC = 10;
 
@@ -184,6 +194,9 @@ public class NativeDevice implements IManagedTestDevice {
     /** Wifi reconnect timeout in ms. */
     private static final int WIFI_RECONNECT_TIMEOUT = 60 * 1000;
 
+    /** Max characters of a mkdir command creating the directories of synced files. */
+    @VisibleForTesting static final int MAX_MKDIR_COMMAND_LENGTH = 1000;
+
     /** Pattern to find an executable file. */
     private static final Pattern EXE_FILE = Pattern.compile("^[-l]r.x.+");
 
@@ -233,6 +246,16 @@ public class NativeDevice implements IManagedTestDevice {
 
     private String mFastbootSerialNumber = null;
 
+    /** The long running 'adb shell' used to run shell commands, if enabled. */
+    private PersistentShellSession mShellSession = null;
+    /** Whether the shell session could not be used on the device during the invocation. */
+    private boolean mShellSessionUnsupported = false;
+    private final Object mShellSessionLock = new Object();
+
+    /** The cache of the files pushed to the device, if enabled. */
+    private DevicePushCache mPushCache = null;
+    private final Object mPushCacheLock = new Object();
+
     /**
      * Interface for a generic device communication attempt.
      */
@@ -317,6 +340,22 @@ public class NativeDevice implements IManagedTestDevice {
 
         @Override
         public boolean run() throws TimeoutException, IOException {
+            if (mPipeAsInput == null && mPipeToOutput == null) {
+                // Skip the "adb -s <serial> shell" part of the command.
+                String command = String.join(" ", Arrays.copyOfRange(mCmd, 4, mCmd.length));
+                ShellOutput output = runInShellSession(command, false, mTimeout, 0L);
+                if (output != null) {
+                    mResult = new CommandResult();
+                    mResult.setStatus(
+                            output.getExitCode() == 0
+                                    ? CommandStatus.SUCCESS
+                                    : CommandStatus.FAILED);
+                    mResult.setStdout(new String(output.getStdout(), StandardCharsets.UTF_8));
+                    mResult.setStderr(new String(output.getStderr(), StandardCharsets.UTF_8));
+                    mResult.setExitCode(output.getExitCode());
+                    return true;
+                }
+            }
             if (mPipeAsInput != null) {
                 mResult = getRunUtil().runTimedCmdWithInputRedirect(mTimeout, mPipeAsInput, mCmd);
             } else {
@@ -733,6 +772,19 @@ public class NativeDevice implements IManagedTestDevice {
             @Override
             public boolean run() throws TimeoutException, IOException,
                     AdbCommandRejectedException, ShellCommandUnresponsiveException {
+                ShellOutput output;
+                try {
+                    output = runInShellSession(command, true, 0L, mCmdTimeout);
+                } catch (TimeoutException e) {
+                    CLog.w(e.getMessage());
+                    throw new ShellCommandUnresponsiveException();
+                }
+                if (output != null) {
+                    byte[] stdout = output.getStdout();
+                    receiver.addOutput(stdout, 0, stdout.length);
+                    receiver.flush();
+                    return true;
+                }
                 getIDevice().executeShellCommand(command, receiver,
                         mCmdTimeout, TimeUnit.MILLISECONDS);
                 return true;
@@ -1217,6 +1269,17 @@ public class NativeDevice implements IManagedTestDevice {
             }
         }
 
+        DevicePushCache pushCache = getPushCache();
+        String digest = null;
+        if (pushCache != null && pushCache.accepts(localFile, remoteFilePath)) {
+            digest = pushCache.getDigest(localFile);
+            if (digest != null
+                    && pushCache.restore(
+                            this, localFile, digest, interpolatePathVariables(remoteFilePath))) {
+                return true;
+            }
+        }
+
         DeviceAction pushAction =
                 new DeviceAction() {
                     @Override
@@ -1259,8 +1322,33 @@ public class NativeDevice implements IManagedTestDevice {
                         return status;
                     }
                 };
-        return performDeviceAction(String.format("push %s to %s", localFile.getAbsolutePath(),
-                remoteFilePath), pushAction, MAX_RETRY_ATTEMPTS);
+        boolean pushed =
+                performDeviceAction(
+                        String.format(
+                                "push %s to %s", localFile.getAbsolutePath(), remoteFilePath),
+                        pushAction,
+                        MAX_RETRY_ATTEMPTS);
+        if (pushed && digest != null) {
+            pushCache.store(
+                    this, digest, interpolatePathVariables(remoteFilePath), localFile.length());
+        }
+        return pushed;
+    }
+
+    /**
+     * Returns the {@link DevicePushCache} of the files pushed to the device, or null if the push
+     * cache is not enabled.
+     */
+    public DevicePushCache getPushCache() {
+        if (!mOptions.usePushCache() || getIDevice() instanceof StubDevice) {
+            return null;
+        }
+        synchronized (mPushCacheLock) {
+            if (mPushCache == null) {
+                mPushCache = new DevicePushCache(mOptions.getPushCacheMaxSize());
+            }
+            return mPushCache;
+        }
     }
 
     /**
@@ -1711,6 +1799,9 @@ public class NativeDevice implements IManagedTestDevice {
         // implementation will add localFileDir.getName() to destination path
         deviceFilePath = String.format("%s/%s", interpolatePathVariables(deviceFilePath),
                 localFileDir.getName());
+        if (mOptions.useManifestSync()) {
+            return syncFilesWithManifest(localFileDir, deviceFilePath);
+        }
         if (!doesFileExist(deviceFilePath)) {
             executeShellCommand(String.format("mkdir -p \"%s\"", deviceFilePath));
         }
@@ -1787,6 +1878,125 @@ public class NativeDevice implements IManagedTestDevice {
                 syncAction, MAX_RETRY_ATTEMPTS);
     }
 
+    /**
+     * Sync the files of a local directory that are missing or changed on the device, comparing a
+     * manifest of the local directory with one of the device directory collected at once.
+     *
+     * @param localFileDir the local {@link File} directory to sync
+     * @param deviceFilePath the remote destination directory
+     * @return <code>true</code> if files were synced successfully
+     * @throws DeviceNotAvailableException
+     */
+    private boolean syncFilesWithManifest(File localFileDir, String deviceFilePath)
+            throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        boolean hash = mOptions.useManifestSyncHash();
+        FileSyncManifest localManifest;
+        try {
+            localManifest = FileSyncManifest.fromLocalDir(localFileDir, hash);
+        } catch (IOException e) {
+            CLog.e("Failed to build the manifest of %s: %s", localFileDir, e.getMessage());
+            return false;
+        }
+        CommandResult listing =
+                executeShellV2Command(FileSyncManifest.getRemoteCommand(deviceFilePath, hash));
+        String remoteOutput = "";
+        if (CommandStatus.SUCCESS.equals(listing.getStatus())) {
+            remoteOutput = listing.getStdout();
+        } else {
+            CLog.w(
+                    "Failed to list %s on device %s, syncing all files: %s",
+                    deviceFilePath, getSerialNumber(), listing.getStderr());
+        }
+        FileSyncManifest remoteManifest = FileSyncManifest.fromRemoteOutput(remoteOutput);
+        List<String> changedFiles = localManifest.getChangedFiles(remoteManifest);
+
+        long totalBytes = 0L;
+        for (FileSyncManifest.Entry entry : localManifest.getEntries().values()) {
+            totalBytes += entry.getSize();
+        }
+        long transferredBytes = 0L;
+        Set<String> remoteDirs = new LinkedHashSet<>();
+        remoteDirs.add(deviceFilePath);
+        for (String path : changedFiles) {
+            transferredBytes += localManifest.getEntries().get(path).getSize();
+            if (path.lastIndexOf('/') > 0) {
+                remoteDirs.add(
+                        String.format(
+                                "%s/%s", deviceFilePath, path.substring(0, path.lastIndexOf('/'))));
+            }
+        }
+
+        boolean result = true;
+        if (changedFiles.isEmpty()) {
+            CLog.d("No files to sync");
+        } else {
+            // Create the directories in batches, so the commands stay within the shell limits.
+            final String mkdir = "mkdir -p";
+            StringBuilder mkdirCommand = new StringBuilder(mkdir);
+            for (String dir : remoteDirs) {
+                String arg = String.format(" \"%s\"", dir);
+                if (mkdirCommand.length() > mkdir.length()
+                        && mkdirCommand.length() + arg.length() > MAX_MKDIR_COMMAND_LENGTH) {
+                    executeShellCommand(mkdirCommand.toString());
+                    mkdirCommand.setLength(mkdir.length());
+                }
+                mkdirCommand.append(arg);
+            }
+            executeShellCommand(mkdirCommand.toString());
+            // Push all the changed files through one sync connection.
+            DeviceAction syncAction =
+                    new DeviceAction() {
+                        @Override
+                        public boolean run()
+                                throws TimeoutException, IOException, AdbCommandRejectedException,
+                                        SyncException {
+                            SyncService syncService = null;
+                            try {
+                                syncService = getIDevice().getSyncService();
+                                if (syncService == null) {
+                                    throw new IOException("SyncService returned null.");
+                                }
+                                for (String path : changedFiles) {
+                                    syncService.pushFile(
+                                            new File(localFileDir, path).getAbsolutePath(),
+                                            String.format("%s/%s", deviceFilePath, path),
+                                            SyncService.getNullProgressMonitor());
+                                }
+                            } catch (SyncException e) {
+                                CLog.w(
+                                        "Failed to sync files to %s on device %s. Message %s",
+                                        deviceFilePath, getSerialNumber(), e.getMessage());
+                                throw e;
+                            } finally {
+                                if (syncService != null) {
+                                    syncService.close();
+                                }
+                            }
+                            return true;
+                        }
+                    };
+            result =
+                    performDeviceAction(
+                            String.format("sync files %s", deviceFilePath),
+                            syncAction,
+                            MAX_RETRY_ATTEMPTS);
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        CLog.i(
+                "Synced %s to %s: %d of %d files transferred (%d bytes), %d bytes skipped, "
+                        + "in %d ms",
+                localFileDir, deviceFilePath, changedFiles.size(),
+                localManifest.getEntries().size(), transferredBytes,
+                totalBytes - transferredBytes, elapsed);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.SYNC_TRANSFERRED_BYTES, transferredBytes);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.SYNC_SKIPPED_BYTES, totalBytes - transferredBytes);
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.SYNC_TIME, elapsed);
+        return result;
+    }
+
     /**
      * Queries the file listing service for a given directory
      *
@@ -1943,6 +2153,7 @@ public class NativeDevice implements IManagedTestDevice {
                     getSerialNumber()));
         }
         final String[] fullCmd = buildFastbootCommand(cmdArgs);
+        invalidatePushCache(cmdArgs);
         for (int i = 0; i < MAX_RETRY_ATTEMPTS; i++) {
             File fastbootTmpDir = getHostOptions().getFastbootTmpDir();
             IRunUtil runUtil = null;
@@ -1976,6 +2187,23 @@ public class NativeDevice implements IManagedTestDevice {
                 getSerialNumber()), getSerialNumber());
     }
 
+    /** Invalidate the push cache before a fastboot command that flashes or wipes the device. */
+    private void invalidatePushCache(String... cmdArgs) {
+        DevicePushCache pushCache;
+        synchronized (mPushCacheLock) {
+            pushCache = mPushCache;
+        }
+        if (pushCache == null) {
+            return;
+        }
+        for (String arg : cmdArgs) {
+            if (FASTBOOT_WIPING_COMMANDS.contains(arg)) {
+                pushCache.invalidate();
+                return;
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -2073,6 +2301,100 @@ public class NativeDevice implements IManagedTestDevice {
                 new String[] {"adb", "-s", getSerialNumber(), "shell"}, commandArgs);
     }
 
+    /**
+     * Runs a shell command in the persistent shell session of the device, starting the session if
+     * needed.
+     *
+     * @return the {@link ShellOutput} of the command, or null if the session is disabled, not
+     *     supported, busy or failed before the command was sent, in which case the command should
+     *     be run on its own. If the session failed after the command was sent, the output
+     *     received so far is returned with a -1 exit code.
+     * @throws TimeoutException if the command did not complete in time.
+     */
+    private ShellOutput runInShellSession(
+            String command, boolean mergeStderr, long maxTimeoutForCommand, long maxTimeToOutput)
+            throws TimeoutException {
+        if (!mOptions.usePersistentShellSession() || getIDevice() instanceof StubDevice) {
+            return null;
+        }
+        if (!PersistentShellSession.hasBalancedQuotes(command)) {
+            // Run on its own, so the shell reports the syntax error instead of waiting for input.
+            CLog.d("Unbalanced quotes in '%s', not running it in the shell session", command);
+            return null;
+        }
+        PersistentShellSession session;
+        synchronized (mShellSessionLock) {
+            if (mShellSessionUnsupported) {
+                return null;
+            }
+            if (mShellSession == null) {
+                PersistentShellSession newSession = createShellSession();
+                try {
+                    if (!newSession.open()) {
+                        CLog.w("Shell session is not supported by %s", getSerialNumber());
+                        mShellSessionUnsupported = true;
+                        return null;
+                    }
+                } catch (IOException e) {
+                    CLog.w("Failed to start shell session on %s: %s", getSerialNumber(), e);
+                    mShellSessionUnsupported = true;
+                    InvocationMetricLogger.addInvocationMetrics(
+                            InvocationMetricKey.PERSISTENT_SHELL_FALLBACKS, 1);
+                    return null;
+                }
+                mShellSession = newSession;
+            }
+            session = mShellSession;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            ShellOutput output =
+                    session.run(command, mergeStderr, maxTimeoutForCommand, maxTimeToOutput);
+            if (output != null) {
+                InvocationMetricLogger.addInvocationMetrics(
+                        InvocationMetricKey.PERSISTENT_SHELL_COMMANDS, 1);
+                InvocationMetricLogger.addInvocationMetrics(
+                        InvocationMetricKey.PERSISTENT_SHELL_TIME,
+                        System.currentTimeMillis() - startTime);
+            }
+            return output;
+        } catch (CommandSentException e) {
+            // The command may have run, running it again would repeat its side effects.
+            CLog.w("Shell session of %s failed while running '%s': %s",
+                    getSerialNumber(), command, e.getMessage());
+            closeShellSession();
+            return e.getOutput();
+        } catch (IOException e) {
+            CLog.w("Shell session of %s failed, running '%s' on its own: %s",
+                    getSerialNumber(), command, e.getMessage());
+            closeShellSession();
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.PERSISTENT_SHELL_FALLBACKS, 1);
+            return null;
+        } catch (TimeoutException e) {
+            closeShellSession();
+            throw e;
+        }
+    }
+
+    /** Creates the {@link PersistentShellSession} of the device. */
+    @VisibleForTesting
+    PersistentShellSession createShellSession() {
+        return new PersistentShellSession(getSerialNumber(), getRunUtil());
+    }
+
+    /** Stops the persistent shell session of the device, if any. */
+    void closeShellSession() {
+        PersistentShellSession session;
+        synchronized (mShellSessionLock) {
+            session = mShellSession;
+            mShellSession = null;
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
     /**
      * Builds the OS command for the given fastboot command and args
      */
@@ -2194,6 +2516,7 @@ public class NativeDevice implements IManagedTestDevice {
             return;
         }
         CLog.i("Attempting recovery on %s", getSerialNumber());
+        closeShellSession();
         try {
             mRecovery.recoverDevice(mStateMonitor, mRecoveryMode.equals(RecoveryMode.ONLINE));
         } catch (DeviceUnresponsiveException due) {
@@ -2380,6 +2703,18 @@ public class NativeDevice implements IManagedTestDevice {
         }
     }
 
+    /**
+     * Returns the {@link LogcatCrashIndexer} of the logcat captured in background, or null if
+     * logcat is not being captured.
+     */
+    public LogcatCrashIndexer getLogcatCrashIndexer() {
+        LogcatReceiver receiver = mLogcatReceiver;
+        if (receiver == null) {
+            return null;
+        }
+        return receiver.getCrashIndexer();
+    }
+
     /** Factory method to create a {@link LogcatReceiver}. */
     @VisibleForTesting
     LogcatReceiver createLogcatReceiver() {
@@ -3270,6 +3605,7 @@ public class NativeDevice implements IManagedTestDevice {
      */
     protected void doAdbReboot(RebootMode rebootMode, @Nullable final String reason)
             throws DeviceNotAvailableException {
+        closeShellSession();
         DeviceAction rebootAction = createRebootDeviceAction(rebootMode, reason);
         performDeviceAction("reboot", rebootAction, MAX_RETRY_ATTEMPTS);
     }
@@ -3318,6 +3654,7 @@ public class NativeDevice implements IManagedTestDevice {
         CLog.i("adb root on device %s", getSerialNumber());
         int attempts = MAX_RETRY_ATTEMPTS + 1;
         for (int i=1; i <= attempts; i++) {
+            closeShellSession();
             String output = executeAdbCommand("root");
             // wait for device to disappear from adb
             waitForDeviceNotAvailable("root", 20 * 1000);
@@ -3349,6 +3686,7 @@ public class NativeDevice implements IManagedTestDevice {
         CLog.i("adb unroot on device %s", getSerialNumber());
         int attempts = MAX_RETRY_ATTEMPTS + 1;
         for (int i=1; i <= attempts; i++) {
+            closeShellSession();
             String output = executeAdbCommand("unroot");
             // wait for device to disappear from adb
             waitForDeviceNotAvailable("unroot", 5 * 1000);
@@ -4556,6 +4894,10 @@ public class NativeDevice implements IManagedTestDevice {
     @Override
     public void postInvocationTearDown(Throwable exception) {
         mIsEncryptionSupported = null;
+        closeShellSession();
+        synchronized (mShellSessionLock) {
+            mShellSessionUnsupported = false;
+        }
         FileUtil.deleteFile(mExecuteShellCommandLogs);
         mExecuteShellCommandLogs = null;
         // Default implementation
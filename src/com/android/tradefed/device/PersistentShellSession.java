@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long running 'adb shell' on a device, running commands one after another instead of opening a
+ * new adb connection for each command.
+ *
+ * <p>Each command is written to the stdin of the shell, followed by markers written to stdout and
+ * stderr once it completes. The stdout marker carries the exit code of the command, its output is
+ * everything before the markers. Commands run in a subshell without input, so they cannot change
+ * the state of the session nor read the next commands.
+ */
+public class PersistentShellSession implements Closeable {
+
+    /** The output of a command run in the session. */
+    public static class ShellOutput {
+        private final byte[] mStdout;
+        private final byte[] mStderr;
+        private final int mExitCode;
+
+        ShellOutput(byte[] stdout, byte[] stderr, int exitCode) {
+            mStdout = stdout;
+            mStderr = stderr;
+            mExitCode = exitCode;
+        }
+
+        /** Returns the stdout of the command, including its stderr if they were merged. */
+        public byte[] getStdout() {
+            return mStdout;
+        }
+
+        /** Returns the stderr of the command, empty if it was merged into stdout. */
+        public byte[] getStderr() {
+            return mStderr;
+        }
+
+        /** Returns the exit code of the command. */
+        public int getExitCode() {
+            return mExitCode;
+        }
+    }
+
+    /**
+     * Thrown when the session failed after the command was sent to it. The command may have run,
+     * so it must not be run again.
+     */
+    public static class CommandSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final ShellOutput mOutput;
+
+        CommandSentException(String message, ShellOutput output, Throwable cause) {
+            super(message, cause);
+            mOutput = output;
+        }
+
+        /** Returns the output received before the failure, with the failure in its error. */
+        public ShellOutput getOutput() {
+            return mOutput;
+        }
+    }
+
+    /** Time to wait for the session to answer the first command. */
+    private static final long OPEN_TIMEOUT_MS = 10 * 1000;
+    /**
+     * Time to wait for output before checking again. It doubles while no output comes, up to
+     * {@link #MAX_POLL_INTERVAL_MS}, so that short commands answer quickly while long ones do not
+     * keep the thread busy.
+     */
+    private static final long MIN_POLL_INTERVAL_MS = 1;
+
+    private static final long MAX_POLL_INTERVAL_MS = 50;
+
+    private final List<String> mShellCommand;
+    private final IRunUtil mRunUtil;
+    private final String mMarker = "TF_SHELL_" + UUID.randomUUID().toString().replace("-", "");
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final byte[] mReadBuffer = new byte[8192];
+
+    private Process mProcess = null;
+    private long mSequence = 0;
+    private long mCommandCount = 0;
+    private long mTotalTime = 0;
+    private long mMaxTime = 0;
+
+    /**
+     * Creates a session for a device, which is started by {@link #open()}.
+     *
+     * @param serial the serial of the device.
+     * @param runUtil the {@link IRunUtil} to start the adb shell with.
+     */
+    public PersistentShellSession(String serial, IRunUtil runUtil) {
+        this(Arrays.asList("adb", "-s", serial, "shell"), runUtil);
+    }
+
+    @VisibleForTesting
+    PersistentShellSession(List<String> shellCommand, IRunUtil runUtil) {
+        mShellCommand = shellCommand;
+        mRunUtil = runUtil;
+    }
+
+    /**
+     * Starts the shell and checks it can be used.
+     *
+     * @return false if the shell of the device does not keep stdout and stderr separate, in which
+     *     case the session cannot be used.
+     * @throws IOException if the shell could not be started or did not answer.
+     */
+    public boolean open() throws IOException {
+        mLock.lock();
+        try {
+            mProcess = mRunUtil.runCmdInBackground(mShellCommand);
+            ShellOutput probe =
+                    runLocked(
+                            "echo stdout; echo stderr >&2", false, OPEN_TIMEOUT_MS, OPEN_TIMEOUT_MS);
+            String stdout = new String(probe.getStdout(), StandardCharsets.UTF_8);
+            String stderr = new String(probe.getStderr(), StandardCharsets.UTF_8);
+            if (!"stdout\n".equals(stdout) || !"stderr\n".equals(stderr)) {
+                CLog.d(
+                        "Unexpected shell session output, stdout: '%s' stderr: '%s'",
+                        stdout, stderr);
+                close();
+                return false;
+            }
+            return true;
+        } catch (TimeoutException e) {
+            close();
+            throw new IOException("Shell session did not answer", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a command in the session. Only one command runs at a time, the command is not run if
+     * the session is in use by another thread.
+     *
+     * @param command the shell command to run.
+     * @param mergeStderr whether to write the stderr of the command to its stdout.
+     * @param maxTimeoutForCommand the maximum time for the command to complete in milliseconds, 0
+     *     to wait forever.
+     * @param maxTimeToOutput the maximum time without output from the command in milliseconds, 0
+     *     to wait forever.
+     * @return the {@link ShellOutput} of the command, or null if the session was busy.
+     * @throws CommandSentException if the session failed while running the command, the command
+     *     must not be run again.
+     * @throws IOException if the session is closed or failed, or the command cannot be framed
+     *     because of unbalanced quotes. The command was not sent and should be run on its own.
+     * @throws TimeoutException if the command did not complete in time. The session is closed
+     *     since the command is still running.
+     */
+    public ShellOutput run(
+            String command, boolean mergeStderr, long maxTimeoutForCommand, long maxTimeToOutput)
+            throws IOException, TimeoutException {
+        if (!mLock.tryLock()) {
+            return null;
+        }
+        try {
+            if (mProcess == null) {
+                throw new IOException("Shell session is closed");
+            }
+            if (!hasBalancedQuotes(command)) {
+                // The shell would wait for the end of the quote and never reach the markers.
+                throw new IOException(String.format("Unbalanced quotes in '%s'", command));
+            }
+            long startTime = System.currentTimeMillis();
+            ShellOutput output;
+            try {
+                output = runLocked(command, mergeStderr, maxTimeoutForCommand, maxTimeToOutput);
+            } catch (IOException | TimeoutException e) {
+                close();
+                throw e;
+            }
+            long elapsed = System.currentTimeMillis() - startTime;
+            mCommandCount++;
+            mTotalTime += elapsed;
+            mMaxTime = Math.max(mMaxTime, elapsed);
+            return output;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private ShellOutput runLocked(
+            String command, boolean mergeStderr, long maxTimeoutForCommand, long maxTimeToOutput)
+            throws IOException, TimeoutException {
+        String marker = String.format("%s_%d", mMarker, ++mSequence);
+        // The newline before the closing parenthesis ends a possible trailing comment.
+        String framed =
+                String.format(
+                        "(%s\n)%s </dev/null; printf '\\n%s %%d\\n' $?; printf '\\n%s\\n' >&2\n",
+                        command, mergeStderr ? " 2>&1" : "", marker, marker);
+        OutputStream stdin = mProcess.getOutputStream();
+        stdin.write(framed.getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+
+        OutputBuffer stdout = new OutputBuffer();
+        OutputBuffer stderr = new OutputBuffer();
+        try {
+            return waitForMarkers(
+                    command, marker, stdout, stderr, maxTimeoutForCommand, maxTimeToOutput);
+        } catch (IOException e) {
+            String error =
+                    String.format("Shell session failed while running '%s': %s", command, e);
+            byte[] stdoutContent = stdout.getContent(stdout.size());
+            byte[] stderrContent = stderr.getContent(stderr.size());
+            if (mergeStderr) {
+                stdoutContent = append(stdoutContent, error);
+            } else {
+                stderrContent = append(stderrContent, error);
+            }
+            throw new CommandSentException(
+                    error, new ShellOutput(stdoutContent, stderrContent, -1), e);
+        }
+    }
+
+    private static byte[] append(byte[] content, String line) {
+        byte[] lineBytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] result = Arrays.copyOf(content, content.length + lineBytes.length);
+        System.arraycopy(lineBytes, 0, result, content.length, lineBytes.length);
+        return result;
+    }
+
+    /** Reads the output of the command until the markers that follow it are received. */
+    private ShellOutput waitForMarkers(
+            String command,
+            String marker,
+            OutputBuffer stdout,
+            OutputBuffer stderr,
+            long maxTimeoutForCommand,
+            long maxTimeToOutput)
+            throws IOException, TimeoutException {
+        byte[] stdoutMarker = ("\n" + marker + " ").getBytes(StandardCharsets.UTF_8);
+        byte[] stderrMarker = ("\n" + marker + "\n").getBytes(StandardCharsets.UTF_8);
+        int stdoutEnd = -1;
+        Integer exitCode = null;
+        int stderrEnd = -1;
+        long startTime = System.currentTimeMillis();
+        long lastOutput = startTime;
+        long pollInterval = MIN_POLL_INTERVAL_MS;
+        while (exitCode == null || stderrEnd < 0) {
+            boolean read = false;
+            if ((exitCode == null || stderrEnd < 0)
+                    && stdout.readAvailable(mProcess.getInputStream())) {
+                read = true;
+                if (stdoutEnd < 0) {
+                    stdoutEnd = stdout.find(stdoutMarker);
+                }
+                if (stdoutEnd >= 0 && exitCode == null) {
+                    exitCode = stdout.parseExitCode(stdoutEnd + stdoutMarker.length);
+                }
+                if (exitCode != null && stdout.find(stderrMarker) >= 0) {
+                    // The shell writes stderr to stdout, nothing will come on stderr.
+                    stderrEnd = 0;
+                }
+            }
+            if (stderrEnd < 0 && stderr.readAvailable(mProcess.getErrorStream())) {
+                read = true;
+                stderrEnd = stderr.find(stderrMarker);
+            }
+            if (read) {
+                lastOutput = System.currentTimeMillis();
+                pollInterval = MIN_POLL_INTERVAL_MS;
+                continue;
+            }
+            if (!mProcess.isAlive()) {
+                throw new IOException(
+                        String.format("Shell session ended with code %d", mProcess.exitValue()));
+            }
+            long now = System.currentTimeMillis();
+            if (maxTimeToOutput > 0 && now - lastOutput > maxTimeToOutput) {
+                throw new TimeoutException(
+                        String.format(
+                                "No output from '%s' for %d ms in shell session",
+                                command, maxTimeToOutput));
+            }
+            if (maxTimeoutForCommand > 0 && now - startTime > maxTimeoutForCommand) {
+                throw new TimeoutException(
+                        String.format(
+                                "'%s' did not complete in %d ms in shell session",
+                                command, maxTimeoutForCommand));
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the shell session", e);
+            }
+            pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MS);
+        }
+        return new ShellOutput(
+                stdout.getContent(stdoutEnd), stderr.getContent(stderrEnd), exitCode);
+    }
+
+    /** The output received from one of the streams of the shell. */
+    private class OutputBuffer {
+        private byte[] mContent = new byte[1024];
+        private int mSize = 0;
+        /** Position from which the marker was not searched yet. */
+        private int mSearchFrom = 0;
+
+        /** Reads what is available from the stream without blocking, returns true if read any. */
+        boolean readAvailable(InputStream stream) throws IOException {
+            boolean read = false;
+            int available;
+            while ((available = stream.available()) > 0) {
+                int count = stream.read(mReadBuffer, 0, Math.min(available, mReadBuffer.length));
+                if (count < 0) {
+                    break;
+                }
+                if (mSize + count > mContent.length) {
+                    int capacity = Math.max(mContent.length * 2, mSize + count);
+                    mContent = Arrays.copyOf(mContent, capacity);
+                }
+                System.arraycopy(mReadBuffer, 0, mContent, mSize, count);
+                mSize += count;
+                read = true;
+            }
+            return read;
+        }
+
+        /** Returns the position of the marker, or -1 if not received yet. */
+        int find(byte[] marker) {
+            outer:
+            for (int i = mSearchFrom; i <= mSize - marker.length; i++) {
+                for (int j = 0; j < marker.length; j++) {
+                    if (mContent[i + j] != marker[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            mSearchFrom = Math.max(mSearchFrom, mSize - marker.length + 1);
+            return -1;
+        }
+
+        /**
+         * Returns the exit code written from the position until the end of the line, or null if
+         * the whole line was not received yet.
+         */
+        Integer parseExitCode(int start) throws IOException {
+            for (int i = start; i < mSize; i++) {
+                if (mContent[i] == '\n') {
+                    String code = new String(mContent, start, i - start, StandardCharsets.UTF_8);
+                    try {
+                        return Integer.parseInt(code.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException(String.format("Unexpected exit code '%s'", code));
+                    }
+                }
+            }
+            return null;
+        }
+
+        byte[] getContent(int end) {
+            return Arrays.copyOf(mContent, end);
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * Returns false if the command leaves a quote or a line continuation open, in which case the
+     * shell would keep reading the next lines as part of it.
+     */
+    static boolean hasBalancedQuotes(String command) {
+        char quote = 0;
+        boolean wordStart = true;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (quote == '\'') {
+                // Nothing is escaped in single quotes.
+                if (c == '\'') {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\\') {
+                if (++i >= command.length()) {
+                    return false;
+                }
+                wordStart = false;
+                continue;
+            }
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                wordStart = false;
+            } else if (c == '#' && wordStart) {
+                // Quotes in comments do not count.
+                while (i + 1 < command.length() && command.charAt(i + 1) != '\n') {
+                    i++;
+                }
+            } else {
+                wordStart = Character.isWhitespace(c) || ";&|()".indexOf(c) >= 0;
+            }
+        }
+        return quote == 0;
+    }
+
+    /** Returns the number of commands run in the session. */
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /** Returns the total round trip time of the commands run in the session, in milliseconds. */
+    public long getTotalTime() {
+        return mTotalTime;
+    }
+
+    /** Stops the shell, and the command it may be running. */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            if (mProcess == null) {
+                return;
+            }
+            // Stop the shell before closing its input, a partially written command must not run.
+            mProcess.destroy();
+            StreamUtil.close(mProcess.getOutputStream());
+            mProcess = null;
+            if (mCommandCount > 0) {
+                CLog.d(
+                        "Shell session %s ran %d commands, round trip average %d ms, max %d ms",
+                        mShellCommand,
+                        mCommandCount,
+                        mTotalTime / mCommandCount,
+                        mMaxTime);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
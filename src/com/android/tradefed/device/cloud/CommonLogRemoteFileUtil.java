@@ -24,13 +24,16 @@ import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.ZipUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This utility allows to avoid code duplication across the different remote device representation
@@ -44,6 +47,8 @@ public class CommonLogRemoteFileUtil {
     public static final String EMULATOR_REMOTE_LOG_DIR = "/home/%s/log/";
     public static final String TOMBSTONES_ZIP_NAME = "tombstones-zip";
 
+    private static final long FETCH_FILES_TIMEOUT = 10 * 60 * 1000L;
+
     public static final MultiMap<InstanceType, KnownLogFileEntry> KNOWN_FILES_TO_FETCH =
             new MultiMap<>();
 
@@ -118,7 +123,9 @@ public class CommonLogRemoteFileUtil {
         }
         // Capture known extra files
         List<KnownLogFileEntry> toFetch = KNOWN_FILES_TO_FETCH.get(options.getInstanceType());
-        if (toFetch != null) {
+        if (toFetch != null
+                && !(options.useSshMultiplexing()
+                        && fetchKnownFilesAtOnce(testLogger, gceAvd, options, runUtil, toFetch))) {
             for (KnownLogFileEntry entry : toFetch) {
                 LogRemoteFile(
                         testLogger,
@@ -199,6 +206,52 @@ public class CommonLogRemoteFileUtil {
         }
     }
 
+    /**
+     * Fetch the known files in a single transfer and log them.
+     *
+     * @return True if the files were fetched, False if they should be fetched one by one.
+     */
+    private static boolean fetchKnownFilesAtOnce(
+            ITestLogger testLogger,
+            GceAvdInfo gceAvd,
+            TestDeviceOptions options,
+            IRunUtil runUtil,
+            List<KnownLogFileEntry> toFetch) {
+        List<String> remotePaths = new ArrayList<>();
+        for (KnownLogFileEntry entry : toFetch) {
+            // Default fetch rely on main user
+            remotePaths.add(String.format(entry.path, options.getInstanceUser()));
+        }
+        File localDir = null;
+        try {
+            localDir = FileUtil.createTempDir("remote-logs");
+            Map<String, File> fetched =
+                    RemoteFileUtil.fetchRemoteFiles(
+                            gceAvd, options, runUtil, FETCH_FILES_TIMEOUT, remotePaths, localDir);
+            if (fetched == null) {
+                return false;
+            }
+            for (int i = 0; i < toFetch.size(); i++) {
+                KnownLogFileEntry entry = toFetch.get(i);
+                File localFile = fetched.get(remotePaths.get(i));
+                if (localFile == null) {
+                    CLog.d("%s was not found on the remote instance.", remotePaths.get(i));
+                    continue;
+                }
+                String name = entry.logName != null ? entry.logName : localFile.getName();
+                try (InputStreamSource source = new FileInputStreamSource(localFile)) {
+                    testLogger.testLog(name, entry.type, source);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            CLog.e(e);
+            return false;
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
     /**
      * Captures a log from the remote destination.
      *
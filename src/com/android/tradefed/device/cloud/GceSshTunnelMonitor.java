@@ -206,7 +206,7 @@ public class GceSshTunnelMonitor extends Thread {
             List<String> stopAdb =
                     GceRemoteCmdFormatter.getSshCommand(
                             getTestDeviceOptions().getSshPrivateKeyPath(),
-                            null,
+                            SshMultiplexer.addOptions(getTestDeviceOptions(), null),
                             getTestDeviceOptions().getInstanceUser(),
                             mGceHostAndPort.getHost(),
                             "stop",
@@ -229,7 +229,7 @@ public class GceSshTunnelMonitor extends Thread {
             List<String> startAdb =
                     GceRemoteCmdFormatter.getSshCommand(
                             getTestDeviceOptions().getSshPrivateKeyPath(),
-                            null,
+                            SshMultiplexer.addOptions(getTestDeviceOptions(), null),
                             getTestDeviceOptions().getInstanceUser(),
                             mGceHostAndPort.getHost(),
                             "start",
@@ -123,6 +123,8 @@ public class ManagedRemoteDevice extends TestDevice implements ITestLoggerReceiv
                     CommonLogRemoteFileUtil.fetchCommonFiles(
                             mTestLogger, mGceAvd, getOptions(), getRunUtil());
                 }
+                // Close the ssh connection shared by the commands to the instance.
+                SshMultiplexer.close(mGceAvd, getOptions(), getRunUtil());
                 // Cleanup GCE first to make sure ssh tunnel has nowhere to go.
                 if (!getOptions().shouldSkipTearDown()) {
                     getGceHandler().shutdownGce();
@@ -198,6 +198,8 @@ public class RemoteAndroidVirtualDevice extends RemoteAndroidDevice implements I
                     CommonLogRemoteFileUtil.fetchTombstones(
                             mTestLogger, mGceAvd, getOptions(), getRunUtil());
                 }
+                // Close the ssh connection shared by the commands to the instance.
+                SshMultiplexer.close(mGceAvd, getOptions(), getRunUtil());
             }
 
             // Cleanup GCE first to make sure ssh tunnel has nowhere to go.
@@ -22,11 +22,17 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.TarUtil;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Utility class to handle file from a remote instance */
 public class RemoteFileUtil {
@@ -164,6 +170,70 @@ public class RemoteFileUtil {
         return null;
     }
 
+    /**
+     * Fetch several remote files from the remote host in a single transfer, streamed as a tar
+     * archive over one ssh command. Files missing on the remote host are skipped.
+     *
+     * @param remoteInstance The {@link GceAvdInfo} that describe the device.
+     * @param options a {@link TestDeviceOptions} describing the device options to be used for the
+     *     GCE device.
+     * @param runUtil a {@link IRunUtil} to execute commands.
+     * @param timeout in millisecond for the fetch to complete
+     * @param remoteFilePaths The absolute remote paths of the files.
+     * @param localDir The local directory where to put the pulled files, under their remote path.
+     * @return The pulled files by remote path if successful, null otherwise.
+     */
+    public static Map<String, File> fetchRemoteFiles(
+            GceAvdInfo remoteInstance,
+            TestDeviceOptions options,
+            IRunUtil runUtil,
+            long timeout,
+            List<String> remoteFilePaths,
+            File localDir) {
+        List<String> tarCmd = new ArrayList<>();
+        tarCmd.add("tar");
+        tarCmd.add("-cf");
+        tarCmd.add("-");
+        tarCmd.add("--ignore-failed-read");
+        tarCmd.addAll(remoteFilePaths);
+        File tarFile = null;
+        try {
+            tarFile = FileUtil.createTempFile("remote-files", ".tar");
+            CommandResult result;
+            try (OutputStream stdout = new FileOutputStream(tarFile)) {
+                result =
+                        RemoteSshUtil.remoteSshCommandExec(
+                                remoteInstance,
+                                options,
+                                runUtil,
+                                timeout,
+                                stdout,
+                                null,
+                                tarCmd.toArray(new String[0]));
+            }
+            if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+                CLog.e("Issue when pulling files, status: %s", result.getStatus());
+                CLog.e("%s", result.getStderr());
+                return null;
+            }
+            TarUtil.unTar(tarFile, localDir);
+        } catch (IOException e) {
+            CLog.e(e);
+            return null;
+        } finally {
+            FileUtil.deleteFile(tarFile);
+        }
+        Map<String, File> fetched = new LinkedHashMap<>();
+        for (String remoteFilePath : remoteFilePaths) {
+            // tar strips the leading '/' of the paths
+            File localFile = new File(localDir, remoteFilePath.replaceFirst("^/+", ""));
+            if (localFile.isFile()) {
+                fetched.put(remoteFilePath, localFile);
+            }
+        }
+        return fetched;
+    }
+
     /**
      * Push a {@link File} from the local host to the remote instance
      *
@@ -208,7 +278,7 @@ public class RemoteFileUtil {
         List<String> scpCmd =
                 GceRemoteCmdFormatter.getScpCommand(
                         options.getSshPrivateKeyPath(),
-                        scpArgs,
+                        SshMultiplexer.addOptions(options, scpArgs),
                         options.getInstanceUser(),
                         remoteInstance.hostAndPort().getHost(),
                         remoteFilePath,
@@ -49,7 +49,7 @@ public class RemoteSshUtil {
         List<String> sshCmd =
                 GceRemoteCmdFormatter.getSshCommand(
                         options.getSshPrivateKeyPath(),
-                        null,
+                        SshMultiplexer.addOptions(options, null),
                         options.getInstanceUser(),
                         remoteInstance.hostAndPort().getHost(),
                         command);
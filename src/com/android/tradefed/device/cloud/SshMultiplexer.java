@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.cloud;
+
+import com.android.tradefed.device.TestDeviceOptions;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.IRunUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shares one ssh connection per remote instance between the ssh and scp commands run against it,
+ * using the OpenSSH connection multiplexing. The first command to an instance opens a master
+ * connection that stays in the background, the following commands go through it and skip the
+ * connection setup and authentication.
+ */
+public class SshMultiplexer {
+
+    /** How long the master connection is kept once the last command using it is done. */
+    @VisibleForTesting static final String CONTROL_PERSIST = "300";
+
+    private static final long CLOSE_TIMEOUT_MS = 10 * 1000L;
+    // Unix socket paths are limited to 108 bytes, including the terminating null byte.
+    private static final int MAX_SOCKET_PATH_LENGTH = 107;
+    // The %C hash in the control path.
+    private static final int CONTROL_NAME_LENGTH = 40;
+    // OpenSSH binds the socket to the control path followed by "." and 16 random characters, and
+    // renames it once ready.
+    private static final int TEMP_SUFFIX_LENGTH = 17;
+
+    private static File sControlDir = null;
+
+    private SshMultiplexer() {}
+
+    /**
+     * Add the multiplexing options to the options of a ssh or scp command, if enabled.
+     *
+     * @param options the {@link TestDeviceOptions} of the remote device.
+     * @param extraOptions the other options of the command. Can be null.
+     * @return the options to pass to the command, null if there are none.
+     */
+    public static List<String> addOptions(TestDeviceOptions options, List<String> extraOptions) {
+        if (!options.useSshMultiplexing()) {
+            return extraOptions;
+        }
+        File controlDir = getControlDir();
+        if (controlDir == null) {
+            return extraOptions;
+        }
+        List<String> result = new ArrayList<>();
+        result.add("-o");
+        result.add("ControlMaster=auto");
+        result.add("-o");
+        result.add(getControlPathOption(controlDir));
+        result.add("-o");
+        result.add("ControlPersist=" + CONTROL_PERSIST);
+        if (extraOptions != null) {
+            result.addAll(extraOptions);
+        }
+        return result;
+    }
+
+    /**
+     * Close the master connection to a remote instance, if any. Commands running through it are
+     * interrupted.
+     *
+     * @param remoteInstance the {@link GceAvdInfo} of the instance.
+     * @param options the {@link TestDeviceOptions} of the remote device.
+     * @param runUtil a {@link IRunUtil} to execute commands.
+     */
+    public static void close(
+            GceAvdInfo remoteInstance, TestDeviceOptions options, IRunUtil runUtil) {
+        if (!options.useSshMultiplexing()
+                || remoteInstance == null
+                || remoteInstance.hostAndPort() == null) {
+            return;
+        }
+        File controlDir = getControlDir();
+        if (controlDir == null) {
+            return;
+        }
+        List<String> exitCmd =
+                GceRemoteCmdFormatter.getSshCommand(
+                        options.getSshPrivateKeyPath(),
+                        Arrays.asList("-o", getControlPathOption(controlDir), "-O", "exit"),
+                        options.getInstanceUser(),
+                        remoteInstance.hostAndPort().getHost());
+        CommandResult result =
+                runUtil.runTimedCmdSilently(CLOSE_TIMEOUT_MS, exitCmd.toArray(new String[0]));
+        if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+            // No master connection is running if nothing was executed on the instance.
+            CLog.d("No ssh master connection closed: %s", result.getStderr());
+        }
+    }
+
+    private static String getControlPathOption(File controlDir) {
+        // %C is a hash of the local host, remote host, port and user, one socket per instance.
+        return String.format("ControlPath=%s/%%C", controlDir.getAbsolutePath());
+    }
+
+    /** Returns whether the temporary name of a control socket in the directory fits. */
+    @VisibleForTesting
+    static boolean fitsSocketPath(File controlDir) {
+        int length = controlDir.getAbsolutePath().getBytes(StandardCharsets.UTF_8).length;
+        return length + 1 + CONTROL_NAME_LENGTH + TEMP_SUFFIX_LENGTH <= MAX_SOCKET_PATH_LENGTH;
+    }
+
+    private static synchronized File getControlDir() {
+        if (sControlDir != null) {
+            return sControlDir;
+        }
+        try {
+            File controlDir = FileUtil.createTempDir("ssh-mux");
+            if (!fitsSocketPath(controlDir)) {
+                FileUtil.recursiveDelete(controlDir);
+                controlDir = FileUtil.createTempDir("ssh-mux", new File("/tmp"));
+            }
+            if (!fitsSocketPath(controlDir)) {
+                FileUtil.recursiveDelete(controlDir);
+                CLog.w("No ssh control directory short enough, not multiplexing.");
+                return null;
+            }
+            controlDir.deleteOnExit();
+            sControlDir = controlDir;
+        } catch (IOException e) {
+            CLog.w("Failed to create the ssh control directory, not multiplexing: %s", e);
+        }
+        return sControlDir;
+    }
+}
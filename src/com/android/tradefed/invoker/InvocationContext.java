@@ -24,10 +24,13 @@ import com.android.tradefed.config.proto.ConfigurationDescription.Metadata;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
 import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.invoker.logger.TfObjectTracker;
 import com.android.tradefed.invoker.proto.InvocationContext.Context;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.util.CommandMetricTracker;
+import com.android.tradefed.util.CommandMetricTracker.CommandMetric;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.UniqueMultiMap;
 
@@ -342,6 +345,7 @@ public class InvocationContext implements IInvocationContext {
 
     /** Log the {@link InvocationMetricLogger} attributes to the invocation. */
     public void logInvocationMetrics() {
+        logCommandMetrics();
         Map<String, String> metrics = InvocationMetricLogger.getInvocationMetrics();
         if (!metrics.isEmpty()) {
             mInvocationAttributes.putAll(new MultiMap<>(metrics));
@@ -353,6 +357,30 @@ public class InvocationContext implements IInvocationContext {
         }
     }
 
+    /** Add the metrics of the commands run by the invocation to the invocation metrics. */
+    private void logCommandMetrics() {
+        Map<String, CommandMetric> metrics = CommandMetricTracker.getMetrics();
+        if (metrics.isEmpty()) {
+            return;
+        }
+        long count = 0L;
+        long failedCount = 0L;
+        long totalTime = 0L;
+        List<String> binaries = new ArrayList<>();
+        for (Entry<String, CommandMetric> entry : metrics.entrySet()) {
+            count += entry.getValue().getCount();
+            failedCount += entry.getValue().getFailedCount();
+            totalTime += entry.getValue().getTotalTime();
+            binaries.add(String.format("%s:%s", entry.getKey(), entry.getValue()));
+        }
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.SUBPROCESS_COUNT, count);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.SUBPROCESS_FAILURE_COUNT, failedCount);
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.SUBPROCESS_TIME, totalTime);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.SUBPROCESS_BINARIES, Joiner.on(",").join(binaries));
+    }
+
     /** {@inheritDoc} */
     @Override
     public void addSerialsFromShard(Integer index, List<String> serials) {
@@ -148,7 +148,12 @@ public class ShardListener extends CollectingTestListener implements ISupportGra
     @Override
     public void testRunStarted(String name, int numTests, int attemptNumber, long startTime) {
         super.testRunStarted(name, numTests, attemptNumber, startTime);
-        mAttemptInProgress = attemptNumber;
+        if (mModuleContext != null) {
+            // Runs of a module do not all have the same number of attempts, keep the highest.
+            mAttemptInProgress = Math.max(mAttemptInProgress, attemptNumber);
+        } else {
+            mAttemptInProgress = attemptNumber;
+        }
     }
 
     /**
@@ -220,6 +225,7 @@ public class ShardListener extends CollectingTestListener implements ISupportGra
             mMainListener.testModuleEnded();
         }
         mModuleContext = null;
+        mAttemptInProgress = 0;
     }
 
     /** {@inheritDoc} */
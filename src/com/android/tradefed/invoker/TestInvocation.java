@@ -80,6 +80,7 @@ import com.android.tradefed.targetprep.BuildError;
 import com.android.tradefed.targetprep.DeviceFailedToBootError;
 import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.testtype.SubprocessTfLauncher;
+import com.android.tradefed.util.CommandMetricTracker;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.PrettyPrintDelimiter;
@@ -417,6 +418,8 @@ public class TestInvocation implements ITestInvocation {
                 }
             } finally {
                 TfObjectTracker.clearTracking();
+                CommandMetricTracker.clearTracking();
+                RunUtil.shutdownWorkers();
                 CurrentInvocation.clearInvocationInfos();
             }
         }
@@ -683,6 +686,8 @@ public class TestInvocation implements ITestInvocation {
             DynamicRemoteFileResolver resolver = new DynamicRemoteFileResolver();
             resolver.setDevice(context.getDevices().get(0));
             resolver.addExtraArgs(config.getCommandOptions().getDynamicDownloadArgs());
+            resolver.setMaxParallelResolutions(
+                    config.getCommandOptions().getDynamicDownloadMaxParallel());
             config.resolveDynamicOptions(resolver);
             CurrentInvocation.setActionInProgress(ActionInProgress.UNSET);
             return true;
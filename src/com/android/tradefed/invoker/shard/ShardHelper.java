@@ -235,6 +235,8 @@ public class ShardHelper implements IShardHelper {
             DynamicRemoteFileResolver resolver = new DynamicRemoteFileResolver();
             resolver.setDevice(testInfo.getDevice());
             resolver.addExtraArgs(config.getCommandOptions().getDynamicDownloadArgs());
+            resolver.setMaxParallelResolutions(
+                    config.getCommandOptions().getDynamicDownloadMaxParallel());
             config.resolveDynamicOptions(resolver);
         } catch (ConfigurationException | BuildRetrievalError e) {
             throw new RuntimeException(e);
@@ -20,24 +20,19 @@ import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.LogFile;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.util.SimpleStats;
 
-import com.google.common.collect.ArrayListMultimap;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * A metric aggregator that gives the min, max, mean, variance and standard deviation for numeric
  * metrics collected during multiple-iteration test runs, treating them as doubles. Non-numeric
  * metrics are ignored.
  *
- * <p>It parses metrics from single string as currently metrics are passed this way.
+ * <p>Metrics reported as comma separated values in a single string, as most metrics are passed
+ * currently, are parsed once and aggregated into strings. Metrics reported as numbers or lists of
+ * numbers are aggregated without going through strings, and the stats are reported as doubles.
  */
 @OptionClass(alias = "aggregate-post-processor")
 public class AggregatePostProcessor extends BasePostProcessor {
@@ -51,10 +46,10 @@ public class AggregatePostProcessor extends BasePostProcessor {
     // Separator for final upload
     private static final String STATS_KEY_SEPARATOR = "-";
 
-    // Stores the test metrics for aggregation by test description.
+    // Stores the values of the test metrics for aggregation by test description.
     // TODO(b/118708851): Remove this workaround once AnTS is ready.
-    private HashMap<String, ArrayListMultimap<String, Metric>> mStoredTestMetrics =
-            new HashMap<String, ArrayListMultimap<String, Metric>>();
+    private HashMap<String, Map<String, MetricValues>> mStoredTestMetrics =
+            new HashMap<String, Map<String, MetricValues>>();
 
     @Override
     public Map<String, Metric.Builder> processTestMetricsAndLogs(
@@ -64,44 +59,20 @@ public class AggregatePostProcessor extends BasePostProcessor {
         // TODO(b/118708851): Move this processing elsewhere once AnTS is ready.
         // Use the string representation of the test description to key the tests.
         String fullTestName = testDescription.toString();
-        // Store result from the current test.
-        if (!mStoredTestMetrics.containsKey(fullTestName)) {
-            mStoredTestMetrics.put(fullTestName, ArrayListMultimap.create());
-        }
-        ArrayListMultimap<String, Metric> storedMetricsForThisTest =
-                mStoredTestMetrics.get(fullTestName);
+        // Add the values of the current test to the ones of the previous iterations.
+        Map<String, MetricValues> storedMetricsForThisTest =
+                mStoredTestMetrics.computeIfAbsent(fullTestName, k -> new HashMap<>());
         for (Map.Entry<String, Metric> entry : testMetrics.entrySet()) {
-            storedMetricsForThisTest.put(entry.getKey(), entry.getValue());
+            storedMetricsForThisTest
+                    .computeIfAbsent(entry.getKey(), k -> new MetricValues())
+                    .add(entry.getValue().getMeasurements());
         }
         // Aggregate all data in iterations of this test.
         Map<String, Metric.Builder> aggregateMetrics = new HashMap<String, Metric.Builder>();
-        for (String metricKey : storedMetricsForThisTest.keySet()) {
-            List<Metric> metrics = storedMetricsForThisTest.get(metricKey);
-            List<Measurements> measures =
-                    metrics.stream().map(Metric::getMeasurements).collect(Collectors.toList());
-            // Parse metrics into a list of SingleString values, concating lists in the process
-            List<String> rawValues =
-                    measures.stream()
-                            .map(Measurements::getSingleString)
-                            .map(
-                                    m -> {
-                                        // Split results; also deals with the case of empty results
-                                        // in a certain run
-                                        List<String> splitVals = Arrays.asList(m.split(",", 0));
-                                        if (splitVals.size() == 1 && splitVals.get(0).isEmpty()) {
-                                            return Collections.<String>emptyList();
-                                        }
-                                        return splitVals;
-                                    })
-                            .flatMap(Collection::stream)
-                            .map(String::trim)
-                            .collect(Collectors.toList());
+        for (Map.Entry<String, MetricValues> entry : storedMetricsForThisTest.entrySet()) {
             // Do not report empty metrics
-            if (rawValues.isEmpty()) {
-                continue;
-            }
-            if (isAllDoubleValues(rawValues)) {
-                buildStats(metricKey, rawValues, aggregateMetrics);
+            if (entry.getValue().isNumeric() && !entry.getValue().getStats().isEmpty()) {
+                buildStats(entry.getKey(), entry.getValue(), aggregateMetrics);
             }
         }
         return aggregateMetrics;
@@ -114,86 +85,131 @@ public class AggregatePostProcessor extends BasePostProcessor {
         // parsed to double values.
         Map<String, Metric.Builder> aggregateMetrics = new HashMap<String, Metric.Builder>();
         for (Map.Entry<String, Metric> entry : rawMetrics.entrySet()) {
-            String values = entry.getValue().getMeasurements().getSingleString();
-            List<String> splitVals = Arrays.asList(values.split(",", 0));
+            MetricValues values = new MetricValues();
+            values.add(entry.getValue().getMeasurements());
             // Build stats for keys with any values, even only one.
-            if (isAllDoubleValues(splitVals)) {
-                buildStats(entry.getKey(), splitVals, aggregateMetrics);
+            if (values.isNumeric() && !values.getStats().isEmpty()) {
+                buildStats(entry.getKey(), values, aggregateMetrics);
             }
         }
         return aggregateMetrics;
     }
 
-    /**
-     * Return true is all the values can be parsed to double value.
-     * Otherwise return false.
-     * @param rawValues list whose values are validated.
-     * @return
-     */
-    private boolean isAllDoubleValues(List<String> rawValues) {
-        return rawValues
-                .stream()
-                .allMatch(
-                        val -> {
-                            try {
-                                Double.parseDouble(val);
-                                return true;
-                            } catch (NumberFormatException e) {
-                                return false;
-                            }
-                        });
-    }
-
     /**
      * Build stats for the given set of values and build the metrics using the metric key
      * and stats name and update the results in aggregated metrics.
      *
      * @param metricKey key to which the values correspond to.
-     * @param values list of raw values.
+     * @param values the values of the metric.
      * @param aggregateMetrics where final metrics will be stored.
      */
-    private void buildStats(String metricKey, List<String> values,
-            Map<String, Metric.Builder> aggregateMetrics) {
-        List<Double> doubleValues =
-                values.stream().map(Double::parseDouble).collect(Collectors.toList());
-        HashMap<String, Double> stats = getStats(doubleValues);
-        for (String statKey : stats.keySet()) {
+    private void buildStats(
+            String metricKey, MetricValues values, Map<String, Metric.Builder> aggregateMetrics) {
+        SimpleStats stats = values.getStats();
+        double variance = stats.variance();
+        Map<String, Double> statValues = new HashMap<>();
+        statValues.put(STATS_KEY_MIN, stats.min());
+        statValues.put(STATS_KEY_MAX, stats.max());
+        statValues.put(STATS_KEY_MEAN, stats.mean());
+        statValues.put(STATS_KEY_VAR, variance);
+        statValues.put(STATS_KEY_STDEV, Math.sqrt(variance));
+        statValues.put(STATS_KEY_MEDIAN, stats.median());
+        statValues.put(STATS_KEY_TOTAL, stats.sum());
+        for (Map.Entry<String, Double> stat : statValues.entrySet()) {
             Metric.Builder metricBuilder = Metric.newBuilder();
-            metricBuilder
-                    .getMeasurementsBuilder()
-                    .setSingleString(String.format("%2.2f", stats.get(statKey)));
+            if (values.isFromString()) {
+                metricBuilder
+                        .getMeasurementsBuilder()
+                        .setSingleString(String.format("%2.2f", stat.getValue()));
+            } else {
+                metricBuilder.getMeasurementsBuilder().setSingleDouble(stat.getValue());
+            }
             aggregateMetrics.put(
-                    String.join(STATS_KEY_SEPARATOR, metricKey, statKey),
-                    metricBuilder);
+                    String.join(STATS_KEY_SEPARATOR, metricKey, stat.getKey()), metricBuilder);
         }
     }
 
-    private HashMap<String, Double> getStats(Collection<Double> values) {
-        List<Double> valuesList = new ArrayList<>(values);
-        Collections.sort(valuesList);
-        HashMap<String, Double> stats = new HashMap<>();
-        double sum = values.stream().mapToDouble(Double::doubleValue).sum();
-        double count = (double) valuesList.size();
-        // The orElse situation should never happen.
-        double mean =
-                values.stream()
-                        .mapToDouble(Double::doubleValue)
-                        .average()
-                        .orElseThrow(IllegalStateException::new);
-        double variance = values.stream().reduce(0.0, (a, b) -> a + Math.pow(b - mean, 2) / count);
-        // Calculate median.
-        double median = valuesList.get(valuesList.size() / 2);
-        if (valuesList.size() % 2 == 0) {
-            median = (median + valuesList.get(valuesList.size() / 2 - 1)) / 2.0;
+    /** The values of a metric, parsed once into a {@link SimpleStats}. */
+    private static class MetricValues {
+        private final SimpleStats mStats = new SimpleStats();
+        // Whether all the values so far are numbers
+        private boolean mNumeric = true;
+        // Whether some of the values were reported as strings
+        private boolean mFromString = false;
+
+        /** Adds the values of one measurement of the metric. */
+        void add(Measurements measurements) {
+            if (!mNumeric) {
+                return;
+            }
+            switch (measurements.getMeasurementCase()) {
+                case SINGLE_STRING:
+                    mFromString = true;
+                    addCommaSeparated(measurements.getSingleString());
+                    break;
+                case STRING_VALUES:
+                    mFromString = true;
+                    for (int i = 0; i < measurements.getStringValues().getStringValueCount(); i++) {
+                        addString(measurements.getStringValues().getStringValue(i));
+                    }
+                    break;
+                case SINGLE_INT:
+                    mStats.add(measurements.getSingleInt());
+                    break;
+                case SINGLE_DOUBLE:
+                    mStats.add(measurements.getSingleDouble());
+                    break;
+                case NUMERIC_VALUES:
+                    for (int i = 0;
+                            i < measurements.getNumericValues().getNumericValueCount();
+                            i++) {
+                        mStats.add(measurements.getNumericValues().getNumericValue(i));
+                    }
+                    break;
+                case DOUBLE_VALUES:
+                    for (int i = 0;
+                            i < measurements.getDoubleValues().getDoubleValueCount();
+                            i++) {
+                        mStats.add(measurements.getDoubleValues().getDoubleValue(i));
+                    }
+                    break;
+                default:
+                    // No measurement, nothing to aggregate.
+                    break;
+            }
         }
 
-        stats.put(STATS_KEY_MIN, valuesList.get(0));
-        stats.put(STATS_KEY_MAX, valuesList.get(valuesList.size() - 1));
-        stats.put(STATS_KEY_MEAN, mean);
-        stats.put(STATS_KEY_VAR, variance);
-        stats.put(STATS_KEY_STDEV, Math.sqrt(variance));
-        stats.put(STATS_KEY_MEDIAN, median);
-        stats.put(STATS_KEY_TOTAL, sum);
-        return stats;
+        /** Parses comma separated values, an empty string meaning no values. */
+        private void addCommaSeparated(String values) {
+            if (values.trim().isEmpty()) {
+                return;
+            }
+            for (String value : values.split(",", 0)) {
+                addString(value);
+                if (!mNumeric) {
+                    return;
+                }
+            }
+        }
+
+        private void addString(String value) {
+            try {
+                mStats.add(Double.parseDouble(value.trim()));
+            } catch (NumberFormatException e) {
+                mNumeric = false;
+            }
+        }
+
+        boolean isNumeric() {
+            return mNumeric;
+        }
+
+        boolean isFromString() {
+            return mFromString;
+        }
+
+        SimpleStats getStats() {
+            return mStats;
+        }
     }
 }
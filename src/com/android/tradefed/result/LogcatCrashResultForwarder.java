@@ -19,6 +19,8 @@ import com.android.loganalysis.item.JavaCrashItem;
 import com.android.loganalysis.item.LogcatItem;
 import com.android.loganalysis.parser.LogcatParser;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.LogcatCrashIndexer;
+import com.android.tradefed.device.NativeDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.error.DeviceErrorIdentifier;
@@ -47,7 +49,7 @@ public class LogcatCrashResultForwarder extends ResultForwarder {
     private Long mStartTime = null;
     private Long mLastStartTime = null;
     private ITestDevice mDevice;
-    private LogcatItem mLogcatItem = null;
+    private List<JavaCrashItem> mCrashes = null;
 
     public LogcatCrashResultForwarder(ITestDevice device, ITestInvocationListener... listeners) {
         super(listeners);
@@ -97,9 +99,9 @@ public class LogcatCrashResultForwarder extends ResultForwarder {
         // A Process crash would end the instrumentation, so a testRunFailed is probably going to
         // be raised for the same reason.
         String errorMessage = error.getErrorMessage();
-        if (mLogcatItem != null) {
-            errorMessage = addJavaCrashToString(mLogcatItem, errorMessage);
-            mLogcatItem = null;
+        if (mCrashes != null) {
+            errorMessage = addJavaCrashToString(mCrashes, errorMessage);
+            mCrashes = null;
         } else {
             errorMessage = extractCrashAndAddToMessage(errorMessage, mLastStartTime);
         }
@@ -119,8 +121,8 @@ public class LogcatCrashResultForwarder extends ResultForwarder {
     /** Attempt to extract the crash from the logcat if the test was seen as started. */
     private String extractCrashAndAddToMessage(String errorMessage, Long startTime) {
         if (isCrash(errorMessage) && startTime != null) {
-            mLogcatItem = extractLogcat(mDevice, startTime);
-            errorMessage = addJavaCrashToString(mLogcatItem, errorMessage);
+            mCrashes = extractCrashes(mDevice, startTime);
+            errorMessage = addJavaCrashToString(mCrashes, errorMessage);
         }
         return errorMessage;
     }
@@ -129,6 +131,33 @@ public class LogcatCrashResultForwarder extends ResultForwarder {
         return errorMessage.contains(ERROR_MESSAGE) || errorMessage.contains(SYSTEM_CRASH_MESSAGE);
     }
 
+    /**
+     * Extract the Java crashes since the start time. The crash index of the logcat captured in
+     * background is used when it covers the start time and has crashes, otherwise the logcat is
+     * pulled and parsed. The background capture can lag behind the device, so a crash reported
+     * right before the failure may not be indexed yet.
+     *
+     * @param device The device from which to get the crashes.
+     * @param startTime The beginning time of the last tests.
+     * @return The list of {@link JavaCrashItem}, or null if no logcat was available.
+     */
+    private List<JavaCrashItem> extractCrashes(ITestDevice device, long startTime) {
+        if (device instanceof NativeDevice) {
+            LogcatCrashIndexer indexer = ((NativeDevice) device).getLogcatCrashIndexer();
+            if (indexer != null && indexer.isIndexedSince(startTime)) {
+                List<JavaCrashItem> crashes = indexer.getJavaCrashesSince(startTime);
+                if (!crashes.isEmpty()) {
+                    return crashes;
+                }
+            }
+        }
+        LogcatItem item = extractLogcat(device, startTime);
+        if (item == null) {
+            return null;
+        }
+        return item.getJavaCrashes();
+    }
+
     /**
      * Extract a formatted object from the logcat snippet.
      *
@@ -152,11 +181,11 @@ public class LogcatCrashResultForwarder extends ResultForwarder {
     }
 
     /** Append the Java crash information to the failure message. */
-    private String addJavaCrashToString(LogcatItem item, String errorMsg) {
-        if (item == null) {
+    private String addJavaCrashToString(List<JavaCrashItem> javaCrashes, String errorMsg) {
+        if (javaCrashes == null) {
             return errorMsg;
         }
-        List<String> crashes = dedupCrash(item.getJavaCrashes());
+        List<String> crashes = dedupCrash(javaCrashes);
         int displayed = Math.min(crashes.size(), MAX_NUMBER_CRASH);
         for (int i = 0; i < displayed; i++) {
             errorMsg = String.format("%s\nCrash Message:%s\n", errorMsg, crashes.get(i));
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ITestInvocationListener} that keeps running counts of test results instead of the full
+ * results.
+ *
+ * <p>Counts are equivalent to the ones of a {@link CollectingTestListener} merging attempts with
+ * {@link com.android.tradefed.retry.MergeStrategy#ONE_TESTCASE_PASS_IS_PASS}, but no per-test
+ * results are retained: traces, metrics and logs are dropped as soon as they are reported, and a
+ * test that passed is only part of the counts. Only the tests still running and the id of the
+ * tests that did not pass are kept, so that a later attempt can turn them into a pass. A test that
+ * passed and is reported again by a later attempt is counted again. A bounded number of failure
+ * samples is kept for reporting purposes.
+ */
+public class StatusCountingTestListener implements ITestInvocationListener {
+
+    /** Default number of failed tests for which a sample is kept. */
+    public static final int DEFAULT_MAX_FAILURE_SAMPLES = 10;
+    /** Maximum length of a failure sample message. */
+    public static final int MAX_FAILURE_MESSAGE_LENGTH = 1024;
+
+    private final int mMaxFailureSamples;
+    private IInvocationContext mContext;
+    private final Map<String, RunCounts> mRuns = new LinkedHashMap<>();
+    private RunCounts mCurrentRun;
+    private final int[] mStatusCounts = new int[TestStatus.values().length];
+    private final Map<TestDescription, String> mFailureSamples = new LinkedHashMap<>();
+
+    public StatusCountingTestListener() {
+        this(DEFAULT_MAX_FAILURE_SAMPLES);
+    }
+
+    /**
+     * Creates a {@link StatusCountingTestListener}.
+     *
+     * @param maxFailureSamples the maximum number of failed tests for which a sample is kept.
+     */
+    public StatusCountingTestListener(int maxFailureSamples) {
+        mMaxFailureSamples = maxFailureSamples;
+    }
+
+    /** Returns the invocation context reported via {@link #invocationStarted}. */
+    public synchronized IInvocationContext getInvocationContext() {
+        return mContext;
+    }
+
+    /** Returns the primary build info of the invocation, or null if none was reported. */
+    public synchronized IBuildInfo getPrimaryBuildInfo() {
+        if (mContext == null) {
+            return null;
+        }
+        return mContext.getBuildInfos().get(0);
+    }
+
+    /** Returns the total number of tests across all runs, after merging attempts. */
+    public synchronized int getNumTotalTests() {
+        int total = 0;
+        for (int count : mStatusCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /** Returns the number of tests in the given state, after merging attempts. */
+    public synchronized int getNumTestsInState(TestStatus status) {
+        return mStatusCounts[status.ordinal()];
+    }
+
+    /**
+     * Returns the total number of tests in a failure state (only failed, assumption failures do not
+     * count toward it).
+     */
+    public synchronized int getNumAllFailedTests() {
+        return getNumTestsInState(TestStatus.FAILURE);
+    }
+
+    /** Returns the number of test runs where at least one attempt failed. */
+    public synchronized int getNumAllFailedTestRuns() {
+        int count = 0;
+        for (RunCounts run : mRuns.values()) {
+            if (run.isRunFailure()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Returns a snapshot of the counts of each test run, in the order they were started. */
+    public synchronized List<RunCounts> getTestRunCounts() {
+        List<RunCounts> runs = new ArrayList<>();
+        for (RunCounts run : mRuns.values()) {
+            runs.add(run.copy());
+        }
+        return runs;
+    }
+
+    /**
+     * Returns a sample of the tests currently failing mapped to their truncated failure message.
+     * At most the configured number of samples is returned.
+     */
+    public synchronized Map<TestDescription, String> getFailureSamples() {
+        return new LinkedHashMap<>(mFailureSamples);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void invocationStarted(IInvocationContext context) {
+        mContext = context;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(String name, int numTests) {
+        testRunStarted(name, numTests, 0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(String name, int numTests, int attemptNumber) {
+        testRunStarted(name, numTests, attemptNumber, System.currentTimeMillis());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testRunStarted(
+            String name, int numTests, int attemptNumber, long startTime) {
+        RunCounts run = mRuns.get(name);
+        if (run == null) {
+            run = new RunCounts(name);
+            mRuns.put(name, run);
+        }
+        run.startAttempt(attemptNumber, numTests);
+        mCurrentRun = run;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testRunFailed(String errorMessage) {
+        if (mCurrentRun != null) {
+            mCurrentRun.currentAttempt().mFailure = true;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunFailed(FailureDescription failure) {
+        testRunFailed(failure == null ? null : failure.getErrorMessage());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testRunStopped(long elapsedTime) {
+        if (mCurrentRun != null) {
+            mCurrentRun.endAttempt(elapsedTime);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testRunEnded(long elapsedTime, HashMap<String, Metric> runMetrics) {
+        if (mCurrentRun != null) {
+            mCurrentRun.endAttempt(elapsedTime);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(TestDescription test) {
+        testStarted(test, System.currentTimeMillis());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testStarted(TestDescription test, long startTime) {
+        updateStatus(test, TestStatus.INCOMPLETE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testFailed(TestDescription test, String trace) {
+        testFailed(test, FailureDescription.create(trace));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testFailed(TestDescription test, FailureDescription failure) {
+        updateStatus(test, TestStatus.FAILURE);
+        if (mCurrentRun != null
+                && mFailureSamples.size() < mMaxFailureSamples
+                && !mFailureSamples.containsKey(test)) {
+            mFailureSamples.put(test, truncate(failure.getErrorMessage()));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testAssumptionFailure(TestDescription test, String trace) {
+        updateStatus(test, TestStatus.ASSUMPTION_FAILURE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testAssumptionFailure(TestDescription test, FailureDescription failure) {
+        testAssumptionFailure(test, (String) null);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testIgnored(TestDescription test) {
+        updateStatus(test, TestStatus.IGNORED);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+        testEnded(test, System.currentTimeMillis(), testMetrics);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void testEnded(
+            TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
+        if (mCurrentRun == null) {
+            return;
+        }
+        TestStatus current = mCurrentRun.getRunningStatus(test);
+        if (current == null || TestStatus.INCOMPLETE.equals(current)) {
+            updateStatus(test, TestStatus.PASSED);
+        }
+        mCurrentRun.endTest(test);
+    }
+
+    /**
+     * Updates the status of a test in the current attempt of the current run, and the counts that
+     * depend on it.
+     */
+    private void updateStatus(TestDescription test, TestStatus status) {
+        if (mCurrentRun == null) {
+            CLog.d("Received test event for %s outside of a test run, ignoring.", test);
+            return;
+        }
+        TestStatus oldStatus = mCurrentRun.getStatus(test);
+        TestStatus newStatus = mCurrentRun.setRunningStatus(test, status);
+        if (oldStatus != null) {
+            mStatusCounts[oldStatus.ordinal()]--;
+        }
+        mStatusCounts[newStatus.ordinal()]++;
+        if (!TestStatus.FAILURE.equals(newStatus)) {
+            mFailureSamples.remove(test);
+        }
+    }
+
+    private static String truncate(String message) {
+        if (message == null || message.length() <= MAX_FAILURE_MESSAGE_LENGTH) {
+            return message;
+        }
+        return message.substring(0, MAX_FAILURE_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Returns the merged status of a test given its merged status over previous attempts and its
+     * status in the latest attempt: a single pass is a pass, otherwise failures take precedence
+     * over ignored, assumption failures and incomplete results.
+     */
+    static TestStatus mergeStatus(TestStatus previous, TestStatus current) {
+        if (previous == null) {
+            return current;
+        }
+        if (current == null) {
+            return previous;
+        }
+        return getMergePriority(previous) >= getMergePriority(current) ? previous : current;
+    }
+
+    private static int getMergePriority(TestStatus status) {
+        switch (status) {
+            case PASSED:
+                return 4;
+            case FAILURE:
+                return 3;
+            case IGNORED:
+                return 2;
+            case ASSUMPTION_FAILURE:
+                return 1;
+            case INCOMPLETE:
+            default:
+                return 0;
+        }
+    }
+
+    /** The state of one attempt of a test run. */
+    private static class AttemptState {
+        boolean mComplete = false;
+        boolean mFailure = false;
+        long mElapsedTime = 0L;
+        int mExpectedTestCount = 0;
+    }
+
+    /** The counts of a test run, merged across all of its attempts. */
+    public static class RunCounts {
+        private final String mName;
+        /** Status in the current attempt of the tests started and not ended yet. */
+        private final Map<TestDescription, TestStatus> mRunningTests;
+        /** Merged status over the previous attempts of the tests that did not pass, by test id. */
+        private final Map<String, TestStatus> mNotPassedTests;
+        private final int[] mCounts;
+        private final List<AttemptState> mAttempts;
+        private int mCurrentAttempt = 0;
+
+        RunCounts(String name) {
+            mName = name;
+            mRunningTests = new HashMap<>();
+            mNotPassedTests = new HashMap<>();
+            mCounts = new int[TestStatus.values().length];
+            mAttempts = new ArrayList<>();
+        }
+
+        private RunCounts(RunCounts other) {
+            mName = other.mName;
+            // The snapshot only needs the aggregated counts
+            mRunningTests = new HashMap<>();
+            mNotPassedTests = new HashMap<>();
+            mCounts = other.mCounts.clone();
+            mAttempts = new ArrayList<>();
+            for (AttemptState attempt : other.mAttempts) {
+                AttemptState copy = new AttemptState();
+                copy.mComplete = attempt.mComplete;
+                copy.mFailure = attempt.mFailure;
+                copy.mElapsedTime = attempt.mElapsedTime;
+                copy.mExpectedTestCount = attempt.mExpectedTestCount;
+                mAttempts.add(copy);
+            }
+            mCurrentAttempt = other.mCurrentAttempt;
+        }
+
+        RunCounts copy() {
+            return new RunCounts(this);
+        }
+
+        void startAttempt(int attemptNumber, int numTests) {
+            // Tests that never ended keep their status for the next attempts
+            for (TestDescription test : new ArrayList<>(mRunningTests.keySet())) {
+                endTest(test);
+            }
+            // Missing attempts are recorded as failed placeholders, like in CollectingTestListener
+            while (mAttempts.size() < attemptNumber) {
+                AttemptState placeholder = new AttemptState();
+                placeholder.mExpectedTestCount = numTests;
+                placeholder.mFailure = true;
+                placeholder.mComplete = true;
+                mAttempts.add(placeholder);
+            }
+            if (attemptNumber == mAttempts.size()) {
+                mAttempts.add(new AttemptState());
+            }
+            mCurrentAttempt = attemptNumber;
+            AttemptState attempt = currentAttempt();
+            // Every start of an attempt adds its tests to the expected count, so a run restarted
+            // with the same attempt number expects the tests of both starts.
+            attempt.mExpectedTestCount += numTests;
+            attempt.mComplete = false;
+        }
+
+        AttemptState currentAttempt() {
+            return mAttempts.get(mCurrentAttempt);
+        }
+
+        void endAttempt(long elapsedTime) {
+            AttemptState attempt = currentAttempt();
+            attempt.mElapsedTime += elapsedTime;
+            attempt.mComplete = true;
+        }
+
+        /** Returns the status of the test in the current attempt, or null if it is not running. */
+        TestStatus getRunningStatus(TestDescription test) {
+            return mRunningTests.get(test);
+        }
+
+        /** Returns the merged status of the test, or null if it is not tracked. */
+        TestStatus getStatus(TestDescription test) {
+            TestStatus previous =
+                    mNotPassedTests.isEmpty() ? null : mNotPassedTests.get(test.toString());
+            return mergeStatus(previous, mRunningTests.get(test));
+        }
+
+        /** Sets the status of the test in the current attempt and returns its merged status. */
+        TestStatus setRunningStatus(TestDescription test, TestStatus status) {
+            TestStatus old = getStatus(test);
+            if (old != null) {
+                mCounts[old.ordinal()]--;
+            }
+            mRunningTests.put(test, status);
+            TestStatus merged = getStatus(test);
+            mCounts[merged.ordinal()]++;
+            return merged;
+        }
+
+        /**
+         * Stops tracking the test in the current attempt. Only the id and merged status of a test
+         * that did not pass are kept.
+         */
+        void endTest(TestDescription test) {
+            TestStatus merged = getStatus(test);
+            mRunningTests.remove(test);
+            if (merged == null || TestStatus.PASSED.equals(merged)) {
+                mNotPassedTests.remove(test.toString());
+            } else {
+                mNotPassedTests.put(test.toString(), merged);
+            }
+        }
+
+        /** Returns the name of the test run. */
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns the number of tests reported in the run. */
+        public int getNumTests() {
+            int total = 0;
+            for (int count : mCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /** Returns the number of tests in the given state. */
+        public int getNumTestsInState(TestStatus status) {
+            return mCounts[status.ordinal()];
+        }
+
+        /** Returns the number of complete tests, ie with status != incomplete. */
+        public int getNumCompleteTests() {
+            return getNumTests() - getNumTestsInState(TestStatus.INCOMPLETE);
+        }
+
+        /** Returns the number of failed tests, assumption failures do not count toward it. */
+        public int getNumAllFailedTests() {
+            return getNumTestsInState(TestStatus.FAILURE);
+        }
+
+        /** Returns the maximum expected test count of all the attempts. */
+        public int getExpectedTestCount() {
+            int expected = 0;
+            for (AttemptState attempt : mAttempts) {
+                expected = Math.max(expected, attempt.mExpectedTestCount);
+            }
+            return expected;
+        }
+
+        /** Returns true if all the attempts of the run completed. */
+        public boolean isRunComplete() {
+            for (AttemptState attempt : mAttempts) {
+                if (!attempt.mComplete) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns true if at least one attempt of the run failed. */
+        public boolean isRunFailure() {
+            for (AttemptState attempt : mAttempts) {
+                if (attempt.mFailure) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns the elapsed time summed over all the attempts. */
+        public long getElapsedTime() {
+            long elapsed = 0L;
+            for (AttemptState attempt : mAttempts) {
+                elapsed += attempt.mElapsedTime;
+            }
+            return elapsed;
+        }
+    }
+}
@@ -40,6 +40,8 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A {@link ITargetPreparer} that configures a device for testing based on provided {@link Option}s.
@@ -370,6 +372,15 @@ public class DeviceSetup extends BaseTargetPreparer {
             description = "Run an adb shell command. Option may be repeated")
     protected List<String> mRunCommandAfterSettings = new ArrayList<>();
 
+    @Option(
+            name = "batch-device-setup",
+            description =
+                    "Read the current properties and settings in one command, skip the ones "
+                            + "already set and apply the others, as well as the run commands, in "
+                            + "batched shell commands. Avoids the reboot when the properties of "
+                            + "/data/local.prop are already set.")
+    protected boolean mBatchSetup = false;
+
     @Option(name = "disconnect-wifi-after-test",
             description = "Disconnect from wifi network after test completes.")
     private boolean mDisconnectWifiAfterTest = true;
@@ -419,6 +430,14 @@ public class DeviceSetup extends BaseTargetPreparer {
 
     private static final String PERSIST_PREFIX = "persist.";
 
+    private static final String[] SETTINGS_NAMESPACES = {"system", "secure", "global"};
+    /** Separates the sections of the snapshots read from the device. */
+    private static final String SNAPSHOT_SEPARATOR = "--- TF_DEVICE_SETUP ---";
+    /** Maximum length of a batched shell command. */
+    private static final int MAX_BATCH_LENGTH = 4000;
+    /** Matches a line of 'getprop' output: [key]: [value] */
+    private static final Pattern GETPROP_LINE = Pattern.compile("^\\[(.+?)\\]: \\[(.*)\\]$");
+
     public ITestDevice getDevice(TestInformation testInfo) {
         return testInfo.getDevice();
     }
@@ -440,24 +459,44 @@ public class DeviceSetup extends BaseTargetPreparer {
         // Convert options into settings and run commands
         processOptions(device);
 
+        Map<String, Long> phaseTimes = new LinkedHashMap<>();
+        long start = System.currentTimeMillis();
         // Change system props (will reboot device)
         changeSystemProps(device);
+        start = recordPhase(phaseTimes, "system_props", start);
         // Handle screen always on setting
         handleScreenAlwaysOnSetting(device);
         // Run commands designated to be run before changing settings
         runCommands(device, mRunCommandBeforeSettings);
+        start = recordPhase(phaseTimes, "commands_before_settings", start);
         // Change settings
         changeSettings(device);
+        start = recordPhase(phaseTimes, "settings", start);
         // Connect wifi after settings since this may take a while
         connectWifi(device);
+        start = recordPhase(phaseTimes, "wifi", start);
         // Sync data after settings since this may take a while
         syncTestData(device);
+        start = recordPhase(phaseTimes, "sync_data", start);
         // Run commands designated to be run after changing settings
         runCommands(device, mRunCommandAfterSettings);
+        start = recordPhase(phaseTimes, "commands_after_settings", start);
         // Throw an error if there is not enough storage space
         checkExternalStoreSpace(device);
 
         device.clearErrorDialogs();
+        CLog.d("Device setup of %s took (ms): %s", device.getSerialNumber(), phaseTimes);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.DEVICE_SETUP_PROPS_TIME, phaseTimes.get("system_props"));
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.DEVICE_SETUP_SETTINGS_TIME, phaseTimes.get("settings"));
+    }
+
+    /** Records the time of a setup phase, and returns the start time of the next one. */
+    private static long recordPhase(Map<String, Long> phaseTimes, String phase, long start) {
+        long end = System.currentTimeMillis();
+        phaseTimes.put(phase, end - start);
+        return end;
     }
 
     /** {@inheritDoc} */
@@ -719,6 +758,11 @@ public class DeviceSetup extends BaseTargetPreparer {
                     device.getDeviceDescriptor());
         }
 
+        if (mBatchSetup) {
+            changeSystemPropsBatched(device);
+            return;
+        }
+
         StringBuilder sb = new StringBuilder();
         for (Map.Entry<String, String> prop : mSetProps.entrySet()) {
             if (prop.getKey().startsWith(PERSIST_PREFIX)) {
@@ -748,6 +792,73 @@ public class DeviceSetup extends BaseTargetPreparer {
         device.reboot();
     }
 
+    /**
+     * Change the system properties on the device, skipping the ones already set. The device is
+     * only rebooted if a property of /data/local.prop does not have the requested value.
+     */
+    private void changeSystemPropsBatched(ITestDevice device)
+            throws DeviceNotAvailableException, TargetSetupError {
+        if (mSetProps.isEmpty()) {
+            return;
+        }
+        List<String> snapshot = readSnapshot(device, "getprop", "cat /data/local.prop 2>/dev/null");
+        Map<String, String> currentProps = new HashMap<>();
+        for (String line : snapshot.get(0).split("\\n")) {
+            Matcher m = GETPROP_LINE.matcher(line.trim());
+            if (m.matches()) {
+                currentProps.put(m.group(1), m.group(2));
+            }
+        }
+        String currentLocalProp = snapshot.size() > 1 ? snapshot.get(1) : "";
+
+        List<String> commands = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean needsReboot = false;
+        int skipped = 0;
+        for (Map.Entry<String, String> prop : mSetProps.entrySet()) {
+            boolean isSet = prop.getValue().equals(currentProps.get(prop.getKey()));
+            if (prop.getKey().startsWith(PERSIST_PREFIX)) {
+                if (isSet) {
+                    skipped++;
+                } else {
+                    commands.add(String.format("setprop %s '%s'", prop.getKey(), prop.getValue()));
+                }
+            } else {
+                sb.append(String.format("%s=%s\n", prop.getKey(), prop.getValue()));
+                needsReboot |= !isSet;
+            }
+        }
+        runBatched(device, commands);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.DEVICE_SETUP_SKIPPED_CHANGES, skipped);
+
+        if (sb.length() == 0) {
+            return;
+        }
+        if (mRestoreProperties) {
+            mPreviousProperties = device.pullFile("/data/local.prop");
+        }
+        if (!sb.toString().trim().equals(currentLocalProp.trim())) {
+            CLog.d("Pushing the following properties to /data/local.prop:\n%s", sb.toString());
+            boolean result = device.pushString(sb.toString(), "/data/local.prop");
+            if (!result) {
+                throw new TargetSetupError(
+                        String.format(
+                                "Failed to push /data/local.prop to %s", device.getSerialNumber()),
+                        device.getDeviceDescriptor());
+            }
+            // Set reasonable permissions for /data/local.prop
+            device.executeShellCommand("chmod 644 /data/local.prop");
+        }
+        if (!needsReboot) {
+            CLog.d("Properties of /data/local.prop are already set on %s, skipping reboot",
+                    device.getSerialNumber());
+            return;
+        }
+        CLog.i("Rebooting %s due to system property change", device.getSerialNumber());
+        device.reboot();
+    }
+
     /**
      * Handles screen always on settings.
      * <p>
@@ -805,6 +916,11 @@ public class DeviceSetup extends BaseTargetPreparer {
                     "must be API 22+", device.getSerialNumber()), device.getDeviceDescriptor());
         }
 
+        if (mBatchSetup) {
+            changeSettingsBatched(device);
+            return;
+        }
+
         // Special case airplane mode since it needs to be set before other connectivity settings
         // For example, it is possible to enable airplane mode and then turn wifi on
         String command = "am broadcast -a android.intent.action.AIRPLANE_MODE --ez state %s";
@@ -861,6 +977,134 @@ public class DeviceSetup extends BaseTargetPreparer {
         }
     }
 
+    /**
+     * Change the settings on the device, skipping the ones already set. Settings given several
+     * values, which may not override each other, are always set.
+     */
+    private void changeSettingsBatched(ITestDevice device) throws DeviceNotAvailableException {
+        String[] listCommands = new String[SETTINGS_NAMESPACES.length];
+        for (int i = 0; i < SETTINGS_NAMESPACES.length; i++) {
+            listCommands[i] = String.format("settings list %s", SETTINGS_NAMESPACES[i]);
+        }
+        List<String> snapshot = readSnapshot(device, listCommands);
+        Map<String, Map<String, String>> current = new HashMap<>();
+        for (int i = 0; i < SETTINGS_NAMESPACES.length; i++) {
+            Map<String, String> values = new HashMap<>();
+            if (i < snapshot.size()) {
+                for (String line : snapshot.get(i).split("\\n")) {
+                    // Setting's value could be empty
+                    int separator = line.indexOf('=');
+                    if (separator > 0) {
+                        values.putIfAbsent(
+                                line.substring(0, separator).trim(),
+                                line.substring(separator + 1).trim());
+                    }
+                }
+            }
+            current.put(SETTINGS_NAMESPACES[i], values);
+        }
+
+        List<String> commands = new ArrayList<>();
+        int skipped = 0;
+        // Airplane mode goes first since it needs to be set before other connectivity settings
+        if (!BinaryState.IGNORE.equals(mAirplaneMode)) {
+            boolean on = BinaryState.ON.equals(mAirplaneMode);
+            if ((on ? "1" : "0").equals(current.get("global").get("airplane_mode_on"))) {
+                skipped++;
+            } else {
+                commands.add(
+                        String.format("settings put global airplane_mode_on %s", on ? "1" : "0"));
+                if (!mForceSkipRunCommands) {
+                    commands.add(
+                            String.format(
+                                    "am broadcast -a android.intent.action.AIRPLANE_MODE "
+                                            + "--ez state %s",
+                                    on));
+                }
+            }
+        }
+        skipped += addSettingCommands("system", mSystemSettings, current, commands,
+                mPreviousSystemSettings);
+        skipped += addSettingCommands("secure", mSecureSettings, current, commands,
+                mPreviousSecureSettings);
+        skipped += addSettingCommands("global", mGlobalSettings, current, commands,
+                mPreviousGlobalSettings);
+        CLog.d("Changing %d settings on %s, %d already set",
+                commands.size(), device.getSerialNumber(), skipped);
+        runBatched(device, commands);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.DEVICE_SETUP_SKIPPED_CHANGES, skipped);
+    }
+
+    /**
+     * Adds the commands to change the settings of a namespace that are not already set.
+     *
+     * @return the number of settings skipped.
+     */
+    private int addSettingCommands(
+            String namespace,
+            MultiMap<String, String> settings,
+            Map<String, Map<String, String>> current,
+            List<String> commands,
+            Map<String, String> previousSettings) {
+        int skipped = 0;
+        for (String key : settings.keySet()) {
+            String currentValue = current.get(namespace).get(key.trim());
+            if (mRestoreSettings) {
+                previousSettings.put(key, currentValue);
+            }
+            List<String> values = settings.get(key);
+            if (values.size() == 1 && values.get(0).trim().equals(currentValue)) {
+                skipped++;
+                continue;
+            }
+            for (String value : values) {
+                commands.add(
+                        String.format(
+                                "settings put %s %s %s", namespace, key.trim(), value.trim()));
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads the output of several commands in a single shell command.
+     *
+     * @return the output of each command.
+     */
+    private List<String> readSnapshot(ITestDevice device, String... commands)
+            throws DeviceNotAvailableException {
+        String separator = String.format("; echo '%s'; ", SNAPSHOT_SEPARATOR);
+        String output = device.executeShellCommand(String.join(separator, commands));
+        List<String> sections = new ArrayList<>();
+        if (output == null) {
+            return sections;
+        }
+        for (String section : output.split(Pattern.quote(SNAPSHOT_SEPARATOR) + "\\r?\\n?")) {
+            sections.add(section);
+        }
+        return sections;
+    }
+
+    /** Runs the commands on the device in as few shell commands as possible, in order. */
+    private void runBatched(ITestDevice device, List<String> commands)
+            throws DeviceNotAvailableException {
+        StringBuilder batch = new StringBuilder();
+        for (String command : commands) {
+            if (batch.length() > 0 && batch.length() + command.length() >= MAX_BATCH_LENGTH) {
+                device.executeShellCommand(batch.toString());
+                batch.setLength(0);
+            }
+            if (batch.length() > 0) {
+                batch.append('\n');
+            }
+            batch.append(command);
+        }
+        if (batch.length() > 0) {
+            device.executeShellCommand(batch.toString());
+        }
+    }
+
     /**
      * Execute additional commands on the device.
      *
@@ -876,6 +1120,10 @@ public class DeviceSetup extends BaseTargetPreparer {
             return;
         }
 
+        if (mBatchSetup) {
+            runBatched(device, commands);
+            return;
+        }
         for (String command : commands) {
             device.executeShellCommand(command);
         }
@@ -22,6 +22,8 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IManagedTestDevice;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.DeviceErrorIdentifier;
 import com.android.tradefed.util.CommandResult;
@@ -38,8 +40,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -55,6 +63,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     private static final String SLOT_PROP = "ro.boot.slot_suffix";
     private static final String SLOT_VAR = "current-slot";
     private static final String SKIP_REBOOT_PARAM = "--skip-reboot";
+    private static final String USERDATA_IMAGE_NAME = "userdata.img";
 
     private long mWipeTimeout = 4 * 60 * 1000;
 
@@ -76,6 +85,12 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
 
     private boolean mShouldFlashRamdisk = false;
 
+    /** Extracts the images to flash in the background, in the order they are flashed. */
+    private ExecutorService mImagePreparer = null;
+
+    /** The images being extracted from the device image zip, by name in the zip. */
+    private Map<String, Future<File>> mPreparedImages = new HashMap<>();
+
     /**
      * {@inheritDoc}
      */
@@ -149,21 +164,134 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
         String systemBuildId = device.getBuildId();
         String systemBuildFlavor = device.getBuildFlavor();
 
-        device.rebootIntoBootloader();
+        // Extract the images while the device reboots and the previous partitions are flashed.
+        startImagePreparation(deviceBuild);
+        try {
+            long startTime = System.currentTimeMillis();
+            device.rebootIntoBootloader();
+            reportStepTime("reboot_bootloader", startTime);
+
+            startTime = System.currentTimeMillis();
+            downloadFlashingResources(device, deviceBuild);
+            reportStepTime("download_resources", startTime);
+            preFlashSetup(device, deviceBuild);
+            if (device instanceof IManagedTestDevice) {
+                String fastbootVersion = ((IManagedTestDevice) device).getFastbootVersion();
+                if (fastbootVersion != null) {
+                    deviceBuild.addBuildAttribute(FASTBOOT_VERSION, fastbootVersion);
+                }
+            }
+            handleUserDataFlashing(device, deviceBuild);
+            checkAndFlashBootloader(device, deviceBuild);
+            checkAndFlashBaseband(device, deviceBuild);
+            flashExtraImages(device, deviceBuild);
+            checkAndFlashSystem(device, systemBuildId, systemBuildFlavor, deviceBuild);
+        } finally {
+            stopImagePreparation();
+        }
+    }
 
-        downloadFlashingResources(device, deviceBuild);
-        preFlashSetup(device, deviceBuild);
-        if (device instanceof IManagedTestDevice) {
-            String fastbootVersion = ((IManagedTestDevice) device).getFastbootVersion();
-            if (fastbootVersion != null) {
-                deviceBuild.addBuildAttribute(FASTBOOT_VERSION, fastbootVersion);
+    /**
+     * Returns the names of the images to extract from the device image zip before flashing them.
+     * They are extracted in the background in the returned order, which should be the order they
+     * are flashed in. Subclasses flashing more images from the zip can add them.
+     *
+     * @param deviceBuild the {@link IDeviceBuildInfo} to flash
+     */
+    protected List<String> getImagesToPrepare(IDeviceBuildInfo deviceBuild) {
+        List<String> images = new ArrayList<>();
+        if (UserDataFlashOption.FLASH_IMG_ZIP.equals(mUserDataFlashOption)) {
+            images.add(USERDATA_IMAGE_NAME);
+        }
+        return images;
+    }
+
+    /** Start extracting the images returned by {@link #getImagesToPrepare(IDeviceBuildInfo)}. */
+    private synchronized void startImagePreparation(IDeviceBuildInfo deviceBuild) {
+        List<String> images = getImagesToPrepare(deviceBuild);
+        if (images.isEmpty()) {
+            return;
+        }
+        mImagePreparer =
+                Executors.newSingleThreadExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "FastbootDeviceFlasher-prepare");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        File imageZip = deviceBuild.getDeviceImageFile();
+        for (String imageName : images) {
+            mPreparedImages.put(
+                    imageName, mImagePreparer.submit(() -> extractImage(imageZip, imageName)));
+        }
+    }
+
+    /** Stop the image extraction and delete the images that were not flashed. */
+    private synchronized void stopImagePreparation() {
+        if (mImagePreparer == null) {
+            return;
+        }
+        List<Runnable> notStarted = mImagePreparer.shutdownNow();
+        for (Future<File> image : mPreparedImages.values()) {
+            if (notStarted.contains(image)) {
+                continue;
+            }
+            try {
+                FileUtil.deleteFile(image.get());
+            } catch (ExecutionException | InterruptedException e) {
+                CLog.d("Image extraction failed: %s", e);
+            }
+        }
+        mPreparedImages.clear();
+        mImagePreparer = null;
+    }
+
+    /**
+     * Get an image extracted from the device image zip, waiting for the extraction if it was
+     * started in the background.
+     *
+     * @param device the {@link ITestDevice} to flash
+     * @param deviceBuild the {@link IDeviceBuildInfo} that contains the device image zip
+     * @param imageName the name of the image in the zip
+     * @return the extracted image, which the caller must delete
+     * @throws TargetSetupError if the image cannot be extracted
+     */
+    protected File getPreparedImage(
+            ITestDevice device, IDeviceBuildInfo deviceBuild, String imageName)
+            throws TargetSetupError {
+        Future<File> image;
+        synchronized (this) {
+            image = mPreparedImages.remove(imageName);
+        }
+        try {
+            if (image == null) {
+                return extractImage(deviceBuild.getDeviceImageFile(), imageName);
             }
+            return image.get();
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new TargetSetupError(
+                    String.format("failed to extract %s from image file", imageName),
+                    cause,
+                    device.getDeviceDescriptor());
+        }
+    }
+
+    private static File extractImage(File imageZip, String imageName) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (ZipFile zip = new ZipFile(imageZip)) {
+            File image = ZipUtil2.extractFileFromZip(zip, imageName);
+            reportStepTime("extract_" + imageName, startTime);
+            return image;
         }
-        handleUserDataFlashing(device, deviceBuild);
-        checkAndFlashBootloader(device, deviceBuild);
-        checkAndFlashBaseband(device, deviceBuild);
-        flashExtraImages(device, deviceBuild);
-        checkAndFlashSystem(device, systemBuildId, systemBuildFlavor, deviceBuild);
+    }
+
+    /** Log how long a flashing step took, and add it to the invocation metrics. */
+    private static void reportStepTime(String step, long startTime) {
+        long elapsed = System.currentTimeMillis() - startTime;
+        CLog.i("Flashing step %s took %d ms", step, elapsed);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.FLASHING_STEP_TIMES, String.format("%s:%d", step, elapsed));
     }
 
     private String[] buildFastbootCommand(String action, boolean skipReboot, String... args) {
@@ -204,8 +332,10 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
             throws DeviceNotAvailableException, TargetSetupError {
         if (UserDataFlashOption.FORCE_WIPE.equals(mUserDataFlashOption) ||
                 UserDataFlashOption.WIPE.equals(mUserDataFlashOption)) {
+            long startTime = System.currentTimeMillis();
             CommandResult result = device.executeFastbootCommand(mWipeTimeout, "-w");
             handleFastbootResult(device, result, "-w");
+            reportStepTime("wipe", startTime);
         } else {
             flashUserData(device, deviceBuild);
             wipeCache(device);
@@ -222,10 +352,12 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     protected void flashPartition(ITestDevice device, File imgFile, String partition)
             throws DeviceNotAvailableException, TargetSetupError {
         CLog.d("fastboot flash %s %s", partition, imgFile.getAbsolutePath());
+        long startTime = System.currentTimeMillis();
         executeLongFastbootCmd(
                 device,
                 buildFastbootCommand(
                         "flash", mShouldFlashRamdisk, partition, imgFile.getAbsolutePath()));
+        reportStepTime("flash_" + partition, startTime);
     }
 
     /**
@@ -238,8 +370,10 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
             throws DeviceNotAvailableException, TargetSetupError {
         String wipeMethod = device.getUseFastbootErase() ? "erase" : "format";
         CLog.d("fastboot %s %s", wipeMethod, partition);
+        long startTime = System.currentTimeMillis();
         CommandResult result = device.fastbootWipePartition(partition);
         handleFastbootResult(device, result, wipeMethod, partition);
+        reportStepTime(wipeMethod + "_" + partition, startTime);
     }
 
     /**
@@ -408,6 +542,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     protected void flashBootloader(ITestDevice device, File bootloaderImageFile)
             throws DeviceNotAvailableException, TargetSetupError {
         // bootloader images are small, and flash quickly. so use the 'normal' timeout
+        long startTime = System.currentTimeMillis();
         executeFastbootCmd(
                 device,
                 buildFastbootCommand(
@@ -416,6 +551,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
                         getBootPartitionName(),
                         bootloaderImageFile.getAbsolutePath()));
         device.rebootIntoBootloader();
+        reportStepTime("flash_" + getBootPartitionName(), startTime);
     }
 
     /**
@@ -571,12 +707,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
             throws DeviceNotAvailableException, TargetSetupError {
         File userdataImg = null;
         try {
-            try (ZipFile zip = new ZipFile(deviceBuild.getDeviceImageFile())) {
-                userdataImg = ZipUtil2.extractFileFromZip(zip, "userdata.img");
-            } catch (IOException ioe) {
-                throw new TargetSetupError("failed to extract userdata.img from image file", ioe,
-                        device.getDeviceDescriptor());
-            }
+            userdataImg = getPreparedImage(device, deviceBuild, USERDATA_IMAGE_NAME);
             CLog.i("Flashing %s with userdata %s", device.getSerialNumber(), userdataImg);
             flashPartition(device, userdataImg, "userdata");
         } finally {
@@ -677,12 +808,14 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
                 deviceBuild.getDeviceImageFile().getAbsolutePath());
         // give extra time to the update cmd
         try {
+            long startTime = System.currentTimeMillis();
             executeLongFastbootCmd(
                     device,
                     buildFastbootCommand(
                             "update",
                             mShouldFlashRamdisk,
                             deviceBuild.getDeviceImageFile().getAbsolutePath()));
+            reportStepTime("update", startTime);
             flashRamdiskIfNeeded(device, deviceBuild);
             // only transfer last fastboot command status over to system flash status after having
             // flashing the system partitions
@@ -27,6 +27,8 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.DeviceErrorIdentifier;
 import com.android.tradefed.result.error.InfraErrorIdentifier;
@@ -35,6 +37,7 @@ import com.android.tradefed.testtype.IAbiReceiver;
 import com.android.tradefed.util.AaptParser;
 import com.android.tradefed.util.AbiFormatter;
 import com.android.tradefed.util.BuildTestsZipUtils;
+import com.android.tradefed.util.FileUtil;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
@@ -47,11 +50,14 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -78,6 +84,11 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
     private static final String INSTALL_FAILED_UPDATE_INCOMPATIBLE =
             "INSTALL_FAILED_UPDATE_INCOMPATIBLE";
 
+    /** Minimum api level supporting 'adb install-multi-package' for apks. */
+    private static final int MULTI_PACKAGE_MIN_API_LEVEL = 29;
+    /** Time to wait for a multi-package installation. */
+    private static final long MULTI_PACKAGE_TIMEOUT_MS = 10 * 60 * 1000L;
+
     @VisibleForTesting static final String TEST_FILE_NAME_OPTION = "test-file-name";
 
     @Option(
@@ -159,6 +170,15 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
     )
     private InstallMode mInstallationMode = null;
 
+    @Option(
+            name = "batch-install",
+            description =
+                    "Skip the packages whose apks are already installed with the same content and "
+                            + "install args, granting their runtime permissions again, and install "
+                            + "the single apk packages together in one multi-package session. Not "
+                            + "used when installing for a specific user or in instant mode.")
+    private boolean mBatchInstall = false;
+
     private IAbi mAbi = null;
     private Integer mUserId = null;
     private Boolean mGrantPermission = null;
@@ -313,23 +333,49 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
             mInstallArgs.add("--force-queryable");
         }
 
+        List<Map<File, String>> installs = new ArrayList<>();
         for (File testAppName : mTestFiles) {
-            Map<File, String> appFilesAndPackages =
+            installs.add(
                     resolveApkFiles(
                             testInfo,
-                            findApkFiles(testAppName, testInfo.getDevice().getDeviceDescriptor()));
-            installer(testInfo, appFilesAndPackages);
+                            findApkFiles(
+                                    testAppName, testInfo.getDevice().getDeviceDescriptor())));
         }
 
         for (String testAppNames : mSplitApkFileNames) {
             List<String> apkNames = Arrays.asList(testAppNames.split(","));
             List<File> apkFileNames =
                     apkNames.stream().map(a -> new File(a)).collect(Collectors.toList());
-            Map<File, String> appFilesAndPackages = resolveApkFiles(testInfo, apkFileNames);
+            installs.add(resolveApkFiles(testInfo, apkFileNames));
+        }
+
+        if (useBatchInstall()) {
+            // Install everything at once, unless a package is installed several times, in which
+            // case the installations have to happen in order.
+            Map<File, String> allAppFilesAndPackages = new LinkedHashMap<>();
+            Set<String> packages = new HashSet<>();
+            boolean reinstalled = false;
+            for (Map<File, String> appFilesAndPackages : installs) {
+                for (String packageName : new HashSet<>(appFilesAndPackages.values())) {
+                    reinstalled |= !packages.add(packageName);
+                }
+                allAppFilesAndPackages.putAll(appFilesAndPackages);
+            }
+            if (!reinstalled) {
+                installer(testInfo, allAppFilesAndPackages);
+                return;
+            }
+        }
+        for (Map<File, String> appFilesAndPackages : installs) {
             installer(testInfo, appFilesAndPackages);
         }
     }
 
+    /** Returns whether the packages can be checked and installed in batch. */
+    private boolean useBatchInstall() {
+        return mBatchInstall && mUserId == null && !mInstallArgs.contains("--instant");
+    }
+
     /**
      * Returns the device that the preparer should apply to.
      *
@@ -414,10 +460,223 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
         // it here.
         ImmutableListMultimap<String, File> packageToFiles =
                 ImmutableListMultimap.copyOf(appFilesAndPackages.entrySet()).inverse();
+        Map<String, List<File>> packages = new LinkedHashMap<>(Multimaps.asMap(packageToFiles));
 
-        for (Map.Entry<String, List<File>> e : Multimaps.asMap(packageToFiles).entrySet()) {
+        long start = System.currentTimeMillis();
+        long bytes = 0L;
+        for (List<File> apkFiles : packages.values()) {
+            bytes += apkFiles.stream().mapToLong(File::length).sum();
+        }
+        if (useBatchInstall()) {
+            bytes -= skipInstalledPackages(device, packages);
+            installMultiPackage(device, packages);
+        }
+        for (Map.Entry<String, List<File>> e : packages.entrySet()) {
             installSinglePackage(device, e.getKey(), e.getValue());
         }
+        long elapsed = System.currentTimeMillis() - start;
+        CLog.d(
+                "Installed %d bytes of apks on %s in %d ms",
+                bytes, device.getSerialNumber(), elapsed);
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.APK_INSTALL_BYTES, bytes);
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.APK_INSTALL_TIME, elapsed);
+    }
+
+    /**
+     * Removes the packages whose apks are already installed on the device with the same content.
+     *
+     * @param device the {@link ITestDevice} to check.
+     * @param packages the apks to install by package, modified in place.
+     * @return the size of the apks skipped, in bytes.
+     */
+    private long skipInstalledPackages(ITestDevice device, Map<String, List<File>> packages)
+            throws DeviceNotAvailableException {
+        // Find the directory of the packages already installed, their apks are all in it.
+        Map<String, String> installedDirs = new HashMap<>();
+        String output = device.executeShellCommand("pm list packages -f");
+        for (String line : output.split("\n")) {
+            // package:<path of base apk>=<package name>
+            line = line.trim();
+            int separator = line.lastIndexOf('=');
+            if (!line.startsWith("package:") || separator < 0) {
+                continue;
+            }
+            String packageName = line.substring(separator + 1);
+            String path = line.substring("package:".length(), separator);
+            if (packages.containsKey(packageName) && path.lastIndexOf('/') > 0) {
+                installedDirs.put(packageName, path.substring(0, path.lastIndexOf('/')));
+            }
+        }
+        if (installedDirs.isEmpty()) {
+            return 0L;
+        }
+
+        StringBuilder md5Command = new StringBuilder("md5sum");
+        for (String dir : installedDirs.values()) {
+            md5Command.append(String.format(" %s/*.apk", dir));
+        }
+        Map<String, Set<String>> installedDigests = new HashMap<>();
+        output = device.executeShellCommand(md5Command.toString() + " 2>/dev/null");
+        for (String line : output.split("\n")) {
+            // <md5>  <path of apk>
+            String[] parts = line.trim().split("\\s+", 2);
+            if (parts.length < 2 || parts[1].lastIndexOf('/') < 0) {
+                continue;
+            }
+            String dir = parts[1].substring(0, parts[1].lastIndexOf('/'));
+            installedDigests.computeIfAbsent(dir, k -> new HashSet<>()).add(parts[0]);
+        }
+
+        long skippedBytes = 0L;
+        int skipped = 0;
+        for (Map.Entry<String, String> installed : installedDirs.entrySet()) {
+            List<File> apkFiles = packages.get(installed.getKey());
+            // Apks can be large, compute their digest in parallel.
+            Set<String> digests =
+                    apkFiles.parallelStream()
+                            .map(TestAppInstallSetup::calculateMd5)
+                            .collect(Collectors.toSet());
+            if (digests.contains(null)
+                    || !digests.equals(installedDigests.get(installed.getValue()))
+                    || !reapplyInstallState(device, installed.getKey())) {
+                continue;
+            }
+            CLog.d("%s is already installed with the same apks, skipping", installed.getKey());
+            packages.remove(installed.getKey());
+            skippedBytes += apkFiles.stream().mapToLong(File::length).sum();
+            skipped++;
+        }
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.APK_INSTALL_SKIPPED_COUNT, skipped);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.APK_INSTALL_SKIPPED_BYTES, skippedBytes);
+        return skippedBytes;
+    }
+
+    /**
+     * Checks that an installed package is in the state the install would put it in. The install
+     * args must already apply to it, and its denied runtime permissions are granted if the install
+     * would grant them.
+     *
+     * @param device the {@link ITestDevice} the package is installed on.
+     * @param packageName the package to check.
+     * @return true if the package does not need to be installed again.
+     */
+    private boolean reapplyInstallState(ITestDevice device, String packageName)
+            throws DeviceNotAvailableException {
+        String dump = device.executeShellCommand("dumpsys package " + packageName);
+        if (dump == null) {
+            return false;
+        }
+        for (String arg : mInstallArgs) {
+            String[] parts = arg.trim().split("\\s+");
+            boolean applied;
+            if (parts.length == 2 && "--abi".equals(parts[0])) {
+                applied =
+                        parts[1].equals(getDumpValue(dump, "primaryCpuAbi"))
+                                || parts[1].equals(getDumpValue(dump, "cpuAbiOverride"));
+            } else if (parts.length == 1 && "--force-queryable".equals(parts[0])) {
+                applied = "true".equals(getDumpValue(dump, "forceQueryable"));
+            } else {
+                applied = false;
+            }
+            if (!applied) {
+                CLog.d("%s is not applied to the installed %s, reinstalling", arg, packageName);
+                return false;
+            }
+        }
+        if (!device.isRuntimePermissionSupported()) {
+            return true;
+        }
+        List<String> grants = new ArrayList<>();
+        boolean runtimePermissions = false;
+        for (String line : dump.split("\n")) {
+            line = line.trim();
+            if (line.equals("runtime permissions:")) {
+                runtimePermissions = true;
+                continue;
+            }
+            // <permission>: granted=<true|false>, flags=[...]
+            int separator = line.indexOf(": granted=");
+            if (!runtimePermissions || separator < 0) {
+                runtimePermissions = false;
+                continue;
+            }
+            if (line.startsWith("false", separator + ": granted=".length())) {
+                grants.add(
+                        String.format(
+                                "pm grant %s %s 2>/dev/null",
+                                packageName, line.substring(0, separator)));
+            }
+        }
+        if (!grants.isEmpty()) {
+            CLog.d("Granting %d runtime permissions to %s", grants.size(), packageName);
+            device.executeShellCommand(String.join("; ", grants));
+        }
+        return true;
+    }
+
+    /** Returns the value of a key=value field in a package dump, or null if not found. */
+    private static String getDumpValue(String dump, String key) {
+        Matcher matcher = Pattern.compile("\\b" + key + "=(\\S+)").matcher(dump);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String calculateMd5(File apkFile) {
+        try {
+            return FileUtil.calculateMd5(apkFile);
+        } catch (IOException e) {
+            CLog.w("Failed to compute the md5 of %s: %s", apkFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Installs the single apk packages together in one multi-package session. The packages
+     * installed are removed, the others are left to be installed one by one.
+     *
+     * @param device the {@link ITestDevice} to install the packages on.
+     * @param packages the apks to install by package, modified in place.
+     */
+    private void installMultiPackage(ITestDevice device, Map<String, List<File>> packages)
+            throws DeviceNotAvailableException {
+        Map<String, File> singleApks = new LinkedHashMap<>();
+        for (Map.Entry<String, List<File>> e : packages.entrySet()) {
+            if (e.getValue().size() == 1) {
+                singleApks.put(e.getKey(), e.getValue().get(0));
+            }
+        }
+        if (singleApks.size() < 2 || device.getApiLevel() < MULTI_PACKAGE_MIN_API_LEVEL) {
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        command.add("install-multi-package");
+        command.add("-r");
+        if (device.isRuntimePermissionSupported()) {
+            command.add("-g");
+        }
+        for (String arg : mInstallArgs) {
+            command.addAll(Arrays.asList(arg.trim().split("\\s+")));
+        }
+        for (File apkFile : singleApks.values()) {
+            command.add(apkFile.getAbsolutePath());
+        }
+        CLog.d("Installing %s in one session ...", singleApks.keySet());
+        String output =
+                device.executeAdbCommand(
+                        MULTI_PACKAGE_TIMEOUT_MS, command.toArray(new String[0]));
+        if (output == null || !output.contains("Success")) {
+            CLog.w(
+                    "Failed to install %s in one session, installing them one by one: %s",
+                    singleApks.keySet(), output);
+            return;
+        }
+        for (String packageName : singleApks.keySet()) {
+            packages.remove(packageName);
+            if (mCleanup) {
+                mPackagesInstalled.add(packageName);
+            }
+        }
     }
 
     private void installSinglePackage(
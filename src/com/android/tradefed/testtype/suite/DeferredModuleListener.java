@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import com.android.tradefed.invoker.ShardListener;
+import com.android.tradefed.result.ILogSaverListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.LogFile;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A {@link ShardListener} that holds the results of a module until {@link #replay()} is called, so
+ * that attempts running later on another device can be added to them before the module is
+ * reported. Each attempt is reported separately so they can be aggregated further down.
+ */
+public class DeferredModuleListener extends ShardListener {
+
+    private final ITestInvocationListener mMainListener;
+    private int mFirstAttempt = 0;
+    private boolean mForwardLogs = true;
+    private boolean mModuleEnded = false;
+
+    /**
+     * Create a {@link DeferredModuleListener}.
+     *
+     * @param main the {@link ITestInvocationListener} where the module is reported.
+     */
+    public DeferredModuleListener(ITestInvocationListener main) {
+        super(main);
+        mMainListener = main;
+        setSupportGranularResults(true);
+    }
+
+    /**
+     * Start receiving the next attempts of the module.
+     *
+     * @param firstAttempt the attempt number of the first run reported from now on.
+     * @param forwardLogs whether the logs can still be forwarded to the main listener as they are
+     *     received. When false, only the association of the saved logs is kept and reported with
+     *     the module, which allows the attempts to be reported from another thread.
+     */
+    public void startAttempts(int firstAttempt, boolean forwardLogs) {
+        mFirstAttempt = firstAttempt;
+        mForwardLogs = forwardLogs;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(String name, int numTests, int attemptNumber, long startTime) {
+        super.testRunStarted(name, numTests, mFirstAttempt + attemptNumber, startTime);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        if (mForwardLogs) {
+            super.testLog(dataName, dataType, dataStream);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testLogSaved(
+            String dataName, LogDataType dataType, InputStreamSource dataStream, LogFile logFile) {
+        if (mForwardLogs) {
+            super.testLogSaved(dataName, dataType, dataStream, logFile);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testModuleEnded() {
+        // Held until replay
+        mModuleEnded = true;
+    }
+
+    /** Report the module and all the attempts received to the main listener. */
+    public void replay() {
+        if (!mModuleEnded) {
+            return;
+        }
+        mModuleEnded = false;
+        Map<String, LogFile> moduleLogs = getNonAssociatedLogFiles();
+        super.testModuleEnded();
+        synchronized (mMainListener) {
+            if (mMainListener instanceof ILogSaverListener) {
+                for (Entry<String, LogFile> logFile : moduleLogs.entrySet()) {
+                    ((ILogSaverListener) mMainListener)
+                            .logAssociation(logFile.getKey(), logFile.getValue());
+                }
+            }
+        }
+    }
+}
@@ -320,6 +320,38 @@ public abstract class ITestSuite
         description = "Whether or not to use the merge the results of the different attempts."
     )
     private boolean mMergeAttempts = true;
+
+    @Option(
+        name = "parallel-auto-retry",
+        description =
+                "Whether or not to run the auto-retry of a module on an idle device of the host "
+                        + "running the same build, while the next modules run. Idle devices only "
+                        + "get the setup of the module itself."
+    )
+    private boolean mParallelAutoRetry = false;
+
+    @Option(
+        name = "max-parallel-retry-devices",
+        description = "The maximum number of idle devices running module retries at once."
+    )
+    private int mMaxParallelRetryDevices = 2;
+
+    @Option(
+        name = "lazy-artifact-staging",
+        description =
+                "Whether or not to stage the test artifacts of each module right before it runs, "
+                        + "instead of staging the artifacts of all the modules up front. The "
+                        + "artifacts of the next modules are staged in the background."
+    )
+    private boolean mLazyArtifactStaging = false;
+
+    @Option(
+        name = "artifact-prefetch-modules",
+        description =
+                "With lazy-artifact-staging, the number of modules whose artifacts are staged "
+                        + "ahead of the running module."
+    )
+    private int mArtifactPrefetchModules = 2;
     // end [Options relate to module retry and intra-module retry]
 
     private ITestDevice mDevice;
@@ -445,9 +477,7 @@ public abstract class ITestSuite
             moduleNames.add(config.getValue().getConfigurationDescription().getModuleName());
         }
 
-        if (mBuildInfo != null
-                && mBuildInfo.getRemoteFiles() != null
-                && mBuildInfo.getRemoteFiles().size() > 0) {
+        if (!mLazyArtifactStaging && hasRemoteFiles()) {
             stageTestArtifacts(mDevice, moduleNames);
         }
 
@@ -455,10 +485,63 @@ public abstract class ITestSuite
         return filteredConfig;
     }
 
+    private boolean hasRemoteFiles() {
+        return mBuildInfo != null
+                && mBuildInfo.getRemoteFiles() != null
+                && mBuildInfo.getRemoteFiles().size() > 0;
+    }
+
     /** Helper to download all artifacts for the given modules. */
     private void stageTestArtifacts(ITestDevice device, Set<String> modules) {
         CLog.i(String.format("Start to stage test artifacts for %d modules.", modules.size()));
         long startTime = System.currentTimeMillis();
+        mDynamicResolver.setDevice(device);
+        mDynamicResolver.addExtraArgs(
+                mMainConfiguration.getCommandOptions().getDynamicDownloadArgs());
+        downloadModuleArtifacts(modules);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.STAGE_TESTS_TIME, elapsedTime);
+        CLog.i(
+                String.format(
+                        "Staging test artifacts for %d modules finished in %s.",
+                        modules.size(), TimeUtil.formatElapsedTime(elapsedTime)));
+    }
+
+    /**
+     * Creates the {@link ModuleArtifactStager} staging the artifacts of the modules to run as they
+     * are about to run, or null if lazy staging is not enabled.
+     */
+    private ModuleArtifactStager createArtifactStager(List<ModuleDefinition> modules) {
+        if (!mLazyArtifactStaging || !hasRemoteFiles()) {
+            return null;
+        }
+        List<String> moduleNames = new ArrayList<>();
+        for (ModuleDefinition module : modules) {
+            // Modules without tests are skipped, see run().
+            if (!module.hasTests()) {
+                moduleNames.add(getModuleName(module));
+            }
+        }
+        mDynamicResolver.setDevice(mDevice);
+        mDynamicResolver.addExtraArgs(
+                mMainConfiguration.getCommandOptions().getDynamicDownloadArgs());
+        return new ModuleArtifactStager(
+                moduleNames,
+                mArtifactPrefetchModules,
+                moduleName -> downloadModuleArtifacts(Collections.singleton(moduleName)));
+    }
+
+    private static String getModuleName(ModuleDefinition module) {
+        List<String> names =
+                module.getModuleInvocationContext()
+                        .getAttributes()
+                        .get(ModuleDefinition.MODULE_NAME);
+        return names != null && !names.isEmpty() ? names.get(0) : module.getId();
+    }
+
+    /** Download the artifacts of the given modules from the remote files of the build. */
+    private void downloadModuleArtifacts(Set<String> modules) {
         // Include the file if its path contains a folder name matching any of the module.
         String moduleRegex =
                 modules.stream()
@@ -467,9 +550,6 @@ public abstract class ITestSuite
         List<String> includeFilters = Arrays.asList(moduleRegex);
         // Ignore config file as it's part of config zip artifact that's staged already.
         List<String> excludeFilters = Arrays.asList("[.]config$");
-        mDynamicResolver.setDevice(device);
-        mDynamicResolver.addExtraArgs(
-                mMainConfiguration.getCommandOptions().getDynamicDownloadArgs());
         for (File remoteFile : mBuildInfo.getRemoteFiles()) {
             try {
                 mDynamicResolver.resolvePartialDownloadZip(
@@ -483,13 +563,6 @@ public abstract class ITestSuite
                 throw new RuntimeException(e);
             }
         }
-        long elapsedTime = System.currentTimeMillis() - startTime;
-        InvocationMetricLogger.addInvocationMetrics(
-                InvocationMetricKey.STAGE_TESTS_TIME, elapsedTime);
-        CLog.i(
-                String.format(
-                        "Staging test artifacts for %d modules finished in %s.",
-                        modules.size(), TimeUtil.formatElapsedTime(elapsedTime)));
     }
 
     /** Helper that creates and returns the list of {@link ModuleDefinition} to be executed. */
@@ -575,7 +648,7 @@ public abstract class ITestSuite
     }
 
     /** Create the mapping of device to its target_preparer. */
-    private Map<String, List<ITargetPreparer>> getPreparerPerDevice(IConfiguration config) {
+    static Map<String, List<ITargetPreparer>> getPreparerPerDevice(IConfiguration config) {
         Map<String, List<ITargetPreparer>> res = new LinkedHashMap<>();
         for (IDeviceConfiguration holder : config.getDeviceConfig()) {
             List<ITargetPreparer> preparers = new ArrayList<>();
@@ -646,15 +719,36 @@ public abstract class ITestSuite
                     mRunModules);
         }
 
+        ParallelModuleRetry parallelRetry = createParallelRetry();
+        ModuleArtifactStager artifactStager = createArtifactStager(mRunModules);
         /** Run all the module, make sure to reduce the list to release resources as we go. */
         try {
             while (!mRunModules.isEmpty()) {
+                if (parallelRetry != null) {
+                    parallelRetry.reportCompleted(false);
+                }
                 ModuleDefinition module = mRunModules.remove(0);
                 // Before running the module we ensure it has tests at this point or skip completely
                 // to avoid running SystemCheckers and preparation for nothing.
                 if (module.hasTests()) {
                     continue;
                 }
+                if (artifactStager != null) {
+                    try {
+                        artifactStager.waitForModule(getModuleName(module));
+                    } catch (RuntimeException e) {
+                        // Only this module is missing its artifacts, the next ones can still run.
+                        CLog.e("Failed to stage the test artifacts of %s.", module.getId());
+                        CLog.e(e);
+                        module.reportNotExecuted(
+                                listener,
+                                String.format(
+                                        "Module did not run due to its test artifacts failing to "
+                                                + "stage: %s",
+                                        e.getMessage()));
+                        continue;
+                    }
+                }
 
                 // Populate the module context with devices and builds
                 for (String deviceName : mContext.getDeviceConfigNames()) {
@@ -663,7 +757,19 @@ public abstract class ITestSuite
                     module.getModuleInvocationContext()
                             .addDeviceBuildInfo(deviceName, mContext.getBuildInfo(deviceName));
                 }
-                listener.testModuleStarted(module.getModuleInvocationContext());
+                // When the retry can run on another device, the module runs a single attempt and
+                // its results are held until the retry completes.
+                IConfiguration retryConfig = null;
+                DeferredModuleListener deferredListener = null;
+                if (parallelRetry != null && parallelRetry.canDispatch()) {
+                    retryConfig = parallelRetry.copyModuleConfig(module);
+                    if (retryConfig != null) {
+                        deferredListener = new DeferredModuleListener(listener);
+                    }
+                }
+                ITestInvocationListener moduleListener =
+                        deferredListener != null ? deferredListener : listener;
+                moduleListener.testModuleStarted(module.getModuleInvocationContext());
                 mModuleInProgress = module;
                 // Trigger module start on module level listener too
                 new ResultForwarder(moduleListeners)
@@ -671,15 +777,31 @@ public abstract class ITestSuite
                 TestInformation moduleInfo =
                         TestInformation.createModuleTestInfo(
                                 testInfo, module.getModuleInvocationContext());
+                boolean completed = false;
                 try {
-                    runSingleModule(module, moduleInfo, listener, moduleListeners, failureListener);
+                    runSingleModule(
+                            module,
+                            moduleInfo,
+                            moduleListener,
+                            moduleListeners,
+                            failureListener,
+                            deferredListener != null
+                                    ? 1
+                                    : mMainConfiguration.getRetryDecision().getMaxRetryCount());
+                    completed = true;
                 } finally {
                     // Trigger module end on module level listener too
                     new ResultForwarder(moduleListeners).testModuleEnded();
                     // clear out module invocation context since we are now done with module
                     // execution
-                    listener.testModuleEnded();
+                    moduleListener.testModuleEnded();
                     mModuleInProgress = null;
+                    if (deferredListener != null && !completed) {
+                        deferredListener.replay();
+                    }
+                }
+                if (deferredListener != null) {
+                    parallelRetry.dispatch(module, retryConfig, deferredListener, testInfo);
                 }
                 // Module isolation routine
                 moduleIsolation(mContext, listener);
@@ -690,7 +812,46 @@ public abstract class ITestSuite
                     mRunModules);
             reportNotExecuted(listener, "Module did not run due to device not available.");
             throw e;
+        } finally {
+            if (artifactStager != null) {
+                artifactStager.close();
+            }
+            if (parallelRetry != null) {
+                parallelRetry.reportCompleted(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link ParallelModuleRetry} running the auto-retry of modules on idle devices,
+     * or null if the retry should run on the invocation device.
+     */
+    private ParallelModuleRetry createParallelRetry() {
+        if (!mParallelAutoRetry || mIsSharded || mCollectTestsOnly) {
+            return null;
+        }
+        IRetryDecision decision = mMainConfiguration.getRetryDecision();
+        // Only retrying failures is independent from the device state left by the first attempt.
+        if (!decision.isAutoRetryEnabled()
+                || decision.getMaxRetryCount() <= 1
+                || !RetryStrategy.RETRY_ANY_FAILURE.equals(decision.getRetryStrategy())
+                || decision.rebootAtLastAttempt()) {
+            return null;
+        }
+        if (mContext.getDeviceConfigNames().size() != 1
+                || mDevice.getIDevice() instanceof StubDevice) {
+            return null;
         }
+        ParallelModuleRetry parallelRetry =
+                new ParallelModuleRetry(
+                        mMainConfiguration,
+                        mMetricCollectors,
+                        mContext.getDeviceConfigNames().get(0),
+                        mDevice,
+                        mBuildInfo,
+                        mMaxParallelRetryDevices);
+        parallelRetry.setEnableDynamicDownload(mEnableDynamicDownload);
+        return parallelRetry;
     }
 
     /**
@@ -738,6 +899,7 @@ public abstract class ITestSuite
      * @param listener The {@link ITestInvocationListener} where to report results
      * @param moduleListeners The {@link ITestInvocationListener}s that runs at the module level.
      * @param failureListener special listener that we add to collect information on failures.
+     * @param maxRunLimit the maximum number of attempts of the module.
      * @throws DeviceNotAvailableException
      */
     private void runSingleModule(
@@ -745,7 +907,8 @@ public abstract class ITestSuite
             TestInformation moduleInfo,
             ITestInvocationListener listener,
             List<ITestInvocationListener> moduleListeners,
-            TestFailureListener failureListener)
+            TestFailureListener failureListener,
+            int maxRunLimit)
             throws DeviceNotAvailableException {
         if (mRebootPerModule) {
             if ("user".equals(mDevice.getProperty(DeviceProperties.BUILD_TYPE))) {
@@ -785,12 +948,7 @@ public abstract class ITestSuite
         module.addDynamicDownloadArgs(
                 mMainConfiguration.getCommandOptions().getDynamicDownloadArgs());
         // Actually run the module
-        module.run(
-                moduleInfo,
-                listener,
-                moduleListeners,
-                failureListener,
-                getConfiguration().getRetryDecision().getMaxRetryCount());
+        module.run(moduleInfo, listener, moduleListeners, failureListener, maxRunLimit);
 
         if (!mSkipAllSystemStatusCheck) {
             runPostModuleCheck(module.getId(), mSystemStatusCheckers, mDevice, listener);
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Stages the test artifacts of the modules of a suite as they are about to run, instead of staging
+ * the artifacts of all the modules before the first one runs.
+ *
+ * <p>The artifacts of the next modules are staged in the background, one module at a time, while
+ * the current module runs. A module only waits for its own artifacts if they are not staged yet.
+ */
+public class ModuleArtifactStager {
+
+    private final List<String> mModuleNames;
+    private final int mPrefetchCount;
+    private final Consumer<String> mStageFunction;
+    private final Map<String, Future<?>> mStaged = new HashMap<>();
+
+    private ExecutorService mExecutor = null;
+    /** The index of the next module to stage. */
+    private int mNextModule = 0;
+
+    /**
+     * Create a {@link ModuleArtifactStager}.
+     *
+     * @param moduleNames the names of the modules, in the order they run. Duplicates are ignored.
+     * @param prefetchCount the number of modules staged ahead of the running one.
+     * @param stageFunction stages the artifacts of one module, throwing a {@link
+     *     RuntimeException} on failure.
+     */
+    public ModuleArtifactStager(
+            List<String> moduleNames, int prefetchCount, Consumer<String> stageFunction) {
+        mModuleNames = new ArrayList<>(new LinkedHashSet<>(moduleNames));
+        mPrefetchCount = Math.max(0, prefetchCount);
+        mStageFunction = stageFunction;
+    }
+
+    /**
+     * Wait for the artifacts of a module to be staged, and start staging the ones of the next
+     * modules in the background.
+     *
+     * @param moduleName the name of the module about to run.
+     * @throws RuntimeException if the artifacts of the module cannot be staged.
+     */
+    public void waitForModule(String moduleName) {
+        long startTime = System.currentTimeMillis();
+        Future<?> staged;
+        synchronized (this) {
+            int index = mModuleNames.indexOf(moduleName);
+            if (index < 0) {
+                // Not a known module, stage it before the others.
+                mModuleNames.add(mNextModule, moduleName);
+                index = mNextModule;
+            }
+            scheduleUntil(index + mPrefetchCount);
+            staged = mStaged.get(moduleName);
+        }
+        try {
+            staged.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            long elapsed = System.currentTimeMillis() - startTime;
+            CLog.d("Waited %d ms for the test artifacts of %s.", elapsed, moduleName);
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.MODULE_STAGE_WAIT_TIMES,
+                    String.format("%s:%d", moduleName, elapsed));
+        }
+    }
+
+    /** Stop staging the artifacts of the next modules. */
+    public synchronized void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /** Schedule the staging of the modules up to the given index, included. */
+    private void scheduleUntil(int lastIndex) {
+        if (mExecutor == null) {
+            mExecutor =
+                    Executors.newSingleThreadExecutor(
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "ModuleArtifactStager");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+        while (mNextModule <= lastIndex && mNextModule < mModuleNames.size()) {
+            String moduleName = mModuleNames.get(mNextModule++);
+            mStaged.put(moduleName, mExecutor.submit(() -> stage(moduleName)));
+        }
+    }
+
+    private void stage(String moduleName) {
+        long startTime = System.currentTimeMillis();
+        mStageFunction.accept(moduleName);
+        long elapsed = System.currentTimeMillis() - startTime;
+        CLog.d("Staged the test artifacts of %s in %d ms.", moduleName, elapsed);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.STAGE_TESTS_TIME, elapsed);
+    }
+}
@@ -86,6 +86,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -119,6 +120,16 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
     public static final String RETRY_TIME = "MODULE_RETRY_TIME";
     public static final String RETRY_SUCCESS_COUNT = "MODULE_RETRY_SUCCESS";
     public static final String RETRY_FAIL_COUNT = "MODULE_RETRY_FAILED";
+    /** Prefix of the invocation metrics of the preparation also reported for the module. */
+    public static final String PREPARATION_METRIC_PREFIX = "MODULE_";
+
+    /** Invocation metrics logged by the preparers that are also reported for each module. */
+    private static final InvocationMetricKey[] PREPARATION_METRICS = {
+        InvocationMetricKey.APK_INSTALL_BYTES,
+        InvocationMetricKey.APK_INSTALL_TIME,
+        InvocationMetricKey.APK_INSTALL_SKIPPED_COUNT,
+        InvocationMetricKey.APK_INSTALL_SKIPPED_BYTES,
+    };
 
     private final IInvocationContext mModuleInvocationContext;
     private final IConfiguration mModuleConfiguration;
@@ -144,6 +155,7 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
     // Tracking of preparers performance
     private long mElapsedPreparation = 0l;
     private long mElapsedTearDown = 0l;
+    private Map<String, Long> mPreparationMetrics = new LinkedHashMap<>();
 
     private long mStartTestTime = 0l;
     private Long mStartModuleRunDate = null;
@@ -391,6 +403,7 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         }
         // Setup
         long prepStartTime = getCurrentTime();
+        Map<String, String> prepStartMetrics = InvocationMetricLogger.getInvocationMetrics();
         if (preparationException == null) {
             preparationException = runTargetPreparation(moduleInfo, listener);
         }
@@ -406,6 +419,7 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
             }
         }
         mElapsedPreparation = getCurrentTime() - prepStartTime;
+        trackPreparationMetrics(prepStartMetrics);
         // Run the tests
         try {
             if (preparationException != null) {
@@ -681,6 +695,10 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
                 TfMetricProtoUtil.createSingleValue(mElapsedTearDown, "milliseconds"));
         metricsProto.put(
                 TEST_TIME, TfMetricProtoUtil.createSingleValue(elapsedTime, "milliseconds"));
+        for (Entry<String, Long> metric : mPreparationMetrics.entrySet()) {
+            metricsProto.put(
+                    metric.getKey(), TfMetricProtoUtil.createSingleValue(metric.getValue(), ""));
+        }
         // Report all the retry informations
         if (!mRetryStats.isEmpty()) {
             RetryStatistics agg = RetryStatistics.aggregateStatistics(mRetryStats);
@@ -923,6 +941,35 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         return System.currentTimeMillis();
     }
 
+    /**
+     * Keeps the part of the {@link #PREPARATION_METRICS} logged since the given invocation metrics,
+     * to report them for the module.
+     */
+    private void trackPreparationMetrics(Map<String, String> prepStartMetrics) {
+        mPreparationMetrics = new LinkedHashMap<>();
+        Map<String, String> prepEndMetrics = InvocationMetricLogger.getInvocationMetrics();
+        for (InvocationMetricKey key : PREPARATION_METRICS) {
+            long value =
+                    parseMetric(prepEndMetrics.get(key.toString()))
+                            - parseMetric(prepStartMetrics.get(key.toString()));
+            if (value != 0L) {
+                mPreparationMetrics.put(PREPARATION_METRIC_PREFIX + key.name(), value);
+            }
+        }
+    }
+
+    private static long parseMetric(String value) {
+        if (value == null) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            CLog.e("Invocation metric is expected to be a number, instead found: %s", value);
+            return 0L;
+        }
+    }
+
     @Override
     public void setCollectTestsOnly(boolean collectTestsOnly) {
         mCollectTestsOnly = collectTestsOnly;
@@ -950,6 +997,23 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         return mExpectedTests;
     }
 
+    /**
+     * Returns the results of the given attempt for each {@link IRemoteTest} that ran in the module,
+     * in the order they ran. Only available when the attempts are not merged.
+     */
+    List<List<TestRunResult>> getTestRunResultsForAttempt(int attempt) {
+        List<List<TestRunResult>> results = new ArrayList<>();
+        for (ModuleListener listener : mRunListenersResults) {
+            results.add(listener.getTestRunForAttempts(attempt));
+        }
+        return results;
+    }
+
+    /** Returns the {@link IConfiguration} of the module. */
+    IConfiguration getModuleConfiguration() {
+        return mModuleConfiguration;
+    }
+
     /** Returns True if a testRunFailure has been called on the module * */
     public boolean hasModuleFailed() {
         return mIsFailedModule;
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.FreeDeviceState;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.CollectorHelper;
+import com.android.tradefed.device.metric.IMetricCollector;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.LogSaverResultForwarder;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.retry.IRetryDecision;
+import com.android.tradefed.testtype.IAbiReceiver;
+import com.android.tradefed.testtype.IRemoteTest;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs the auto-retry of modules on idle devices of the host, so the invocation device can move on
+ * to the next module instead of retrying the failures itself.
+ *
+ * <p>A module first runs a single attempt on the invocation device, and its results are held by a
+ * {@link DeferredModuleListener}. If some of its tests should be retried, a copy of the module is
+ * set up on an idle device running the same build and runs the remaining attempts there. All the
+ * attempts are then reported as one module, so they are merged according to the retry strategy
+ * like the ones of an intra-module retry.
+ */
+public class ParallelModuleRetry {
+
+    private final IConfiguration mMainConfiguration;
+    private final List<IMetricCollector> mMetricCollectors;
+    private final String mDeviceName;
+    private final ITestDevice mDevice;
+    private final IBuildInfo mBuild;
+    private final int mMaxDevices;
+    private boolean mEnableDynamicDownload = false;
+
+    private String mProduct = null;
+    private String mBuildId = null;
+    private final List<RetryThread> mRetries = new ArrayList<>();
+
+    /** The remaining attempts of a module, running on a device borrowed from the host. */
+    private class RetryThread extends Thread {
+        private final ModuleDefinition mRetryModule;
+        private final TestInformation mRetryInfo;
+        private final DeferredModuleListener mResults;
+
+        RetryThread(
+                ModuleDefinition retryModule,
+                TestInformation retryInfo,
+                DeferredModuleListener results) {
+            super(String.format("ParallelRetry-%s", retryModule.getId()));
+            setDaemon(true);
+            mRetryModule = retryModule;
+            mRetryInfo = retryInfo;
+            mResults = results;
+        }
+
+        @Override
+        public void run() {
+            ITestDevice device = mRetryInfo.getDevice();
+            FreeDeviceState state = FreeDeviceState.AVAILABLE;
+            long startTime = System.currentTimeMillis();
+            try {
+                mRetryModule.run(
+                        mRetryInfo,
+                        new LogSaverResultForwarder(
+                                mMainConfiguration.getLogSaver(), Arrays.asList(mResults)),
+                        null,
+                        null,
+                        getMaxRunLimit() - 1);
+            } catch (DeviceNotAvailableException e) {
+                CLog.e(
+                        "Device %s became unavailable during the retry of %s",
+                        device.getSerialNumber(), mRetryModule.getId());
+                CLog.e(e);
+                state = FreeDeviceState.UNAVAILABLE;
+            } catch (RuntimeException e) {
+                CLog.e("Retry of %s failed:", mRetryModule.getId());
+                CLog.e(e);
+            } finally {
+                InvocationMetricLogger.addInvocationMetrics(
+                        InvocationMetricKey.PARALLEL_RETRY_TIME,
+                        System.currentTimeMillis() - startTime);
+                getDeviceManager().freeDevice(device, state);
+            }
+        }
+    }
+
+    /**
+     * Create a {@link ParallelModuleRetry}.
+     *
+     * @param mainConfiguration the {@link IConfiguration} of the invocation.
+     * @param metricCollectors the {@link IMetricCollector}s of the invocation.
+     * @param deviceName the name of the device in the configuration.
+     * @param device the {@link ITestDevice} of the invocation.
+     * @param build the {@link IBuildInfo} of the invocation.
+     * @param maxDevices the maximum number of devices borrowed at once.
+     */
+    public ParallelModuleRetry(
+            IConfiguration mainConfiguration,
+            List<IMetricCollector> metricCollectors,
+            String deviceName,
+            ITestDevice device,
+            IBuildInfo build,
+            int maxDevices) {
+        mMainConfiguration = mainConfiguration;
+        mMetricCollectors = metricCollectors;
+        mDeviceName = deviceName;
+        mDevice = device;
+        mBuild = build;
+        mMaxDevices = maxDevices;
+    }
+
+    /** Sets whether the retried modules should download their dynamic files. */
+    public void setEnableDynamicDownload(boolean enableDynamicDownload) {
+        mEnableDynamicDownload = enableDynamicDownload;
+    }
+
+    /**
+     * Returns true if the retry of the next module could run on another device, in which case the
+     * module should run a single attempt with its results deferred.
+     */
+    public boolean canDispatch() {
+        if (mRetries.size() >= mMaxDevices) {
+            return false;
+        }
+        return findIdleDevice() != null;
+    }
+
+    /**
+     * Copy the configuration of a module before it runs, in order to set up the same module on
+     * another device.
+     *
+     * @return the copy of the module configuration, or null if it cannot be copied.
+     */
+    public IConfiguration copyModuleConfig(ModuleDefinition module) {
+        IConfiguration config = module.getModuleConfiguration();
+        try {
+            // Options were resolved when the module was loaded, no key store is needed.
+            IConfiguration copy =
+                    config.partialDeepClone(
+                            Arrays.asList(
+                                    Configuration.TEST_TYPE_NAME,
+                                    Configuration.TARGET_PREPARER_TYPE_NAME,
+                                    Configuration.MULTI_PREPARER_TYPE_NAME),
+                            null);
+            // The abi is given to the objects when loading the module, not through options.
+            copyAbis(config.getTests(), copy.getTests());
+            for (int i = 0; i < config.getDeviceConfig().size(); i++) {
+                copyAbis(
+                        config.getDeviceConfig().get(i).getTargetPreparers(),
+                        copy.getDeviceConfig().get(i).getTargetPreparers());
+            }
+            return copy;
+        } catch (ConfigurationException e) {
+            CLog.w("Cannot copy module %s for parallel retry: %s", module.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Retry the failures of a module that ran a single attempt. The retry runs on an idle device
+     * if one can be allocated, on the invocation device otherwise. Results are reported through
+     * {@link #reportCompleted(boolean)} when the retry runs on another device, right away
+     * otherwise.
+     *
+     * @param module the {@link ModuleDefinition} that ran.
+     * @param retryConfig the copy of the configuration of the module, from before it ran.
+     * @param results the {@link DeferredModuleListener} holding the results of the module.
+     * @param testInfo the {@link TestInformation} of the invocation.
+     * @throws DeviceNotAvailableException if the invocation device becomes unavailable.
+     */
+    public void dispatch(
+            ModuleDefinition module,
+            IConfiguration retryConfig,
+            DeferredModuleListener results,
+            TestInformation testInfo)
+            throws DeviceNotAvailableException {
+        List<List<TestRunResult>> firstAttempt = module.getTestRunResultsForAttempt(0);
+        if (!hasFailures(firstAttempt)) {
+            results.replay();
+            return;
+        }
+        if (retryConfig.getTests().size() != firstAttempt.size()) {
+            CLog.w("Tests of %s do not match its results, skipping its retry.", module.getId());
+            results.replay();
+            return;
+        }
+
+        ITestDevice retryDevice = allocateIdleDevice();
+        if (retryDevice == null) {
+            CLog.d(
+                    "No idle device to retry %s, retrying on %s.",
+                    module.getId(), mDevice.getSerialNumber());
+            try {
+                ModuleDefinition retryModule =
+                        createRetryModule(module.getId(), retryConfig, firstAttempt, mDevice);
+                if (retryModule != null) {
+                    results.startAttempts(1, true);
+                    retryModule.run(
+                            createRetryInfo(testInfo, retryModule),
+                            results,
+                            null,
+                            null,
+                            getMaxRunLimit() - 1);
+                }
+            } finally {
+                results.replay();
+            }
+            return;
+        }
+
+        ModuleDefinition retryModule = null;
+        try {
+            retryModule = createRetryModule(module.getId(), retryConfig, firstAttempt, retryDevice);
+        } catch (DeviceNotAvailableException e) {
+            CLog.e("Device %s is not available for retry:", retryDevice.getSerialNumber());
+            CLog.e(e);
+            getDeviceManager().freeDevice(retryDevice, FreeDeviceState.UNAVAILABLE);
+            results.replay();
+            return;
+        }
+        if (retryModule == null) {
+            getDeviceManager().freeDevice(retryDevice, FreeDeviceState.AVAILABLE);
+            results.replay();
+            return;
+        }
+        CLog.logAndDisplay(
+                com.android.ddmlib.Log.LogLevel.INFO,
+                "Retrying module %s on %s",
+                module.getId(),
+                retryDevice.getSerialNumber());
+        results.startAttempts(1, false);
+        RetryThread retry =
+                new RetryThread(retryModule, createRetryInfo(testInfo, retryModule), results);
+        mRetries.add(retry);
+        retry.start();
+        InvocationMetricLogger.addInvocationMetrics(InvocationMetricKey.PARALLEL_RETRY_COUNT, 1);
+    }
+
+    /**
+     * Report the modules whose retry completed on another device.
+     *
+     * @param wait whether to wait for all the retries in progress.
+     */
+    public void reportCompleted(boolean wait) {
+        Iterator<RetryThread> iterator = mRetries.iterator();
+        while (iterator.hasNext()) {
+            RetryThread retry = iterator.next();
+            if (wait) {
+                try {
+                    retry.join();
+                } catch (InterruptedException e) {
+                    CLog.e(e);
+                }
+            }
+            if (!retry.isAlive()) {
+                retry.mResults.replay();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Create the module running the remaining attempts of the tests that should be retried, or
+     * return null if none should.
+     */
+    private ModuleDefinition createRetryModule(
+            String moduleId,
+            IConfiguration retryConfig,
+            List<List<TestRunResult>> firstAttempt,
+            ITestDevice device)
+            throws DeviceNotAvailableException {
+        IRetryDecision decision = copyRetryDecision();
+        if (decision == null) {
+            return null;
+        }
+        IInvocationContext retryContext = new InvocationContext();
+        retryContext.addAllocatedDevice(mDeviceName, device);
+        retryContext.addDeviceBuildInfo(mDeviceName, mBuild);
+        decision.setInvocationContext(retryContext);
+        // The decision applies the filters of the retry to the copies of the tests.
+        List<IRemoteTest> retryTests = new ArrayList<>();
+        List<IRemoteTest> tests = retryConfig.getTests();
+        for (int i = 0; i < tests.size(); i++) {
+            if (decision.shouldRetry(tests.get(i), 0, firstAttempt.get(i))) {
+                retryTests.add(tests.get(i));
+            }
+        }
+        if (retryTests.isEmpty()) {
+            return null;
+        }
+
+        ModuleDefinition retryModule =
+                new ModuleDefinition(
+                        moduleId,
+                        retryTests,
+                        ITestSuite.getPreparerPerDevice(retryConfig),
+                        retryConfig.getMultiTargetPreparers(),
+                        retryConfig);
+        retryModule.setDevice(device);
+        retryModule.setBuild(mBuild);
+        retryModule.getModuleInvocationContext().addAllocatedDevice(mDeviceName, device);
+        retryModule.getModuleInvocationContext().addDeviceBuildInfo(mDeviceName, mBuild);
+        retryModule.setMetricCollectors(CollectorHelper.cloneCollectors(mMetricCollectors));
+        retryModule.setLogSaver(mMainConfiguration.getLogSaver());
+        retryModule.setMergeAttemps(false);
+        retryModule.setRetryDecision(decision);
+        retryModule.setEnableDynamicDownload(mEnableDynamicDownload);
+        retryModule.addDynamicDownloadArgs(
+                mMainConfiguration.getCommandOptions().getDynamicDownloadArgs());
+        return retryModule;
+    }
+
+    private TestInformation createRetryInfo(
+            TestInformation testInfo, ModuleDefinition retryModule) {
+        return TestInformation.createModuleTestInfo(
+                testInfo, retryModule.getModuleInvocationContext());
+    }
+
+    /** Copy the retry decision, since it keeps track of the test it is retrying. */
+    private IRetryDecision copyRetryDecision() {
+        IRetryDecision decision = mMainConfiguration.getRetryDecision();
+        try {
+            IRetryDecision copy = decision.getClass().getDeclaredConstructor().newInstance();
+            OptionCopier.copyOptions(decision, copy);
+            return copy;
+        } catch (ReflectiveOperationException | ConfigurationException e) {
+            CLog.e("Cannot copy the retry decision for parallel retry:");
+            CLog.e(e);
+            return null;
+        }
+    }
+
+    private int getMaxRunLimit() {
+        return mMainConfiguration.getRetryDecision().getMaxRetryCount();
+    }
+
+    /** Returns the serial of an idle device of the host running the same build, or null. */
+    @VisibleForTesting
+    String findIdleDevice() {
+        if (mBuildId == null) {
+            try {
+                mProduct = mDevice.getProductType();
+                mBuildId = mDevice.getBuildId();
+            } catch (DeviceNotAvailableException e) {
+                CLog.e(e);
+                return null;
+            }
+        }
+        for (DeviceDescriptor descriptor : getDeviceManager().listAllDevices()) {
+            if (!descriptor.isStubDevice()
+                    && DeviceAllocationState.Available.equals(descriptor.getState())
+                    && !descriptor.getSerial().equals(mDevice.getSerialNumber())
+                    && mBuildId.equals(descriptor.getBuildId())
+                    && mProduct != null
+                    && mProduct.equals(descriptor.getProduct())) {
+                return descriptor.getSerial();
+            }
+        }
+        return null;
+    }
+
+    private ITestDevice allocateIdleDevice() {
+        String serial = findIdleDevice();
+        if (serial == null) {
+            return null;
+        }
+        return getDeviceManager().allocateDevice(DeviceSelectionOptions.createForSerial(serial));
+    }
+
+    @VisibleForTesting
+    IDeviceManager getDeviceManager() {
+        return GlobalConfiguration.getDeviceManagerInstance();
+    }
+
+    private static boolean hasFailures(List<List<TestRunResult>> results) {
+        for (List<TestRunResult> testResults : results) {
+            for (TestRunResult run : testResults) {
+                if (run != null && (run.isRunFailure() || run.hasFailedTests())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void copyAbis(List<?> objects, List<?> copies) {
+        for (int i = 0; i < objects.size() && i < copies.size(); i++) {
+            if (objects.get(i) instanceof IAbiReceiver && copies.get(i) instanceof IAbiReceiver) {
+                IAbiReceiver object = (IAbiReceiver) objects.get(i);
+                if (object.getAbi() != null) {
+                    ((IAbiReceiver) copies.get(i)).setAbi(object.getAbi());
+                }
+            }
+        }
+    }
+}
@@ -15,20 +15,26 @@
  */
 package com.android.tradefed.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * values are stored internally in a primitive {@code double} array, which is only sorted when the
+ * median is requested after values were added out of order.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    private double[] mData = new double[16];
+    private int mSize = 0;
+    // Whether the values in mData are in ascending order
+    private boolean mSorted = true;
 
     // cached values
     private double mSum = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
 
     /**
      * Add a number of measurements to the dataset.
@@ -36,6 +42,7 @@ public class SimpleStats {
      * @throws NullPointerException if the collection contains any {@code null} elements
      */
     public void addAll(Collection<? extends Double> c) {
+        ensureCapacity(mSize + c.size());
         for (Double meas : c) {
             if (meas == null) {
                 throw new NullPointerException();
@@ -44,33 +51,80 @@ public class SimpleStats {
         }
     }
 
+    /**
+     * Add a number of measurements to the dataset.
+     */
+    public void addAll(double[] values) {
+        ensureCapacity(mSize + values.length);
+        for (double meas : values) {
+            add(meas);
+        }
+    }
+
     /**
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
+        ensureCapacity(mSize + 1);
+        if (mSize == 0) {
+            mMin = meas;
+            mMax = meas;
+        } else {
+            // Order the values like a sort does: NaN is the largest value, and -0.0 is smaller
+            // than 0.0. So min() ignores NaNs unless all values are NaN, and max() returns NaN
+            // if any value is NaN.
+            mSorted = mSorted && Double.compare(mData[mSize - 1], meas) <= 0;
+            if (Double.compare(meas, mMin) < 0) {
+                mMin = meas;
+            }
+            if (Double.compare(meas, mMax) > 0) {
+                mMax = meas;
+            }
+        }
+        mData[mSize++] = meas;
         mSum += meas;
     }
 
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+        }
+    }
+
     /**
-     * Retrieve the dataset.
+     * Retrieve a copy of the dataset. Changing the returned list does not change the dataset.
      */
     public List<Double> getData() {
-        return mData;
+        List<Double> data = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            data.add(mData[i]);
+        }
+        return data;
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
     }
 
     /**
      * Check how many elements are in the dataset.
      */
     public int size() {
-        return mData.size();
+        return mSize;
+    }
+
+    /**
+     * Return the sum of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double sum() {
+        if (isEmpty()) {
+            return null;
+        }
+
+        return mSum;
     }
 
     /**
@@ -92,16 +146,19 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
+        if (!mSorted) {
+            Arrays.sort(mData, 0, mSize);
+            mSorted = true;
+        }
+        if ((mSize & 0x1) == 1) {
             // odd count of items, pick the middle element.  Note that we don't +1 since indices
             // are zero-based rather than one-based
             int idx = size() / 2;
-            return mData.get(idx);
+            return mData[idx];
         } else {
             // even count of items, average the two middle elements
             int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+            return (mData[idx - 1] + mData[idx]) / 2;
         }
     }
 
@@ -113,8 +170,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        return mMin;
     }
 
     /**
@@ -125,8 +181,27 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+        return mMax;
+    }
+
+    /**
+     * Return the variance of the dataset, or {@code null} if the dataset is empty.
+     * <p />
+     * Like {@link #stdev()}, this is the population variance.
+     */
+    public Double variance() {
+        if (isEmpty()) {
+            return null;
+        }
+
+        double avg = mSum / mSize;
+        double ssd = 0.0;  // sum of squared differences
+        for (int i = 0; i < mSize; i++) {
+            double diff = mData[i] - avg;
+            ssd += diff * diff;
+        }
+
+        return ssd / mSize;
     }
 
     /**
@@ -141,14 +216,7 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
-
-        return Math.sqrt(ssd / size());
+        return Math.sqrt(variance());
     }
 
     /**
@@ -163,13 +231,14 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double std = stdev();
-        Double upper = avg + std;
-        Double lower = avg - std;
-        Double sum = 0.0;
+        double avg = mean();
+        double std = stdev();
+        double upper = avg + std;
+        double lower = avg - std;
+        double sum = 0.0;
         int count = 0;
-        for (Double meas : mData) {
+        for (int i = 0; i < mSize; i++) {
+            double meas = mData[i];
             if (meas > lower && meas < upper) {
                 sum += meas;
                 count++;
@@ -178,4 +247,3 @@ public class SimpleStats {
         return sum / count;
     }
 }
-
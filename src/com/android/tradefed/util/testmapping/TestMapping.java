@@ -54,16 +54,16 @@ public class TestMapping {
     // Key for test sources information stored in meta data of ConfigurationDescription.
     public static final String TEST_SOURCES = "Test Sources";
 
-    private static final String PRESUBMIT = "presubmit";
+    static final String PRESUBMIT = "presubmit";
     private static final String IMPORTS = "imports";
     private static final String KEY_HOST = "host";
     private static final String KEY_KEYWORDS = "keywords";
     private static final String KEY_NAME = "name";
     private static final String KEY_OPTIONS = "options";
-    private static final String TEST_MAPPING = "TEST_MAPPING";
+    static final String TEST_MAPPING = "TEST_MAPPING";
     private static final String TEST_MAPPINGS_ZIP = "test_mappings.zip";
     // A file containing module names that are disabled in presubmit test runs.
-    private static final String DISABLED_PRESUBMIT_TESTS_FILE = "disabled-presubmit-tests";
+    static final String DISABLED_PRESUBMIT_TESTS_FILE = "disabled-presubmit-tests";
 
     private Map<String, Set<TestInfo>> mTestCollection = null;
     // Pattern used to identify comments start with "//" or "#" in TEST_MAPPING.
@@ -92,12 +92,25 @@ public class TestMapping {
      * @param testMappingsDir The {@link Path} to the folder of all TEST_MAPPING files for a build.
      */
     public TestMapping(Path path, Path testMappingsDir) {
+        this(
+                readTestMapping(path),
+                testMappingsDir.relativize(path.getParent()).toString(),
+                path.toString());
+    }
+
+    /**
+     * Constructor to create a {@link TestMapping} object from the content of a TEST_MAPPING file.
+     *
+     * @param fileContent The content of the TEST_MAPPING file.
+     * @param relativePath The path of the folder of the TEST_MAPPING file, relative to the folder
+     *     of all TEST_MAPPING files for a build.
+     * @param location A description of where the content comes from, used in error messages.
+     */
+    TestMapping(String fileContent, String relativePath, String location) {
         mTestCollection = new LinkedHashMap<>();
-        String relativePath = testMappingsDir.relativize(path.getParent()).toString();
         String errorMessage = null;
         try {
-            String content = removeComments(
-                    String.join("\n", Files.readAllLines(path, StandardCharsets.UTF_8)));
+            String content = removeComments(fileContent);
             if (content != null) {
                 JSONTokener tokener = new JSONTokener(content);
                 JSONObject root = new JSONObject(tokener);
@@ -145,13 +158,9 @@ public class TestMapping {
                     }
                 }
             }
-        } catch (IOException e) {
-            errorMessage = String.format("TEST_MAPPING file does not exist: %s.", path.toString());
-            CLog.e(errorMessage);
         } catch (JSONException e) {
             errorMessage =
-                    String.format(
-                            "Error parsing TEST_MAPPING file: %s. Error: %s", path.toString(), e);
+                    String.format("Error parsing TEST_MAPPING file: %s. Error: %s", location, e);
         }
 
         if (errorMessage != null) {
@@ -160,6 +169,46 @@ public class TestMapping {
         }
     }
 
+    private TestMapping(Map<String, Set<TestInfo>> testCollection) {
+        mTestCollection = testCollection;
+    }
+
+    /** Returns a deep copy of the {@link TestMapping}, so its tests can be modified. */
+    TestMapping copy() {
+        Map<String, Set<TestInfo>> testCollection = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<TestInfo>> group : mTestCollection.entrySet()) {
+            Set<TestInfo> tests = new HashSet<>();
+            for (TestInfo test : group.getValue()) {
+                Iterator<String> sources = test.getSources().iterator();
+                TestInfo copy =
+                        new TestInfo(
+                                test.getName(),
+                                sources.next(),
+                                test.getHostOnly(),
+                                new HashSet<>(test.getKeywords()));
+                copy.addSources(test.getSources());
+                for (TestOption option : test.getOptions()) {
+                    copy.addOption(option);
+                }
+                tests.add(copy);
+            }
+            testCollection.put(group.getKey(), tests);
+        }
+        return new TestMapping(testCollection);
+    }
+
+    /** Reads the content of a TEST_MAPPING file. */
+    private static String readTestMapping(Path path) {
+        try {
+            return String.join("\n", Files.readAllLines(path, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            String errorMessage =
+                    String.format("TEST_MAPPING file does not exist: %s.", path.toString());
+            CLog.e(errorMessage);
+            throw new RuntimeException(errorMessage);
+        }
+    }
+
     /**
      * Helper to remove comments in a TEST_MAPPING file to valid format. Only "//" and "#" are
      * regarded as comments.
@@ -299,41 +348,13 @@ public class TestMapping {
      */
     public static Set<TestInfo> getTests(
             IBuildInfo buildInfo, String testGroup, boolean hostOnly, Set<String> keywords) {
+        TestMappingIndex index =
+                TestMappingIndex.getIndex(buildInfo.getFile(TEST_MAPPINGS_ZIP));
+        Set<String> disabledTests = index.getDisabledTests(testGroup);
         Set<TestInfo> tests = new HashSet<TestInfo>();
-        File testMappingsDir = extractTestMappingsZip(buildInfo.getFile(TEST_MAPPINGS_ZIP));
-        Stream<Path> stream = null;
-        try {
-            Path testMappingsRootPath = Paths.get(testMappingsDir.getAbsolutePath());
-            Set<String> disabledTests = getDisabledTests(testMappingsRootPath, testGroup);
-            if (mTestMappingRelativePaths.isEmpty()) {
-                stream = Files.walk(testMappingsRootPath, FileVisitOption.FOLLOW_LINKS);
-            }
-            else {
-                stream = getAllTestMappingPaths(testMappingsRootPath).stream();
-            }
-            stream.filter(path -> path.getFileName().toString().equals(TEST_MAPPING))
-                    .forEach(
-                            path ->
-                                    tests.addAll(
-                                            new TestMapping(path, testMappingsRootPath)
-                                                    .getTests(
-                                                            testGroup,
-                                                            disabledTests,
-                                                            hostOnly,
-                                                            keywords)));
-
-        } catch (IOException e) {
-            throw new RuntimeException(
-                    String.format(
-                            "IO exception (%s) when reading tests from TEST_MAPPING files (%s)",
-                            e.getMessage(), testMappingsDir.getAbsolutePath()), e);
-        } finally {
-            if (stream != null) {
-                stream.close();
-            }
-            FileUtil.recursiveDelete(testMappingsDir);
+        for (TestMapping testMapping : index.getTestMappings(mTestMappingRelativePaths)) {
+            tests.addAll(testMapping.getTests(testGroup, disabledTests, hostOnly, keywords));
         }
-
         return tests;
     }
 
@@ -350,10 +371,16 @@ public class TestMapping {
         try {
             Path testMappingsRootPath = Paths.get(testMappingsDir.getAbsolutePath());
             stream = Files.walk(testMappingsRootPath, FileVisitOption.FOLLOW_LINKS);
-            stream.filter(path -> path.getFileName().toString().equals(TEST_MAPPING))
-                    .forEach(
-                            path ->
-                                    getAllTests(allTests, path, testMappingsRootPath));
+            // Files are parsed in parallel, but merged in the order they were found.
+            List<TestMapping> testMappings =
+                    stream.filter(path -> path.getFileName().toString().equals(TEST_MAPPING))
+                            .collect(Collectors.toList())
+                            .parallelStream()
+                            .map(path -> new TestMapping(path, testMappingsRootPath))
+                            .collect(Collectors.toList());
+            for (TestMapping testMapping : testMappings) {
+                addAllTests(allTests, testMapping);
+            }
 
         } catch (IOException e) {
             throw new RuntimeException(
@@ -418,17 +445,14 @@ public class TestMapping {
     }
 
     /**
-     * Helper to find all tests in the TEST_MAPPING files from a given directory.
+     * Helper to add all tests of a TEST_MAPPING file to the tests of each group.
      *
      * @param allTests the {@code HashMap<String, Set<TestInfo>>} containing the tests of each
      * test group.
-     * @param path the {@link Path} to a TEST_MAPPING file.
-     * @param testMappingsRootPath the {@link Path} to a test mappings zip path.
+     * @param testMapping the {@link TestMapping} of a TEST_MAPPING file.
      */
-    private static void getAllTests(Map<String, Set<TestInfo>> allTests,
-        Path path, Path testMappingsRootPath) {
-        Map<String, Set<TestInfo>> testCollection =
-            new TestMapping(path, testMappingsRootPath).getTestCollection();
+    static void addAllTests(Map<String, Set<TestInfo>> allTests, TestMapping testMapping) {
+        Map<String, Set<TestInfo>> testCollection = testMapping.getTestCollection();
         for (String group : testCollection.keySet()) {
             allTests.computeIfAbsent(group, k -> new HashSet<>()).addAll(testCollection.get(group));
         }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.testmapping;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Parsed content of a test mappings zip, read directly from the zip without extracting it.
+ *
+ * <p>All the TEST_MAPPING files of the zip are parsed in parallel when the index is built. A file
+ * that cannot be parsed only fails the lookups that need it. Indexes are cached in the process by
+ * the digest of the zip, so invocations running with the same test mappings share them.
+ */
+public class TestMappingIndex {
+
+    /** Maximum number of indexes kept, least recently used ones are dropped first. */
+    @VisibleForTesting static final int MAX_CACHED_INDEXES = 10;
+
+    private static final Map<String, TestMappingIndex> sIndexes =
+            new LinkedHashMap<String, TestMappingIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TestMappingIndex> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            };
+
+    /** The TEST_MAPPING files by path of their folder relative to the root of the zip. */
+    private final Map<String, TestMapping> mTestMappings;
+
+    /** The errors of the TEST_MAPPING files that could not be parsed, by path of their folder. */
+    private final Map<String, RuntimeException> mParseErrors;
+
+    private final Set<String> mDisabledPresubmitTests;
+
+    @VisibleForTesting
+    TestMappingIndex(Map<String, TestMapping> testMappings, Set<String> disabledPresubmitTests) {
+        this(testMappings, new TreeMap<>(), disabledPresubmitTests);
+    }
+
+    private TestMappingIndex(
+            Map<String, TestMapping> testMappings,
+            Map<String, RuntimeException> parseErrors,
+            Set<String> disabledPresubmitTests) {
+        mTestMappings = testMappings;
+        mParseErrors = parseErrors;
+        mDisabledPresubmitTests = disabledPresubmitTests;
+    }
+
+    /**
+     * Returns the index of a test mappings zip, building it if the same content was not indexed
+     * before.
+     *
+     * @param testMappingsZip A {@link File} of the test mappings zip.
+     * @return the {@link TestMappingIndex} of the zip.
+     */
+    public static TestMappingIndex getIndex(File testMappingsZip) {
+        String digest;
+        try {
+            digest = FileUtil.calculateMd5(testMappingsZip);
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    String.format(
+                            "IO exception (%s) when reading test mappings zip (%s)",
+                            e.getMessage(), testMappingsZip.getAbsolutePath()),
+                    e);
+        }
+        synchronized (sIndexes) {
+            TestMappingIndex index = sIndexes.get(digest);
+            if (index != null) {
+                CLog.d("Reusing the index of test mappings zip %s", testMappingsZip);
+                return index;
+            }
+        }
+        TestMappingIndex index = buildIndex(testMappingsZip);
+        synchronized (sIndexes) {
+            sIndexes.put(digest, index);
+        }
+        return index;
+    }
+
+    /** Drops all the cached indexes. */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sIndexes) {
+            sIndexes.clear();
+        }
+    }
+
+    /** Reads and parses all the TEST_MAPPING files of the zip. */
+    @VisibleForTesting
+    static TestMappingIndex buildIndex(File testMappingsZip) {
+        long start = System.currentTimeMillis();
+        Map<String, String> contents = new LinkedHashMap<>();
+        Set<String> disabledPresubmitTests = new HashSet<>();
+        try (ZipFile zipFile = new ZipFile(testMappingsZip)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                Path path = Paths.get(entry.getName()).normalize();
+                String fileName = path.getFileName().toString();
+                if (fileName.equals(TestMapping.TEST_MAPPING)) {
+                    Path parent = path.getParent();
+                    contents.put(parent == null ? "" : parent.toString(), read(zipFile, entry));
+                } else if (path.toString().equals(TestMapping.DISABLED_PRESUBMIT_TESTS_FILE)) {
+                    disabledPresubmitTests.addAll(
+                            Arrays.asList(read(zipFile, entry).split("\\r?\\n")));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(
+                    String.format(
+                            "IO exception (%s) when reading test mappings zip (%s)",
+                            e.getMessage(), testMappingsZip.getAbsolutePath()),
+                    e);
+        }
+        // Parse in parallel, sorted by path so lookups are in a stable order. Keep the parsing
+        // errors to only fail the lookups of the broken files.
+        Map<String, Object> parsed =
+                contents.entrySet()
+                        .parallelStream()
+                        .collect(
+                                Collectors.toMap(
+                                        e -> e.getKey(),
+                                        e -> parse(testMappingsZip, e.getKey(), e.getValue()),
+                                        (a, b) -> a,
+                                        TreeMap::new));
+        Map<String, TestMapping> testMappings = new TreeMap<>();
+        Map<String, RuntimeException> parseErrors = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : parsed.entrySet()) {
+            if (entry.getValue() instanceof TestMapping) {
+                testMappings.put(entry.getKey(), (TestMapping) entry.getValue());
+            } else {
+                parseErrors.put(entry.getKey(), (RuntimeException) entry.getValue());
+            }
+        }
+        CLog.d(
+                "Indexed %d TEST_MAPPING files of %s in %d ms",
+                testMappings.size(),
+                testMappingsZip.getName(),
+                System.currentTimeMillis() - start);
+        return new TestMappingIndex(
+                Collections.unmodifiableMap(testMappings),
+                Collections.unmodifiableMap(parseErrors),
+                Collections.unmodifiableSet(disabledPresubmitTests));
+    }
+
+    /** Returns the parsed {@link TestMapping}, or the {@link RuntimeException} parsing it. */
+    private static Object parse(File testMappingsZip, String relativePath, String content) {
+        try {
+            return new TestMapping(
+                    content,
+                    relativePath,
+                    String.format(
+                            "%s!/%s/%s",
+                            testMappingsZip, relativePath, TestMapping.TEST_MAPPING));
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    /** Throws the error of a TEST_MAPPING file that could not be parsed, if any. */
+    private void checkParsed(String relativePath) {
+        RuntimeException error = mParseErrors.get(relativePath);
+        if (error != null) {
+            throw new RuntimeException(error.getMessage(), error);
+        }
+    }
+
+    private static String read(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (InputStream stream = zipFile.getInputStream(entry)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(stream, content);
+            return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns the TEST_MAPPING files to load tests from.
+     *
+     * @param relativePaths paths relative to the root of the zip to limit the TEST_MAPPING files
+     *     to, the TEST_MAPPING files of the paths and their parents are returned. All the
+     *     TEST_MAPPING files are returned if empty.
+     * @return copies of the {@link TestMapping}s, that can be modified by the caller.
+     */
+    public List<TestMapping> getTestMappings(Collection<String> relativePaths) {
+        Collection<TestMapping> testMappings;
+        if (relativePaths.isEmpty()) {
+            for (String relativePath : mParseErrors.keySet()) {
+                checkParsed(relativePath);
+            }
+            testMappings = mTestMappings.values();
+        } else {
+            Map<String, TestMapping> found = new LinkedHashMap<>();
+            for (String relativePath : relativePaths) {
+                boolean hasAdded = false;
+                Path path = Paths.get(relativePath).normalize();
+                // Find the TEST_MAPPING files until reaching to the root, excluded.
+                while (path != null && !path.toString().isEmpty()) {
+                    checkParsed(path.toString());
+                    TestMapping testMapping = mTestMappings.get(path.toString());
+                    if (testMapping != null) {
+                        hasAdded = true;
+                        CLog.d("Adding TEST_MAPPING path: %s", path);
+                        found.put(path.toString(), testMapping);
+                    }
+                    path = path.getParent();
+                }
+                if (!hasAdded) {
+                    CLog.w("Couldn't find TEST_MAPPING files from %s", relativePath);
+                }
+            }
+            if (found.isEmpty()) {
+                throw new RuntimeException(
+                        String.format("Couldn't find TEST_MAPPING files from %s", relativePaths));
+            }
+            testMappings = found.values();
+        }
+        List<TestMapping> copies = new ArrayList<>();
+        for (TestMapping testMapping : testMappings) {
+            copies.add(testMapping.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * Returns the tests disabled for the test group. Only presubmit tests can be disabled.
+     *
+     * @param testGroup a {@link String} of the test group.
+     */
+    public Set<String> getDisabledTests(String testGroup) {
+        if (!TestMapping.PRESUBMIT.equals(testGroup)) {
+            return new HashSet<>();
+        }
+        return new LinkedHashSet<>(mDisabledPresubmitTests);
+    }
+}
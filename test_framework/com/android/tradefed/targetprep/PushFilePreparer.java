@@ -25,9 +25,13 @@ import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.DevicePushCache;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.NativeDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IAbiReceiver;
@@ -335,6 +339,12 @@ public class PushFilePreparer extends BaseTargetPreparer
                     "mv \"" + entry.getKey() + "\" \"" + entry.getValue() + "\"");
         }
 
+        DevicePushCache pushCache = null;
+        if (device instanceof NativeDevice) {
+            pushCache = ((NativeDevice) device).getPushCache();
+        }
+        long savedBytesBefore = pushCache != null ? pushCache.getSavedBytes() : 0L;
+
         Map<String, File> remoteToLocalMapping = getPushSpecs(device.getDeviceDescriptor());
         for (String remotePath : remoteToLocalMapping.keySet()) {
             File local = remoteToLocalMapping.get(remotePath);
@@ -345,6 +355,13 @@ public class PushFilePreparer extends BaseTargetPreparer
                             local.getPath(), remotePath));
             evaluatePushingPair(device, testInfo.getBuildInfo(), local, remotePath);
         }
+        if (pushCache != null && mModuleName != null) {
+            long savedBytes = pushCache.getSavedBytes() - savedBytesBefore;
+            CLog.d("Push cache saved %d bytes for %s", savedBytes, mModuleName);
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.PUSH_CACHE_MODULE_SAVED_BYTES,
+                    String.format("%s:%d", mModuleName, savedBytes));
+        }
 
         for (String command : mPostPushCommands) {
             device.executeShellCommand(command);
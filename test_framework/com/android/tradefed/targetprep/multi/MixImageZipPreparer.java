@@ -34,7 +34,6 @@ import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
-import com.android.tradefed.util.ZipUtil;
 import com.google.common.annotations.VisibleForTesting;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -50,15 +49,22 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.DeflaterOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 
 /** An {@link IMultiTargetPreparer} that mixes a system build's images in a device build. */
 @OptionClass(alias = "mix-image-zip")
@@ -114,6 +120,21 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
     )
     private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
 
+    @Option(
+            name = "compression-threads",
+            description =
+                    "the number of threads compressing the images of the mixed image zip. The "
+                            + "images already compressed in the input zips are copied as is.")
+    private int mCompressionThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(
+            name = "mixed-image-cache-size",
+            description =
+                    "the number of mixed image zips kept on the host, so that the invocations "
+                            + "mixing the same builds reuse them instead of creating them again. "
+                            + "0 disables the cache.")
+    private int mMixedImageCacheSize = 0;
+
     @Option(
             name = "misc-info-path",
             description =
@@ -143,6 +164,22 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
     private static final String MISC_INFO_FILE_NAME = "misc_info.txt";
     private static final String REPACK_SUPER_IMAGE_FILE_NAME = "repack_super_image";
 
+    /** The mixed image zips kept on the host, from the least recently used, by cache key. */
+    private static final LinkedHashMap<String, File> sMixedImageCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Whether the cached zips are deleted when the process exits. Guarded by sMixedImageCache. */
+    private static boolean sCacheCleanupRegistered = false;
+    /**
+     * The locks preventing the same mixed image zip from being created concurrently, by cache key.
+     * A lock is removed once no invocation uses it.
+     */
+    private static final Map<String, CacheLock> sMixedImageLocks = new HashMap<>();
+
+    /** A lock of {@link #sMixedImageLocks}, with the number of invocations holding or waiting. */
+    private static class CacheLock {
+        private int mUsers = 0;
+    }
+
     /** The interface that creates {@link InputStream} from a file or a compressed file. */
     @VisibleForTesting
     static interface InputStreamFactory {
@@ -179,6 +216,47 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
         }
     }
 
+    /** The {@link InputStreamFactory} of a zip entry, which can be copied without recompressing. */
+    private static class ZipEntryInputStreamFactory implements InputStreamFactory {
+        private final ZipFile mZipFile;
+        private final ZipArchiveEntry mEntry;
+
+        ZipEntryInputStreamFactory(ZipFile zipFile, ZipArchiveEntry entry) {
+            mZipFile = zipFile;
+            mEntry = entry;
+        }
+
+        @Override
+        public InputStream createInputStream() throws IOException {
+            return mZipFile.getInputStream(mEntry);
+        }
+
+        @Override
+        public long getSize() {
+            return mEntry.getSize();
+        }
+
+        @Override
+        public long getCrc32() {
+            return mEntry.getCrc();
+        }
+
+        /** Return the compression method of the entry. */
+        int getMethod() {
+            return mEntry.getMethod();
+        }
+
+        /** Return the size of the data as stored in the zip. */
+        long getCompressedSize() {
+            return mEntry.getCompressedSize();
+        }
+
+        /** Create a new stream of the data as stored in the zip. The caller should close it. */
+        InputStream createRawInputStream() throws IOException {
+            return mZipFile.getRawInputStream(mEntry);
+        }
+    }
+
     @Override
     public void setUp(TestInformation testInformation)
             throws TargetSetupError, BuildError, DeviceNotAvailableException {
@@ -197,10 +275,60 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
             resourceBuildInfo = context.getBuildInfo(resourceNullDevice);
         }
 
+        File mixedImageZip;
+        if (mMixedImageCacheSize > 0) {
+            String cacheKey = getCacheKey(deviceBuildInfo, systemBuildInfo, resourceBuildInfo);
+            CacheLock lock = acquireCacheLock(cacheKey);
+            try {
+                synchronized (lock) {
+                    mixedImageZip = getCachedZip(cacheKey);
+                    if (mixedImageZip == null) {
+                        mixedImageZip =
+                                createMixedImageZip(
+                                        device,
+                                        deviceBuildInfo,
+                                        systemNullDevice,
+                                        systemBuildInfo,
+                                        resourceBuildInfo);
+                        addCachedZip(cacheKey, mixedImageZip, mMixedImageCacheSize);
+                    }
+                }
+            } finally {
+                releaseCacheLock(cacheKey, lock);
+            }
+        } else {
+            mixedImageZip =
+                    createMixedImageZip(
+                            device,
+                            deviceBuildInfo,
+                            systemNullDevice,
+                            systemBuildInfo,
+                            resourceBuildInfo);
+        }
+
+        IBuildInfo mixedBuildInfo =
+                createBuildCopy(
+                        deviceBuildInfo,
+                        systemBuildInfo.getBuildFlavor(),
+                        systemBuildInfo.getBuildId(),
+                        mixedImageZip);
+        // Replace the build
+        context.addDeviceBuildInfo(mDeviceLabel, mixedBuildInfo);
+        // Clean up the original build
+        deviceBuildInfo.cleanUp();
+    }
+
+    /** Create the zip of the device build's images mixed with the system and resource builds. */
+    private File createMixedImageZip(
+            ITestDevice device,
+            IDeviceBuildInfo deviceBuildInfo,
+            ITestDevice systemNullDevice,
+            IDeviceBuildInfo systemBuildInfo,
+            IBuildInfo resourceBuildInfo)
+            throws TargetSetupError, BuildError {
         ZipFile deviceImageZip = null;
         ZipFile systemImageZip = null;
         File mixedSuperImage = null;
-        File mixedImageZip = null;
         try {
             deviceImageZip = new ZipFile(deviceBuildInfo.getDeviceImageFile());
 
@@ -299,26 +427,15 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
             }
 
             CLog.d("Create mixed image zip.");
-            mixedImageZip = createZip(files, mCompressionLevel);
+            return createZip(files, mCompressionLevel, mCompressionThreads);
         } catch (IOException e) {
             throw new TargetSetupError(
                     "Could not create mixed image zip", e, device.getDeviceDescriptor());
         } finally {
             FileUtil.deleteFile(mixedSuperImage);
-            ZipUtil.closeZip(deviceImageZip);
-            ZipUtil.closeZip(systemImageZip);
+            ZipFile.closeQuietly(deviceImageZip);
+            ZipFile.closeQuietly(systemImageZip);
         }
-
-        IBuildInfo mixedBuildInfo =
-                createBuildCopy(
-                        deviceBuildInfo,
-                        systemBuildInfo.getBuildFlavor(),
-                        systemBuildInfo.getBuildId(),
-                        mixedImageZip);
-        // Replace the build
-        context.addDeviceBuildInfo(mDeviceLabel, mixedBuildInfo);
-        // Clean up the original build
-        deviceBuildInfo.cleanUp();
     }
 
     /**
@@ -334,9 +451,9 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
     private static Map<String, InputStreamFactory> getInputStreamFactoriesFromImageZip(
             final ZipFile zipFile, Predicate<String> predicate) throws IOException {
         Map<String, InputStreamFactory> factories = new HashMap<String, InputStreamFactory>();
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
         while (entries.hasMoreElements()) {
-            final ZipEntry entry = entries.nextElement();
+            final ZipArchiveEntry entry = entries.nextElement();
             if (entry.isDirectory()) {
                 CLog.w("Image zip contains subdirectory %s.", entry.getName());
                 continue;
@@ -354,24 +471,7 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
                 throw new IllegalArgumentException("Invalid CRC value.");
             }
 
-            factories.put(
-                    name,
-                    new InputStreamFactory() {
-                        @Override
-                        public InputStream createInputStream() throws IOException {
-                            return zipFile.getInputStream(entry);
-                        }
-
-                        @Override
-                        public long getSize() {
-                            return entry.getSize();
-                        }
-
-                        @Override
-                        public long getCrc32() {
-                            return entry.getCrc();
-                        }
-                    });
+            factories.put(name, new ZipEntryInputStreamFactory(zipFile, entry));
         }
         return factories;
     }
@@ -426,66 +526,147 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
         return factories;
     }
 
-    private static void initStoredZipEntry(ZipEntry entry, InputStreamFactory factory)
+    /**
+     * Create a zip file from {@link InputStreamFactory} instances.
+     *
+     * @param factories the map where the keys are the entry names and the values provide the data
+     *     to be compressed.
+     * @param compressionLevel an integer between 0 and 9. If the value is 0, this method creates
+     *     {@link ZipArchiveEntry#STORED} entries instead of default ones.
+     * @return the created zip file in temporary directory.
+     * @throws IOException if any file operation fails.
+     */
+    @VisibleForTesting
+    static File createZip(Map<String, ? extends InputStreamFactory> factories, int compressionLevel)
             throws IOException {
-        entry.setMethod(ZipOutputStream.STORED);
-        entry.setCompressedSize(factory.getSize());
-        entry.setSize(factory.getSize());
-        entry.setCrc(factory.getCrc32());
+        return createZip(factories, compressionLevel, 1);
     }
 
     /**
-     * Create a zip file from {@link InputStreamFactory} instances.
+     * Create a zip file from {@link InputStreamFactory} instances. The entries are compressed in
+     * parallel, and the entries of input zips already stored with the expected method are copied
+     * without being decompressed.
      *
      * @param factories the map where the keys are the entry names and the values provide the data
      *     to be compressed.
      * @param compressionLevel an integer between 0 and 9. If the value is 0, this method creates
-     *     {@link ZipOutputStream#STORED} entries instead of default ones.
+     *     {@link ZipArchiveEntry#STORED} entries instead of default ones.
+     * @param threads the number of threads compressing the entries.
      * @return the created zip file in temporary directory.
      * @throws IOException if any file operation fails.
      */
     @VisibleForTesting
-    static File createZip(Map<String, ? extends InputStreamFactory> factories, int compressionLevel)
+    static File createZip(
+            Map<String, ? extends InputStreamFactory> factories, int compressionLevel, int threads)
             throws IOException {
+        // STORED is faster than the default DEFLATED in no compression mode.
+        int method =
+                compressionLevel == Deflater.NO_COMPRESSION
+                        ? ZipArchiveEntry.STORED
+                        : ZipArchiveEntry.DEFLATED;
+        long startTime = System.currentTimeMillis();
         File zipFile = null;
-        OutputStream out = null;
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.max(1, threads),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "MixImageZipPreparer-compress");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        Map<String, Future<File>> deflatedData = new HashMap<>();
+        List<File> dataFiles = new ArrayList<>();
         try {
             zipFile = FileUtil.createTempFile("MixedImg", ".zip");
-            out = new FileOutputStream(zipFile);
-            out = new BufferedOutputStream(out);
-            out = new ZipOutputStream(out);
-            ZipOutputStream zipOut = (ZipOutputStream) out;
-            zipOut.setLevel(compressionLevel);
-
             for (Map.Entry<String, ? extends InputStreamFactory> factory : factories.entrySet()) {
-                ZipEntry entry = new ZipEntry(factory.getKey());
-                // STORED is faster than the default DEFLATED in no compression mode.
-                if (compressionLevel == Deflater.NO_COMPRESSION) {
-                    // STORED requires size and CRC-32 to be set before putNextEntry.
-                    // In some versions of Java, ZipEntry.getSize() returns (1L << 32) - 1
-                    // if the original size is larger than or equal to 4GB.
-                    // This condition avoids using the wrong size value.
-                    if (factory.getValue().getSize() != (1L << 32) - 1) {
-                        initStoredZipEntry(entry, factory.getValue());
-                    }
+                InputStreamFactory value = factory.getValue();
+                if (method == ZipArchiveEntry.DEFLATED && !isRawCopyable(value, method)) {
+                    File data = FileUtil.createTempFile("MixedImgEntry", ".deflate");
+                    dataFiles.add(data);
+                    deflatedData.put(
+                            factory.getKey(),
+                            executor.submit(() -> deflate(value, compressionLevel, data)));
                 }
-                zipOut.putNextEntry(entry);
-                try (InputStream in =
-                        new BufferedInputStream(factory.getValue().createInputStream())) {
-                    StreamUtil.copyStreams(in, zipOut);
+            }
+            try (ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(zipFile)) {
+                for (Map.Entry<String, ? extends InputStreamFactory> factory :
+                        factories.entrySet()) {
+                    InputStreamFactory value = factory.getValue();
+                    ZipArchiveEntry entry = new ZipArchiveEntry(factory.getKey());
+                    entry.setMethod(method);
+                    entry.setSize(value.getSize());
+                    entry.setCrc(value.getCrc32());
+                    if (isRawCopyable(value, method)) {
+                        ZipEntryInputStreamFactory zipEntry = (ZipEntryInputStreamFactory) value;
+                        entry.setCompressedSize(zipEntry.getCompressedSize());
+                        try (InputStream in = zipEntry.createRawInputStream()) {
+                            zipOut.addRawArchiveEntry(entry, in);
+                        }
+                    } else if (method == ZipArchiveEntry.STORED) {
+                        entry.setCompressedSize(value.getSize());
+                        try (InputStream in = value.createInputStream()) {
+                            zipOut.addRawArchiveEntry(entry, in);
+                        }
+                    } else {
+                        File data = waitForDeflatedData(deflatedData.get(factory.getKey()));
+                        try (InputStream in = new FileInputStream(data)) {
+                            entry.setCompressedSize(data.length());
+                            zipOut.addRawArchiveEntry(entry, in);
+                        }
+                        FileUtil.deleteFile(data);
+                    }
                 }
-                zipOut.closeEntry();
             }
-
+            CLog.d(
+                    "Created mixed image zip in %d ms.", System.currentTimeMillis() - startTime);
             File returnValue = zipFile;
             zipFile = null;
             return returnValue;
         } finally {
-            StreamUtil.close(out);
+            executor.shutdownNow();
+            for (File data : dataFiles) {
+                FileUtil.deleteFile(data);
+            }
             FileUtil.deleteFile(zipFile);
         }
     }
 
+    /** Return whether the data can be copied as is from an input zip to the output zip. */
+    private static boolean isRawCopyable(InputStreamFactory factory, int method) {
+        return factory instanceof ZipEntryInputStreamFactory
+                && ((ZipEntryInputStreamFactory) factory).getMethod() == method;
+    }
+
+    /** Compress the data into a file, as stored in a DEFLATED zip entry. */
+    private static File deflate(InputStreamFactory factory, int compressionLevel, File data)
+            throws IOException {
+        // The zip entries contain raw deflate data without zlib header.
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try (InputStream in = new BufferedInputStream(factory.createInputStream());
+                OutputStream out =
+                        new DeflaterOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(data)), deflater)) {
+            StreamUtil.copyStreams(in, out);
+        } finally {
+            deflater.end();
+        }
+        return data;
+    }
+
+    private static File waitForDeflatedData(Future<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
     /**
      * Execute a script that unpacks a super image, replaces the unpacked images, and makes a new
      * super image.
@@ -557,6 +738,148 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
         CLog.d("Repack super image stderr:\n%s", result.getStderr());
     }
 
+    /** Return the key of the mixed image zip created from the builds with the current options. */
+    private String getCacheKey(
+            IDeviceBuildInfo deviceBuildInfo,
+            IDeviceBuildInfo systemBuildInfo,
+            IBuildInfo resourceBuildInfo) {
+        List<String> key = new ArrayList<>();
+        for (IBuildInfo buildInfo :
+                Arrays.asList(deviceBuildInfo, systemBuildInfo, resourceBuildInfo)) {
+            if (buildInfo != null) {
+                key.add(buildInfo.getBuildBranch());
+                key.add(buildInfo.getBuildFlavor());
+                key.add(buildInfo.getBuildId());
+            }
+        }
+        // Distinguish the local builds that have no build id by their files.
+        key.add(getFileKey(deviceBuildInfo, deviceBuildInfo.getDeviceImageFile()));
+        key.add(getFileKey(systemBuildInfo, systemBuildInfo.getDeviceImageFile()));
+        if (resourceBuildInfo != null) {
+            for (String fileName : mExtraBuildResourceFiles) {
+                key.add(getFileKey(resourceBuildInfo, resourceBuildInfo.getFile(fileName)));
+            }
+        }
+        key.add(mSystemFileNames.toString());
+        key.add(mDummyFileNames.toString());
+        key.add(mExtraBuildResourceFiles.toString());
+        key.add(String.valueOf(mCompressionLevel));
+        key.add(getFileKey(mMiscInfoFile));
+        key.add(getFileKey(mOtaToolsZip));
+        key.add(getFileKey(mRepackSuperImageFile));
+        return String.join(":", key);
+    }
+
+    /**
+     * Return the key of a file of a build. The files of a build with an id are downloaded to new
+     * paths, their size is enough to tell the build variants apart. The files of a local build
+     * are identified by their path and modification time.
+     */
+    private static String getFileKey(IBuildInfo buildInfo, File file) {
+        String buildId = buildInfo.getBuildId();
+        if (file != null && buildId != null && !IBuildInfo.UNKNOWN_BUILD_ID.equals(buildId)) {
+            return String.valueOf(file.length());
+        }
+        return getFileKey(file);
+    }
+
+    /** Return the path, size and modification time of a file, which change with its content. */
+    private static String getFileKey(File file) {
+        if (file == null) {
+            return "null";
+        }
+        return String.format(
+                "%s:%d:%d", file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    private static CacheLock acquireCacheLock(String cacheKey) {
+        synchronized (sMixedImageLocks) {
+            CacheLock lock = sMixedImageLocks.computeIfAbsent(cacheKey, k -> new CacheLock());
+            lock.mUsers++;
+            return lock;
+        }
+    }
+
+    private static void releaseCacheLock(String cacheKey, CacheLock lock) {
+        synchronized (sMixedImageLocks) {
+            lock.mUsers--;
+            if (lock.mUsers == 0) {
+                sMixedImageLocks.remove(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Get a copy of the cached mixed image zip. The copy is a hard link when possible, so that the
+     * caller can delete it without affecting the cache.
+     *
+     * @return the copy, or null if the mixed image zip is not cached.
+     */
+    private static File getCachedZip(String cacheKey) {
+        File cachedZip;
+        synchronized (sMixedImageCache) {
+            cachedZip = sMixedImageCache.get(cacheKey);
+        }
+        if (cachedZip == null || !cachedZip.isFile()) {
+            return null;
+        }
+        try {
+            File copy = linkToTempFile(cachedZip);
+            CLog.i("Reuse mixed image zip %s.", cachedZip);
+            return copy;
+        } catch (IOException e) {
+            CLog.w("Failed to reuse mixed image zip %s: %s", cachedZip, e);
+            return null;
+        }
+    }
+
+    /** Keep a link to a mixed image zip, and delete the least recently used ones over the limit. */
+    private static void addCachedZip(String cacheKey, File mixedImageZip, int cacheSize) {
+        File cachedZip;
+        try {
+            cachedZip = linkToTempFile(mixedImageZip);
+        } catch (IOException e) {
+            CLog.w("Failed to cache mixed image zip %s: %s", mixedImageZip, e);
+            return;
+        }
+        List<File> evicted = new ArrayList<>();
+        synchronized (sMixedImageCache) {
+            if (!sCacheCleanupRegistered) {
+                Runtime.getRuntime()
+                        .addShutdownHook(
+                                new Thread(
+                                        MixImageZipPreparer::clearMixedImageCache,
+                                        "MixedImageCache-cleanup"));
+                sCacheCleanupRegistered = true;
+            }
+            File previous = sMixedImageCache.put(cacheKey, cachedZip);
+            if (previous != null) {
+                evicted.add(previous);
+            }
+            Iterator<File> iterator = sMixedImageCache.values().iterator();
+            while (sMixedImageCache.size() > cacheSize && iterator.hasNext()) {
+                evicted.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        for (File file : evicted) {
+            FileUtil.deleteFile(file);
+        }
+    }
+
+    private static File linkToTempFile(File file) throws IOException {
+        File link = FileUtil.createTempFile(FileUtil.getBaseName(file.getName()), ".zip");
+        try {
+            FileUtil.deleteFile(link);
+            FileUtil.hardlinkFile(file, link);
+            File returnValue = link;
+            link = null;
+            return returnValue;
+        } finally {
+            FileUtil.deleteFile(link);
+        }
+    }
+
     private static IBuildInfo createBuildCopy(
             IDeviceBuildInfo deviceBuildInfo, String buildFlavor, String buildId, File imageZip) {
         deviceBuildInfo.setProperties(BuildInfoProperties.DO_NOT_COPY_IMAGE_FILE);
@@ -607,6 +930,30 @@ public class MixImageZipPreparer extends BaseMultiTargetPreparer {
         mCompressionLevel = compressionLevel;
     }
 
+    @VisibleForTesting
+    void setMixedImageCacheSize(int cacheSize) {
+        mMixedImageCacheSize = cacheSize;
+    }
+
+    /** Return the number of locks of the mixed image cache, held or waited on. */
+    @VisibleForTesting
+    static int getCacheLockCount() {
+        synchronized (sMixedImageLocks) {
+            return sMixedImageLocks.size();
+        }
+    }
+
+    /** Delete the cached mixed image zips. */
+    @VisibleForTesting
+    static void clearMixedImageCache() {
+        synchronized (sMixedImageCache) {
+            for (File file : sMixedImageCache.values()) {
+                FileUtil.deleteFile(file);
+            }
+            sMixedImageCache.clear();
+        }
+    }
+
     @VisibleForTesting
     IRunUtil createRunUtil() {
         return new RunUtil();
@@ -43,9 +43,19 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** A Test that runs a native test package on given device. */
 @OptionClass(alias = "gtest")
@@ -99,6 +109,25 @@ public class GTest extends GTestBase implements IDeviceTest {
                             + "match abi under test.")
     private boolean mFilterAbiFolders = true;
 
+    @Option(
+            name = "enumerate-with-find",
+            description =
+                    "List the test binaries under the test path with a single shell command "
+                            + "instead of inspecting each file and folder.")
+    private boolean mEnumerateWithFind = false;
+
+    @Option(
+            name = "binary-parallelism",
+            description =
+                    "Maximum number of test binaries to run at the same time on the device. "
+                            + "Results are still reported one binary at a time. A value above 1 "
+                            + "implies --enumerate-with-find. Ignored when rebooting or running "
+                            + "commands before or after each test.")
+    private int mBinaryParallelism = 1;
+
+    // Numbers the scripts of binaries running at the same time
+    private final AtomicInteger mScriptCount = new AtomicInteger();
+
     // Max characters allowed for executing GTest via command line
     private static final int GTEST_CMD_CHAR_LIMIT = 1000;
     /**
@@ -192,6 +221,195 @@ public class GTest extends GTestBase implements IDeviceTest {
         }
     }
 
+    /**
+     * Lists the test binaries under a folder with a single shell command. Files are filtered the
+     * same way as {@link #doRunAllTestsInSubdirectory(String, ITestDevice,
+     * ITestInvocationListener)} does.
+     *
+     * @param root The root folder to begin searching for native tests, or a single test binary
+     * @param testDevice The device to run tests on
+     * @return the full paths of the test binaries, sorted.
+     * @throws DeviceNotAvailableException
+     */
+    @VisibleForTesting
+    List<String> findTestBinaries(String root, ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        // Files readable and executable by the owner, or symbolic links to regular files.
+        String output =
+                testDevice.executeShellCommand(
+                        String.format(
+                                "find %s \\( -type f -perm -500 -o -type l -exec test -f {} \\; "
+                                        + "\\) -print 2>/dev/null",
+                                root));
+        List<String> binaries = new ArrayList<>();
+        if (output == null) {
+            return binaries;
+        }
+        for (String line : output.split("\\r?\\n")) {
+            String path = line.trim();
+            if (path.isEmpty() || !isInRunFolder(root, path) || isExcludedFile(path)) {
+                continue;
+            }
+            binaries.add(path);
+        }
+        Collections.sort(binaries);
+        return binaries;
+    }
+
+    /** Returns true if none of the folders between the root and the file are filtered out. */
+    private boolean isInRunFolder(String root, String path) {
+        if (path.equals(root)) {
+            return true;
+        }
+        if (!path.startsWith(root + "/")) {
+            return false;
+        }
+        String folder = root;
+        String[] segments = path.substring(root.length() + 1).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            if (!shouldRunFolder(folder)) {
+                return false;
+            }
+            folder = folder + "/" + segments[i];
+        }
+        return true;
+    }
+
+    /**
+     * Runs the given test binaries, up to {@code binary-parallelism} of them at the same time. The
+     * results of each binary are buffered and reported once it completes, in the order of the
+     * binaries, so runs never interleave in the listener. Binaries run one at a time when the
+     * device is rebooted or commands are run before or after each test.
+     *
+     * @param binaries the full paths of the test binaries
+     * @param testDevice The device to run tests on
+     * @param listener the {@link ITestInvocationListener}
+     * @throws DeviceNotAvailableException
+     */
+    @VisibleForTesting
+    void runTestBinaries(
+            List<String> binaries, ITestDevice testDevice, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        if (mBinaryParallelism <= 1
+                || binaries.size() <= 1
+                || mRebootBeforeTest
+                || !getBeforeTestCmd().isEmpty()
+                || !getAfterTestCmd().isEmpty()) {
+            for (String binary : binaries) {
+                runTestBinary(binary, testDevice, listener).call();
+            }
+            return;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(mBinaryParallelism, binaries.size()),
+                        r -> {
+                            Thread t = new Thread(r, "gtest-" + testDevice.getSerialNumber());
+                            t.setDaemon(true);
+                            return t;
+                        });
+        try {
+            List<ResultBuffer> buffers = new ArrayList<>();
+            List<Future<Void>> futures = new ArrayList<>();
+            for (String binary : binaries) {
+                ResultBuffer buffer = new ResultBuffer();
+                // Parsers and flags are prepared here since they update the filters.
+                BinaryRun run = runTestBinary(binary, testDevice, buffer.getListener());
+                buffers.add(buffer);
+                futures.add(executor.submit(() -> run.call()));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    buffers.get(i).replay(listener);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DeviceNotAvailableException) {
+                        throw (DeviceNotAvailableException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+                buffers.get(i).replay(listener);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** A prepared run of a test binary. */
+    private interface BinaryRun {
+        Void call() throws DeviceNotAvailableException;
+    }
+
+    /** Prepares the run of a single test binary, already known to not be skipped. */
+    private BinaryRun runTestBinary(
+            String fullPath, ITestDevice testDevice, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        IShellOutputReceiver resultParser = createResultParser(getFileName(fullPath), listener);
+        String flags = getAllGTestFlags(fullPath);
+        return () -> {
+            CLog.i("Running gtest %s %s on %s", fullPath, flags, testDevice.getSerialNumber());
+            if (isEnableXmlOutput()) {
+                runTestXml(testDevice, fullPath, flags, listener);
+            } else {
+                runTest(testDevice, resultParser, fullPath, flags);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Records the events reported by the parser of a binary running in the background, so they
+     * can be reported to the actual listener once the binary completes.
+     */
+    private static class ResultBuffer implements InvocationHandler {
+        private final List<Method> mMethods = new ArrayList<>();
+        private final List<Object[]> mArgs = new ArrayList<>();
+        private final ITestInvocationListener mListener =
+                (ITestInvocationListener)
+                        Proxy.newProxyInstance(
+                                ITestInvocationListener.class.getClassLoader(),
+                                new Class<?>[] {ITestInvocationListener.class},
+                                this);
+
+        ITestInvocationListener getListener() {
+            return mListener;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (Object.class.equals(method.getDeclaringClass())) {
+                return method.invoke(this, args);
+            }
+            mMethods.add(method);
+            mArgs.add(args);
+            return null;
+        }
+
+        synchronized void replay(ITestInvocationListener listener) {
+            for (int i = 0; i < mMethods.size(); i++) {
+                try {
+                    mMethods.get(i).invoke(listener, mArgs.get(i));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            mMethods.clear();
+            mArgs.clear();
+        }
+    }
+
     /**
      * Decide to filter out a folder subpath based on whether or not we should enforce the current
      * abi under test.
@@ -239,6 +457,11 @@ public class GTest extends GTestBase implements IDeviceTest {
         if (!mDevice.isExecutable(fullPath)) {
             return true;
         }
+        return isExcludedFile(fullPath);
+    }
+
+    /** Returns true if the file matches one of the file exclusion filters. */
+    private boolean isExcludedFile(String fullPath) {
         List<String> fileExclusionFilterRegex = getFileExclusionFilterRegex();
         if (fileExclusionFilterRegex == null || fileExclusionFilterRegex.isEmpty()) {
             return false;
@@ -261,7 +484,15 @@ public class GTest extends GTestBase implements IDeviceTest {
      */
     protected void executeCommandByScript(final ITestDevice testDevice, final String cmd,
             final IShellOutputReceiver resultParser) throws DeviceNotAvailableException {
-        String tmpFileDevice = "/data/local/tmp/gtest_script.sh";
+        executeCommandByScript(testDevice, cmd, resultParser, "/data/local/tmp/gtest_script.sh");
+    }
+
+    private void executeCommandByScript(
+            final ITestDevice testDevice,
+            final String cmd,
+            final IShellOutputReceiver resultParser,
+            final String tmpFileDevice)
+            throws DeviceNotAvailableException {
         testDevice.pushString(String.format("#!/bin/bash\n%s", cmd), tmpFileDevice);
         // force file to be executable
         testDevice.executeShellCommand(String.format("chmod 755 %s", tmpFileDevice));
@@ -344,7 +575,18 @@ public class GTest extends GTestBase implements IDeviceTest {
                         0 /* retryAttempts */);
             } else {
                 // wrap adb shell command in script if command is too long for direct execution
-                executeCommandByScript(testDevice, cmd, resultParser);
+                if (mBinaryParallelism > 1) {
+                    // Binaries running at the same time need their own script.
+                    executeCommandByScript(
+                            testDevice,
+                            cmd,
+                            resultParser,
+                            String.format(
+                                    "/data/local/tmp/gtest_script_%d.sh",
+                                    mScriptCount.incrementAndGet()));
+                } else {
+                    executeCommandByScript(testDevice, cmd, resultParser);
+                }
             }
         } catch (DeviceNotAvailableException e) {
             throw e;
@@ -447,7 +689,11 @@ public class GTest extends GTestBase implements IDeviceTest {
                 // prevent "No such file or directory" errors when writing test coverage to disk.
                 mDevice.executeShellCommand("mkdir /data/misc/trace/testcoverage");
             }
-            doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            if (mEnumerateWithFind || mBinaryParallelism > 1) {
+                runTestBinaries(findTestBinaries(testPath, mDevice), mDevice, listener);
+            } else {
+                doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            }
         } catch (Throwable t) {
             throwable = t;
             throw t;
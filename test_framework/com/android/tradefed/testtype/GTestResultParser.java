@@ -92,6 +92,14 @@ import java.util.regex.Pattern;
  * All other lines are ignored.
  */
 public class GTestResultParser extends MultiLineReceiver {
+    // eg: Running XX tests from 1 test case.
+    private static final Pattern NUM_TESTS_PATTERN =
+            Pattern.compile("Running (\\d+) test[s]? from .*");
+    // eg: (XX ms total)
+    private static final Pattern TOTAL_TIME_PATTERN =
+            Pattern.compile(".*\\((\\d+) ms total\\)");
+    private static final String TIME_SUFFIX = " ms)";
+
     // Variables to keep track of state
     private TestResult mCurrentTestResult = null;
     private int mNumTestsRun = 0;
@@ -290,89 +298,99 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param line  Text output line
      */
     private void parse(String line) {
-        String message = null;
-
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
-                // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
-                processTestStartedTag(message);
-            } else if (line.contains(Prefixes.SKIPPED_TEST_MARKER)) {
-                // Individual test was skipped.
-                // Logs from test could offset the SKIPPED marker
-                message =
-                        line.substring(
-                                        line.indexOf(Prefixes.SKIPPED_TEST_MARKER)
-                                                + Prefixes.SKIPPED_TEST_MARKER.length())
-                                .trim();
-                if (!testInProgress()) {
-                    // Alternative format does not have a RUN tag, so we fake it.
-                    fakeRunMarker(message);
-                }
-                processSkippedTag(message);
-                clearCurrentTestResult();
-            }
-            else if (line.contains(Prefixes.OK_TEST_MARKER)) {
-                // Individual test completed successfully
-                // Logs from test could offset the OK marker
-                message = line.substring(line.indexOf(Prefixes.OK_TEST_MARKER) +
-                        Prefixes.OK_TEST_MARKER.length()).trim();
-                if (!testInProgress()) {
-                    // If we are missing the RUN tag, skip it wrong format
-                    CLog.e("Found %s without %s before, Ensure you are using GTest format",
-                            line, Prefixes.START_TEST_MARKER);
-                    return;
-                }
-                processOKTag(message);
-                clearCurrentTestResult();
+        if (!mTestRunInProgress && !line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            return;
+        }
+        // All the markers start with a bracket, most test output lines can be skipped quickly.
+        int bracket = line.indexOf('[');
+        if (bracket < 0) {
+            if (testInProgress()) {
+                appendTestOutputLine(line);
             }
-            else if (line.contains(Prefixes.ALT_OK_MARKER)) {
-                message = line.substring(line.indexOf(Prefixes.ALT_OK_MARKER) +
-                        Prefixes.ALT_OK_MARKER.length()).trim();
-                // This alternative format does not have a RUN tag, so we fake it.
+            return;
+        }
+        if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+            // Individual test started
+            processTestStartedTag(getMessage(line, 0, Prefixes.START_TEST_MARKER));
+            return;
+        }
+        // Logs from test could offset the markers
+        int index = line.indexOf(Prefixes.SKIPPED_TEST_MARKER, bracket);
+        if (index >= 0) {
+            // Individual test was skipped.
+            String message = getMessage(line, index, Prefixes.SKIPPED_TEST_MARKER);
+            if (!testInProgress()) {
+                // Alternative format does not have a RUN tag, so we fake it.
                 fakeRunMarker(message);
-                processOKTag(message);
-                clearCurrentTestResult();
             }
-            else if (line.contains(Prefixes.FAILED_TEST_MARKER)) {
-                // Individual test completed with failure
-                message = line.substring(line.indexOf(Prefixes.FAILED_TEST_MARKER) +
-                        Prefixes.FAILED_TEST_MARKER.length()).trim();
-                if (!testInProgress()) {
-                    // If we are missing the RUN tag (ALT format)
-                    fakeRunMarker(message);
-                }
-                processFailedTag(message);
-                clearCurrentTestResult();
+            processSkippedTag(message);
+            clearCurrentTestResult();
+            return;
+        }
+        index = line.indexOf(Prefixes.OK_TEST_MARKER, bracket);
+        if (index >= 0) {
+            // Individual test completed successfully
+            if (!testInProgress()) {
+                // If we are missing the RUN tag, skip it wrong format
+                CLog.e(
+                        "Found %s without %s before, Ensure you are using GTest format",
+                        line, Prefixes.START_TEST_MARKER);
+                return;
             }
-            else if (line.contains(Prefixes.TIMEOUT_MARKER)) {
-                // Individual test timeout is considered a failure
-                message = line.substring(line.indexOf(Prefixes.TIMEOUT_MARKER) +
-                        Prefixes.TIMEOUT_MARKER.length()).trim();
+            processOKTag(getMessage(line, index, Prefixes.OK_TEST_MARKER));
+            clearCurrentTestResult();
+            return;
+        }
+        index = line.indexOf(Prefixes.ALT_OK_MARKER, bracket);
+        if (index >= 0) {
+            String message = getMessage(line, index, Prefixes.ALT_OK_MARKER);
+            // This alternative format does not have a RUN tag, so we fake it.
+            fakeRunMarker(message);
+            processOKTag(message);
+            clearCurrentTestResult();
+            return;
+        }
+        index = line.indexOf(Prefixes.FAILED_TEST_MARKER, bracket);
+        if (index >= 0) {
+            // Individual test completed with failure
+            String message = getMessage(line, index, Prefixes.FAILED_TEST_MARKER);
+            if (!testInProgress()) {
+                // If we are missing the RUN tag (ALT format)
                 fakeRunMarker(message);
-                processFailedTag(message);
-                clearCurrentTestResult();
-            }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
-                // Test run started
-                // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunStartedTag(message);
-            }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-                // Test run ended
-                // This is for the end of the test suite run, so make sure this else-if is after the
-                // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunCompletedTag(message);
-            }
-            else if (testInProgress()) {
-                // Note this does not handle the case of an error outside an actual test run
-                appendTestOutputLine(line);
             }
+            processFailedTag(message);
+            clearCurrentTestResult();
+            return;
+        }
+        index = line.indexOf(Prefixes.TIMEOUT_MARKER, bracket);
+        if (index >= 0) {
+            // Individual test timeout is considered a failure
+            String message = getMessage(line, index, Prefixes.TIMEOUT_MARKER);
+            fakeRunMarker(message);
+            processFailedTag(message);
+            clearCurrentTestResult();
+            return;
+        }
+        if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+            // Test run started
+            // Make sure to leave the "Running" in the string
+            processRunStartedTag(getMessage(line, 0, Prefixes.TEST_RUN_MARKER));
+        } else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            // Test run ended
+            // This is for the end of the test suite run, so make sure this else-if is after the
+            // check for START_TEST_SUITE_MARKER
+            processRunCompletedTag(getMessage(line, 0, Prefixes.TEST_RUN_MARKER));
+        } else if (testInProgress()) {
+            // Note this does not handle the case of an error outside an actual test run
+            appendTestOutputLine(line);
         }
     }
 
+    /** Returns the trimmed part of the line after the marker found at the given index. */
+    private static String getMessage(String line, int index, String marker) {
+        return line.substring(index + marker.length()).trim();
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -389,7 +407,8 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void fakeRunMarker(String message) {
         // Remove everything after the test name.
-        String fakeRunMaker = message.split(" +")[0];
+        int space = message.indexOf(' ');
+        String fakeRunMaker = space < 0 ? message : message.substring(0, space);
         // Do as if we had found a [RUN] tag.
         processTestStartedTag(fakeRunMaker);
     }
@@ -477,28 +496,61 @@ public class GTestResultParser extends MultiLineReceiver {
     private ParsedTestInfo parseTestDescription(String identifier) {
         ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
 
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find a time
-        if (time.find()) {
-            String timeString = time.group(2);  // the "XX" in "(XX ms)"
-            String discardPortion = time.group(1);  // everything after the test class/name
-            identifier = identifier.substring(0, identifier.lastIndexOf(discardPortion)).trim();
-            returnInfo.mTestRunTime = timeString;
+        // Try to find a time, eg: (XX ms)
+        int timeStart = findLastTime(identifier);
+        if (timeStart >= 0) {
+            // the "XX" in "(XX ms)"
+            returnInfo.mTestRunTime =
+                    identifier.substring(
+                            timeStart + 1, identifier.indexOf(TIME_SUFFIX, timeStart));
+            identifier = identifier.substring(0, timeStart).trim();
         }
 
-        String[] testId = identifier.split("\\.");
-        if (testId.length < 2) {
+        // The class and test names are the first two elements separated by dots.
+        int classEnd = identifier.indexOf('.');
+        if (classEnd < 0 || isOnlyDots(identifier, classEnd + 1)) {
             CLog.e("Could not detect the test class and test name, received: %s", identifier);
-        }
-        else {
-            returnInfo.mTestClassName = testId[0];
-            returnInfo.mTestName = testId[1];
+        } else {
+            int nameEnd = identifier.indexOf('.', classEnd + 1);
+            returnInfo.mTestClassName = identifier.substring(0, classEnd);
+            returnInfo.mTestName =
+                    identifier.substring(
+                            classEnd + 1, nameEnd < 0 ? identifier.length() : nameEnd);
         }
         return returnInfo;
     }
 
+    /**
+     * Returns the index of the opening parenthesis of the last "(XX ms)" element of the
+     * identifier, or -1 if there is none.
+     */
+    private static int findLastTime(String identifier) {
+        int suffix = identifier.lastIndexOf(TIME_SUFFIX);
+        while (suffix > 0) {
+            int start = suffix;
+            while (start > 0
+                    && identifier.charAt(start - 1) >= '0'
+                    && identifier.charAt(start - 1) <= '9') {
+                start--;
+            }
+            if (start < suffix && start > 0 && identifier.charAt(start - 1) == '(') {
+                return start - 1;
+            }
+            suffix = identifier.lastIndexOf(TIME_SUFFIX, suffix - 1);
+        }
+        return -1;
+    }
+
+    /** Returns true if the identifier has only dots from the given index. */
+    private static boolean isOnlyDots(String identifier, int from) {
+        for (int i = from; i < identifier.length(); i++) {
+            if (identifier.charAt(i) != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Parses and stores the test identifier (class and test name).
      *
@@ -506,8 +558,7 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void processRunStartedTag(String identifier) {
         // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
+        Matcher numTests = NUM_TESTS_PATTERN.matcher(identifier);
 
         // Try to find number of tests
         if (numTests.find()) {
@@ -535,8 +586,7 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param identifier Raw log output from the suite ended tag
      */
     private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
+        Matcher time = TOTAL_TIME_PATTERN.matcher(identifier);
 
         // Try to find the total run time
         if (time.find()) {
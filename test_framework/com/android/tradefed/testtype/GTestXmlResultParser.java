@@ -22,31 +22,36 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
 /**
  * Parses the 'xml output mode' results of native tests using GTest that run from shell,
  * and informs a ITestRunListener of the results.
+ *
+ * <p>The xml is streamed: each test case is reported as soon as its element is read, so the size
+ * of the results is not bound by the available memory.
  */
 public class GTestXmlResultParser {
 
     private final static String TEST_SUITE_TAG = "testsuite";
     private final static String TEST_CASE_TAG = "testcase";
+    private static final String FAILURE_TAG = "failure";
     private static final String RESULT_ATTRIBUTE = "result";
     private static final String SKIPPED_VALUE = "skipped";
 
@@ -55,6 +60,7 @@ public class GTestXmlResultParser {
     private int mNumTestsExpected = 0;
     private long mTotalRunTime = 0;
     private final Collection<ITestInvocationListener> mTestListeners;
+    private boolean mTestRunStarted = false;
 
     /**
      * Creates the GTestXmlResultParser.
@@ -89,14 +95,13 @@ public class GTestXmlResultParser {
      * @param output The output collected from the execution run to complete the logs if necessary
      */
     public void parseResult(File f, CollectingOutputReceiver output) {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        Document result = null;
-        try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            db.setErrorHandler(new DefaultHandler());
-            result = db.parse(f);
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(f))) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.newSAXParser().parse(new InputSource(stream), new GTestXmlHandler());
         } catch (SAXException | IOException | ParserConfigurationException e) {
-            reportTestRunStarted();
+            if (!mTestRunStarted) {
+                reportTestRunStarted();
+            }
             for (ITestInvocationListener listener : mTestListeners) {
                 String errorMessage = String.format("Failed to get an xml output from tests,"
                         + " it probably crashed");
@@ -109,25 +114,6 @@ public class GTestXmlResultParser {
             }
             return;
         }
-        Element rootNode = result.getDocumentElement();
-        // Parse root node: "testsuites" for generic infos.
-        getTestSuitesInfo(rootNode);
-        reportTestRunStarted();
-        // Iterate other "testsuite" for each test results.
-        NodeList testSuiteList = rootNode.getElementsByTagName(TEST_SUITE_TAG);
-        if (testSuiteList != null && testSuiteList.getLength() > 0) {
-            for (int i = 0; i < testSuiteList.getLength() ; i++) {
-                NodeList testcasesList =
-                        ((Element)testSuiteList.item(i)).getElementsByTagName(TEST_CASE_TAG);
-                // Iterate other the test cases in the test suite.
-                if (testcasesList != null && testcasesList.getLength() > 0) {
-                    for (int j = 0 ; j < testcasesList.getLength(); j++) {
-                        processTestResult((Element)testcasesList.item(j));
-                    }
-                }
-            }
-        }
-
         if (mNumTestsExpected > mNumTestsRun) {
             for (ITestInvocationListener listener : mTestListeners) {
                 listener.testRunFailed(
@@ -140,9 +126,69 @@ public class GTestXmlResultParser {
         }
     }
 
-    private void getTestSuitesInfo(Element rootNode) {
-        mNumTestsExpected = Integer.parseInt(rootNode.getAttribute("tests"));
-        mTotalRunTime = (long) (Double.parseDouble(rootNode.getAttribute("time")) * 1000d);
+    /**
+     * Reports the results while reading the xml. The root node, "testsuites", holds generic infos,
+     * and each "testsuite" holds test case results.
+     */
+    private class GTestXmlHandler extends DefaultHandler {
+        private int mDepth = 0;
+        private int mTestSuiteDepth = 0;
+        private TestCaseResult mTestCase = null;
+
+        @Override
+        public void startElement(String uri, String localName, String name, Attributes attributes)
+                throws SAXException {
+            mDepth++;
+            if (mDepth == 1) {
+                getTestSuitesInfo(attributes);
+                reportTestRunStarted();
+            } else if (TEST_SUITE_TAG.equals(name)) {
+                mTestSuiteDepth++;
+            } else if (TEST_CASE_TAG.equals(name) && mTestSuiteDepth > 0 && mTestCase == null) {
+                mTestCase = new TestCaseResult(attributes);
+            } else if (FAILURE_TAG.equals(name) && mTestCase != null && mTestCase.mTrace == null) {
+                mTestCase.mTrace = getAttribute(attributes, "message");
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String name) throws SAXException {
+            mDepth--;
+            if (mDepth > 0 && TEST_SUITE_TAG.equals(name)) {
+                mTestSuiteDepth--;
+            } else if (TEST_CASE_TAG.equals(name) && mTestCase != null) {
+                processTestResult(mTestCase);
+                mTestCase = null;
+            }
+        }
+    }
+
+    /** The result of a test case read so far. */
+    private static class TestCaseResult {
+        final String mClassName;
+        final String mTestName;
+        final String mRunTime;
+        final boolean mSkipped;
+        String mTrace = null;
+
+        TestCaseResult(Attributes attributes) {
+            mClassName = getAttribute(attributes, "classname");
+            mTestName = getAttribute(attributes, "name");
+            mRunTime = getAttribute(attributes, "time");
+            mSkipped = SKIPPED_VALUE.equals(attributes.getValue(RESULT_ATTRIBUTE));
+        }
+    }
+
+    /** Returns the value of the attribute, or an empty string if it is not set. */
+    private static String getAttribute(Attributes attributes, String name) {
+        String value = attributes.getValue(name);
+        return value == null ? "" : value;
+    }
+
+    private void getTestSuitesInfo(Attributes rootAttributes) {
+        mNumTestsExpected = Integer.parseInt(getAttribute(rootAttributes, "tests"));
+        mTotalRunTime =
+                (long) (Double.parseDouble(getAttribute(rootAttributes, "time")) * 1000d);
     }
 
     /**
@@ -153,22 +199,17 @@ public class GTestXmlResultParser {
         for (ITestInvocationListener listener : mTestListeners) {
             listener.testRunStarted(mTestRunName, mNumTestsExpected);
         }
+        mTestRunStarted = true;
     }
 
     /**
      * Processes and informs listener when we encounter a tag indicating that a test has started.
      *
-     * @param testcase Raw log output of the form classname.testname, with an optional time (x ms)
+     * @param testcase the test case as read from the xml
      */
-    private void processTestResult(Element testcase) {
-        String classname = testcase.getAttribute("classname");
-        String testname = testcase.getAttribute("name");
-        String runtime = testcase.getAttribute("time");
-        boolean skipped = false;
-        if (testcase.hasAttribute(RESULT_ATTRIBUTE)) {
-            skipped = SKIPPED_VALUE.equals(testcase.getAttribute(RESULT_ATTRIBUTE));
-        }
-        ParsedTestInfo parsedResults = new ParsedTestInfo(testname, classname, runtime);
+    private void processTestResult(TestCaseResult testcase) {
+        ParsedTestInfo parsedResults =
+                new ParsedTestInfo(testcase.mTestName, testcase.mClassName, testcase.mRunTime);
         TestDescription testId =
                 new TestDescription(parsedResults.mTestClassName, parsedResults.mTestName);
         mNumTestsRun++;
@@ -176,15 +217,14 @@ public class GTestXmlResultParser {
             listener.testStarted(testId);
         }
 
-        if (skipped) {
+        if (testcase.mSkipped) {
             for (ITestInvocationListener listener : mTestListeners) {
                 listener.testIgnored(testId);
             }
         }
         // If there is a failure tag report failure
-        if (testcase.getElementsByTagName("failure").getLength() != 0) {
-            String trace = ((Element)testcase.getElementsByTagName("failure").item(0))
-                    .getAttribute("message");
+        if (testcase.mTrace != null) {
+            String trace = testcase.mTrace;
             if (!trace.contains("Failed")) {
                 // For some reason, the alternative GTest format doesn't specify Failed in the
                 // trace and error doesn't show properly in reporter, so adding it here.
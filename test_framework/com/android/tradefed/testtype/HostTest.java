@@ -172,6 +172,14 @@ public class HostTest
     )
     private boolean mEnableHostDeviceLogs = true;
 
+    @Option(
+        name = "index-jar-classes",
+        description =
+                "Whether or not to read the bytecode of the classes in the jars to only load the "
+                        + "ones that can be tests."
+    )
+    private boolean mIndexJarClasses = true;
+
     private IConfiguration mConfig;
     private ITestDevice mDevice;
     private IBuildInfo mBuildInfo;
@@ -952,24 +960,15 @@ public class HostTest
         URLClassLoader cl = null;
         // Inspect for the jar files
         for (String jarName : mJars) {
-            JarFile jarFile = null;
             try {
                 File file = getJarFile(jarName, mTestInfo);
-                jarFile = new JarFile(file);
-                Enumeration<JarEntry> e = jarFile.entries();
+                List<String> jarClassNames = getJarClassNames(file);
                 URL[] urls = {file.toURI().toURL()};
                 cl = URLClassLoader.newInstance(urls);
                 mJUnit4JarFiles.add(file);
                 mOpenClassLoaders.add(cl);
 
-                while (e.hasMoreElements()) {
-                    JarEntry je = e.nextElement();
-                    if (je.isDirectory()
-                            || !je.getName().endsWith(".class")
-                            || je.getName().contains("$")) {
-                        continue;
-                    }
-                    String className = getClassName(je.getName());
+                for (String className : jarClassNames) {
                     if (classNames.contains(className)) {
                         continue;
                     }
@@ -1012,13 +1011,35 @@ public class HostTest
             } catch (IOException e) {
                 CLog.e(e);
                 throw new IllegalArgumentException(e);
-            } finally {
-                StreamUtil.close(jarFile);
             }
         }
         return classes;
     }
 
+    /**
+     * Returns the names of the classes of the jar that should be loaded to look for tests. When
+     * indexing is enabled, classes whose bytecode shows they cannot be tests are not returned.
+     */
+    private List<String> getJarClassNames(File file) throws IOException {
+        if (mIndexJarClasses) {
+            return JarTestClassIndex.getInstance().getCandidateClasses(file);
+        }
+        List<String> classNames = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(file)) {
+            Enumeration<JarEntry> e = jarFile.entries();
+            while (e.hasMoreElements()) {
+                JarEntry je = e.nextElement();
+                if (je.isDirectory()
+                        || !je.getName().endsWith(".class")
+                        || je.getName().contains("$")) {
+                    continue;
+                }
+                classNames.add(getClassName(je.getName()));
+            }
+        }
+        return classNames;
+    }
+
     /** Returns the default classloader. */
     @VisibleForTesting
     protected ClassLoader getClassLoader() {
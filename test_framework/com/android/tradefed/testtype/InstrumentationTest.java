@@ -55,6 +55,7 @@ import com.android.tradefed.retry.RetryStrategy;
 import com.android.tradefed.testtype.coverage.CoverageOptions;
 import com.android.tradefed.util.AbiFormatter;
 import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.JavaCodeCoverageFlusher;
 import com.android.tradefed.util.ListInstrumentationParser;
 import com.android.tradefed.util.ListInstrumentationParser.InstrumentationTarget;
@@ -65,8 +66,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Sets;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -325,6 +328,15 @@ public class InstrumentationTest
                     "Whether or not to enable reporting all unexecuted tests from instrumentation.")
     private boolean mReportUnexecuted = true;
 
+    @Option(
+            name = "cache-test-collection",
+            description =
+                    "Whether or not to reuse the tests collected by a previous run of the same "
+                            + "test apk, runner and arguments on the same device build instead of "
+                            + "collecting them again. Applies to reruns, retries and shards run "
+                            + "by the same process.")
+    private boolean mCacheTestCollection = false;
+
     private IAbi mAbi = null;
 
     private Collection<String> mInstallArgs = new ArrayList<>();
@@ -335,6 +347,9 @@ public class InstrumentationTest
 
     private Collection<TestDescription> mTestsToRun = null;
 
+    /** Runner arguments affecting the collection of tests, null if they were not recorded. */
+    private List<String> mRecordedRunnerArgs = null;
+
     private String mCoverageTarget = null;
 
     private String mTestFilePathOnDevice = null;
@@ -811,7 +826,17 @@ public class InstrumentationTest
             CLog.i("No runner name specified. Using: %s.", mRunnerName);
         }
         mRunner = createRemoteAndroidTestRunner(mPackageName, mRunnerName, mDevice.getIDevice());
-        setRunnerArgs(mRunner);
+        if (mCacheTestCollection) {
+            // Record the arguments set on the runner to know which cached collection applies.
+            mRecordedRunnerArgs = new ArrayList<>();
+            setRunnerArgs(
+                    TestCollectionCache.record(
+                            mRunner,
+                            mRecordedRunnerArgs,
+                            Collections.singleton(TEST_TIMEOUT_INST_ARGS_KEY)));
+        } else {
+            setRunnerArgs(mRunner);
+        }
 
         doTestRun(testInfo, listener);
         if (mInstallFile != null) {
@@ -1171,6 +1196,17 @@ public class InstrumentationTest
             final IRemoteAndroidTestRunner runner, final ITestInvocationListener listener)
             throws DeviceNotAvailableException {
         if (isRerunMode()) {
+            // Only reuse a collection when it is not reported to the invocation.
+            String cacheKey = listener == null ? getTestCollectionCacheKey() : null;
+            if (cacheKey != null) {
+                Collection<TestDescription> tests = getTestCollectionCache().get(cacheKey);
+                if (tests != null) {
+                    CLog.i(
+                            "Reusing %d tests previously collected for %s.",
+                            tests.size(), mPackageName);
+                    return tests;
+                }
+            }
             Log.d(LOG_TAG, String.format("Collecting test info for %s on device %s",
                     mPackageName, mDevice.getSerialNumber()));
             runner.setTestCollection(true);
@@ -1182,11 +1218,98 @@ public class InstrumentationTest
             // done with "logOnly" mode, restore proper test timeout before real test execution
             addTimeoutsToRunner(runner);
             runner.setTestCollection(false);
+            if (cacheKey != null && tests != null) {
+                getTestCollectionCache().put(cacheKey, tests);
+            }
             return tests;
         }
         return null;
     }
 
+    /** Returns the {@link TestCollectionCache} where collected tests are cached. */
+    @VisibleForTesting
+    TestCollectionCache getTestCollectionCache() {
+        return TestCollectionCache.getInstance();
+    }
+
+    /**
+     * Returns the key of the tests collection in the {@link TestCollectionCache}, or null if the
+     * collection should not be cached.
+     */
+    @VisibleForTesting
+    String getTestCollectionCacheKey() throws DeviceNotAvailableException {
+        // Arguments referring to files on the device (recorded as null) are not cacheable.
+        if (!mCacheTestCollection
+                || mRecordedRunnerArgs == null
+                || mRecordedRunnerArgs.contains(null)) {
+            return null;
+        }
+        String apkDigest = getTestApkDigest();
+        String fingerprint = mDevice.getProperty("ro.build.fingerprint");
+        if (apkDigest == null || fingerprint == null) {
+            return null;
+        }
+        return String.join(
+                "|",
+                mPackageName,
+                mRunnerName,
+                String.valueOf(resolveAbiName()),
+                fingerprint,
+                apkDigest,
+                String.join(",", mRecordedRunnerArgs));
+    }
+
+    /**
+     * Returns a digest of the content of the test apk, or null if it cannot be computed. Uses the
+     * install file when set, otherwise the apks installed on the device for the package.
+     */
+    @VisibleForTesting
+    String getTestApkDigest() throws DeviceNotAvailableException {
+        if (mInstallFile != null) {
+            try {
+                return FileUtil.calculateMd5(mInstallFile);
+            } catch (IOException e) {
+                CLog.e(e);
+                return null;
+            }
+        }
+        String pathOutput = mDevice.executeShellCommand(String.format("pm path %s", mPackageName));
+        if (pathOutput == null) {
+            return null;
+        }
+        List<String> apks = new ArrayList<>();
+        for (String line : pathOutput.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("package:")) {
+                apks.add(line.substring("package:".length()));
+            }
+        }
+        if (apks.isEmpty()) {
+            return null;
+        }
+        // The install path changes on every install, only keep the hashes.
+        String md5Output =
+                mDevice.executeShellCommand(String.format("md5sum %s", String.join(" ", apks)));
+        if (md5Output == null) {
+            return null;
+        }
+        List<String> digests = new ArrayList<>();
+        for (String line : md5Output.split("\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String digest = line.trim().split("\\s+")[0];
+            if (!digest.matches("[0-9a-f]{32}")) {
+                return null;
+            }
+            digests.add(digest);
+        }
+        if (digests.size() != apks.size()) {
+            return null;
+        }
+        return String.join(",", digests);
+    }
+
     /**
      * Performs the actual work of collecting tests, making multiple attempts if necessary
      *
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Index of the classes of a jar that can be tests, built by reading the class files metadata
+ * instead of loading the classes.
+ *
+ * <p>A class is a candidate unless its bytecode proves it cannot be a test: it is an interface or
+ * abstract, or neither it nor any of its supertypes found in the jar has a JUnit4 annotation or
+ * implements {@code junit.framework.Test} or {@link IRemoteTest}. Supertypes outside of the jar and
+ * of the JDK are assumed to possibly be tests, so the candidates are always a superset of the
+ * tests. The index of each jar is cached by the digest of its content.
+ */
+public class JarTestClassIndex {
+
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+    private static final Set<String> TEST_TYPES =
+            new HashSet<>(
+                    Arrays.asList(
+                            "junit/framework/Test",
+                            IRemoteTest.class.getName().replace('.', '/')));
+    private static final Set<String> JUNIT4_CLASS_ANNOTATIONS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "Lorg/junit/runner/RunWith;", "Lorg/junit/runners/Suite$SuiteClasses;"));
+    private static final String JUNIT4_TEST_ANNOTATION = "Lorg/junit/Test;";
+
+    private static final JarTestClassIndex INSTANCE = new JarTestClassIndex();
+
+    private final Map<String, List<String>> mCandidatesByDigest = new HashMap<>();
+
+    @VisibleForTesting
+    JarTestClassIndex() {}
+
+    /** Returns the index shared by the whole process. */
+    public static JarTestClassIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the names of the classes of the jar that can be tests, in the order of the jar
+     * entries. Inner classes are never returned.
+     *
+     * @param jar the jar file to index.
+     * @throws IOException if the jar cannot be read.
+     */
+    public List<String> getCandidateClasses(File jar) throws IOException {
+        String digest = FileUtil.calculateMd5(jar);
+        synchronized (mCandidatesByDigest) {
+            List<String> candidates = mCandidatesByDigest.get(digest);
+            if (candidates != null) {
+                return candidates;
+            }
+        }
+        List<String> candidates = Collections.unmodifiableList(indexJar(jar));
+        synchronized (mCandidatesByDigest) {
+            mCandidatesByDigest.put(digest, candidates);
+        }
+        return candidates;
+    }
+
+    /** Reads all the classes of the jar and returns the candidate test classes. */
+    private List<String> indexJar(File jar) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, ClassInfo> classes = new LinkedHashMap<>();
+        try (JarFile jarFile = new JarFile(jar)) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                String name = entry.getName().substring(0, entry.getName().length() - 6);
+                try (InputStream stream = jarFile.getInputStream(entry)) {
+                    classes.put(name, parse(stream));
+                } catch (IOException | RuntimeException e) {
+                    // Unknown format, let the class loader decide.
+                    CLog.d("Could not read class file %s: %s", entry.getName(), e.getMessage());
+                    classes.put(name, null);
+                }
+            }
+        }
+        List<String> candidates = new ArrayList<>();
+        Map<String, Boolean> testTypes = new HashMap<>();
+        for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+            String name = entry.getKey();
+            if (name.contains("$")) {
+                continue;
+            }
+            ClassInfo info = entry.getValue();
+            if (info == null
+                    || ((info.mAccess & (ACC_INTERFACE | ACC_ABSTRACT)) == 0
+                            && isPossibleTest(name, classes, testTypes, new HashSet<>()))) {
+                candidates.add(name.replace('/', '.'));
+            }
+        }
+        CLog.d(
+                "Indexed %d classes of %s in %d ms, %d candidate tests.",
+                classes.size(),
+                jar.getName(),
+                System.currentTimeMillis() - start,
+                candidates.size());
+        return candidates;
+    }
+
+    /**
+     * Returns true if the class, or one of its supertypes, can make it a test. Results are
+     * memoized in {@code testTypes}.
+     */
+    private static boolean isPossibleTest(
+            String name,
+            Map<String, ClassInfo> classes,
+            Map<String, Boolean> testTypes,
+            Set<String> visiting) {
+        if (name == null) {
+            return false;
+        }
+        if (TEST_TYPES.contains(name)) {
+            return true;
+        }
+        Boolean known = testTypes.get(name);
+        if (known != null) {
+            return known;
+        }
+        if (!classes.containsKey(name)) {
+            // The JDK does not contain tests, anything else outside of the jar may.
+            return !name.startsWith("java/");
+        }
+        ClassInfo info = classes.get(name);
+        if (info == null || !visiting.add(name)) {
+            return info == null;
+        }
+        boolean result = info.mHasJUnit4Annotation;
+        if (!result) {
+            result = isPossibleTest(info.mSuperName, classes, testTypes, visiting);
+        }
+        for (int i = 0; !result && i < info.mInterfaces.size(); i++) {
+            result = isPossibleTest(info.mInterfaces.get(i), classes, testTypes, visiting);
+        }
+        testTypes.put(name, result);
+        return result;
+    }
+
+    /** The metadata of a class file needed to find tests. */
+    @VisibleForTesting
+    static class ClassInfo {
+        int mAccess;
+        String mSuperName;
+        List<String> mInterfaces = new ArrayList<>();
+        boolean mHasJUnit4Annotation = false;
+    }
+
+    /** Parses the metadata of a class file, see the JVM specification chapter 4. */
+    @VisibleForTesting
+    static ClassInfo parse(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != CLASS_FILE_MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        // minor and major versions
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int poolCount = in.readUnsignedShort();
+        String[] utf8 = new String[poolCount];
+        int[] classNameIndex = new int[poolCount];
+        for (int i = 1; i < poolCount; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.readLong();
+                    // 8 bytes constants take two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException(String.format("Unknown constant pool tag %d", tag));
+            }
+        }
+        ClassInfo info = new ClassInfo();
+        info.mAccess = in.readUnsignedShort();
+        // this class
+        in.readUnsignedShort();
+        int superIndex = in.readUnsignedShort();
+        info.mSuperName = superIndex == 0 ? null : utf8[classNameIndex[superIndex]];
+        int interfaceCount = in.readUnsignedShort();
+        for (int i = 0; i < interfaceCount; i++) {
+            info.mInterfaces.add(utf8[classNameIndex[in.readUnsignedShort()]]);
+        }
+        // fields
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            // access, name, descriptor
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            skipAttributes(in);
+        }
+        // methods
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            for (String annotation : readAnnotations(in, utf8)) {
+                if (JUNIT4_TEST_ANNOTATION.equals(annotation)) {
+                    info.mHasJUnit4Annotation = true;
+                }
+            }
+        }
+        // class attributes
+        for (String annotation : readAnnotations(in, utf8)) {
+            if (JUNIT4_CLASS_ANNOTATIONS.contains(annotation)) {
+                info.mHasJUnit4Annotation = true;
+            }
+        }
+        return info;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.readUnsignedShort();
+            skipFully(in, in.readInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    /** Reads a list of attributes and returns the types of their runtime visible annotations. */
+    private static List<String> readAnnotations(DataInputStream in, String[] utf8)
+            throws IOException {
+        List<String> annotations = new ArrayList<>();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String name = utf8[in.readUnsignedShort()];
+            long length = in.readInt() & 0xFFFFFFFFL;
+            if (!RUNTIME_VISIBLE_ANNOTATIONS.equals(name)) {
+                skipFully(in, length);
+                continue;
+            }
+            int annotationCount = in.readUnsignedShort();
+            for (int j = 0; j < annotationCount; j++) {
+                annotations.add(readAnnotation(in, utf8));
+            }
+        }
+        return annotations;
+    }
+
+    /** Reads an annotation structure and returns its type descriptor. */
+    private static String readAnnotation(DataInputStream in, String[] utf8) throws IOException {
+        String type = utf8[in.readUnsignedShort()];
+        int pairCount = in.readUnsignedShort();
+        for (int i = 0; i < pairCount; i++) {
+            // element name
+            in.readUnsignedShort();
+            skipElementValue(in, utf8);
+        }
+        return type;
+    }
+
+    private static void skipElementValue(DataInputStream in, String[] utf8) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'e':
+                in.readUnsignedShort();
+                in.readUnsignedShort();
+                break;
+            case '@':
+                readAnnotation(in, utf8);
+                break;
+            case '[':
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    skipElementValue(in, utf8);
+                }
+                break;
+            default:
+                // constant value or class
+                in.readUnsignedShort();
+                break;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
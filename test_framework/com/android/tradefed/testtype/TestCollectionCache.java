@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.tradefed.result.TestDescription;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Host-side cache of the tests collected from an instrumentation, shared by all the invocations of
+ * the process.
+ *
+ * <p>Entries are keyed by everything that can change the result of a collection: the content of
+ * the test apk, the device build, the runner and its arguments. Any change to one of them results
+ * in a different key, so entries never need to be invalidated explicitly.
+ */
+public class TestCollectionCache {
+
+    /** Maximum number of collections kept, least recently used ones are dropped first. */
+    static final int MAX_ENTRIES = 200;
+
+    /** Runner calls that do not change which tests are collected. */
+    private static final Set<String> IGNORED_RUNNER_CALLS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "setMaxTimeToOutputResponse",
+                            "setMaxtimeToOutputResponse",
+                            "setMaxTimeout",
+                            "setRunName",
+                            "setDebug",
+                            "setCoverage",
+                            "setTestCollection",
+                            "setLogOnly"));
+
+    private static final TestCollectionCache INSTANCE = new TestCollectionCache();
+
+    private final Map<String, Collection<TestDescription>> mCollections =
+            new LinkedHashMap<String, Collection<TestDescription>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Collection<TestDescription>> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    @VisibleForTesting
+    TestCollectionCache() {}
+
+    /** Returns the cache shared by all the instrumentations of the process. */
+    public static TestCollectionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /** Returns a copy of the tests collected for the key, or null if none are cached. */
+    public synchronized Collection<TestDescription> get(String key) {
+        Collection<TestDescription> tests = mCollections.get(key);
+        if (tests == null) {
+            return null;
+        }
+        return new LinkedHashSet<>(tests);
+    }
+
+    /** Caches the tests collected for the key. */
+    public synchronized void put(String key, Collection<TestDescription> tests) {
+        mCollections.put(key, Collections.unmodifiableSet(new LinkedHashSet<>(tests)));
+    }
+
+    /** Drops all the cached collections. */
+    public synchronized void clear() {
+        mCollections.clear();
+    }
+
+    /**
+     * Returns a runner forwarding all calls to the given runner, while recording the ones that can
+     * change which tests are collected into {@code calls}. Instrumentation arguments that refer to
+     * a file on the device are recorded as {@code null} since their content is unknown.
+     *
+     * @param runner the {@link IRemoteAndroidTestRunner} to forward calls to.
+     * @param calls the list where calls are recorded.
+     * @param ignoredArgs instrumentation argument keys to not record.
+     */
+    public static IRemoteAndroidTestRunner record(
+            IRemoteAndroidTestRunner runner, List<String> calls, Set<String> ignoredArgs) {
+        return (IRemoteAndroidTestRunner)
+                Proxy.newProxyInstance(
+                        IRemoteAndroidTestRunner.class.getClassLoader(),
+                        new Class<?>[] {IRemoteAndroidTestRunner.class},
+                        (proxy, method, args) -> {
+                            String name = method.getName();
+                            if (name.equals("addInstrumentationArg")
+                                    || name.equals("addBooleanArg")) {
+                                String key = String.valueOf(args[0]);
+                                if (key.endsWith("File") || key.endsWith("file")) {
+                                    calls.add(null);
+                                } else if (!ignoredArgs.contains(key)) {
+                                    calls.add(name + Arrays.deepToString(args));
+                                }
+                            } else if (name.startsWith("set")
+                                    && !IGNORED_RUNNER_CALLS.contains(name)) {
+                                calls.add(name + Arrays.deepToString(args));
+                            } else if (name.equals("removeInstrumentationArg")) {
+                                calls.add(name + Arrays.deepToString(args));
+                            }
+                            try {
+                                return method.invoke(runner, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+    }
+}
@@ -21,6 +21,8 @@ import com.android.tradefed.cluster.ClusterEventUploaderFuncTest;
 import com.android.tradefed.command.CommandSchedulerFuncTest;
 import com.android.tradefed.command.remote.RemoteManagerFuncTest;
 import com.android.tradefed.device.metric.DeviceMetricDataFuncTest;
+import com.android.tradefed.postprocessor.AggregatePostProcessorFuncTest;
+import com.android.tradefed.testtype.GTestParserFuncTest;
 import com.android.tradefed.util.FileUtilFuncTest;
 import com.android.tradefed.util.GCSFileDownloaderFuncTest;
 import com.android.tradefed.util.GCSFileUploaderFuncTest;
@@ -46,6 +48,10 @@ import org.junit.runners.Suite.SuiteClasses;
     RemoteManagerFuncTest.class,
     // device.metric
     DeviceMetricDataFuncTest.class,
+    // postprocessor
+    AggregatePostProcessorFuncTest.class,
+    // testtype
+    GTestParserFuncTest.class,
     // util
     FileUtilFuncTest.class,
     GCSFileDownloaderFuncTest.class,
@@ -38,6 +38,7 @@ import com.android.tradefed.cluster.ClusterLogSaverTest;
 import com.android.tradefed.cluster.SubprocessConfigBuilderTest;
 import com.android.tradefed.cluster.SubprocessReportingHelperTest;
 import com.android.tradefed.cluster.TestOutputUploaderTest;
+import com.android.tradefed.cluster.TestResourceDownloaderTest;
 import com.android.tradefed.command.CommandFileParserTest;
 import com.android.tradefed.command.CommandFileWatcherTest;
 import com.android.tradefed.command.CommandInterrupterTest;
@@ -70,14 +71,19 @@ import com.android.tradefed.config.yaml.ConfigurationYamlParserTest;
 import com.android.tradefed.device.AndroidDebugBridgeWrapperTest;
 import com.android.tradefed.device.BackgroundDeviceActionTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePushCacheTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
+import com.android.tradefed.device.ExtractedArchiveCacheTest;
 import com.android.tradefed.device.FastbootHelperTest;
+import com.android.tradefed.device.FileSyncManifestTest;
 import com.android.tradefed.device.LocalAndroidVirtualDeviceTest;
+import com.android.tradefed.device.LogcatCrashIndexerTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ManagedTestDeviceFactoryTest;
 import com.android.tradefed.device.NativeDeviceTest;
+import com.android.tradefed.device.PersistentShellSessionTest;
 import com.android.tradefed.device.RemoteAndroidDeviceTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
@@ -90,6 +96,7 @@ import com.android.tradefed.device.cloud.GceSshTunnelMonitorTest;
 import com.android.tradefed.device.cloud.ManagedRemoteDeviceTest;
 import com.android.tradefed.device.cloud.NestedRemoteDeviceTest;
 import com.android.tradefed.device.cloud.RemoteFileUtilTest;
+import com.android.tradefed.device.cloud.SshMultiplexerTest;
 import com.android.tradefed.device.contentprovider.ContentProviderHandlerTest;
 import com.android.tradefed.device.helper.TelephonyHelperTest;
 import com.android.tradefed.device.metric.AtraceCollectorTest;
@@ -183,6 +190,7 @@ import com.android.tradefed.result.MetricsXMLResultReporterTest;
 import com.android.tradefed.result.MultiFailureDescriptionTest;
 import com.android.tradefed.result.PassingTestFileReporterTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
+import com.android.tradefed.result.StatusCountingTestListenerTest;
 import com.android.tradefed.result.SubprocessResultsReporterTest;
 import com.android.tradefed.result.TestDescriptionTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
@@ -281,6 +289,7 @@ import com.android.tradefed.testtype.InstrumentationFileTestTest;
 import com.android.tradefed.testtype.InstrumentationSerialTestTest;
 import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.JarHostTestTest;
+import com.android.tradefed.testtype.JarTestClassIndexTest;
 import com.android.tradefed.testtype.JavaCodeCoverageListenerTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestTest;
@@ -290,6 +299,7 @@ import com.android.tradefed.testtype.NativeStressTestTest;
 import com.android.tradefed.testtype.NoisyDryRunTestTest;
 import com.android.tradefed.testtype.PythonUnitTestResultParserTest;
 import com.android.tradefed.testtype.PythonUnitTestRunnerTest;
+import com.android.tradefed.testtype.TestCollectionCacheTest;
 import com.android.tradefed.testtype.TfTestLauncherTest;
 import com.android.tradefed.testtype.UsbResetTestTest;
 import com.android.tradefed.testtype.binary.ExecutableHostTestTest;
@@ -307,15 +317,18 @@ import com.android.tradefed.testtype.rust.RustTestBaseTest;
 import com.android.tradefed.testtype.rust.RustTestResultParserTest;
 import com.android.tradefed.testtype.suite.AtestRunnerTest;
 import com.android.tradefed.testtype.suite.BaseTestSuiteTest;
+import com.android.tradefed.testtype.suite.DeferredModuleListenerTest;
 import com.android.tradefed.testtype.suite.GranularRetriableTestWrapperTest;
 import com.android.tradefed.testtype.suite.ITestSuiteIntegrationTest;
 import com.android.tradefed.testtype.suite.ITestSuiteMultiTest;
 import com.android.tradefed.testtype.suite.ITestSuiteTest;
+import com.android.tradefed.testtype.suite.ModuleArtifactStagerTest;
 import com.android.tradefed.testtype.suite.ModuleDefinitionMultiTest;
 import com.android.tradefed.testtype.suite.ModuleDefinitionTest;
 import com.android.tradefed.testtype.suite.ModuleListenerTest;
 import com.android.tradefed.testtype.suite.ModuleMergerTest;
 import com.android.tradefed.testtype.suite.ModuleSplitterTest;
+import com.android.tradefed.testtype.suite.ParallelModuleRetryTest;
 import com.android.tradefed.testtype.suite.SuiteModuleLoaderTest;
 import com.android.tradefed.testtype.suite.TestFailureListenerTest;
 import com.android.tradefed.testtype.suite.TestMappingSuiteRunnerTest;
@@ -344,6 +357,7 @@ import com.android.tradefed.util.BuildTestsZipUtilsTest;
 import com.android.tradefed.util.BundletoolUtilTest;
 import com.android.tradefed.util.ByteArrayListTest;
 import com.android.tradefed.util.ClassPathScannerTest;
+import com.android.tradefed.util.CommandMetricTrackerTest;
 import com.android.tradefed.util.ConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.ConfigCompletorTest;
 import com.android.tradefed.util.DirectedGraphTest;
@@ -406,6 +420,7 @@ import com.android.tradefed.util.sl4a.Sl4aEventDispatcherTest;
 import com.android.tradefed.util.statsd.ConfigUtilTest;
 import com.android.tradefed.util.statsd.MetricUtilTest;
 import com.android.tradefed.util.testmapping.TestInfoTest;
+import com.android.tradefed.util.testmapping.TestMappingIndexTest;
 import com.android.tradefed.util.testmapping.TestMappingTest;
 import com.android.tradefed.util.zip.MergedZipEntryCollectionTest;
 
@@ -449,6 +464,7 @@ import org.junit.runners.Suite.SuiteClasses;
     SubprocessConfigBuilderTest.class,
     SubprocessReportingHelperTest.class,
     TestOutputUploaderTest.class,
+    TestResourceDownloaderTest.class,
 
     // command
     CommandFileParserTest.class,
@@ -497,14 +513,19 @@ import org.junit.runners.Suite.SuiteClasses;
     AndroidDebugBridgeWrapperTest.class,
     BackgroundDeviceActionTest.class,
     DeviceManagerTest.class,
+    DevicePushCacheTest.class,
     DeviceSelectionOptionsTest.class,
     DeviceStateMonitorTest.class,
     DumpsysPackageReceiverTest.class,
+    ExtractedArchiveCacheTest.class,
     FastbootHelperTest.class,
+    FileSyncManifestTest.class,
     LocalAndroidVirtualDeviceTest.class,
+    LogcatCrashIndexerTest.class,
     ManagedDeviceListTest.class,
     ManagedTestDeviceFactoryTest.class,
     NativeDeviceTest.class,
+    PersistentShellSessionTest.class,
     RemoteAndroidDeviceTest.class,
     PropertyChangerTest.class,
     TestDeviceTest.class,
@@ -521,6 +542,7 @@ import org.junit.runners.Suite.SuiteClasses;
     NestedRemoteDeviceTest.class,
     RemoteAndroidDeviceTest.class,
     RemoteFileUtilTest.class,
+    SshMultiplexerTest.class,
 
     // device.contentprovider
     ContentProviderHandlerTest.class,
@@ -648,6 +670,7 @@ import org.junit.runners.Suite.SuiteClasses;
     MetricsXMLResultReporterTest.class,
     MultiFailureDescriptionTest.class,
     SnapshotInputStreamSourceTest.class,
+    StatusCountingTestListenerTest.class,
     SubprocessResultsReporterTest.class,
     TestDescriptionTest.class,
     TestFailureEmailResultReporterTest.class,
@@ -776,6 +799,7 @@ import org.junit.runners.Suite.SuiteClasses;
     InstrumentationFileTestTest.class,
     InstrumentationTestTest.class,
     JarHostTestTest.class,
+    JarTestClassIndexTest.class,
     JavaCodeCoverageListenerTest.class,
     NativeBenchmarkTestParserTest.class,
     NativeBenchmarkTestTest.class,
@@ -785,6 +809,7 @@ import org.junit.runners.Suite.SuiteClasses;
     NoisyDryRunTestTest.class,
     PythonUnitTestResultParserTest.class,
     PythonUnitTestRunnerTest.class,
+    TestCollectionCacheTest.class,
     TfTestLauncherTest.class,
     UsbResetTestTest.class,
 
@@ -813,15 +838,18 @@ import org.junit.runners.Suite.SuiteClasses;
     // testtype/suite
     AtestRunnerTest.class,
     BaseTestSuiteTest.class,
+    DeferredModuleListenerTest.class,
     GranularRetriableTestWrapperTest.class,
     ITestSuiteIntegrationTest.class,
     ITestSuiteMultiTest.class,
     ITestSuiteTest.class,
+    ModuleArtifactStagerTest.class,
     ModuleDefinitionMultiTest.class,
     ModuleDefinitionTest.class,
     ModuleListenerTest.class,
     ModuleMergerTest.class,
     ModuleSplitterTest.class,
+    ParallelModuleRetryTest.class,
     SuiteModuleLoaderTest.class,
     TestFailureListenerTest.class,
     TestMappingSuiteRunnerTest.class,
@@ -858,6 +886,7 @@ import org.junit.runners.Suite.SuiteClasses;
     BundletoolUtilTest.class,
     ByteArrayListTest.class,
     ClassPathScannerTest.class,
+    CommandMetricTrackerTest.class,
     ConditionPriorityBlockingQueueTest.class,
     ConfigCompletorTest.class,
     DirectedGraphTest.class,
@@ -936,6 +965,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // util/testmapping
     TestInfoTest.class,
+    TestMappingIndexTest.class,
     TestMappingTest.class,
 })
 public class UnitTests {
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.build.FileDownloadCache;
+import com.android.tradefed.build.FileDownloadCacheFactory;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.RunUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link TestResourceDownloader}, using a local HTTP server. */
+@RunWith(JUnit4.class)
+public class TestResourceDownloaderTest {
+
+    private HttpServer mServer;
+    private File mRootDir;
+    private TestResourceDownloader mDownloader;
+    private Map<String, byte[]> mContents = new ConcurrentHashMap<>();
+    private List<String> mRanges = new CopyOnWriteArrayList<>();
+    private AtomicInteger mGetCount = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        mRootDir = FileUtil.createTempDir("test-resource-downloader");
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.start();
+        mDownloader = new TestResourceDownloader(mRootDir);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        FileUtil.recursiveDelete(mRootDir);
+    }
+
+    /**
+     * Serves the registered contents, supporting HEAD and single range GET requests, conditional
+     * to If-Range.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] content = mContents.get(exchange.getRequestURI().getPath());
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().add("ETag", etag(content));
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", Integer.toString(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        mGetCount.incrementAndGet();
+        int start = 0;
+        int end = content.length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null) {
+            mRanges.add(range);
+        }
+        if (range != null && (ifRange == null || ifRange.equals(etag(content)))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Integer.parseInt(bounds[1]);
+            }
+            if (start >= content.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            status = 206;
+        }
+        exchange.sendResponseHeaders(status, end - start + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, start, end - start + 1);
+        }
+    }
+
+    private String url(String path) {
+        return String.format("http://localhost:%d%s", mServer.getAddress().getPort(), path);
+    }
+
+    private static String etag(byte[] content) {
+        return "\"" + Arrays.hashCode(content) + "\"";
+    }
+
+    /** Writes the beginning of a content as a partial download with the given validator. */
+    private File createPartial(String name, byte[] content, int length, String validator)
+            throws IOException {
+        File partial = new File(mRootDir, name + TestResourceDownloader.PARTIAL_SUFFIX);
+        try (OutputStream out = new FileOutputStream(partial)) {
+            out.write(content, 0, length);
+        }
+        if (validator != null) {
+            FileUtil.writeToFile(
+                    validator,
+                    new File(partial.getPath() + TestResourceDownloader.VALIDATOR_SUFFIX));
+        }
+        return partial;
+    }
+
+    private byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+
+    /** Test downloading a resource in a single stream. */
+    @Test
+    public void testDownload_http() throws Exception {
+        mContents.put("/file.txt", "content".getBytes(StandardCharsets.UTF_8));
+
+        File file = mDownloader.download(new TestResource("dir/file.txt", url("/file.txt")));
+
+        assertEquals(new File(mRootDir, "dir/file.txt"), file);
+        assertEquals("content", FileUtil.readStringFromFile(file));
+        assertTrue(mRanges.isEmpty());
+    }
+
+    /** Test that a large resource is downloaded as parallel range requests. */
+    @Test
+    public void testDownload_chunked() throws Exception {
+        byte[] content = createContent(10000);
+        mContents.put("/big.bin", content);
+        mDownloader.setChunking(4, 1000);
+
+        File file = mDownloader.download(new TestResource("big.bin", url("/big.bin")));
+
+        assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+        assertEquals(4, mRanges.size());
+        assertTrue(mRanges.contains("bytes=0-2499"));
+        assertTrue(mRanges.contains("bytes=7500-9999"));
+        assertFalse(new File(mRootDir, "big.bin" + TestResourceDownloader.PARTIAL_SUFFIX + 0)
+                .exists());
+    }
+
+    /** Test that a previously interrupted download is resumed instead of restarted. */
+    @Test
+    public void testDownload_resume() throws Exception {
+        byte[] content = createContent(1000);
+        mContents.put("/file.bin", content);
+        File partial = createPartial("file.bin", content, 400, etag(content));
+
+        File file = mDownloader.download(new TestResource("file.bin", url("/file.bin")));
+
+        assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+        assertEquals(Arrays.asList("bytes=400-"), mRanges);
+        assertFalse(partial.exists());
+        assertFalse(new File(partial.getPath() + TestResourceDownloader.VALIDATOR_SUFFIX).exists());
+    }
+
+    /** Test that the partial data of a file that changed since is not resumed. */
+    @Test
+    public void testDownload_resumeChanged() throws Exception {
+        byte[] content = createContent(1000);
+        mContents.put("/file.bin", content);
+        byte[] oldContent = new byte[400];
+        createPartial("file.bin", oldContent, 400, etag(oldContent));
+
+        File file = mDownloader.download(new TestResource("file.bin", url("/file.bin")));
+
+        assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+        assertEquals(Arrays.asList("bytes=400-"), mRanges);
+    }
+
+    /** Test that partial data without a validator is downloaded again. */
+    @Test
+    public void testDownload_resumeWithoutValidator() throws Exception {
+        byte[] content = createContent(1000);
+        mContents.put("/file.bin", content);
+        createPartial("file.bin", new byte[400], 400, null);
+
+        File file = mDownloader.download(new TestResource("file.bin", url("/file.bin")));
+
+        assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+        assertTrue(mRanges.isEmpty());
+    }
+
+    /** Test that partial data already holding the whole file is used as is. */
+    @Test
+    public void testDownload_resumeComplete() throws Exception {
+        byte[] content = createContent(1000);
+        mContents.put("/file.bin", content);
+        createPartial("file.bin", content, 1000, etag(content));
+
+        File file = mDownloader.download(new TestResource("file.bin", url("/file.bin")));
+
+        assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+        assertEquals(Arrays.asList("bytes=1000-"), mRanges);
+    }
+
+    /** Test downloading several resources in parallel, results are in the requested order. */
+    @Test
+    public void testDownload_parallel() throws Exception {
+        mContents.put("/a", "a".getBytes(StandardCharsets.UTF_8));
+        mContents.put("/b", "b".getBytes(StandardCharsets.UTF_8));
+        mContents.put("/c", "c".getBytes(StandardCharsets.UTF_8));
+        mDownloader.setParallelDownloads(3);
+
+        List<File> files =
+                mDownloader.download(
+                        Arrays.asList(
+                                new TestResource("a", url("/a")),
+                                new TestResource("b", url("/b")),
+                                new TestResource("c", url("/c"))));
+
+        assertEquals(3, files.size());
+        assertEquals("a", FileUtil.readStringFromFile(files.get(0)));
+        assertEquals("b", FileUtil.readStringFromFile(files.get(1)));
+        assertEquals("c", FileUtil.readStringFromFile(files.get(2)));
+    }
+
+    /** Test that a missing resource fails the download. */
+    @Test
+    public void testDownload_notFound() throws Exception {
+        TestResourceDownloader downloader =
+                new TestResourceDownloader(mRootDir) {
+                    @Override
+                    IRunUtil getRunUtil() {
+                        return new RunUtil() {
+                            @Override
+                            public void sleep(long time) {
+                                // do not wait between retries
+                            }
+                        };
+                    }
+                };
+        try {
+            downloader.download(new TestResource("missing", url("/missing")));
+            fail("Should have thrown an exception.");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /** Test that resources shared through the download cache are only fetched once. */
+    @Test
+    public void testDownload_cache() throws Exception {
+        mContents.put("/shared.txt", "shared".getBytes(StandardCharsets.UTF_8));
+        File cacheDir = FileUtil.createTempDir("test-resource-cache");
+        File otherRootDir = FileUtil.createTempDir("test-resource-downloader");
+        try {
+            FileDownloadCache cache = FileDownloadCacheFactory.getInstance().getCache(cacheDir);
+            mDownloader.setDownloadCache(cache);
+            TestResourceDownloader other = new TestResourceDownloader(otherRootDir);
+            other.setDownloadCache(cache);
+
+            File first = mDownloader.download(new TestResource("shared.txt", url("/shared.txt")));
+            File second = other.download(new TestResource("shared.txt", url("/shared.txt")));
+
+            assertEquals("shared", FileUtil.readStringFromFile(first));
+            assertEquals("shared", FileUtil.readStringFromFile(second));
+            assertEquals(1, mGetCount.get());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+            FileUtil.recursiveDelete(otherRootDir);
+        }
+    }
+
+    /** Test that a cached resource that changed on the server is downloaded again. */
+    @Test
+    public void testDownload_cacheRevalidated() throws Exception {
+        mContents.put("/shared.txt", "shared".getBytes(StandardCharsets.UTF_8));
+        File cacheDir = FileUtil.createTempDir("test-resource-cache");
+        File otherRootDir = FileUtil.createTempDir("test-resource-downloader");
+        try {
+            FileDownloadCache cache = FileDownloadCacheFactory.getInstance().getCache(cacheDir);
+            mDownloader.setDownloadCache(cache);
+            TestResourceDownloader other = new TestResourceDownloader(otherRootDir);
+            other.setDownloadCache(cache);
+
+            File first = mDownloader.download(new TestResource("shared.txt", url("/shared.txt")));
+            mContents.put("/shared.txt", "changed content".getBytes(StandardCharsets.UTF_8));
+            File second = other.download(new TestResource("shared.txt", url("/shared.txt")));
+
+            assertEquals("shared", FileUtil.readStringFromFile(first));
+            assertEquals("changed content", FileUtil.readStringFromFile(second));
+            assertEquals(2, mGetCount.get());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+            FileUtil.recursiveDelete(otherRootDir);
+        }
+    }
+
+    /** Test that a cached gs:// resource overwritten with new content is downloaded again. */
+    @Test
+    public void testDownload_cacheGcsStale() throws Exception {
+        Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        AtomicInteger copyCount = new AtomicInteger(0);
+        String url = "gs://bucket/dir/shared.txt";
+        objects.put(url, "shared".getBytes(StandardCharsets.UTF_8));
+        File cacheDir = FileUtil.createTempDir("test-resource-cache");
+        File otherRootDir = FileUtil.createTempDir("test-resource-downloader");
+        try {
+            FileDownloadCache cache = FileDownloadCacheFactory.getInstance().getCache(cacheDir);
+            TestResourceDownloader first = createGcsDownloader(mRootDir, objects, copyCount);
+            first.setDownloadCache(cache);
+            TestResourceDownloader second = createGcsDownloader(otherRootDir, objects, copyCount);
+            second.setDownloadCache(cache);
+
+            File firstFile = first.download(new TestResource("shared.txt", url));
+            // Same length, different content.
+            objects.put(url, "SHARED".getBytes(StandardCharsets.UTF_8));
+            File secondFile = second.download(new TestResource("shared.txt", url));
+
+            assertEquals("shared", FileUtil.readStringFromFile(firstFile));
+            assertEquals("SHARED", FileUtil.readStringFromFile(secondFile));
+            assertEquals(2, copyCount.get());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+            FileUtil.recursiveDelete(otherRootDir);
+        }
+    }
+
+    /** Test that a cached gs:// resource that did not change is reused. */
+    @Test
+    public void testDownload_cacheGcsFresh() throws Exception {
+        Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        AtomicInteger copyCount = new AtomicInteger(0);
+        String url = "gs://bucket/dir/shared.txt";
+        objects.put(url, "shared".getBytes(StandardCharsets.UTF_8));
+        File cacheDir = FileUtil.createTempDir("test-resource-cache");
+        File otherRootDir = FileUtil.createTempDir("test-resource-downloader");
+        try {
+            FileDownloadCache cache = FileDownloadCacheFactory.getInstance().getCache(cacheDir);
+            TestResourceDownloader first = createGcsDownloader(mRootDir, objects, copyCount);
+            first.setDownloadCache(cache);
+            TestResourceDownloader second = createGcsDownloader(otherRootDir, objects, copyCount);
+            second.setDownloadCache(cache);
+
+            first.download(new TestResource("shared.txt", url));
+            File secondFile = second.download(new TestResource("shared.txt", url));
+
+            assertEquals("shared", FileUtil.readStringFromFile(secondFile));
+            assertEquals(1, copyCount.get());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+            FileUtil.recursiveDelete(otherRootDir);
+        }
+    }
+
+    /** Creates a downloader whose gsutil commands are served from the given objects. */
+    private TestResourceDownloader createGcsDownloader(
+            File rootDir, Map<String, byte[]> objects, AtomicInteger copyCount) {
+        return new TestResourceDownloader(rootDir) {
+            @Override
+            IRunUtil getRunUtil() {
+                return new RunUtil() {
+                    @Override
+                    public CommandResult runTimedCmdRetry(
+                            long timeout, long retryInterval, int attempts, String... command) {
+                        // gsutil cp <url> <file>
+                        copyCount.incrementAndGet();
+                        try {
+                            Files.write(new File(command[3]).toPath(), objects.get(command[2]));
+                        } catch (IOException e) {
+                            return new CommandResult(CommandStatus.FAILED);
+                        }
+                        return new CommandResult(CommandStatus.SUCCESS);
+                    }
+
+                    @Override
+                    public CommandResult runTimedCmd(long timeout, String... command) {
+                        // gsutil stat <url>
+                        byte[] content = objects.get(command[2]);
+                        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+                        result.setStdout(
+                                String.format(
+                                        "%s:\n"
+                                                + "    Update time:     Mon, 19 Oct 2020 10:00:00"
+                                                + " GMT\n"
+                                                + "    Content-Length:  %d\n"
+                                                + "    Hash (md5):      %s\n",
+                                        command[2], content.length, base64Md5(content)));
+                        return result;
+                    }
+                };
+            }
+        };
+    }
+
+    private static String base64Md5(byte[] content) {
+        try {
+            return Base64.getEncoder()
+                    .encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Test the cache key is a relative path that cannot escape the cache directory. */
+    @Test
+    public void testGetCacheKey() throws Exception {
+        assertEquals(
+                "test_resources/https/host_8080/a/__/b",
+                TestResourceDownloader.getCacheKey(new URL("https://host:8080/a/../b")));
+    }
+}
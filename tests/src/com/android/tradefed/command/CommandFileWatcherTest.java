@@ -17,6 +17,7 @@
 package com.android.tradefed.command;
 
 import com.android.tradefed.command.CommandFileWatcher.ICommandFileListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
@@ -25,7 +26,10 @@ import org.easymock.EasyMock;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link CommandFileWatcher}.  Mocks all file system accesses.
@@ -143,6 +147,82 @@ public class CommandFileWatcherTest extends TestCase {
         EasyMock.verify(mMockListener);
     }
 
+    /**
+     * Make sure that only the command files affected by the changed paths are checked when a
+     * notification is received.
+     */
+    public void testCheckForUpdates_changedPaths() throws Exception {
+        // cmdFile2 is never checked so only gets its construction modtime queried
+        final File cmdFile1 = new ModFile("/went/too/far", 1, 2);
+        final File cmdFile2 = new ModFile("/knew/too/much", 1);
+        final File dependent = new ModFile("/those/are/my/lines", 1, 1);
+        mWatcher.addCmdFile(cmdFile1, EMPTY_ARGS, Arrays.asList(dependent));
+        mWatcher.addCmdFile(cmdFile2, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+        mMockListener.notifyFileChanged(cmdFile1, EMPTY_ARGS);
+        EasyMock.replay(mMockListener);
+
+        mWatcher.checkForUpdates(
+                new HashSet<>(Arrays.asList(dependent.getAbsolutePath(), "/unrelated/file")));
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Make sure that files in directories that cannot be watched fall back to polling.
+     */
+    public void testWatchService_unwatchableDirectory() throws Exception {
+        CommandFileWatcher watcher = new CommandFileWatcher(mMockListener, true);
+        try {
+            if (!watcher.isUsingWatchService()) {
+                // Filesystem notifications are not supported on this host.
+                assertTrue(watcher.isPollingRequired());
+                return;
+            }
+            assertFalse(watcher.isPollingRequired());
+            watcher.addCmdFile(new File("/does/not/exist/cmdfile"), EMPTY_ARGS,
+                    EMPTY_DEPENDENCIES);
+            assertTrue(watcher.isPollingRequired());
+            watcher.removeAllFiles();
+            assertFalse(watcher.isPollingRequired());
+        } finally {
+            watcher.cancel();
+        }
+    }
+
+    /**
+     * Make sure that a change to a real file is picked up through notifications, without waiting
+     * for the poll interval.
+     */
+    public void testWatchService_notifyOnChange() throws Exception {
+        final CountDownLatch changed = new CountDownLatch(1);
+        File tmpDir = FileUtil.createTempDir("cmdfile-watcher");
+        CommandFileWatcher watcher =
+                new CommandFileWatcher(
+                        new ICommandFileListener() {
+                            @Override
+                            public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
+                                changed.countDown();
+                            }
+                        },
+                        true);
+        try {
+            if (!watcher.isUsingWatchService()) {
+                // Filesystem notifications are not supported on this host.
+                return;
+            }
+            File cmdFile = new File(tmpDir, "cmdfile.txt");
+            FileUtil.writeToFile("run empty", cmdFile);
+            cmdFile.setLastModified(1000L);
+            watcher.addCmdFile(cmdFile, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+            watcher.start();
+            FileUtil.writeToFile("run empty --foo", cmdFile);
+            cmdFile.setLastModified(2000L);
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+        } finally {
+            watcher.cancel();
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * A File extension that allows a list of modtimes to be set.
      */
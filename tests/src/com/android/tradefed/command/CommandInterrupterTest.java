@@ -150,6 +150,31 @@ public class CommandInterrupterTest {
                 });
     }
 
+    @Test
+    public void testAllowInterruptAsync_pendingInterrupt() throws InterruptedException {
+        execute(
+                () -> {
+                    // interrupted while interrupts are blocked
+                    mInterrupter.interrupt(Thread.currentThread(), MESSAGE);
+                    mInterrupter.allowInterruptAsync(
+                            Thread.currentThread(), 200L, TimeUnit.MILLISECONDS);
+
+                    // a blocked thread is woken up once interrupts are allowed
+                    try {
+                        Thread.sleep(5000L);
+                        fail("InterruptedException was expected, but not thrown.");
+                    } catch (InterruptedException e) {
+                        // expected
+                    }
+                    try {
+                        mInterrupter.checkInterrupted();
+                        fail("RunInterruptedException was expected, but not thrown.");
+                    } catch (RunInterruptedException e) {
+                        assertEquals(MESSAGE, e.getMessage());
+                    }
+                });
+    }
+
     @Test
     public void testAllowInterruptsAsync_alreadyAllowed() throws InterruptedException {
         execute(
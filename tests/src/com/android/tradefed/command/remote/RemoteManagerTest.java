@@ -16,19 +16,28 @@
 package com.android.tradefed.command.remote;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
 
 import com.android.tradefed.command.ICommandScheduler;
 import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceMonitor;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.hostmetric.IHostMonitor;
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostDataPoint;
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.BufferedReader;
@@ -37,8 +46,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /** Unit tests for {@link RemoteManager}. */
@@ -50,18 +63,25 @@ public class RemoteManagerTest {
     private ICommandScheduler mMockScheduler;
     private IDeviceManager mMockDeviceManager;
     private DeviceTracker mMockDeviceTracker;
+    private IHostMonitor mMockHostMonitor;
 
     @Before
     public void setUp() {
         mMockScheduler = Mockito.mock(ICommandScheduler.class);
         mMockDeviceManager = Mockito.mock(IDeviceManager.class);
         mMockDeviceTracker = Mockito.mock(DeviceTracker.class);
+        mMockHostMonitor = Mockito.mock(IHostMonitor.class);
         mRemoteManager =
                 new RemoteManager(mMockDeviceManager, mMockScheduler) {
                     @Override
                     DeviceTracker getDeviceTracker() {
                         return mMockDeviceTracker;
                     }
+
+                    @Override
+                    List<IHostMonitor> getHostMonitors() {
+                        return Arrays.asList(mMockHostMonitor);
+                    }
                 };
     }
 
@@ -251,4 +271,177 @@ public class RemoteManagerTest {
         verify(mMockDeviceManager, Mockito.times(2))
                 .freeDevice(Mockito.any(), Mockito.eq(FreeDeviceState.AVAILABLE));
     }
+
+    /** Test that a subscription requires a persistent connection. */
+    @Test
+    public void testProcessClientOperation_subscribeWithoutConnection() throws Exception {
+        String buf = "{version=\"8\", type=\"SUBSCRIBE_DEVICE_STATE\"}";
+        RemoteManager.OperationResult result = mRemoteManager.processClientOperation(buf, null);
+        assertTrue(result.mResponse.has(RemoteOperation.ERROR));
+        ArgumentCaptor<HostDataPoint> captor = ArgumentCaptor.forClass(HostDataPoint.class);
+        verify(mMockHostMonitor)
+                .addHostEvent(
+                        Mockito.eq(HostMetricType.REMOTE_MANAGER_REQUEST_LATENCY),
+                        captor.capture());
+        assertEquals("SUBSCRIBE_DEVICE_STATE", captor.getValue().name);
+    }
+
+    /**
+     * Test that several persistent connections can be opened at the same time, and that pipelined
+     * operations are all answered in order.
+     */
+    @Test
+    public void testConcurrentConnections_pipelined() throws Exception {
+        doReturn(new ArrayList<DeviceDescriptor>()).when(mMockDeviceManager).listAllDevices();
+        doReturn(true).when(mMockScheduler).addCommand(Mockito.any());
+        assertTrue(mRemoteManager.connectAnyPort());
+        mRemoteManager.start();
+        try (Socket first = new Socket("localhost", mRemoteManager.getPort());
+                Socket second = new Socket("localhost", mRemoteManager.getPort())) {
+            PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+            BufferedReader firstIn =
+                    new BufferedReader(new InputStreamReader(first.getInputStream()));
+            PrintWriter secondOut = new PrintWriter(second.getOutputStream(), true);
+            BufferedReader secondIn =
+                    new BufferedReader(new InputStreamReader(second.getInputStream()));
+            // Send two operations in a row on the first connection before reading anything.
+            firstOut.print(new ListDevicesOp().pack() + "\n" + "invalid\n");
+            firstOut.flush();
+            secondOut.println(new AddCommandOp(5, "empty").pack());
+
+            assertEquals("{}", secondIn.readLine());
+            assertEquals("{\"serials\":[]}", firstIn.readLine());
+            assertTrue(firstIn.readLine().contains(RemoteOperation.ERROR));
+        } finally {
+            mRemoteManager.cancelAndWait();
+        }
+        verify(mMockScheduler).addCommand(Mockito.any());
+        ArgumentCaptor<HostDataPoint> captor = ArgumentCaptor.forClass(HostDataPoint.class);
+        verify(mMockHostMonitor, Mockito.times(3))
+                .addHostEvent(
+                        Mockito.eq(HostMetricType.REMOTE_MANAGER_REQUEST_LATENCY),
+                        captor.capture());
+        List<String> operations = new ArrayList<>();
+        for (HostDataPoint data : captor.getAllValues()) {
+            operations.add(data.name);
+        }
+        assertTrue(operations.contains("LIST_DEVICES"));
+        assertTrue(operations.contains("ADD_COMMAND"));
+        assertTrue(operations.contains("INVALID"));
+    }
+
+    /** Test that a connection sending an operation longer than the limit is closed. */
+    @Test
+    public void testConnection_lineTooLong() throws Exception {
+        doReturn(new ArrayList<DeviceDescriptor>()).when(mMockDeviceManager).listAllDevices();
+        assertTrue(mRemoteManager.connectAnyPort());
+        mRemoteManager.start();
+        try (Socket socket = new Socket("localhost", mRemoteManager.getPort());
+                Socket other = new Socket("localhost", mRemoteManager.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            byte[] line = new byte[RemoteManager.MAX_LINE_LENGTH + 1];
+            Arrays.fill(line, (byte) 'a');
+            try {
+                out.write(line);
+                out.flush();
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (SocketException e) {
+                // the connection may be reset, since the remaining input is not read
+            }
+            // other connections are still answered
+            PrintWriter otherOut = new PrintWriter(other.getOutputStream(), true);
+            BufferedReader otherIn =
+                    new BufferedReader(new InputStreamReader(other.getInputStream()));
+            otherOut.println(new ListDevicesOp().pack());
+            assertEquals("{\"serials\":[]}", otherIn.readLine());
+        } finally {
+            mRemoteManager.cancelAndWait();
+        }
+    }
+
+    /** Test that a subscribed connection receives the device state changes. */
+    @Test
+    public void testSubscribeDeviceState() throws Exception {
+        doReturn(new ArrayList<DeviceDescriptor>()).when(mMockDeviceManager).listAllDevices();
+        assertTrue(mRemoteManager.connectAnyPort());
+        mRemoteManager.start();
+        try (Socket client = new Socket("localhost", mRemoteManager.getPort())) {
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(client.getInputStream()));
+            out.println(new SubscribeDeviceStateOp().pack());
+            assertEquals("{\"serials\":[]}", in.readLine());
+
+            ArgumentCaptor<IDeviceMonitor> captor = ArgumentCaptor.forClass(IDeviceMonitor.class);
+            verify(mMockDeviceManager).addDeviceMonitor(captor.capture());
+            captor.getValue()
+                    .notifyDeviceStateChange(
+                            "serial1",
+                            DeviceAllocationState.Available,
+                            DeviceAllocationState.Allocated);
+            JSONObject event = new JSONObject(in.readLine());
+            assertTrue(SubscribeDeviceStateOp.isEvent(event));
+            assertEquals("serial1", event.getString(SubscribeDeviceStateOp.SERIAL));
+            assertEquals("Allocated", event.getString(SubscribeDeviceStateOp.NEW_STATE));
+        } finally {
+            mRemoteManager.cancelAndWait();
+        }
+    }
+
+    /** Test that a client requesting the remote manager to close still receives the ack. */
+    @Test
+    public void testClose_ack() throws Exception {
+        assertTrue(mRemoteManager.connectAnyPort());
+        mRemoteManager.start();
+        try (Socket client = new Socket("localhost", mRemoteManager.getPort())) {
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(client.getInputStream()));
+            out.println(new CloseOp().pack());
+            assertEquals("{}", in.readLine());
+            mRemoteManager.join(10 * 1000);
+            assertTrue(mRemoteManager.isCanceled());
+            assertFalse(mRemoteManager.isAlive());
+        } finally {
+            mRemoteManager.cancelAndWait();
+        }
+    }
+
+    /** Test that an event raised while subscribing is received after the subscription response. */
+    @Test
+    public void testSubscribeDeviceState_eventDuringSubscription() throws Exception {
+        IDeviceMonitor[] monitor = new IDeviceMonitor[1];
+        Mockito.doAnswer(
+                        invocation -> {
+                            monitor[0] = invocation.getArgument(0);
+                            return null;
+                        })
+                .when(mMockDeviceManager)
+                .addDeviceMonitor(Mockito.any());
+        Mockito.doAnswer(
+                        invocation -> {
+                            monitor[0].notifyDeviceStateChange(
+                                    "serial1",
+                                    DeviceAllocationState.Available,
+                                    DeviceAllocationState.Allocated);
+                            return new ArrayList<DeviceDescriptor>();
+                        })
+                .when(mMockDeviceManager)
+                .listAllDevices();
+        assertTrue(mRemoteManager.connectAnyPort());
+        mRemoteManager.start();
+        try (Socket client = new Socket("localhost", mRemoteManager.getPort())) {
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(client.getInputStream()));
+            out.println(new SubscribeDeviceStateOp().pack());
+            assertEquals("{\"serials\":[]}", in.readLine());
+            JSONObject event = new JSONObject(in.readLine());
+            assertTrue(SubscribeDeviceStateOp.isEvent(event));
+            assertEquals("serial1", event.getString(SubscribeDeviceStateOp.SERIAL));
+        } finally {
+            mRemoteManager.cancelAndWait();
+        }
+    }
 }
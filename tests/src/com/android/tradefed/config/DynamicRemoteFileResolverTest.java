@@ -62,13 +62,16 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
@@ -556,6 +559,96 @@ public class DynamicRemoteFileResolverTest {
         EasyMock.verify(mMockResolver);
     }
 
+    /** Test that the remote files are resolved at the same time, and a path only once. */
+    @Test
+    public void testResolve_parallel() throws Exception {
+        RemoteFileOption object1 = new RemoteFileOption();
+        RemoteFileOption object2 = new RemoteFileOption();
+        OptionSetter setter = new OptionSetter(object1, object2);
+        setter.setOptionValue("alias-remote-file:1:remote-file-list", "gs://fake/path1");
+        setter.setOptionValue("alias-remote-file:1:remote-file-list", "gs://fake/path2");
+        setter.setOptionValue("alias-remote-file:1:remote-file-list", "gs://fake/path3");
+        setter.setOptionValue("alias-remote-file:2:remote-file", "gs://fake/path1");
+
+        ConcurrentResolver concurrentResolver = new ConcurrentResolver(3);
+        mResolver = new DynamicRemoteFileResolver((scheme, config) -> concurrentResolver);
+        mResolver.setMaxParallelResolutions(3);
+        Set<File> downloadedFile = setter.validateRemoteFilePath(mResolver);
+
+        assertEquals(3, concurrentResolver.mResolvedFiles.size());
+        // The options sharing a path each get their own file.
+        Set<File> optionFiles = new HashSet<>(object1.remoteFileList);
+        optionFiles.add(object2.remoteFile);
+        assertEquals(optionFiles, downloadedFile);
+        assertEquals(4, downloadedFile.size());
+        assertTrue(downloadedFile.containsAll(concurrentResolver.mResolvedFiles));
+        for (File f : downloadedFile) {
+            assertTrue(f.exists());
+            if (!concurrentResolver.mResolvedFiles.contains(f)) {
+                f.delete();
+            }
+        }
+    }
+
+    /** Test that all the resolved files are deleted when one of the parallel resolutions fails. */
+    @Test
+    public void testResolve_parallel_downloadError() throws Exception {
+        RemoteFileOption object = new RemoteFileOption();
+        OptionSetter setter = new OptionSetter(object);
+        setter.setOptionValue("remote-file-list", "gs://success/fake/path");
+        setter.setOptionValue("remote-file-list", "gs://success/fake/path2");
+        setter.setOptionValue("remote-file-list", "gs://failure/test");
+
+        ConcurrentResolver concurrentResolver = new ConcurrentResolver(3);
+        mResolver = new DynamicRemoteFileResolver((scheme, config) -> concurrentResolver);
+        mResolver.setMaxParallelResolutions(4);
+        try {
+            setter.validateRemoteFilePath(mResolver);
+            fail("Should have thrown an exception");
+        } catch (BuildRetrievalError expected) {
+            assertTrue(expected.getMessage().contains("retrieval error"));
+        }
+        assertEquals(2, concurrentResolver.mResolvedFiles.size());
+        for (File resolved : concurrentResolver.mResolvedFiles) {
+            assertFalse(resolved.exists());
+        }
+    }
+
+    /** Resolver waiting for a number of files to be resolved at the same time. */
+    private class ConcurrentResolver implements IRemoteFileResolver {
+        private final CountDownLatch mLatch;
+        private final List<File> mResolvedFiles = Collections.synchronizedList(new ArrayList<>());
+
+        ConcurrentResolver(int parallelResolutions) {
+            mLatch = new CountDownLatch(parallelResolutions);
+        }
+
+        @Override
+        public String getSupportedProtocol() {
+            return GcsRemoteFileResolver.PROTOCOL;
+        }
+
+        @Override
+        public File resolveRemoteFiles(File consideredFile, Map<String, String> queryArgs)
+                throws BuildRetrievalError {
+            mLatch.countDown();
+            try {
+                if (!mLatch.await(10, TimeUnit.SECONDS)) {
+                    throw new BuildRetrievalError("Files were not resolved at the same time.");
+                }
+                if (consideredFile.getPath().contains("failure")) {
+                    throw new BuildRetrievalError(
+                            "retrieval error", InfraErrorIdentifier.ARTIFACT_DOWNLOAD_ERROR);
+                }
+                File resolved = temporaryFolder.newFile();
+                mResolvedFiles.add(resolved);
+                return resolved;
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     /** Ensure that we are able to load all the services included in Tradefed. */
     @Test
     public void testServiceLoader() {
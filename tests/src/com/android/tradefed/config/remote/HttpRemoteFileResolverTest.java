@@ -19,9 +19,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import com.android.tradefed.build.BuildRetrievalError;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.net.IHttpHelper;
 
+import com.sun.net.httpserver.HttpServer;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,7 +33,11 @@ import org.mockito.Mockito;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Unit tests for {@link HttpRemoteFileResolver}. */
 @RunWith(JUnit4.class)
@@ -82,4 +89,52 @@ public class HttpRemoteFileResolverTest {
         Mockito.verify(mHttpDownloader)
                 .doGet(Mockito.eq("http://fake/HttpRemoteFileResolverTest"), Mockito.any());
     }
+
+    /** Test that a url resolved through the download cache of the host is only fetched once. */
+    @Test
+    public void testResolve_downloadCache() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(
+                "/",
+                exchange -> {
+                    requests.incrementAndGet();
+                    byte[] content = "remote content".getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, content.length);
+                    try (OutputStream body = exchange.getResponseBody()) {
+                        body.write(content);
+                    }
+                });
+        server.start();
+        File cacheDir = FileUtil.createTempDir("HttpRemoteFileResolverTest");
+        File first = null;
+        File second = null;
+        try {
+            HttpRemoteFileResolver resolver =
+                    new HttpRemoteFileResolver() {
+                        @Override
+                        protected File getDownloadCacheDir() {
+                            return cacheDir;
+                        }
+                    };
+            new OptionSetter(resolver).setOptionValue("http-use-download-cache", "true");
+            File remoteFile =
+                    new File(
+                            String.format(
+                                    "http:/localhost:%d/path/file.txt",
+                                    server.getAddress().getPort()));
+
+            first = resolver.resolveRemoteFiles(remoteFile, new HashMap<>());
+            second = resolver.resolveRemoteFiles(remoteFile, new HashMap<>());
+
+            assertEquals("remote content", FileUtil.readStringFromFile(first));
+            assertEquals("remote content", FileUtil.readStringFromFile(second));
+            assertEquals(1, requests.get());
+        } finally {
+            server.stop(0);
+            FileUtil.deleteFile(first);
+            FileUtil.deleteFile(second);
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
 }
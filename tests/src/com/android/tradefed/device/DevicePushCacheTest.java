@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Unit tests for {@link DevicePushCache}. */
+@RunWith(JUnit4.class)
+public class DevicePushCacheTest {
+
+    private static final String CACHE_DIR = "/data/local/tmp/cache";
+    private static final String REMOTE_PATH = "/data/local/tmp/file";
+
+    private DevicePushCache mCache;
+    private ITestDevice mMockDevice;
+    private File mLocalFile;
+    private String mDigest;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new DevicePushCache(CACHE_DIR, 3 * DevicePushCache.MIN_CACHED_SIZE);
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        mLocalFile = FileUtil.createTempFile("DevicePushCacheTest", ".bin");
+        String content = new String(new char[(int) DevicePushCache.MIN_CACHED_SIZE]);
+        FileUtil.writeToFile(content, mLocalFile);
+        mDigest = mCache.getDigest(mLocalFile);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mLocalFile);
+    }
+
+    /** Test that only large enough files pushed to a file path go through the cache. */
+    @Test
+    public void testAccepts() throws IOException {
+        assertTrue(mCache.accepts(mLocalFile, REMOTE_PATH));
+        assertFalse(mCache.accepts(mLocalFile, "/data/local/tmp/"));
+        File smallFile = FileUtil.createTempFile("DevicePushCacheTest", ".txt");
+        try {
+            assertFalse(mCache.accepts(smallFile, REMOTE_PATH));
+        } finally {
+            FileUtil.deleteFile(smallFile);
+        }
+    }
+
+    /** Test that a destination already holding the content of the file is not pushed again. */
+    @Test
+    public void testRestore_alreadyOnDevice() throws Exception {
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                String.format("md5sum \"%s\" 2>/dev/null", REMOTE_PATH)))
+                .andReturn(String.format("%s  %s\n", mDigest, REMOTE_PATH));
+        EasyMock.replay(mMockDevice);
+        assertTrue(mCache.restore(mMockDevice, mLocalFile, mDigest, REMOTE_PATH));
+        assertEquals(mLocalFile.length(), mCache.getSavedBytes());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that a file pushed before is copied from the cache of the device. */
+    @Test
+    public void testRestore_fromCache() throws Exception {
+        String cachedPath = CACHE_DIR + "/" + mDigest;
+        EasyMock.expect(mMockDevice.executeShellV2Command(EasyMock.contains("mkdir -p")))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                String.format(
+                                        "md5sum \"%s\" \"%s\" 2>/dev/null",
+                                        REMOTE_PATH, cachedPath)))
+                .andReturn(String.format("%s  %s\n", mDigest, cachedPath));
+        EasyMock.expect(
+                        mMockDevice.executeShellV2Command(
+                                String.format("cp -f \"%s\" \"%s\"", cachedPath, REMOTE_PATH)))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.replay(mMockDevice);
+        mCache.store(mMockDevice, mDigest, "/data/local/tmp/other", mLocalFile.length());
+        assertEquals(1, mCache.size());
+        assertTrue(mCache.restore(mMockDevice, mLocalFile, mDigest, REMOTE_PATH));
+        assertEquals(mLocalFile.length(), mCache.getSavedBytes());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that a cached file modified on the device is dropped instead of being copied. */
+    @Test
+    public void testRestore_modifiedCache() throws Exception {
+        String cachedPath = CACHE_DIR + "/" + mDigest;
+        EasyMock.expect(mMockDevice.executeShellV2Command(EasyMock.contains("mkdir -p")))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                String.format(
+                                        "md5sum \"%s\" \"%s\" 2>/dev/null",
+                                        REMOTE_PATH, cachedPath)))
+                .andReturn(String.format("0123456789abcdef  %s\n", cachedPath));
+        EasyMock.replay(mMockDevice);
+        mCache.store(mMockDevice, mDigest, "/data/local/tmp/other", mLocalFile.length());
+        assertFalse(mCache.restore(mMockDevice, mLocalFile, mDigest, REMOTE_PATH));
+        assertEquals(0, mCache.size());
+        assertEquals(0L, mCache.getSavedBytes());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that the cached files are forgotten once invalidated. */
+    @Test
+    public void testInvalidate() throws Exception {
+        String storeCommand =
+                String.format(
+                        "mkdir -p \"%s\" && (ln -f \"%s\" \"%s\" 2>/dev/null "
+                                + "|| cp -f \"%s\" \"%s\")",
+                        CACHE_DIR,
+                        REMOTE_PATH,
+                        CACHE_DIR + "/" + mDigest,
+                        REMOTE_PATH,
+                        CACHE_DIR + "/" + mDigest);
+        String cleanCommand = String.format("rm -rf \"%s\" && %s", CACHE_DIR, storeCommand);
+        EasyMock.expect(mMockDevice.executeShellV2Command(cleanCommand))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                String.format("md5sum \"%s\" 2>/dev/null", REMOTE_PATH)))
+                .andReturn("");
+        EasyMock.expect(mMockDevice.executeShellV2Command(cleanCommand))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.replay(mMockDevice);
+        // Files left by a previous invocation are deleted.
+        mCache.store(mMockDevice, mDigest, REMOTE_PATH, mLocalFile.length());
+        mCache.invalidate();
+        assertEquals(0, mCache.size());
+        assertEquals(0L, mCache.getCachedBytes());
+        assertFalse(mCache.restore(mMockDevice, mLocalFile, mDigest, REMOTE_PATH));
+        // The cache directory of the device is deleted before caching files again.
+        mCache.store(mMockDevice, mDigest, REMOTE_PATH, mLocalFile.length());
+        assertEquals(1, mCache.size());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that the least recently used files are evicted to stay under the maximum size. */
+    @Test
+    public void testStore_evict() throws Exception {
+        long size = DevicePushCache.MIN_CACHED_SIZE;
+        EasyMock.expect(mMockDevice.executeShellV2Command(EasyMock.startsWith("rm -rf")))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.expect(mMockDevice.executeShellV2Command(EasyMock.startsWith("mkdir -p")))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS))
+                .times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains(CACHE_DIR + "/md5-1")))
+                .andReturn(String.format("md5-1  %s/md5-1\n", CACHE_DIR));
+        EasyMock.expect(
+                        mMockDevice.executeShellV2Command(
+                                String.format("cp -f \"%s/md5-1\" \"%s\"", CACHE_DIR, REMOTE_PATH)))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.expect(
+                        mMockDevice.executeShellV2Command(
+                                EasyMock.startsWith(
+                                        String.format(
+                                                "rm -f \"%s/md5-2\" && mkdir -p", CACHE_DIR))))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.replay(mMockDevice);
+        mCache.store(mMockDevice, "md5-1", "/data/local/tmp/file1", size);
+        mCache.store(mMockDevice, "md5-2", "/data/local/tmp/file2", size);
+        mCache.store(mMockDevice, "md5-3", "/data/local/tmp/file3", size);
+        // Using the first file makes the second one the least recently used.
+        assertTrue(mCache.restore(mMockDevice, mLocalFile, "md5-1", REMOTE_PATH));
+        mCache.store(mMockDevice, "md5-4", "/data/local/tmp/file4", size);
+        assertEquals(3, mCache.size());
+        assertEquals(3 * size, mCache.getCachedBytes());
+        // Files larger than the cache are not cached.
+        mCache.store(mMockDevice, "md5-5", "/data/local/tmp/file5", 4 * size);
+        assertEquals(3, mCache.size());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that a failed copy to the cache does not add the file to the cache. */
+    @Test
+    public void testStore_failed() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellV2Command(EasyMock.contains("mkdir -p")))
+                .andReturn(new CommandResult(CommandStatus.FAILED));
+        EasyMock.replay(mMockDevice);
+        mCache.store(mMockDevice, mDigest, REMOTE_PATH, mLocalFile.length());
+        assertEquals(0, mCache.size());
+        EasyMock.verify(mMockDevice);
+    }
+}
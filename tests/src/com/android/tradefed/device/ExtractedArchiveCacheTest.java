@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.ZipUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Unit tests for {@link ExtractedArchiveCache}. */
+@RunWith(JUnit4.class)
+public class ExtractedArchiveCacheTest {
+
+    private ExtractedArchiveCache mCache;
+    private File mTmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new ExtractedArchiveCache();
+        mTmpDir = FileUtil.createTempDir("ExtractedArchiveCacheTest");
+    }
+
+    @After
+    public void tearDown() {
+        mCache.deleteAll();
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that archives with the same content are extracted once. */
+    @Test
+    public void testAcquire_sameContent() throws IOException {
+        File zip = createZip("system.img", "content");
+        File copy = new File(mTmpDir, "copy.zip");
+        FileUtil.copyFile(zip, copy);
+
+        File dir = mCache.acquire(zip);
+        assertEquals("content", FileUtil.readStringFromFile(new File(dir, "system.img")));
+        assertEquals(dir, mCache.acquire(copy));
+        assertEquals(1, mCache.size());
+
+        File other = mCache.acquire(createZip("system.img", "other"));
+        assertNotEquals(dir, other);
+        assertEquals(2, mCache.size());
+    }
+
+    /** Test that released directories are kept up to the given number. */
+    @Test
+    public void testRelease() throws IOException {
+        File firstZip = createZip("system.img", "first");
+        File first = mCache.acquire(firstZip);
+        File firstAgain = mCache.acquire(firstZip);
+        File second = mCache.acquire(createZip("system.img", "second"));
+
+        // Still used once.
+        mCache.release(first, 0);
+        assertTrue(first.isDirectory());
+        assertEquals(2, mCache.size());
+
+        mCache.release(firstAgain, 1);
+        mCache.release(second, 1);
+        // The least recently used one is deleted.
+        assertFalse(first.exists());
+        assertTrue(second.isDirectory());
+        assertEquals(1, mCache.size());
+
+        mCache.release(second, 0);
+        assertFalse(second.exists());
+        assertEquals(0, mCache.size());
+    }
+
+    /** Test that an archive that cannot be extracted is not kept in the cache. */
+    @Test
+    public void testAcquire_invalidArchive() throws IOException {
+        File invalid = new File(mTmpDir, "invalid.zip");
+        FileUtil.writeToFile("not a zip", invalid);
+        try {
+            mCache.acquire(invalid);
+            fail("Should have thrown an exception.");
+        } catch (IOException expected) {
+            // expected
+        }
+        assertEquals(0, mCache.size());
+    }
+
+    /** Test that the cache only remembers the digests of the recently used archives. */
+    @Test
+    public void testGetDigest_bounded() throws IOException {
+        File first = new File(mTmpDir, "first.zip");
+        FileUtil.writeToFile("first", first);
+        String digest = mCache.getDigest(first);
+        for (int i = 0; i < ExtractedArchiveCache.MAX_DIGEST_COUNT + 10; i++) {
+            File file = new File(mTmpDir, String.format("archive%d.zip", i));
+            FileUtil.writeToFile("content", file);
+            mCache.getDigest(file);
+        }
+        assertEquals(ExtractedArchiveCache.MAX_DIGEST_COUNT, mCache.getDigestCount());
+        assertEquals(digest, mCache.getDigest(first));
+    }
+
+    private File createZip(String name, String content) throws IOException {
+        File dir = FileUtil.createTempDir("content", mTmpDir);
+        File file = new File(dir, name);
+        FileUtil.writeToFile(content, file);
+        File zip = ZipUtil.createZip(Arrays.asList(file));
+        FileUtil.recursiveDelete(dir);
+        File result = FileUtil.createTempFile("archive", ".zip", mTmpDir);
+        FileUtil.copyFile(zip, result);
+        FileUtil.deleteFile(zip);
+        return result;
+    }
+}
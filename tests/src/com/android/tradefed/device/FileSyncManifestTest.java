@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/** Unit tests for {@link FileSyncManifest}. */
+@RunWith(JUnit4.class)
+public class FileSyncManifestTest {
+
+    private File mLocalDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mLocalDir = FileUtil.createTempDir("FileSyncManifestTest");
+        createFile("a.txt", "content a", 1000000L);
+        createFile("sub/b.txt", "content b", 2000000L);
+        createFile(".hidden/c.txt", "content c", 3000000L);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mLocalDir);
+    }
+
+    /** Test that the local manifest lists the non hidden files of the tree. */
+    @Test
+    public void testFromLocalDir() throws IOException {
+        Map<String, FileSyncManifest.Entry> entries =
+                FileSyncManifest.fromLocalDir(mLocalDir, false).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(9L, entries.get("a.txt").getSize());
+        assertEquals(1000L, entries.get("a.txt").getModifiedTime());
+        assertNull(entries.get("a.txt").getMd5());
+        assertEquals(2000L, entries.get("sub/b.txt").getModifiedTime());
+    }
+
+    /** Test that the local manifest has the md5 of the files when hashing. */
+    @Test
+    public void testFromLocalDir_hash() throws IOException {
+        Map<String, FileSyncManifest.Entry> entries =
+                FileSyncManifest.fromLocalDir(mLocalDir, true).getEntries();
+        assertEquals(
+                FileUtil.calculateMd5(new File(mLocalDir, "sub/b.txt")),
+                entries.get("sub/b.txt").getMd5());
+    }
+
+    /** Test parsing the state of the device tree. */
+    @Test
+    public void testFromRemoteOutput() {
+        String output =
+                "9 1000 ./a.txt\n"
+                        + "12 2000 ./sub/with space.txt\n"
+                        + "--md5--\n"
+                        + "0123456789abcdef  ./sub/with space.txt\n";
+        Map<String, FileSyncManifest.Entry> entries =
+                FileSyncManifest.fromRemoteOutput(output).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(9L, entries.get("a.txt").getSize());
+        assertNull(entries.get("a.txt").getMd5());
+        assertEquals(2000L, entries.get("sub/with space.txt").getModifiedTime());
+        assertEquals("0123456789abcdef", entries.get("sub/with space.txt").getMd5());
+    }
+
+    /** Test that missing, resized and newer files are transferred. */
+    @Test
+    public void testGetChangedFiles() throws IOException {
+        FileSyncManifest local = FileSyncManifest.fromLocalDir(mLocalDir, false);
+        assertEquals(
+                Arrays.asList("a.txt", "sub/b.txt"),
+                local.getChangedFiles(FileSyncManifest.fromRemoteOutput("")));
+        // Up to date, resized then older on the device.
+        assertTrue(
+                local.getChangedFiles(
+                                FileSyncManifest.fromRemoteOutput(
+                                        "9 1000 ./a.txt\n9 2500 ./sub/b.txt\n"))
+                        .isEmpty());
+        assertEquals(
+                Arrays.asList("a.txt"),
+                local.getChangedFiles(
+                        FileSyncManifest.fromRemoteOutput("10 1000 ./a.txt\n9 2000 ./sub/b.txt")));
+        assertEquals(
+                Arrays.asList("sub/b.txt"),
+                local.getChangedFiles(
+                        FileSyncManifest.fromRemoteOutput("9 1000 ./a.txt\n9 1999 ./sub/b.txt")));
+    }
+
+    /** Test that the md5 of the files decides when hashing, regardless of the times. */
+    @Test
+    public void testGetChangedFiles_hash() throws IOException {
+        FileSyncManifest local = FileSyncManifest.fromLocalDir(mLocalDir, true);
+        String md5A = FileUtil.calculateMd5(new File(mLocalDir, "a.txt"));
+        String output =
+                "9 1 ./a.txt\n"
+                        + "9 9999 ./sub/b.txt\n"
+                        + "--md5--\n"
+                        + md5A
+                        + "  ./a.txt\n"
+                        + md5A
+                        + "  ./sub/b.txt\n";
+        assertEquals(
+                Arrays.asList("sub/b.txt"),
+                local.getChangedFiles(FileSyncManifest.fromRemoteOutput(output)));
+    }
+
+    /** Test the command collecting the state of the device tree. */
+    @Test
+    public void testGetRemoteCommand() {
+        String command = FileSyncManifest.getRemoteCommand("/data/local/tmp/dir", false);
+        assertTrue(command.startsWith("cd \"/data/local/tmp/dir\" 2>/dev/null || exit 0;"));
+        assertFalse(command.contains("md5sum"));
+        assertTrue(
+                FileSyncManifest.getRemoteCommand("/data/local/tmp/dir", true).contains("md5sum"));
+    }
+
+    private void createFile(String path, String content, long lastModified) throws IOException {
+        File file = new File(mLocalDir, path);
+        file.getParentFile().mkdirs();
+        FileUtil.writeToFile(content, file);
+        file.setLastModified(lastModified);
+    }
+}
@@ -47,6 +47,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.zip.GZIPOutputStream;
 
@@ -98,6 +99,11 @@ public class LocalAndroidVirtualDeviceTest {
         File getTmpDir() {
             return mTmpDir;
         }
+
+        @Override
+        ExtractedArchiveCache getImageCache() {
+            return mImageCache;
+        }
     }
 
     private static final String STUB_SERIAL_NUMBER = "local-virtual-device-0";
@@ -144,6 +150,7 @@ public class LocalAndroidVirtualDeviceTest {
     private File mImageZip;
     private File mHostPackageTarGzip;
     private File mTmpDir;
+    private ExtractedArchiveCache mImageCache;
 
     // Mock object.
     private IBuildInfo mMockBuildInfo;
@@ -158,6 +165,7 @@ public class LocalAndroidVirtualDeviceTest {
         mHostPackageTarGzip = FileUtil.createTempFile("cvd-host_package", ".tar.gz");
         createHostPackage(mHostPackageTarGzip);
         mTmpDir = FileUtil.createTempDir("LocalAvdTmp");
+        mImageCache = new ExtractedArchiveCache();
 
         mMockBuildInfo = EasyMock.createMock(IBuildInfo.class);
         EasyMock.expect(mMockBuildInfo.getFile(EasyMock.eq(BuildInfoFileKey.DEVICE_IMAGE)))
@@ -193,13 +201,15 @@ public class LocalAndroidVirtualDeviceTest {
         FileUtil.deleteFile(mImageZip);
         FileUtil.deleteFile(mHostPackageTarGzip);
         FileUtil.recursiveDelete(mTmpDir);
+        mImageCache.deleteAll();
         mAcloud = null;
         mImageZip = null;
         mHostPackageTarGzip = null;
         mTmpDir = null;
     }
 
-    private static void createHostPackage(File hostPackageTarGzip) throws IOException {
+    private static void createHostPackage(File hostPackageTarGzip, String... binaries)
+            throws IOException {
         OutputStream out = null;
         try {
             out = new FileOutputStream(hostPackageTarGzip);
@@ -210,6 +220,12 @@ public class LocalAndroidVirtualDeviceTest {
             TarArchiveEntry tarEntry = new TarArchiveEntry("bin" + File.separator);
             tar.putArchiveEntry(tarEntry);
             tar.closeArchiveEntry();
+            for (String binary : binaries) {
+                tarEntry = new TarArchiveEntry("bin" + File.separator + binary);
+                tarEntry.setSize(0);
+                tar.putArchiveEntry(tarEntry);
+                tar.closeArchiveEntry();
+            }
             tar.finish();
         } finally {
             StreamUtil.close(out);
@@ -288,6 +304,26 @@ public class LocalAndroidVirtualDeviceTest {
         return runUtil;
     }
 
+    private IRunUtil mockPowerwash(CommandStatus status, File powerwash) {
+        IRunUtil runUtil = EasyMock.createMock(IRunUtil.class);
+        runUtil.setEnvVariable(
+                EasyMock.eq("HOME"),
+                EasyMock.eq(
+                        FileUtil.getFileForPath(mTmpDir, "acloud_cvd_temp", INSTANCE_NAME)
+                                .getAbsolutePath()));
+
+        CommandResult result = new CommandResult(status);
+        result.setStderr("powerwash_cvd");
+        result.setStdout("powerwash_cvd");
+        EasyMock.expect(
+                        runUtil.runTimedCmd(
+                                EasyMock.eq(ACLOUD_TIMEOUT),
+                                EasyMock.eq(powerwash.getAbsolutePath())))
+                .andReturn(result);
+
+        return runUtil;
+    }
+
     private ITestLogger mockReportInstanceLogs() {
         ITestLogger testLogger = EasyMock.createMock(ITestLogger.class);
         testLogger.testLog(
@@ -471,4 +507,98 @@ public class LocalAndroidVirtualDeviceTest {
         Assert.assertFalse(capturedHostPackageDir.exists());
         Assert.assertFalse(capturedImageDir.exists());
     }
+
+    /**
+     * Test that the instance is kept running after a successful invocation, and reset for the
+     * next invocation of the same build.
+     */
+    @Test
+    public void testPreInvocationSetup_warmInstance()
+            throws DeviceNotAvailableException, IOException, TargetSetupError {
+        createHostPackage(mHostPackageTarGzip, "powerwash_cvd");
+        IBuildInfo buildInfo = EasyMock.createMock(IBuildInfo.class);
+        EasyMock.expect(buildInfo.getFile(EasyMock.eq(BuildInfoFileKey.DEVICE_IMAGE)))
+                .andStubReturn(mImageZip);
+        EasyMock.expect(buildInfo.getFile(EasyMock.eq("cvd-host_package.tar.gz")))
+                .andStubReturn(mHostPackageTarGzip);
+        mLocalAvd.getOptions().setKeepLocalAvdWarm(true);
+
+        Capture<String> reportFile = new Capture<String>();
+        Capture<String> hostPackageDir = new Capture<String>();
+        Capture<String> imageDir = new Capture<String>();
+        IRunUtil acloudCreateRunUtil =
+                mockAcloudCreate(
+                        CommandStatus.SUCCESS,
+                        SUCCESS_REPORT_STRING,
+                        reportFile,
+                        hostPackageDir,
+                        imageDir);
+        EasyMock.replay(buildInfo, acloudCreateRunUtil);
+
+        // First invocation creates the instance.
+        mLocalAvd.currentRunUtil = acloudCreateRunUtil;
+        mLocalAvd.expectToConnect = true;
+        mLocalAvd.preInvocationSetup(buildInfo);
+        Assert.assertEquals(ONLINE_SERIAL_NUMBER, mLocalAvd.getIDevice().getSerialNumber());
+
+        mLocalAvd.expectToConnect = false;
+        mLocalAvd.postInvocationTearDown(null);
+        assertFinalDeviceState(mLocalAvd.getIDevice());
+        File capturedHostPackageDir = new File(hostPackageDir.getValue());
+        File capturedImageDir = new File(imageDir.getValue());
+        Assert.assertTrue(capturedHostPackageDir.isDirectory());
+        Assert.assertTrue(capturedImageDir.isDirectory());
+
+        // Second invocation resets it.
+        IRunUtil powerwashRunUtil =
+                mockPowerwash(
+                        CommandStatus.SUCCESS,
+                        FileUtil.getFileForPath(capturedHostPackageDir, "bin", "powerwash_cvd"));
+        IRunUtil acloudDeleteRunUtil = mockAcloudDelete(CommandStatus.SUCCESS);
+        EasyMock.replay(powerwashRunUtil, acloudDeleteRunUtil);
+
+        mLocalAvd.currentRunUtil = powerwashRunUtil;
+        mLocalAvd.expectToConnect = true;
+        mLocalAvd.preInvocationSetup(buildInfo);
+        Assert.assertEquals(ONLINE_SERIAL_NUMBER, mLocalAvd.getIDevice().getSerialNumber());
+
+        // The instance is stopped after a failed invocation.
+        mLocalAvd.currentRunUtil = acloudDeleteRunUtil;
+        mLocalAvd.expectToConnect = false;
+        mLocalAvd.postInvocationTearDown(new RuntimeException());
+        assertFinalDeviceState(mLocalAvd.getIDevice());
+        EasyMock.verify(acloudCreateRunUtil, powerwashRunUtil, acloudDeleteRunUtil);
+
+        // The image directory of the instance is deleted, the shared files are kept.
+        Assert.assertFalse(capturedImageDir.exists());
+        Assert.assertTrue(capturedHostPackageDir.isDirectory());
+        Assert.assertEquals(2, mImageCache.size());
+    }
+
+    /**
+     * Test that the instance image directory copies the images written by the instance and links
+     * to the other shared files.
+     */
+    @Test
+    public void testCreateImageOverlay() throws IOException {
+        File sharedDir = FileUtil.createTempDir("shared", mTmpDir);
+        FileUtil.writeToFile("system", new File(sharedDir, "system.img"));
+        FileUtil.writeToFile("userdata", new File(sharedDir, "userdata.img"));
+
+        File overlayDir = mLocalAvd.createImageOverlay(sharedDir);
+        File system = new File(overlayDir, "system.img");
+        File userdata = new File(overlayDir, "userdata.img");
+        Assert.assertTrue(Files.isSymbolicLink(system.toPath()));
+        Assert.assertFalse(Files.isSymbolicLink(userdata.toPath()));
+        Assert.assertEquals("userdata", FileUtil.readStringFromFile(userdata));
+
+        // Writing to the image of the instance does not modify the shared one.
+        FileUtil.writeToFile("modified", userdata);
+        Assert.assertEquals(
+                "userdata", FileUtil.readStringFromFile(new File(sharedDir, "userdata.img")));
+
+        mLocalAvd.deleteTempDirs();
+        Assert.assertFalse(overlayDir.exists());
+        Assert.assertTrue(new File(sharedDir, "system.img").isFile());
+    }
 }
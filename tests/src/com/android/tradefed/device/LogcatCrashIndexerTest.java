@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.loganalysis.item.JavaCrashItem;
+import com.android.tradefed.device.LogcatCrashIndexer.CrashEvent;
+import com.android.tradefed.device.LogcatCrashIndexer.CrashType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/** Unit tests for {@link LogcatCrashIndexer}. */
+@RunWith(JUnit4.class)
+public class LogcatCrashIndexerTest {
+
+    private static final String JAVA_CRASH =
+            "03-20 09:57:36.709 11 11 E AndroidRuntime: FATAL EXCEPTION: Thread-2\n"
+                    + "03-20 09:57:36.709 11 11 E AndroidRuntime: Process: android.gesture.cts"
+                    + ", PID: 11034\n"
+                    + "03-20 09:57:36.709 11 11 E AndroidRuntime: java.lang.RuntimeException:"
+                    + " Runtime\n"
+                    + "03-20 09:57:36.710 22 22 I OtherTag: interleaved line\n"
+                    + "03-20 09:57:36.709 11 11 E AndroidRuntime:    at android.GestureTest$1"
+                    + ".run(GestureTest.java:52)\n"
+                    + "03-20 09:57:36.709 11 11 E AndroidRuntime:    at java.lang.Thread.run"
+                    + "(Thread.java:764)\n";
+    private static final String NATIVE_CRASH =
+            "03-20 09:58:00.000 33 33 F DEBUG: *** *** *** *** *** *** *** *** *** *** *** *** ***"
+                    + " *** *** ***\n"
+                    + "03-20 09:58:00.000 33 33 F DEBUG: pid: 4000, tid: 4000, name: crasher\n";
+    private static final String ANR =
+            "03-20 09:59:00.000 44 55 E ActivityManager: ANR in com.android.app\n"
+                    + "03-20 09:59:00.000 44 55 E ActivityManager: Reason: Input dispatching\n";
+
+    private LogcatCrashIndexer mIndexer;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mNow = time(3, 21, 0, 0, 0, 0);
+        mIndexer =
+                new LogcatCrashIndexer(2) {
+                    @Override
+                    long getCurrentTime() {
+                        return mNow;
+                    }
+                };
+    }
+
+    private long time(int month, int day, int hour, int minute, int second, int millis) {
+        return LocalDateTime.of(2020, month, day, hour, minute, second, millis * 1000000)
+                .atZone(ZoneId.systemDefault())
+                .toInstant()
+                .toEpochMilli();
+    }
+
+    private void feed(String logcat) {
+        byte[] data = logcat.getBytes(StandardCharsets.UTF_8);
+        // Feed in small chunks to exercise lines spanning several outputs
+        for (int offset = 0; offset < data.length; offset += 7) {
+            mIndexer.addOutput(data, offset, Math.min(7, data.length - offset));
+        }
+    }
+
+    /** Test that a Java crash is indexed and parsed from interleaved logcat lines. */
+    @Test
+    public void testJavaCrash() {
+        feed(JAVA_CRASH);
+
+        List<CrashEvent> events = mIndexer.getEventsSince(0L);
+        assertEquals(1, events.size());
+        assertEquals(CrashType.JAVA_CRASH, events.get(0).getType());
+        assertEquals(time(3, 20, 9, 57, 36, 709), events.get(0).getTimestamp());
+        assertEquals(5, events.get(0).getLines().size());
+        List<JavaCrashItem> crashes = mIndexer.getJavaCrashesSince(0L);
+        assertEquals(1, crashes.size());
+        assertEquals("Runtime", crashes.get(0).getMessage());
+    }
+
+    /** Test that lookups only return crashes at or after the requested time. */
+    @Test
+    public void testGetEventsSince() {
+        feed(JAVA_CRASH + NATIVE_CRASH);
+
+        assertEquals(2, mIndexer.getEventsSince(time(3, 20, 9, 57, 36, 709)).size());
+        List<CrashEvent> events = mIndexer.getEventsSince(time(3, 20, 9, 57, 36, 710));
+        assertEquals(1, events.size());
+        assertEquals(CrashType.NATIVE_CRASH, events.get(0).getType());
+        assertTrue(mIndexer.getJavaCrashesSince(time(3, 20, 9, 57, 36, 710)).isEmpty());
+        assertTrue(mIndexer.getEventsSince(time(3, 20, 10, 0, 0, 0)).isEmpty());
+    }
+
+    /** Test that the index is rolling and only reports coverage for what it still holds. */
+    @Test
+    public void testRollingIndex() {
+        feed(JAVA_CRASH);
+        assertTrue(mIndexer.isIndexedSince(time(3, 20, 9, 57, 36, 709)));
+        assertFalse(mIndexer.isIndexedSince(time(3, 20, 9, 57, 36, 708)));
+
+        feed(NATIVE_CRASH + ANR);
+
+        List<CrashEvent> events = mIndexer.getEventsSince(0L);
+        assertEquals(2, events.size());
+        assertEquals(CrashType.NATIVE_CRASH, events.get(0).getType());
+        assertEquals(CrashType.ANR, events.get(1).getType());
+        assertFalse(mIndexer.isIndexedSince(time(3, 20, 9, 57, 36, 709)));
+        assertTrue(mIndexer.isIndexedSince(time(3, 20, 9, 57, 36, 710)));
+    }
+
+    /** Test that a timestamp in the future is considered from the previous year. */
+    @Test
+    public void testPreviousYear() {
+        mNow = time(1, 1, 0, 0, 0, 0);
+        feed(ANR);
+
+        assertEquals(
+                LocalDateTime.of(2019, 3, 20, 9, 59)
+                        .atZone(ZoneId.systemDefault())
+                        .toInstant()
+                        .toEpochMilli(),
+                mIndexer.getEventsSince(0L).get(0).getTimestamp());
+    }
+
+    /** Test that clearing the index drops the events. */
+    @Test
+    public void testClear() {
+        feed(JAVA_CRASH);
+        mIndexer.clear();
+
+        assertTrue(mIndexer.getEventsSince(0L).isEmpty());
+        assertFalse(mIndexer.isIndexedSince(mNow));
+    }
+}
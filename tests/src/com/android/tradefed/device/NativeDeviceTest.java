@@ -2304,6 +2304,120 @@ public class NativeDeviceTest {
         }
     }
 
+    /**
+     * Test that {@link NativeDevice#syncFiles(File, String)} with a manifest only pushes the files
+     * missing or changed on the device, through one sync connection.
+     */
+    @Test
+    public void testSyncFiles_manifest() throws Exception {
+        File localDir = FileUtil.createTempDir("sync");
+        try {
+            File upToDate = new File(localDir, "same.txt");
+            FileUtil.writeToFile("same", upToDate);
+            upToDate.setLastModified(1000000L);
+            File changed = new File(localDir, "sub/changed.txt");
+            changed.getParentFile().mkdirs();
+            FileUtil.writeToFile("changed", changed);
+            List<String> commands = new ArrayList<>();
+            mTestDevice =
+                    new TestableAndroidNativeDevice() {
+                        @Override
+                        public CommandResult executeShellV2Command(String cmd) {
+                            commands.add(cmd);
+                            CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+                            result.setStdout("4 1000 ./same.txt\n4 1000 ./sub/changed.txt\n");
+                            return result;
+                        }
+
+                        @Override
+                        public String executeShellCommand(String cmd) {
+                            commands.add(cmd);
+                            return "";
+                        }
+                    };
+            OptionSetter setter = new OptionSetter(mTestDevice.getOptions());
+            setter.setOptionValue("manifest-sync", "true");
+            SyncService s = Mockito.mock(SyncService.class);
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(s);
+            EasyMock.replay(mMockIDevice);
+
+            assertTrue(mTestDevice.syncFiles(localDir, "/data/local/tmp"));
+            EasyMock.verify(mMockIDevice);
+            String remoteDir = "/data/local/tmp/" + localDir.getName();
+            assertEquals(2, commands.size());
+            assertTrue(commands.get(0).startsWith(String.format("cd \"%s\"", remoteDir)));
+            assertEquals(
+                    String.format("mkdir -p \"%s\" \"%s/sub\"", remoteDir, remoteDir),
+                    commands.get(1));
+            Mockito.verify(s)
+                    .pushFile(
+                            Mockito.eq(changed.getAbsolutePath()),
+                            Mockito.eq(remoteDir + "/sub/changed.txt"),
+                            Mockito.any(ISyncProgressMonitor.class));
+            Mockito.verify(s).close();
+            Mockito.verifyNoMoreInteractions(s);
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
+    /**
+     * Test that {@link NativeDevice#syncFiles(File, String)} with a manifest creates many
+     * directories with several bounded mkdir commands.
+     */
+    @Test
+    public void testSyncFiles_manifestManyDirs() throws Exception {
+        File localDir = FileUtil.createTempDir("sync");
+        try {
+            int dirCount = 100;
+            for (int i = 0; i < dirCount; i++) {
+                File file = new File(localDir, String.format("directory_%03d/file.txt", i));
+                file.getParentFile().mkdirs();
+                FileUtil.writeToFile("content", file);
+            }
+            List<String> commands = new ArrayList<>();
+            mTestDevice =
+                    new TestableAndroidNativeDevice() {
+                        @Override
+                        public CommandResult executeShellV2Command(String cmd) {
+                            return new CommandResult(CommandStatus.SUCCESS);
+                        }
+
+                        @Override
+                        public String executeShellCommand(String cmd) {
+                            commands.add(cmd);
+                            return "";
+                        }
+                    };
+            OptionSetter setter = new OptionSetter(mTestDevice.getOptions());
+            setter.setOptionValue("manifest-sync", "true");
+            SyncService s = Mockito.mock(SyncService.class);
+            EasyMock.expect(mMockIDevice.getSyncService()).andReturn(s);
+            EasyMock.replay(mMockIDevice);
+
+            assertTrue(mTestDevice.syncFiles(localDir, "/data/local/tmp"));
+            EasyMock.verify(mMockIDevice);
+            String remoteDir = "/data/local/tmp/" + localDir.getName();
+            assertTrue(commands.size() > 1);
+            int created = 0;
+            for (String command : commands) {
+                assertTrue(command.startsWith("mkdir -p \""));
+                assertTrue(command.length() <= NativeDevice.MAX_MKDIR_COMMAND_LENGTH);
+                created += command.split(" \"").length - 1;
+            }
+            // The sync directory and one directory per file.
+            assertEquals(dirCount + 1, created);
+            assertTrue(commands.get(0).startsWith(String.format("mkdir -p \"%s\" ", remoteDir)));
+            Mockito.verify(s, Mockito.times(dirCount))
+                    .pushFile(
+                            Mockito.anyString(),
+                            Mockito.anyString(),
+                            Mockito.any(ISyncProgressMonitor.class));
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
     /** Test get Process pid by process name */
     @Test
     public void testGetProcessPid() throws Exception {
@@ -2995,6 +3109,71 @@ public class NativeDeviceTest {
         EasyMock.verify(mMockRunUtil, mMockIDevice);
     }
 
+    /**
+     * Test that a command is not run again on its own when the shell session ended while running
+     * it, since it may have run already.
+     */
+    @Test
+    public void testExecuteShellV2Command_shellSessionEnded() throws Exception {
+        IRunUtil runUtil = Mockito.mock(IRunUtil.class);
+        Mockito.doAnswer(
+                        invocation -> {
+                            List<String> command = invocation.getArgument(0);
+                            return new ProcessBuilder(command).start();
+                        })
+                .when(runUtil)
+                .runCmdInBackground(Mockito.<List<String>>any());
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    PersistentShellSession createShellSession() {
+                        return new PersistentShellSession(Arrays.asList("sh"), runUtil);
+                    }
+                };
+        new OptionSetter(mTestDevice.getOptions())
+                .setOptionValue("persistent-shell-session", "true");
+        EasyMock.replay(mMockRunUtil, mMockIDevice);
+        try {
+            CommandResult result =
+                    mTestDevice.executeShellV2Command(
+                            "kill $$", 5000L, TimeUnit.MILLISECONDS, 1);
+            assertEquals(CommandStatus.FAILED, result.getStatus());
+            assertEquals(Integer.valueOf(-1), result.getExitCode());
+            assertTrue(result.getStderr().contains("Shell session ended"));
+        } finally {
+            mTestDevice.closeShellSession();
+        }
+        EasyMock.verify(mMockRunUtil, mMockIDevice);
+    }
+
+    /** Test that a command with unbalanced quotes is not run in the shell session. */
+    @Test
+    public void testExecuteShellV2Command_unbalancedQuotes() throws Exception {
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    PersistentShellSession createShellSession() {
+                        fail("The shell session should not be used.");
+                        return null;
+                    }
+                };
+        new OptionSetter(mTestDevice.getOptions())
+                .setOptionValue("persistent-shell-session", "true");
+        OutputStream stdout = null, stderr = null;
+        CommandResult res = new CommandResult();
+        res.setStatus(CommandStatus.FAILED);
+        EasyMock.expect(
+                        mMockRunUtil.runTimedCmd(
+                                100, stdout, stderr, "adb", "-s", "serial", "shell", "echo",
+                                "'unbalanced"))
+                .andReturn(res);
+        EasyMock.replay(mMockRunUtil, mMockIDevice);
+        assertEquals(
+                CommandStatus.FAILED,
+                mTestDevice.executeShellV2Command("echo 'unbalanced").getStatus());
+        EasyMock.verify(mMockRunUtil, mMockIDevice);
+    }
+
     /**
      * Test when {@link NativeDevice#executeShellV2Command(String, long, TimeUnit, int)} fails and
      * repeat because of a timeout.
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.device.PersistentShellSession.CommandSentException;
+import com.android.tradefed.device.PersistentShellSession.ShellOutput;
+import com.android.tradefed.util.IRunUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link PersistentShellSession}, running against a local shell. */
+@RunWith(JUnit4.class)
+public class PersistentShellSessionTest {
+
+    private IRunUtil mMockRunUtil;
+    private PersistentShellSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockRunUtil = Mockito.mock(IRunUtil.class);
+        doAnswer(
+                        invocation -> {
+                            List<String> command = invocation.getArgument(0);
+                            return new ProcessBuilder(command).start();
+                        })
+                .when(mMockRunUtil)
+                .runCmdInBackground(Mockito.<List<String>>any());
+    }
+
+    @After
+    public void tearDown() {
+        if (mSession != null) {
+            mSession.close();
+        }
+    }
+
+    /** Test that the output and the exit code of commands are returned. */
+    @Test
+    public void testRun() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        ShellOutput output = mSession.run("echo out; echo err >&2; exit 3", false, 0L, 0L);
+        assertEquals("out\n", toString(output.getStdout()));
+        assertEquals("err\n", toString(output.getStderr()));
+        assertEquals(3, output.getExitCode());
+
+        output = mSession.run("printf 'no new line'", false, 0L, 0L);
+        assertEquals("no new line", toString(output.getStdout()));
+        assertEquals("", toString(output.getStderr()));
+        assertEquals(0, output.getExitCode());
+        assertEquals(2, mSession.getCommandCount());
+    }
+
+    /** Test that stderr is written to stdout when requested. */
+    @Test
+    public void testRun_mergeStderr() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        ShellOutput output = mSession.run("echo out; echo err >&2", true, 0L, 0L);
+        assertEquals("out\nerr\n", toString(output.getStdout()));
+        assertEquals("", toString(output.getStderr()));
+    }
+
+    /** Test that commands cannot change the state of the session nor read the next commands. */
+    @Test
+    public void testRun_isolated() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        mSession.run("cd /; export TF_TEST_VAR=1; cat; exit 1", false, 5000L, 0L);
+        ShellOutput output = mSession.run("echo \"[$TF_TEST_VAR]\" # comment", false, 0L, 0L);
+        assertEquals("[]\n", toString(output.getStdout()));
+        assertEquals(0, output.getExitCode());
+    }
+
+    /** Test that the session is closed when a command does not complete in time. */
+    @Test
+    public void testRun_timeout() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        try {
+            mSession.run("sleep 10", false, 0L, 100L);
+            fail("Should have thrown an exception.");
+        } catch (TimeoutException expected) {
+            // expected
+        }
+        try {
+            mSession.run("echo", false, 0L, 0L);
+            fail("Should have thrown an exception.");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a session whose shell ended while running a command cannot be used, and reports
+     * that the command was sent.
+     */
+    @Test
+    public void testRun_shellEnded() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        try {
+            mSession.run("echo before; kill $$", false, 5000L, 0L);
+            fail("Should have thrown an exception.");
+        } catch (CommandSentException expected) {
+            ShellOutput output = expected.getOutput();
+            assertEquals("before\n", toString(output.getStdout()));
+            assertTrue(toString(output.getStderr()).contains("Shell session ended"));
+            assertEquals(-1, output.getExitCode());
+        }
+        try {
+            mSession.run("echo", false, 0L, 0L);
+            fail("Should have thrown an exception.");
+        } catch (CommandSentException e) {
+            fail("The command was not sent to a closed session.");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /** Test that a command with unbalanced quotes is rejected without using the session. */
+    @Test
+    public void testRun_unbalancedQuotes() throws Exception {
+        mSession = new PersistentShellSession(Arrays.asList("sh"), mMockRunUtil);
+        assertTrue(mSession.open());
+
+        try {
+            mSession.run("echo 'unbalanced", false, 0L, 0L);
+            fail("Should have thrown an exception.");
+        } catch (CommandSentException e) {
+            fail("The command should not have been sent.");
+        } catch (IOException expected) {
+            // expected
+        }
+        // The session is still usable.
+        ShellOutput output = mSession.run("echo ok", false, 0L, 0L);
+        assertEquals("ok\n", toString(output.getStdout()));
+    }
+
+    /** Test the detection of commands that leave a quote open. */
+    @Test
+    public void testHasBalancedQuotes() {
+        assertTrue(PersistentShellSession.hasBalancedQuotes("echo 'a b' \"c d\" `e`"));
+        assertTrue(PersistentShellSession.hasBalancedQuotes("echo \"it's\" it\\'s"));
+        assertTrue(PersistentShellSession.hasBalancedQuotes("echo 'a\\'"));
+        assertTrue(PersistentShellSession.hasBalancedQuotes("echo a # it's a comment"));
+        assertFalse(PersistentShellSession.hasBalancedQuotes("echo 'a"));
+        assertFalse(PersistentShellSession.hasBalancedQuotes("echo \"a\\\""));
+        assertFalse(PersistentShellSession.hasBalancedQuotes("echo `a"));
+        assertFalse(PersistentShellSession.hasBalancedQuotes("echo a#'b"));
+        assertFalse(PersistentShellSession.hasBalancedQuotes("echo a \\"));
+    }
+
+    /** Test that a shell merging stderr into stdout is not supported. */
+    @Test
+    public void testOpen_mergedStreams() throws Exception {
+        mSession =
+                new PersistentShellSession(
+                        Arrays.asList("sh", "-c", "exec 2>&1; exec sh"), mMockRunUtil);
+        assertFalse(mSession.open());
+    }
+
+    private static String toString(byte[] content) {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.device.cloud;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -27,14 +28,20 @@ import com.android.tradefed.util.IRunUtil;
 
 import com.google.common.net.HostAndPort;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Map;
 
 /** Unit tests for {@link RemoteFileUtil}. */
 @RunWith(JUnit4.class)
@@ -233,4 +240,118 @@ public class RemoteFileUtilTest {
         }
         EasyMock.verify(mMockRunUtil);
     }
+
+    /** Test fetching several remote files in one transfer. */
+    @Test
+    public void testFetchRemoteFiles() throws Exception {
+        GceAvdInfo fakeInfo = new GceAvdInfo("ins-gce", HostAndPort.fromHost("127.0.0.1"));
+        String kernelLog = "/home/vsoc-01/cuttlefish_runtime/kernel.log";
+        String missing = "/home/vsoc-01/cuttlefish_runtime/missing.log";
+        CommandResult res = new CommandResult(CommandStatus.SUCCESS);
+        EasyMock.expect(
+                        mMockRunUtil.runTimedCmd(
+                                EasyMock.anyLong(),
+                                EasyMock.anyObject(),
+                                EasyMock.isNull(),
+                                EasyMock.eq("ssh"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("UserKnownHostsFile=/dev/null"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("StrictHostKeyChecking=no"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("ServerAliveInterval=10"),
+                                EasyMock.eq("-i"),
+                                EasyMock.anyObject(),
+                                EasyMock.eq("root@127.0.0.1"),
+                                EasyMock.eq("tar"),
+                                EasyMock.eq("-cf"),
+                                EasyMock.eq("-"),
+                                EasyMock.eq("--ignore-failed-read"),
+                                EasyMock.eq(kernelLog),
+                                EasyMock.eq(missing)))
+                .andAnswer(
+                        new IAnswer<CommandResult>() {
+                            @Override
+                            public CommandResult answer() throws Throwable {
+                                // The remote tar only contains the existing file.
+                                OutputStream stdout =
+                                        (OutputStream) EasyMock.getCurrentArguments()[1];
+                                writeTar(stdout, kernelLog.substring(1), "kernel");
+                                return res;
+                            }
+                        });
+        EasyMock.replay(mMockRunUtil);
+        File localDir = FileUtil.createTempDir("test-remote-files");
+        try {
+            Map<String, File> fetched =
+                    RemoteFileUtil.fetchRemoteFiles(
+                            fakeInfo,
+                            mOptions,
+                            mMockRunUtil,
+                            500L,
+                            Arrays.asList(kernelLog, missing),
+                            localDir);
+            assertEquals(1, fetched.size());
+            assertEquals("kernel", FileUtil.readStringFromFile(fetched.get(kernelLog)));
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    /** Test when fetching several remote files fails. */
+    @Test
+    public void testFetchRemoteFiles_fail() throws Exception {
+        GceAvdInfo fakeInfo = new GceAvdInfo("ins-gce", HostAndPort.fromHost("127.0.0.1"));
+        CommandResult res = new CommandResult(CommandStatus.FAILED);
+        res.setStderr("tar: command not found");
+        EasyMock.expect(
+                        mMockRunUtil.runTimedCmd(
+                                EasyMock.anyLong(),
+                                EasyMock.anyObject(),
+                                EasyMock.isNull(),
+                                EasyMock.eq("ssh"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("UserKnownHostsFile=/dev/null"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("StrictHostKeyChecking=no"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("ServerAliveInterval=10"),
+                                EasyMock.eq("-i"),
+                                EasyMock.anyObject(),
+                                EasyMock.eq("root@127.0.0.1"),
+                                EasyMock.eq("tar"),
+                                EasyMock.eq("-cf"),
+                                EasyMock.eq("-"),
+                                EasyMock.eq("--ignore-failed-read"),
+                                EasyMock.eq("/home/vsoc-01/kernel.log")))
+                .andReturn(res);
+        EasyMock.replay(mMockRunUtil);
+        File localDir = FileUtil.createTempDir("test-remote-files");
+        try {
+            assertNull(
+                    RemoteFileUtil.fetchRemoteFiles(
+                            fakeInfo,
+                            mOptions,
+                            mMockRunUtil,
+                            500L,
+                            Arrays.asList("/home/vsoc-01/kernel.log"),
+                            localDir));
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    private static void writeTar(OutputStream out, String name, String content)
+            throws IOException {
+        byte[] data = content.getBytes();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tar.putArchiveEntry(entry);
+        tar.write(data);
+        tar.closeArchiveEntry();
+        tar.finish();
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.TestDeviceOptions;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.IRunUtil;
+
+import com.google.common.net.HostAndPort;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link SshMultiplexer}. */
+@RunWith(JUnit4.class)
+public class SshMultiplexerTest {
+
+    private TestDeviceOptions mOptions;
+    private IRunUtil mMockRunUtil;
+
+    @Before
+    public void setUp() {
+        mMockRunUtil = EasyMock.createMock(IRunUtil.class);
+        mOptions = new TestDeviceOptions();
+    }
+
+    /** Test that the options are left untouched when multiplexing is disabled. */
+    @Test
+    public void testAddOptions_disabled() {
+        assertNull(SshMultiplexer.addOptions(mOptions, null));
+        List<String> extraOptions = Arrays.asList("-r");
+        assertEquals(extraOptions, SshMultiplexer.addOptions(mOptions, extraOptions));
+    }
+
+    /** Test that the commands share a master connection when multiplexing is enabled. */
+    @Test
+    public void testAddOptions() {
+        mOptions.setUseSshMultiplexing(true);
+        List<String> result = SshMultiplexer.addOptions(mOptions, Arrays.asList("-r"));
+        assertEquals(7, result.size());
+        assertEquals("-o", result.get(0));
+        assertEquals("ControlMaster=auto", result.get(1));
+        assertEquals("-o", result.get(2));
+        assertTrue(result.get(3).startsWith("ControlPath="));
+        assertTrue(result.get(3).endsWith("/%C"));
+        assertEquals("-o", result.get(4));
+        assertEquals("ControlPersist=" + SshMultiplexer.CONTROL_PERSIST, result.get(5));
+        assertEquals("-r", result.get(6));
+        // The same control path is used by all the commands.
+        assertEquals(result.get(3), SshMultiplexer.addOptions(mOptions, null).get(3));
+    }
+
+    /**
+     * Test that the control directory leaves room for the temporary socket name, the control path
+     * followed by "." and 16 random characters.
+     */
+    @Test
+    public void testFitsSocketPath() {
+        assertTrue(SshMultiplexer.fitsSocketPath(new File("/" + repeat('d', 48))));
+        assertFalse(SshMultiplexer.fitsSocketPath(new File("/" + repeat('d', 49))));
+        mOptions.setUseSshMultiplexing(true);
+        String controlPath =
+                SshMultiplexer.addOptions(mOptions, null).get(3).substring("ControlPath=".length());
+        String tempSocketPath = controlPath.replace("%C", repeat('c', 40)) + "." + repeat('r', 16);
+        assertTrue(tempSocketPath.length() < 108);
+    }
+
+    /** Test that closing asks the master connection of the instance to exit. */
+    @Test
+    public void testClose() {
+        mOptions.setUseSshMultiplexing(true);
+        GceAvdInfo fakeInfo = new GceAvdInfo("ins-gce", HostAndPort.fromHost("127.0.0.1"));
+        String controlPath = SshMultiplexer.addOptions(mOptions, null).get(3);
+        EasyMock.expect(
+                        mMockRunUtil.runTimedCmdSilently(
+                                EasyMock.anyLong(),
+                                EasyMock.eq("ssh"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("UserKnownHostsFile=/dev/null"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("StrictHostKeyChecking=no"),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq("ServerAliveInterval=10"),
+                                EasyMock.eq("-i"),
+                                EasyMock.anyObject(),
+                                EasyMock.eq("-o"),
+                                EasyMock.eq(controlPath),
+                                EasyMock.eq("-O"),
+                                EasyMock.eq("exit"),
+                                EasyMock.eq("root@127.0.0.1")))
+                .andReturn(new CommandResult(CommandStatus.SUCCESS));
+        EasyMock.replay(mMockRunUtil);
+        SshMultiplexer.close(fakeInfo, mOptions, mMockRunUtil);
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    /** Test that nothing is run when multiplexing is disabled. */
+    @Test
+    public void testClose_disabled() {
+        GceAvdInfo fakeInfo = new GceAvdInfo("ins-gce", HostAndPort.fromHost("127.0.0.1"));
+        EasyMock.replay(mMockRunUtil);
+        SshMultiplexer.close(fakeInfo, mOptions, mMockRunUtil);
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.postprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DoubleValues;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Benchmark of {@link AggregatePostProcessor} on an iteration-heavy perf suite: many iterations
+ * of a test reporting many metrics, aggregated after each iteration. The results and the time are
+ * compared with {@link LegacyAggregatePostProcessor}, the implementation before the aggregation
+ * on primitive doubles.
+ */
+@RunWith(JUnit4.class)
+public class AggregatePostProcessorFuncTest {
+
+    private static final int ITERATIONS = 2000;
+    private static final int METRIC_COUNT = 20;
+    private static final TestDescription TEST = new TestDescription("pkg", "perfTest");
+
+    /** The value reported by an iteration, in shuffled order so the median needs a sort. */
+    private static int valueOf(int iteration) {
+        return (iteration * 7919) % ITERATIONS;
+    }
+
+    /** Benchmark the metrics reported as strings, like most perf tests do. */
+    @Test
+    public void testStringMetrics() {
+        Map<String, Metric.Builder> processedMetrics =
+                compareWithLegacy(
+                        "single_string",
+                        i -> stringMetric(Integer.toString(valueOf(i))),
+                        i -> stringMetric(Integer.toString(valueOf(i))));
+        assertEquals(
+                String.format("%2.2f", (ITERATIONS - 1) / 2.0),
+                processedMetrics.get("metric0-median").getMeasurements().getSingleString());
+    }
+
+    /**
+     * Benchmark the metrics reported as doubles. The previous implementation only aggregated
+     * strings, so it gets the same values as strings.
+     */
+    @Test
+    public void testDoubleMetrics() {
+        Map<String, Metric.Builder> processedMetrics =
+                compareWithLegacy(
+                        "single_double",
+                        i -> {
+                            Metric.Builder metric = Metric.newBuilder();
+                            metric.getMeasurementsBuilder().setSingleDouble(valueOf(i));
+                            return metric.build();
+                        },
+                        i -> stringMetric(Integer.toString(valueOf(i))));
+        assertEquals(
+                (ITERATIONS - 1) / 2.0,
+                processedMetrics.get("metric0-median").getMeasurements().getSingleDouble(),
+                0.0001);
+    }
+
+    /**
+     * Benchmark the metrics reported as several doubles per iteration. The previous
+     * implementation gets the same values as comma separated strings.
+     */
+    @Test
+    public void testDoubleValuesMetrics() {
+        Map<String, Metric.Builder> processedMetrics =
+                compareWithLegacy(
+                        "double_values",
+                        i -> {
+                            Metric.Builder metric = Metric.newBuilder();
+                            metric.getMeasurementsBuilder()
+                                    .setDoubleValues(
+                                            DoubleValues.newBuilder()
+                                                    .addDoubleValue(valueOf(i))
+                                                    .addDoubleValue(ITERATIONS - 1 - valueOf(i)));
+                            return metric.build();
+                        },
+                        i ->
+                                stringMetric(
+                                        String.format(
+                                                "%d,%d", valueOf(i), ITERATIONS - 1 - valueOf(i))));
+        assertEquals(
+                (ITERATIONS - 1) / 2.0,
+                processedMetrics.get("metric0-mean").getMeasurements().getSingleDouble(),
+                0.0001);
+    }
+
+    /**
+     * Runs the suite with both implementations, checks that they report the same stats and that
+     * the current implementation is faster, and returns its metrics.
+     */
+    private Map<String, Metric.Builder> compareWithLegacy(
+            String name, IntFunction<Metric> metricOf, IntFunction<Metric> legacyMetricOf) {
+        long start = System.nanoTime();
+        Map<String, Metric.Builder> processedMetrics =
+                runSuite(new AggregatePostProcessor(), metricOf);
+        long currentMs = elapsedMs(start);
+        start = System.nanoTime();
+        Map<String, Metric.Builder> legacyMetrics =
+                runSuite(new LegacyAggregatePostProcessor(), legacyMetricOf);
+        long legacyMs = elapsedMs(start);
+        CLog.i(
+                "%s: %d iterations of %d metrics aggregated in %d ms, previously %d ms",
+                name,
+                ITERATIONS,
+                METRIC_COUNT,
+                currentMs,
+                legacyMs);
+
+        assertEquals(legacyMetrics.keySet(), processedMetrics.keySet());
+        for (Map.Entry<String, Metric.Builder> entry : legacyMetrics.entrySet()) {
+            // The previous implementation only reported strings, rounded to 2 decimals.
+            assertEquals(
+                    entry.getKey(),
+                    numberOf(entry.getValue()),
+                    numberOf(processedMetrics.get(entry.getKey())),
+                    0.01);
+        }
+        assertTrue(
+                String.format("Aggregation took %d ms, previously %d ms", currentMs, legacyMs),
+                currentMs < legacyMs);
+        return processedMetrics;
+    }
+
+    /**
+     * Reports {@link #METRIC_COUNT} metrics for {@link #ITERATIONS} iterations of a test, and
+     * returns the metrics aggregated after the last one.
+     */
+    private static Map<String, Metric.Builder> runSuite(
+            BasePostProcessor processor, IntFunction<Metric> metricOf) {
+        Map<String, Metric.Builder> processedMetrics = new HashMap<>();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Metric metric = metricOf.apply(i);
+            HashMap<String, Metric> testMetrics = new HashMap<>();
+            for (int m = 0; m < METRIC_COUNT; m++) {
+                testMetrics.put("metric" + m, metric);
+            }
+            processedMetrics =
+                    processor.processTestMetricsAndLogs(TEST, testMetrics, new HashMap<>());
+        }
+        return processedMetrics;
+    }
+
+    private static Metric stringMetric(String value) {
+        Metric.Builder metric = Metric.newBuilder();
+        metric.getMeasurementsBuilder().setSingleString(value);
+        return metric.build();
+    }
+
+    private static double numberOf(Metric.Builder metric) {
+        Measurements measurements = metric.getMeasurements();
+        if (Measurements.MeasurementCase.SINGLE_STRING.equals(
+                measurements.getMeasurementCase())) {
+            return Double.parseDouble(measurements.getSingleString());
+        }
+        return measurements.getSingleDouble();
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -15,7 +15,9 @@
  */
 package com.android.tradefed.postprocessor;
 
+import com.android.tradefed.metrics.proto.MetricMeasurement.DoubleValues;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.metrics.proto.MetricMeasurement.NumericValues;
 import com.android.tradefed.result.TestDescription;
 
 import com.google.common.collect.ImmutableList;
@@ -598,4 +600,104 @@ public class AggregatePostProcessorTest {
                         .getMeasurements()
                         .getSingleString());
     }
+
+    /** Test that run metrics reported as doubles are aggregated into doubles. */
+    @Test
+    public void testDoubleValuesProcessRunMetrics() {
+        final String key = "double_values";
+
+        HashMap<String, Metric> runMetrics = new HashMap<String, Metric>();
+        Metric.Builder metricBuilder = Metric.newBuilder();
+        metricBuilder
+                .getMeasurementsBuilder()
+                .setDoubleValues(
+                        DoubleValues.newBuilder()
+                                .addDoubleValue(2.9)
+                                .addDoubleValue(1.1)
+                                .addDoubleValue(2.0));
+        runMetrics.put(key, metricBuilder.build());
+        Map<String, Metric.Builder> processedMetrics =
+                mProcessor.processRunMetricsAndLogs(runMetrics, new HashMap<>());
+
+        Assert.assertEquals(7, processedMetrics.size());
+        Assert.assertEquals(
+                1.1,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_MIN))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                2.0,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_MEDIAN))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                0.54,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_VAR))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                6.0,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_TOTAL))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+    }
+
+    /** Test that test metrics reported as numbers are aggregated across iterations. */
+    @Test
+    public void testNumericValuesMetric() {
+        final String key = "numeric_values";
+        final ImmutableList<ImmutableList<Long>> metrics =
+                ImmutableList.of(
+                        ImmutableList.of(4L, 1L), ImmutableList.of(), ImmutableList.of(3L, 2L));
+
+        Map<String, Metric.Builder> processedMetrics = new HashMap<String, Metric.Builder>();
+        for (Integer i = 0; i < TEST_ITERATIONS; i++) {
+            HashMap<String, Metric> testMetrics = new HashMap<String, Metric>();
+            Metric.Builder metricBuilder = Metric.newBuilder();
+            metricBuilder
+                    .getMeasurementsBuilder()
+                    .setNumericValues(
+                            NumericValues.newBuilder().addAllNumericValue(metrics.get(i)));
+            testMetrics.put(key, metricBuilder.build());
+            processedMetrics =
+                    mProcessor.processTestMetricsAndLogs(TEST_1, testMetrics, new HashMap<>());
+        }
+
+        Assert.assertEquals(
+                1.0,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_MIN))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                4.0,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_MAX))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                2.5,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_MEDIAN))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+        Assert.assertEquals(
+                1.25,
+                processedMetrics
+                        .get(String.join(STATS_KEY_SEPARATOR, key, STATS_KEY_VAR))
+                        .getMeasurements()
+                        .getSingleDouble(),
+                0.0001);
+    }
 }
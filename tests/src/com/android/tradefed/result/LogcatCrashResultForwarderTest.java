@@ -16,8 +16,13 @@
 package com.android.tradefed.result;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.IDeviceStateMonitor;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.LogcatCrashIndexer;
+import com.android.tradefed.device.NativeDevice;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 
 import org.easymock.Capture;
@@ -27,6 +32,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 /** Unit tests for {@link LogcatCrashResultForwarder}. */
@@ -207,4 +213,120 @@ public class LogcatCrashResultForwarderTest {
                                         + "\tat class.method1(Class.java:1)\n"
                                         + "\tat class.method2(Class.java:2)\n"));
     }
+
+    /**
+     * Test that when the logcat captured in background is indexed, the crash is looked up from the
+     * index instead of pulling the logcat again.
+     */
+    @Test
+    public void testCaptureTestCrash_fromIndex() {
+        String logcat =
+                "03-20 09:57:36.700 11 11 I TestRunner: started: testGetStrokesCount"
+                        + "(android.gesture.cts.GestureTest)\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime: FATAL EXCEPTION: Thread-2\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime: Process: android.gesture.cts"
+                        + ", PID: 11034\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime: java.lang.RuntimeException:"
+                        + " Runtime\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime:    at android.GestureTest$1"
+                        + ".run(GestureTest.java:52)\n";
+        LogcatCrashIndexer indexer = new LogcatCrashIndexer();
+        byte[] data = logcat.getBytes(StandardCharsets.UTF_8);
+        indexer.addOutput(data, 0, data.length);
+        long startTime = indexer.getEventsSince(0L).get(0).getTimestamp() - 9L;
+        NativeDevice device =
+                new NativeDevice(
+                        EasyMock.createMock(IDevice.class),
+                        EasyMock.createMock(IDeviceStateMonitor.class),
+                        null) {
+                    @Override
+                    public LogcatCrashIndexer getLogcatCrashIndexer() {
+                        return indexer;
+                    }
+
+                    @Override
+                    public InputStreamSource getLogcatSince(long date) {
+                        fail("Logcat should not be pulled again.");
+                        return null;
+                    }
+                };
+        mReporter = new LogcatCrashResultForwarder(device, mMockListener);
+        TestDescription test = new TestDescription("com.class", "test");
+
+        mMockListener.testStarted(test, startTime);
+        mMockListener.testFailed(
+                EasyMock.eq(test),
+                EasyMock.contains(
+                        "instrumentation failed. reason: 'Process crashed.'"
+                                + "\nCrash Message:Runtime"));
+        mMockListener.testEnded(test, startTime + 5L, new HashMap<String, Metric>());
+
+        EasyMock.replay(mMockListener);
+        mReporter.testStarted(test, startTime);
+        mReporter.testFailed(test, "instrumentation failed. reason: 'Process crashed.'");
+        mReporter.testEnded(test, startTime + 5L, new HashMap<String, Metric>());
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that when the crash did not reach the index yet, the logcat is pulled to look up the
+     * crash.
+     */
+    @Test
+    public void testCaptureTestCrash_notIndexedYet() {
+        String started =
+                "03-20 09:57:36.700 11 11 I TestRunner: started: testGetStrokesCount"
+                        + "(android.gesture.cts.GestureTest)\n";
+        String crash =
+                "03-20 09:57:36.709 11 11 E AndroidRuntime: FATAL EXCEPTION: Thread-2\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime: Process: android.gesture.cts"
+                        + ", PID: 11034\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime: java.lang.RuntimeException:"
+                        + " Runtime\n"
+                        + "03-20 09:57:36.709 11 11 E AndroidRuntime:    at android.GestureTest$1"
+                        + ".run(GestureTest.java:52)\n";
+        LogcatCrashIndexer fullIndexer = new LogcatCrashIndexer();
+        byte[] fullData = (started + crash).getBytes(StandardCharsets.UTF_8);
+        fullIndexer.addOutput(fullData, 0, fullData.length);
+        long startTime = fullIndexer.getEventsSince(0L).get(0).getTimestamp() - 9L;
+        // The background capture only received the start of the test so far.
+        LogcatCrashIndexer indexer = new LogcatCrashIndexer();
+        byte[] data = started.getBytes(StandardCharsets.UTF_8);
+        indexer.addOutput(data, 0, data.length);
+        NativeDevice device =
+                new NativeDevice(
+                        EasyMock.createMock(IDevice.class),
+                        EasyMock.createMock(IDeviceStateMonitor.class),
+                        null) {
+                    @Override
+                    public LogcatCrashIndexer getLogcatCrashIndexer() {
+                        return indexer;
+                    }
+
+                    @Override
+                    public InputStreamSource getLogcatSince(long date) {
+                        return new ByteArrayInputStreamSource(fullData);
+                    }
+                };
+        mReporter = new LogcatCrashResultForwarder(device, mMockListener);
+        TestDescription test = new TestDescription("com.class", "test");
+
+        mMockListener.testStarted(test, startTime);
+        mMockListener.testFailed(
+                EasyMock.eq(test),
+                EasyMock.contains(
+                        "instrumentation failed. reason: 'Process crashed.'"
+                                + "\nCrash Message:Runtime"));
+        mMockListener.testEnded(test, startTime + 5L, new HashMap<String, Metric>());
+
+        EasyMock.replay(mMockListener);
+        assertTrue(indexer.isIndexedSince(startTime));
+        mReporter.testStarted(test, startTime);
+        mReporter.testFailed(test, "instrumentation failed. reason: 'Process crashed.'");
+        // The crash reaches the index after the lookup.
+        byte[] crashData = crash.getBytes(StandardCharsets.UTF_8);
+        indexer.addOutput(crashData, 0, crashData.length);
+        mReporter.testEnded(test, startTime + 5L, new HashMap<String, Metric>());
+        EasyMock.verify(mMockListener);
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.StatusCountingTestListener.RunCounts;
+import com.android.tradefed.util.proto.TfMetricProtoUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link StatusCountingTestListener}. */
+@RunWith(JUnit4.class)
+public class StatusCountingTestListenerTest {
+
+    private StatusCountingTestListener mListener;
+    private CollectingTestListener mCollecting;
+    private ResultForwarder mForwarder;
+
+    @Before
+    public void setUp() {
+        mListener = new StatusCountingTestListener(2);
+        mCollecting = new CollectingTestListener();
+        mForwarder = new ResultForwarder(mListener, mCollecting);
+        IInvocationContext context = new InvocationContext();
+        context.addDeviceBuildInfo("device", new BuildInfo());
+        mForwarder.invocationStarted(context);
+    }
+
+    /** Test that the counts of a single attempt match the ones of {@link CollectingTestListener}. */
+    @Test
+    public void testCounts() {
+        mForwarder.testRunStarted("run", 5);
+        runTest("pass", null);
+        runTest("fail", TestStatus.FAILURE);
+        runTest("assumption", TestStatus.ASSUMPTION_FAILURE);
+        runTest("ignored", TestStatus.IGNORED);
+        mForwarder.testStarted(new TestDescription("class", "incomplete"));
+        mForwarder.testRunFailed("crashed");
+        mForwarder.testRunEnded(100L, new HashMap<String, Metric>());
+
+        assertSameCounts();
+        assertThat(mListener.getNumTotalTests()).isEqualTo(5);
+        assertThat(mListener.getNumTestsInState(TestStatus.PASSED)).isEqualTo(1);
+        assertThat(mListener.getNumAllFailedTests()).isEqualTo(1);
+        assertThat(mListener.getNumAllFailedTestRuns()).isEqualTo(1);
+        assertThat(mListener.getPrimaryBuildInfo()).isNotNull();
+    }
+
+    /** Test that attempts are merged like {@link CollectingTestListener} does. */
+    @Test
+    public void testCounts_attempts() {
+        mForwarder.testRunStarted("run", 3, 0);
+        runTest("flaky", TestStatus.FAILURE);
+        runTest("fail", TestStatus.FAILURE);
+        runTest("pass", null);
+        mForwarder.testRunFailed("crashed");
+        mForwarder.testRunEnded(100L, new HashMap<String, Metric>());
+        mForwarder.testRunStarted("run", 2, 1);
+        runTest("flaky", null);
+        runTest("fail", TestStatus.FAILURE);
+        mForwarder.testRunEnded(50L, new HashMap<String, Metric>());
+        // A missing attempt is a placeholder failure
+        mForwarder.testRunStarted("other", 1, 1);
+        runTest("pass", null);
+        mForwarder.testRunEnded(10L, new HashMap<String, Metric>());
+
+        assertSameCounts();
+        assertThat(mListener.getNumTestsInState(TestStatus.PASSED)).isEqualTo(3);
+        assertThat(mListener.getNumAllFailedTests()).isEqualTo(1);
+        assertThat(mListener.getNumAllFailedTestRuns()).isEqualTo(2);
+        RunCounts run = mListener.getTestRunCounts().get(0);
+        assertThat(run.getElapsedTime()).isEqualTo(150L);
+        assertThat(run.getExpectedTestCount()).isEqualTo(3);
+        assertThat(run.isRunComplete()).isTrue();
+    }
+
+    /** Test that only a bounded number of failure samples is kept, for tests still failing. */
+    @Test
+    public void testFailureSamples() {
+        mForwarder.testRunStarted("run", 3, 0);
+        runTest("fail1", TestStatus.FAILURE);
+        runTest("fail2", TestStatus.FAILURE);
+        runTest("fail3", TestStatus.FAILURE);
+        mForwarder.testRunEnded(0L, new HashMap<String, Metric>());
+        Map<TestDescription, String> samples = mListener.getFailureSamples();
+        assertThat(samples).hasSize(2);
+        assertThat(samples).containsKey(new TestDescription("class", "fail1"));
+
+        mForwarder.testRunStarted("run", 1, 1);
+        runTest("fail1", null);
+        mForwarder.testRunEnded(0L, new HashMap<String, Metric>());
+        samples = mListener.getFailureSamples();
+        assertThat(samples).hasSize(1);
+        assertThat(samples).containsKey(new TestDescription("class", "fail2"));
+    }
+
+    /**
+     * Test that the descriptions, traces and metrics of ended tests can be garbage collected,
+     * unlike with {@link CollectingTestListener}.
+     */
+    @Test
+    public void testTestsNotRetained() {
+        StatusCountingTestListener listener = new StatusCountingTestListener(1);
+        listener.testRunStarted("run", 4);
+        List<WeakReference<Object>> references = new ArrayList<>();
+        // The first failure is kept as a sample
+        reportTest(listener, "sample", "trace", new ArrayList<>());
+        reportTest(listener, "pass", null, references);
+        reportTest(listener, "fail", "trace", references);
+        reportTest(listener, "other_pass", null, references);
+        listener.testRunEnded(0L, new HashMap<String, Metric>());
+
+        for (int i = 0; i < 10 && !allCleared(references); i++) {
+            System.gc();
+        }
+        for (WeakReference<Object> reference : references) {
+            assertThat(reference.get()).isNull();
+        }
+        assertThat(listener.getNumTestsInState(TestStatus.PASSED)).isEqualTo(2);
+        assertThat(listener.getNumAllFailedTests()).isEqualTo(2);
+        assertThat(listener.getFailureSamples())
+                .containsExactly(new TestDescription("class", "sample"), "trace sample");
+    }
+
+    /**
+     * Reports a test with a metric to the listener, failing with the trace if not null, and adds
+     * weak references to the objects it reported.
+     */
+    private static void reportTest(
+            StatusCountingTestListener listener,
+            String name,
+            String trace,
+            List<WeakReference<Object>> references) {
+        TestDescription test = new TestDescription("class", name);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        Metric metric = TfMetricProtoUtil.stringToMetric("value of " + name);
+        metrics.put("key", metric);
+        listener.testStarted(test);
+        if (trace != null) {
+            FailureDescription failure = FailureDescription.create(trace + " " + name);
+            listener.testFailed(test, failure);
+            references.add(new WeakReference<>(failure));
+        }
+        listener.testEnded(test, metrics);
+        references.add(new WeakReference<>(test));
+        references.add(new WeakReference<>(metrics));
+        references.add(new WeakReference<>(metric));
+    }
+
+    private static boolean allCleared(List<WeakReference<Object>> references) {
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runTest(String name, TestStatus status) {
+        TestDescription test = new TestDescription("class", name);
+        mForwarder.testStarted(test);
+        if (TestStatus.FAILURE.equals(status)) {
+            mForwarder.testFailed(test, "trace of " + name);
+        } else if (TestStatus.ASSUMPTION_FAILURE.equals(status)) {
+            mForwarder.testAssumptionFailure(test, "trace of " + name);
+        } else if (TestStatus.IGNORED.equals(status)) {
+            mForwarder.testIgnored(test);
+        }
+        mForwarder.testEnded(test, new HashMap<String, Metric>());
+    }
+
+    private void assertSameCounts() {
+        assertThat(mListener.getNumTotalTests()).isEqualTo(mCollecting.getNumTotalTests());
+        for (TestStatus status : TestStatus.values()) {
+            assertThat(mListener.getNumTestsInState(status))
+                    .isEqualTo(mCollecting.getNumTestsInState(status));
+        }
+        assertThat(mListener.getNumAllFailedTestRuns())
+                .isEqualTo(mCollecting.getNumAllFailedTestRuns());
+        List<RunCounts> counts = mListener.getTestRunCounts();
+        List<TestRunResult> results = mCollecting.getMergedTestRunResults();
+        assertThat(counts).hasSize(results.size());
+        for (int i = 0; i < counts.size(); i++) {
+            RunCounts count = counts.get(i);
+            TestRunResult result = results.get(i);
+            assertThat(count.getName()).isEqualTo(result.getName());
+            assertThat(count.getNumTests()).isEqualTo(result.getNumTests());
+            assertThat(count.getNumCompleteTests()).isEqualTo(result.getNumCompleteTests());
+            assertThat(count.getNumAllFailedTests()).isEqualTo(result.getNumAllFailedTests());
+            assertThat(count.isRunComplete()).isEqualTo(result.isRunComplete());
+            assertThat(count.isRunFailure()).isEqualTo(result.isRunFailure());
+            assertThat(count.getElapsedTime()).isEqualTo(result.getElapsedTime());
+            assertThat(count.getExpectedTestCount()).isEqualTo(result.getExpectedTestCount());
+        }
+    }
+}
@@ -1165,6 +1165,88 @@ public class DeviceSetupTest extends TestCase {
         EasyMock.verify(mMockDevice);
     }
 
+    /** Test that batched setup skips the properties and settings already set. */
+    public void testSetup_batched_alreadySet() throws Exception {
+        doBatchedSetupExpectations();
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                "getprop; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "cat /data/local.prop 2>/dev/null"))
+                .andReturn(
+                        "[ro.foo]: [1]\n[persist.bar]: [2]\n--- TF_DEVICE_SETUP ---\n"
+                                + "ro.foo=1\n");
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                "settings list system; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "settings list secure; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "settings list global"))
+                .andReturn(
+                        "key=value\n--- TF_DEVICE_SETUP ---\n--- TF_DEVICE_SETUP ---\n"
+                                + "key2=value2\n");
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setSystemSetting("key", "value");
+        mDeviceSetup.setGlobalSetting("key2", "value2");
+        mDeviceSetup.setUp(mTestInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that batched setup applies the properties, settings and commands in batches. */
+    public void testSetup_batched() throws Exception {
+        doBatchedSetupExpectations();
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                "getprop; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "cat /data/local.prop 2>/dev/null"))
+                .andReturn("[ro.foo]: [0]\n--- TF_DEVICE_SETUP ---\n");
+        EasyMock.expect(mMockDevice.executeShellCommand("setprop persist.bar '2'")).andReturn("");
+        EasyMock.expect(mMockDevice.pushString("ro.foo=1\n", "/data/local.prop"))
+                .andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.executeShellCommand("chmod 644 /data/local.prop"))
+                .andReturn("");
+        mMockDevice.reboot();
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                "settings list system; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "settings list secure; echo '--- TF_DEVICE_SETUP ---'; "
+                                        + "settings list global"))
+                .andReturn("key=old\n--- TF_DEVICE_SETUP ---\n--- TF_DEVICE_SETUP ---\n");
+        EasyMock.expect(
+                        mMockDevice.executeShellCommand(
+                                "settings put system key value\nsettings put global key2 value2"))
+                .andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand("command1\ncommand2")).andReturn("");
+        EasyMock.replay(mMockDevice);
+
+        OptionSetter setter = new OptionSetter(mDeviceSetup);
+        setter.setOptionValue("run-command", "command1");
+        setter.setOptionValue("run-command", "command2");
+        mDeviceSetup.setSystemSetting("key", "value");
+        mDeviceSetup.setGlobalSetting("key2", "value2");
+        mDeviceSetup.setUp(mTestInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Set EasyMock expectations for a batched setup call, setting ro.foo and persist.bar */
+    private void doBatchedSetupExpectations() throws Exception {
+        OptionSetter setter = new OptionSetter(mDeviceSetup);
+        setter.setOptionValue("batch-device-setup", "true");
+        setter.setOptionValue("screen-always-on", "IGNORE");
+        setter.setOptionValue("disable-dialing", "false");
+        setter.setOptionValue("disable-audio", "false");
+        setter.setOptionValue("set-test-harness", "false");
+        setter.setOptionValue("set-property", "ro.foo", "1");
+        setter.setOptionValue("set-property", "persist.bar", "2");
+        TestDeviceOptions options = new TestDeviceOptions();
+        EasyMock.expect(mMockDevice.getOptions()).andReturn(options).atLeastOnce();
+        EasyMock.expect(mMockDevice.enableAdbRoot()).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.getApiLevel()).andStubReturn(DEFAULT_API_LEVEL);
+        EasyMock.expect(mMockDevice.clearErrorDialogs()).andReturn(Boolean.TRUE);
+        doCheckExternalStoreSpaceExpectations();
+    }
+
     public void testTearDown() throws Exception {
         EasyMock.replay(mMockDevice);
         mDeviceSetup.tearDown(mTestInfo, null);
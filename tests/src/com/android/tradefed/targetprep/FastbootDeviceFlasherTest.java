@@ -30,8 +30,10 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.ZipUtil;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -43,6 +45,7 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /** Unit tests for {@link FastbootDeviceFlasher}. */
 @RunWith(JUnit4.class)
@@ -261,6 +264,48 @@ public class FastbootDeviceFlasherTest {
         EasyMock.verify(mMockDevice, mockZipInstaller);
     }
 
+    /** Test flashing of user data extracted from the device image zip. */
+    @Test
+    public void testFlashUserData_imgZip() throws Exception {
+        mFlasher.setUserDataFlashOption(UserDataFlashOption.FLASH_IMG_ZIP);
+        File tmpDir = FileUtil.createTempDir("flash-img-zip");
+        File deviceImage = null;
+        try {
+            File userdata = new File(tmpDir, "userdata.img");
+            FileUtil.writeToFile("userdata", userdata);
+            deviceImage = ZipUtil.createZip(Arrays.asList(userdata));
+            mMockBuildInfo.setDeviceImageFile(deviceImage, "0");
+            List<File> flashedImages = new ArrayList<>();
+            EasyMock.expect(
+                            mMockDevice.executeLongFastbootCommand(
+                                    EasyMock.eq("flash"),
+                                    EasyMock.eq("userdata"),
+                                    EasyMock.anyObject()))
+                    .andAnswer(
+                            new IAnswer<CommandResult>() {
+                                @Override
+                                public CommandResult answer() throws Throwable {
+                                    File image =
+                                            new File((String) EasyMock.getCurrentArguments()[2]);
+                                    assertEquals("userdata", FileUtil.readStringFromFile(image));
+                                    flashedImages.add(image);
+                                    CommandResult res = new CommandResult(CommandStatus.SUCCESS);
+                                    res.setStderr("flashing");
+                                    return res;
+                                }
+                            });
+            EasyMock.replay(mMockDevice);
+            mFlasher.flashUserData(mMockDevice, mMockBuildInfo);
+            EasyMock.verify(mMockDevice);
+            // The extracted image is deleted once flashed.
+            assertEquals(1, flashedImages.size());
+            assertFalse(flashedImages.get(0).exists());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+            FileUtil.deleteFile(deviceImage);
+        }
+    }
+
     /**
      * Verify that correct fastboot command is called with WIPE data option
      *
@@ -194,6 +194,132 @@ public class TestAppInstallSetupTest {
         EasyMock.verify(mMockBuildInfo, mMockTestDevice);
     }
 
+    /**
+     * Test that the packages already installed with the same apks and install args are skipped,
+     * and their denied runtime permissions granted.
+     */
+    @Test
+    public void testSetup_batchInstall_skipInstalled() throws Exception {
+        mPrep = createBatchPreparer();
+        mPrep.setAbi(new Abi("arm64-v8a", "64"));
+        EasyMock.expect(mMockTestDevice.getApiLevel()).andStubReturn(30);
+        expectInstalledPackageA();
+        EasyMock.expect(mMockTestDevice.executeShellCommand("dumpsys package pkg.a"))
+                .andReturn(
+                        "Packages:\n"
+                                + "  Package [pkg.a] (1234):\n"
+                                + "    primaryCpuAbi=arm64-v8a\n"
+                                + "    install permissions:\n"
+                                + "      android.permission.INTERNET: granted=true\n"
+                                + "    User 0: ceDataInode=1 installed=true\n"
+                                + "      runtime permissions:\n"
+                                + "        android.permission.CAMERA: granted=false, flags=[ ]\n"
+                                + "        android.permission.READ_CONTACTS: granted=true\n");
+        EasyMock.expect(mMockTestDevice.isRuntimePermissionSupported()).andReturn(true);
+        EasyMock.expect(
+                        mMockTestDevice.executeShellCommand(
+                                "pm grant pkg.a android.permission.CAMERA 2>/dev/null"))
+                .andReturn("");
+        EasyMock.expect(
+                        mMockTestDevice.installPackage(
+                                EasyMock.eq(fakeApk2),
+                                EasyMock.eq(true),
+                                EasyMock.eq("--abi arm64-v8a")))
+                .andReturn(null);
+        // Only the package installed by the preparer is removed.
+        EasyMock.expect(mMockTestDevice.uninstallPackage("pkg.b")).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mTestInfo);
+        mPrep.tearDown(mTestInfo, null);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /** Test that an installed package is installed again if an install arg may not apply to it. */
+    @Test
+    public void testSetup_batchInstall_installArgNotApplied() throws Exception {
+        mPrep = createBatchPreparer();
+        new OptionSetter(mPrep).setOptionValue("install-arg", "-d");
+        EasyMock.expect(mMockTestDevice.getApiLevel()).andStubReturn(28);
+        expectInstalledPackageA();
+        EasyMock.expect(mMockTestDevice.executeShellCommand("dumpsys package pkg.a"))
+                .andReturn("Packages:\n  Package [pkg.a] (1234):\n");
+        EasyMock.expect(
+                        mMockTestDevice.installPackage(
+                                EasyMock.eq(fakeApk), EasyMock.eq(true), EasyMock.eq("-d")))
+                .andReturn(null);
+        EasyMock.expect(
+                        mMockTestDevice.installPackage(
+                                EasyMock.eq(fakeApk2), EasyMock.eq(true), EasyMock.eq("-d")))
+                .andReturn(null);
+        EasyMock.expect(mMockTestDevice.uninstallPackage("pkg.a")).andReturn(null);
+        EasyMock.expect(mMockTestDevice.uninstallPackage("pkg.b")).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mTestInfo);
+        mPrep.tearDown(mTestInfo, null);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /** Expects pkg.a to be installed on the device with the same apk as fakeApk. */
+    private void expectInstalledPackageA() throws Exception {
+        EasyMock.expect(mMockTestDevice.executeShellCommand("pm list packages -f"))
+                .andReturn(
+                        "package:/data/app/pkg.a-1/base.apk=pkg.a\n"
+                                + "package:/system/app/Other/Other.apk=other\n");
+        EasyMock.expect(
+                        mMockTestDevice.executeShellCommand(
+                                "md5sum /data/app/pkg.a-1/*.apk 2>/dev/null"))
+                .andReturn(FileUtil.calculateMd5(fakeApk) + "  /data/app/pkg.a-1/base.apk\n");
+    }
+
+    /** Test that the single apk packages are installed in one session. */
+    @Test
+    public void testSetup_batchInstall_multiPackage() throws Exception {
+        mPrep = createBatchPreparer();
+        EasyMock.expect(mMockTestDevice.executeShellCommand("pm list packages -f"))
+                .andReturn("package:/system/app/Other/Other.apk=other\n");
+        EasyMock.expect(mMockTestDevice.getApiLevel()).andStubReturn(30);
+        EasyMock.expect(mMockTestDevice.isRuntimePermissionSupported()).andReturn(true);
+        EasyMock.expect(
+                        mMockTestDevice.executeAdbCommand(
+                                EasyMock.anyLong(),
+                                EasyMock.eq("install-multi-package"),
+                                EasyMock.eq("-r"),
+                                EasyMock.eq("-g"),
+                                EasyMock.eq(fakeApk.getAbsolutePath()),
+                                EasyMock.eq(fakeApk2.getAbsolutePath())))
+                .andReturn("Success\n");
+        EasyMock.expect(mMockTestDevice.uninstallPackage("pkg.a")).andReturn(null);
+        EasyMock.expect(mMockTestDevice.uninstallPackage("pkg.b")).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mTestInfo);
+        mPrep.tearDown(mTestInfo, null);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /** Creates a preparer in batch mode installing fakeApk as pkg.a and fakeApk2 as pkg.b. */
+    private TestAppInstallSetup createBatchPreparer() throws Exception {
+        TestAppInstallSetup preparer =
+                new TestAppInstallSetup() {
+                    @Override
+                    protected String parsePackageName(
+                            File testAppFile, DeviceDescriptor deviceDescriptor) {
+                        return testAppFile.equals(fakeApk) ? "pkg.a" : "pkg.b";
+                    }
+
+                    @Override
+                    protected File getLocalPathForFilename(
+                            TestInformation testInfo, String apkFileName) throws TargetSetupError {
+                        return apkFileName.equals(fakeApk.getName()) ? fakeApk : fakeApk2;
+                    }
+                };
+        OptionSetter setter = new OptionSetter(preparer);
+        setter.setOptionValue("cleanup-apks", "true");
+        setter.setOptionValue("batch-install", "true");
+        setter.setOptionValue("test-file-name", fakeApk.getName());
+        setter.setOptionValue("test-file-name", fakeApk2.getName());
+        return preparer;
+    }
+
     @Test
     public void testSetup_instantMode() throws Exception {
         OptionSetter setter = new OptionSetter(mPrep);
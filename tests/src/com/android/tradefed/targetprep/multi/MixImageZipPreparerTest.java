@@ -40,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -103,7 +104,7 @@ public class MixImageZipPreparerTest {
 
         private ByteArrayInputStreamFactory(String data) {
             mData = data.getBytes();
-            createdInputStreams = new ArrayList<InputStream>();
+            createdInputStreams = Collections.synchronizedList(new ArrayList<InputStream>());
         }
 
         @Override
@@ -267,6 +268,7 @@ public class MixImageZipPreparerTest {
         FileUtil.deleteFile(mOtaToolsZip);
         FileUtil.deleteFile(mRepackSuperImageFile);
         FileUtil.recursiveDelete(mResourceDir);
+        MixImageZipPreparer.clearMixedImageCache();
     }
 
     private IDeviceBuildInfo createDeviceBuildInfo(
@@ -325,10 +327,11 @@ public class MixImageZipPreparerTest {
         }
     }
 
-    private void verifyImages(File mixedImageZip) throws FileNotFoundException, IOException {
+    private void verifyImages(File mixedImageZip, String deviceContent)
+            throws FileNotFoundException, IOException {
         File mixedImageDir = ZipUtil.extractZipToTemp(mixedImageZip, "verifyImages");
         try {
-            verifyImage(DEVICE_CONTENT, mixedImageDir, VENDOR_IMAGE_NAME);
+            verifyImage(deviceContent, mixedImageDir, VENDOR_IMAGE_NAME);
 
             if (mMockRunRepackSuperImage != null) {
                 // setUpDeviceWithSuper was called.
@@ -352,6 +355,12 @@ public class MixImageZipPreparerTest {
     private void runPreparerTest()
             throws TargetSetupError, BuildError, DeviceNotAvailableException, ZipException,
                     IOException {
+        runPreparerTest(DEVICE_CONTENT);
+    }
+
+    private void runPreparerTest(String deviceContent)
+            throws TargetSetupError, BuildError, DeviceNotAvailableException, ZipException,
+                    IOException {
         TestInformation testInformation =
                 TestInformation.newBuilder().setInvocationContext(mMockContext).build();
         mPreparer.setUp(testInformation);
@@ -367,7 +376,7 @@ public class MixImageZipPreparerTest {
 
             Assert.assertEquals(SYSTEM_BUILD_FLAVOR, addedBuildInfo.getBuildFlavor());
             Assert.assertEquals(SYSTEM_BUILD_ID, addedBuildInfo.getDeviceBuildId());
-            verifyImages(addedBuildInfo.getDeviceImageFile());
+            verifyImages(addedBuildInfo.getDeviceImageFile(), deviceContent);
         } finally {
             addedBuildInfo.cleanUp();
         }
@@ -429,7 +438,82 @@ public class MixImageZipPreparerTest {
         runPreparerTest();
     }
 
+    /** Test that the mixed image zip is reused by the invocations mixing the same builds. */
+    @Test
+    public void testSetUpWithCache()
+            throws TargetSetupError, BuildError, DeviceNotAvailableException, IOException {
+        setUpPreparerAndSystem();
+        setUpDevice();
+        mPreparer.setMixedImageCacheSize(1);
+        runPreparerTest();
+
+        // Same build ids and sizes, the content of the first build is expected.
+        mSystemBuild.cleanUp();
+        FileUtil.deleteFile(mSystemImageZip);
+        setUpPreparerAndSystem();
+        mPreparer.setMixedImageCacheSize(1);
+        ITestDevice mockDevice = Mockito.mock(ITestDevice.class);
+        mDeviceImageZip =
+                createImageZip(
+                        DEVICE_CONTENT.toUpperCase(),
+                        VENDOR_IMAGE_NAME,
+                        SYSTEM_IMAGE_NAME,
+                        PRODUCT_IMAGE_NAME,
+                        VBMETA_IMAGE_NAME);
+        mDeviceBuild = createDeviceBuildInfo(DEVICE_BUILD_FLAVOR, DEVICE_BUILD_ID, mDeviceImageZip);
+        Mockito.when(mMockContext.getDevice(DEVICE_LABEL)).thenReturn(mockDevice);
+        Mockito.when(mMockContext.getBuildInfo(mockDevice)).thenReturn(mDeviceBuild);
+        runPreparerTest();
+        Assert.assertEquals(0, MixImageZipPreparer.getCacheLockCount());
+    }
+
+    /** Test that the mixed image zip of a local build is not reused once the build changed. */
+    @Test
+    public void testSetUpWithCache_localBuild()
+            throws TargetSetupError, BuildError, DeviceNotAvailableException, IOException {
+        setUpPreparerAndSystem();
+        mPreparer.setMixedImageCacheSize(1);
+        ITestDevice mockDevice = Mockito.mock(ITestDevice.class);
+        mDeviceImageZip =
+                createImageZip(
+                        DEVICE_CONTENT,
+                        VENDOR_IMAGE_NAME,
+                        SYSTEM_IMAGE_NAME,
+                        PRODUCT_IMAGE_NAME,
+                        VBMETA_IMAGE_NAME);
+        mDeviceBuild =
+                createDeviceBuildInfo(
+                        DEVICE_BUILD_FLAVOR, IBuildInfo.UNKNOWN_BUILD_ID, mDeviceImageZip);
+        Mockito.when(mMockContext.getDevice(DEVICE_LABEL)).thenReturn(mockDevice);
+        Mockito.when(mMockContext.getBuildInfo(mockDevice)).thenReturn(mDeviceBuild);
+        runPreparerTest();
+
+        // Same size, but the content of the new build is expected.
+        mSystemBuild.cleanUp();
+        FileUtil.deleteFile(mSystemImageZip);
+        setUpPreparerAndSystem();
+        mPreparer.setMixedImageCacheSize(1);
+        mockDevice = Mockito.mock(ITestDevice.class);
+        mDeviceImageZip =
+                createImageZip(
+                        DEVICE_CONTENT.toUpperCase(),
+                        VENDOR_IMAGE_NAME,
+                        SYSTEM_IMAGE_NAME,
+                        PRODUCT_IMAGE_NAME,
+                        VBMETA_IMAGE_NAME);
+        mDeviceBuild =
+                createDeviceBuildInfo(
+                        DEVICE_BUILD_FLAVOR, IBuildInfo.UNKNOWN_BUILD_ID, mDeviceImageZip);
+        Mockito.when(mMockContext.getDevice(DEVICE_LABEL)).thenReturn(mockDevice);
+        Mockito.when(mMockContext.getBuildInfo(mockDevice)).thenReturn(mDeviceBuild);
+        runPreparerTest(DEVICE_CONTENT.toUpperCase());
+    }
+
     private void runCreateZipTest(int compressionLevel) throws IOException {
+        runCreateZipTest(compressionLevel, 1);
+    }
+
+    private void runCreateZipTest(int compressionLevel, int threads) throws IOException {
         Map<String, ByteArrayInputStreamFactory> data =
                 new HashMap<String, ByteArrayInputStreamFactory>();
         data.put("entry1", new ByteArrayInputStreamFactory("abcabcabcabcabcabc"));
@@ -438,7 +522,7 @@ public class MixImageZipPreparerTest {
         File file = null;
         ZipFile zipFile = null;
         try {
-            file = MixImageZipPreparer.createZip(data, compressionLevel);
+            file = MixImageZipPreparer.createZip(data, compressionLevel, threads);
             zipFile = new ZipFile(file);
 
             Assert.assertEquals(data.size(), zipFile.stream().count());
@@ -474,4 +558,10 @@ public class MixImageZipPreparerTest {
     public void testCreateZipWithNoCompression() throws IOException {
         runCreateZipTest(Deflater.NO_COMPRESSION);
     }
+
+    /** Verify createZip compressing the entries in parallel. */
+    @Test
+    public void testCreateZipInParallel() throws IOException {
+        runCreateZipTest(Deflater.DEFAULT_COMPRESSION, 2);
+    }
 }
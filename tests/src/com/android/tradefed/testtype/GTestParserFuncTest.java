@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.TestResult;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link GTestResultParser} and {@link GTestXmlResultParser} against their previous
+ * implementations, on large outputs. Both implementations must report the same results.
+ */
+@RunWith(JUnit4.class)
+public class GTestParserFuncTest {
+
+    private static final String RUN_NAME = "gtest";
+    private static final int NUM_TESTS = 50000;
+    private static final int NUM_XML_TESTS = 100000;
+    /** Each parser is timed several times, and its fastest run is kept. */
+    private static final int RUNS = 3;
+
+    /** Test that the raw output parser is faster than its previous implementation. */
+    @Test
+    public void testResultParser() {
+        String[] lines = createOutput(NUM_TESTS);
+        CollectingTestListener expected = new CollectingTestListener();
+        CollectingTestListener actual = new CollectingTestListener();
+        parse(new LegacyGTestResultParser(RUN_NAME, expected), lines);
+        parse(new GTestResultParser(RUN_NAME, actual), lines);
+        assertSameResults(expected, actual);
+        assertEquals(NUM_TESTS, actual.getNumTotalTests());
+
+        long legacyMs = Long.MAX_VALUE;
+        long currentMs = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            parse(new LegacyGTestResultParser(RUN_NAME, new CollectingTestListener()), lines);
+            legacyMs = Math.min(legacyMs, elapsedMs(start));
+            start = System.nanoTime();
+            parse(new GTestResultParser(RUN_NAME, new CollectingTestListener()), lines);
+            currentMs = Math.min(currentMs, elapsedMs(start));
+        }
+        CLog.i("Parsing %d tests: %d ms, previously %d ms", NUM_TESTS, currentMs, legacyMs);
+        assertTrue(
+                String.format("Parsing took %d ms, previously %d ms", currentMs, legacyMs),
+                currentMs < legacyMs);
+    }
+
+    /**
+     * Test that the xml parser holds less memory while reporting than its previous implementation,
+     * and is not slower.
+     */
+    @Test
+    public void testXmlResultParser() throws IOException {
+        File xml = createXmlOutput(NUM_XML_TESTS);
+        try {
+            CollectingTestListener expected = new CollectingTestListener();
+            CollectingTestListener actual = new CollectingTestListener();
+            new LegacyGTestXmlResultParser(RUN_NAME, expected).parseResult(xml, null);
+            new GTestXmlResultParser(RUN_NAME, actual).parseResult(xml, null);
+            assertSameResults(expected, actual);
+            assertEquals(NUM_XML_TESTS, actual.getNumTotalTests());
+
+            HeapProbe legacyProbe = new HeapProbe(NUM_XML_TESTS);
+            new LegacyGTestXmlResultParser(RUN_NAME, legacyProbe).parseResult(xml, null);
+            HeapProbe currentProbe = new HeapProbe(NUM_XML_TESTS);
+            new GTestXmlResultParser(RUN_NAME, currentProbe).parseResult(xml, null);
+            CLog.i(
+                    "Heap held while reporting %d tests: %d KB, previously %d KB",
+                    NUM_XML_TESTS,
+                    currentProbe.getHeldBytes() / 1024,
+                    legacyProbe.getHeldBytes() / 1024);
+            assertTrue(currentProbe.getHeldBytes() < legacyProbe.getHeldBytes());
+
+            long legacyMs = Long.MAX_VALUE;
+            long currentMs = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                new LegacyGTestXmlResultParser(RUN_NAME, new CollectingTestListener())
+                        .parseResult(xml, null);
+                legacyMs = Math.min(legacyMs, elapsedMs(start));
+                start = System.nanoTime();
+                new GTestXmlResultParser(RUN_NAME, new CollectingTestListener())
+                        .parseResult(xml, null);
+                currentMs = Math.min(currentMs, elapsedMs(start));
+            }
+            CLog.i(
+                    "Parsing %d xml tests: %d ms, previously %d ms",
+                    NUM_XML_TESTS, currentMs, legacyMs);
+            assertTrue(
+                    String.format("Parsing took %d ms, previously %d ms", currentMs, legacyMs),
+                    currentMs <= legacyMs);
+        } finally {
+            FileUtil.deleteFile(xml);
+        }
+    }
+
+    /** Listener measuring the heap still in use when the last test is reported. */
+    private static class HeapProbe implements ITestInvocationListener {
+        private final int mNumTests;
+        private final long mStartBytes;
+        private int mEnded = 0;
+        private long mHeldBytes = -1;
+
+        HeapProbe(int numTests) {
+            mNumTests = numTests;
+            mStartBytes = usedHeap();
+        }
+
+        @Override
+        public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+            mEnded++;
+            if (mEnded == mNumTests) {
+                mHeldBytes = usedHeap() - mStartBytes;
+            }
+        }
+
+        long getHeldBytes() {
+            assertTrue("The last test was not reported", mHeldBytes >= 0);
+            return mHeldBytes;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    private static void parse(MultiLineReceiver parser, String[] lines) {
+        parser.processNewLines(lines);
+        parser.flush();
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /** Asserts that both listeners received the same runs, tests, statuses and failures. */
+    private static void assertSameResults(
+            CollectingTestListener expected, CollectingTestListener actual) {
+        assertEquals(expected.getNumTotalTests(), actual.getNumTotalTests());
+        assertEquals(expected.getNumAllFailedTests(), actual.getNumAllFailedTests());
+        TestRunResult expectedRun = expected.getCurrentRunResults();
+        TestRunResult actualRun = actual.getCurrentRunResults();
+        assertEquals(expectedRun.getName(), actualRun.getName());
+        assertEquals(expectedRun.getElapsedTime(), actualRun.getElapsedTime());
+        assertEquals(expectedRun.isRunComplete(), actualRun.isRunComplete());
+        assertEquals(expectedRun.getRunFailureMessage(), actualRun.getRunFailureMessage());
+        Map<TestDescription, TestResult> actualResults = actualRun.getTestResults();
+        for (Map.Entry<TestDescription, TestResult> entry :
+                expectedRun.getTestResults().entrySet()) {
+            TestResult result = actualResults.get(entry.getKey());
+            assertNotNull(entry.getKey().toString(), result);
+            assertEquals(entry.getValue().getStatus(), result.getStatus());
+            assertEquals(entry.getValue().getStackTrace(), result.getStackTrace());
+        }
+    }
+
+    /** Creates the raw output of parameterized tests, with logs and some failures. */
+    private static String[] createOutput(int numTests) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("[==========] Running %d tests from 1 test case.", numTests));
+        lines.add(String.format("[----------] %d tests from Param/Test", numTests));
+        for (int i = 0; i < numTests; i++) {
+            String name = String.format("Param/Test.Method/%d", i);
+            lines.add("[ RUN      ] " + name);
+            for (int j = 0; j < 5; j++) {
+                lines.add(String.format("log line %d of the test with (%d ms) in it", j, j));
+            }
+            if (i % 100 == 0) {
+                lines.add("external/test.cc:10: Failure");
+                lines.add(String.format("[  FAILED  ] %s, where GetParam() = %d (3 ms)", name, i));
+            } else {
+                lines.add(String.format("[       OK ] %s (1 ms)", name));
+            }
+        }
+        lines.add(String.format("[----------] %d tests from Param/Test (10 ms total)", numTests));
+        lines.add(
+                String.format(
+                        "[==========] %d tests from 1 test case ran. (10 ms total)", numTests));
+        return lines.toArray(new String[0]);
+    }
+
+    /** Creates the xml output of parameterized tests, with some failures. */
+    private static File createXmlOutput(int numTests) throws IOException {
+        File xml = FileUtil.createTempFile("func_gtest_", ".xml");
+        try (Writer writer = new BufferedWriter(new FileWriter(xml))) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write(
+                    String.format(
+                            "<testsuites tests=\"%d\" failures=\"%d\" time=\"1.5\" "
+                                    + "name=\"AllTests\">\n",
+                            numTests, numTests / 100));
+            writer.write("  <testsuite name=\"Param/Test\">\n");
+            for (int i = 0; i < numTests; i++) {
+                writer.write(
+                        String.format(
+                                "    <testcase name=\"Method/%d\" status=\"run\" time=\"0\" "
+                                        + "classname=\"Param/Test\"",
+                                i));
+                if (i % 100 == 0) {
+                    writer.write(">\n      <failure message=\"Failed at line 10\" />\n");
+                    writer.write("    </testcase>\n");
+                } else {
+                    writer.write(" />\n");
+                }
+            }
+            writer.write("  </testsuite>\n</testsuites>\n");
+        }
+        return xml;
+    }
+}
@@ -15,12 +15,16 @@
  */
 package com.android.tradefed.testtype;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.FailureDescription;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.TestRunResult;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -28,7 +32,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /** Unit tests for {@link GTestResultParser}. */
 @RunWith(JUnit4.class)
@@ -416,4 +422,51 @@ public class GTestResultParserTest extends GTestParserTestBase {
         resultParser.flush();
         EasyMock.verify(mockRunListener);
     }
+
+    /**
+     * Tests the parser with a large output of parameterized tests, with logs between the markers
+     * and some failures.
+     */
+    @Test
+    public void testParseLargeOutput() throws Exception {
+        final int numTests = 50000;
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("[==========] Running %d tests from 1 test case.", numTests));
+        lines.add(String.format("[----------] %d tests from Param/Test", numTests));
+        for (int i = 0; i < numTests; i++) {
+            String name = String.format("Param/Test.Method/%d", i);
+            lines.add("[ RUN      ] " + name);
+            for (int j = 0; j < 5; j++) {
+                lines.add(String.format("log line %d of the test with (%d ms) in it", j, j));
+            }
+            if (i % 100 == 0) {
+                lines.add("external/test.cc:10: Failure");
+                lines.add(String.format("[  FAILED  ] %s, where GetParam() = %d (3 ms)", name, i));
+            } else {
+                lines.add(String.format("[       OK ] %s (1 ms)", name));
+            }
+        }
+        lines.add(String.format("[----------] %d tests from Param/Test (10 ms total)", numTests));
+        lines.add(
+                String.format(
+                        "[==========] %d tests from 1 test case ran. (10 ms total)", numTests));
+
+        CollectingTestListener listener = new CollectingTestListener();
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, listener);
+        resultParser.processNewLines(lines.toArray(new String[0]));
+        resultParser.flush();
+
+        assertEquals(numTests, listener.getNumTotalTests());
+        assertEquals(numTests / 100, listener.getNumAllFailedTests());
+        assertEquals(numTests - numTests / 100, listener.getNumTestsInState(TestStatus.PASSED));
+        TestRunResult runResult = listener.getCurrentRunResults();
+        assertEquals(10L, runResult.getElapsedTime());
+        assertTrue(runResult.isRunComplete());
+        assertTrue(
+                runResult
+                        .getTestResults()
+                        .get(new TestDescription("Param/Test", "Method/0"))
+                        .getStackTrace()
+                        .contains("(4 ms) in it\r\nexternal/test.cc:10: Failure"));
+    }
 }
@@ -29,6 +29,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.coverage.CoverageOptions;
 
@@ -40,6 +41,7 @@ import org.junit.runners.JUnit4;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -216,6 +218,124 @@ public class GTestTest {
         verifyMocks();
     }
 
+    /** Test the run method when listing the test binaries with a single command. */
+    @Test
+    public void testRun_enumerateWithFind() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath1 = nativeTestPath + "/arm/test1";
+        final String testPath2 = nativeTestPath + "/arm64/test2";
+        mSetter.setOptionValue("enumerate-with-find", "true");
+        mGTest.setAbi(new Abi("arm64-v8a", "64"));
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(
+                        String.format(
+                                "%s\n%s\n%s/arm64/lib.so\n", testPath2, testPath1, nativeTestPath));
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains(testPath2),
+                EasyMock.same(mMockReceiver),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+
+        replayMocks();
+
+        mGTest.run(mTestInfo, mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /** Test that binaries run at the same time report their results one run at a time. */
+    @Test
+    public void testRun_binaryParallelism() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath1 = nativeTestPath + "/test1";
+        final String testPath2 = nativeTestPath + "/test2";
+        GTest gTest =
+                new GTest() {
+                    @Override
+                    IShellOutputReceiver createResultParser(
+                            String runName, ITestInvocationListener listener) {
+                        return new IShellOutputReceiver() {
+                            @Override
+                            public void addOutput(byte[] data, int offset, int length) {}
+
+                            @Override
+                            public void flush() {
+                                listener.testRunStarted(runName, 0);
+                                listener.testRunEnded(0, new HashMap<String, Metric>());
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return false;
+                            }
+                        };
+                    }
+                };
+        gTest.setDevice(mMockITestDevice);
+        gTest.setConfiguration(mConfiguration);
+        new OptionSetter(gTest).setOptionValue("binary-parallelism", "2");
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(String.format("%s\n%s\n", testPath2, testPath1));
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains(testPath1),
+                EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains(testPath2),
+                EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+        listener.testRunStarted("test1", 0);
+        listener.testRunEnded(EasyMock.anyLong(), EasyMock.<HashMap<String, Metric>>anyObject());
+        listener.testRunStarted("test2", 0);
+        listener.testRunEnded(EasyMock.anyLong(), EasyMock.<HashMap<String, Metric>>anyObject());
+
+        EasyMock.replay(listener, mMockITestDevice);
+        gTest.run(mTestInfo, listener);
+        EasyMock.verify(listener, mMockITestDevice);
+    }
+
+    /** Test that binaries run one at a time when commands are run around each test. */
+    @Test
+    public void testRun_binaryParallelismWithTestCmd() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath1 = nativeTestPath + "/test1";
+        final String testPath2 = nativeTestPath + "/test2";
+        mSetter.setOptionValue("binary-parallelism", "2");
+        mSetter.setOptionValue("before-test-cmd", "echo before");
+        mSetter.setOptionValue("after-test-cmd", "echo after");
+        EasyMock.checkOrder(mMockITestDevice, true);
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(
+                        mMockITestDevice.executeShellCommand(
+                                EasyMock.contains("-type l -exec test -f {} \\;")))
+                .andReturn(String.format("%s\n%s\n", testPath2, testPath1));
+        for (String testPath : new String[] {testPath1, testPath2}) {
+            EasyMock.expect(mMockITestDevice.executeShellCommand("echo before")).andReturn("");
+            mMockITestDevice.executeShellCommand(
+                    EasyMock.contains(testPath),
+                    EasyMock.same(mMockReceiver),
+                    EasyMock.anyLong(),
+                    (TimeUnit) EasyMock.anyObject(),
+                    EasyMock.anyInt());
+            EasyMock.expect(mMockITestDevice.executeShellCommand("echo after")).andReturn("");
+        }
+
+        replayMocks();
+
+        mGTest.run(mTestInfo, mMockInvocationListener);
+        verifyMocks();
+    }
+
     /** Test the run method when module name is specified */
     @Test
     public void testRun_moduleName() throws DeviceNotAvailableException {
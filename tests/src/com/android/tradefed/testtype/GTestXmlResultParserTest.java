@@ -15,9 +15,14 @@
  */
 package com.android.tradefed.testtype;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.FileUtil;
@@ -27,10 +32,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.util.HashMap;
 
 /** Unit tests for {@link GTestXmlResultParser} */
@@ -323,4 +331,75 @@ public class GTestXmlResultParserTest {
             FileUtil.deleteFile(contents);
         }
     }
+
+    /** Tests the parser with a large output, whose results are streamed to the listener. */
+    @Test
+    public void testParseLargeFile() throws Exception {
+        final int numTests = 100000;
+        File contents = FileUtil.createTempFile("unit_gtest_", ".xml");
+        try (Writer writer = new BufferedWriter(new FileWriter(contents))) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write(
+                    String.format(
+                            "<testsuites tests=\"%d\" failures=\"%d\" time=\"1.5\" "
+                                    + "name=\"AllTests\">\n",
+                            numTests, numTests / 100));
+            writer.write("  <testsuite name=\"Param/Test\">\n");
+            for (int i = 0; i < numTests; i++) {
+                writer.write(
+                        String.format(
+                                "    <testcase name=\"Method/%d\" status=\"run\" time=\"0\" "
+                                        + "classname=\"Param/Test\"",
+                                i));
+                if (i % 100 == 0) {
+                    writer.write(">\n      <failure message=\"Failed at line 10\" />\n");
+                    writer.write("    </testcase>\n");
+                } else {
+                    writer.write(" />\n");
+                }
+            }
+            writer.write("  </testsuite>\n</testsuites>\n");
+        }
+        try {
+            CollectingTestListener listener = new CollectingTestListener();
+            GTestXmlResultParser resultParser =
+                    new GTestXmlResultParser(TEST_MODULE_NAME, listener);
+            resultParser.parseResult(contents, null);
+
+            assertEquals(numTests, listener.getNumTotalTests());
+            assertEquals(numTests / 100, listener.getNumAllFailedTests());
+            assertEquals(1500L, listener.getCurrentRunResults().getElapsedTime());
+            assertFalse(listener.getCurrentRunResults().isRunFailure());
+        } finally {
+            FileUtil.deleteFile(contents);
+        }
+    }
+
+    /** Tests that the results read before the xml is cut are reported with a run failure. */
+    @Test
+    public void testParseTruncatedFile() throws Exception {
+        File contents = FileUtil.createTempFile("unit_gtest_", ".xml");
+        FileUtil.writeToFile(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<testsuites tests=\"2\" time=\"0.004\" name=\"AllTests\">\n"
+                        + "  <testsuite name=\"InteropTest\">\n"
+                        + "    <testcase name=\"test_lookup_hit\" time=\"0.001\" "
+                        + "classname=\"InteropTest\" />\n"
+                        + "    <testcase name=\"test_look",
+                contents);
+        try {
+            CollectingTestListener listener = new CollectingTestListener();
+            GTestXmlResultParser resultParser =
+                    new GTestXmlResultParser(TEST_MODULE_NAME, listener);
+            resultParser.parseResult(contents, null);
+
+            assertEquals(1, listener.getNumTotalTests());
+            assertTrue(listener.getCurrentRunResults().isRunFailure());
+            assertEquals(
+                    "Failed to get an xml output from tests, it probably crashed",
+                    listener.getCurrentRunResults().getRunFailureMessage());
+        } finally {
+            FileUtil.deleteFile(contents);
+        }
+    }
 }
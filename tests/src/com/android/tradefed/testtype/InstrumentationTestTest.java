@@ -201,6 +201,69 @@ public class InstrumentationTestTest {
         inOrder.verify(mMockListener).testRunEnded(1, EMPTY_STRING_MAP);
     }
 
+    /** Test that the tests collected by a run are reused by a later run of the same apk. */
+    @Test
+    public void testRun_cacheTestCollection() throws Exception {
+        TestCollectionCache cache = new TestCollectionCache();
+        doReturn(cache).when(mInstrumentationTest).getTestCollectionCache();
+        doReturn("digest").when(mInstrumentationTest).getTestApkDigest();
+        doReturn("fingerprint").when(mMockTestDevice).getProperty("ro.build.fingerprint");
+        OptionSetter setter = new OptionSetter(mInstrumentationTest);
+        setter.setOptionValue("cache-test-collection", "true");
+        RunInstrumentationTestsAnswer runTests =
+                (runner, listener) -> {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                };
+        doAnswer(runTests)
+                .when(mMockTestDevice)
+                .runInstrumentationTests(
+                        any(IRemoteAndroidTestRunner.class), any(ITestInvocationListener.class));
+
+        mInstrumentationTest.run(mTestInfo, mMockListener);
+        mInstrumentationTest.run(mTestInfo, mMockListener);
+
+        // Tests are only collected by the first run.
+        verify(mMockTestDevice, times(3))
+                .runInstrumentationTests(
+                        any(IRemoteAndroidTestRunner.class), any(ITestLifeCycleReceiver.class));
+        verify(mMockListener, times(2)).testRunStarted(TEST_PACKAGE_VALUE, 2);
+        assertThat(mInstrumentationTest.getTestCollectionCacheKey()).contains("digest");
+    }
+
+    /** Test that the collection is not cached when the apk digest cannot be computed. */
+    @Test
+    public void testGetTestCollectionCacheKey_noDigest() throws Exception {
+        OptionSetter setter = new OptionSetter(mInstrumentationTest);
+        setter.setOptionValue("cache-test-collection", "true");
+        doReturn(null).when(mInstrumentationTest).getTestApkDigest();
+        doReturn("fingerprint").when(mMockTestDevice).getProperty("ro.build.fingerprint");
+
+        assertThat(mInstrumentationTest.getTestCollectionCacheKey()).isNull();
+    }
+
+    /** Test computing the digest of the apks installed on the device. */
+    @Test
+    public void testGetTestApkDigest() throws Exception {
+        doReturn("package:/data/app/a/base.apk\npackage:/data/app/a/split.apk\n")
+                .when(mMockTestDevice)
+                .executeShellCommand("pm path " + TEST_PACKAGE_VALUE);
+        doReturn(
+                        "0123456789abcdef0123456789abcdef  /data/app/a/base.apk\n"
+                                + "fedcba9876543210fedcba9876543210  /data/app/a/split.apk\n")
+                .when(mMockTestDevice)
+                .executeShellCommand("md5sum /data/app/a/base.apk /data/app/a/split.apk");
+
+        assertEquals(
+                "0123456789abcdef0123456789abcdef,fedcba9876543210fedcba9876543210",
+                mInstrumentationTest.getTestApkDigest());
+    }
+
     @Test
     public void testRun_bothAbi() throws DeviceNotAvailableException {
         mInstrumentationTest.setAbi(mock(IAbi.class));
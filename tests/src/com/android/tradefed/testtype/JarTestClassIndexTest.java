@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/** Unit tests for {@link JarTestClassIndex}. */
+@RunWith(JUnit4.class)
+public class JarTestClassIndexTest {
+
+    /** An abstract JUnit4 test, never a candidate itself. */
+    public abstract static class AbstractJUnit4Test {
+        @Test
+        public void testFoo() {}
+    }
+
+    /** A JUnit4 test inheriting its test methods. */
+    public static class InheritedJUnit4Test extends AbstractJUnit4Test {}
+
+    /** A JUnit4 test with a class annotation. */
+    @RunWith(JUnit4.class)
+    public static class AnnotatedJUnit4Test {}
+
+    /** A JUnit3 test, whose parent is not part of the jar. */
+    public static class JUnit3Test extends TestCase {}
+
+    /** A tradefed test. */
+    public static class RemoteTest implements IRemoteTest {}
+
+    /** A class that is not a test. */
+    public static class Helper extends ArrayList<String> {}
+
+    /** An interface that is not a test. */
+    public interface HelperInterface {}
+
+    private File mJar;
+    private JarTestClassIndex mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        mJar = FileUtil.createTempFile("index-test", ".jar");
+        mIndex = new JarTestClassIndex();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mJar);
+    }
+
+    /**
+     * Create a jar containing the given classes. Classes are stored under their simple name so they
+     * are not seen as inner classes, except {@link AbstractJUnit4Test} which is stored under its
+     * real name to be found as a parent.
+     */
+    private void createJar(Class<?>... classes) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(mJar))) {
+            for (Class<?> cls : classes) {
+                String entry =
+                        cls.equals(AbstractJUnit4Test.class)
+                                ? cls.getName().replace('.', '/')
+                                : "pkg/" + cls.getSimpleName();
+                out.putNextEntry(new ZipEntry(entry + ".class"));
+                out.write(getClassBytes(cls));
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("pkg/Broken.class"));
+            out.write(new byte[] {0x00, 0x01, 0x02});
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("pkg/resource.txt"));
+            out.write(new byte[] {0x00});
+            out.closeEntry();
+        }
+    }
+
+    private byte[] getClassBytes(Class<?> cls) throws IOException {
+        String resource = "/" + cls.getName().replace('.', '/') + ".class";
+        try (InputStream in = cls.getResourceAsStream(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(in, out);
+            return out.toByteArray();
+        }
+    }
+
+    /** Test that only the classes that can be tests are candidates. */
+    @Test
+    public void testGetCandidateClasses() throws IOException {
+        createJar(
+                AbstractJUnit4Test.class,
+                InheritedJUnit4Test.class,
+                AnnotatedJUnit4Test.class,
+                JUnit3Test.class,
+                RemoteTest.class,
+                Helper.class,
+                HelperInterface.class);
+
+        List<String> candidates = mIndex.getCandidateClasses(mJar);
+        assertEquals(
+                Arrays.asList(
+                        "pkg.InheritedJUnit4Test",
+                        "pkg.AnnotatedJUnit4Test",
+                        "pkg.JUnit3Test",
+                        "pkg.RemoteTest",
+                        "pkg.Broken"),
+                candidates);
+    }
+
+    /** Test that the index of a jar is reused for the same content. */
+    @Test
+    public void testGetCandidateClasses_cached() throws IOException {
+        createJar(AnnotatedJUnit4Test.class);
+
+        List<String> candidates = mIndex.getCandidateClasses(mJar);
+        assertSame(candidates, mIndex.getCandidateClasses(mJar));
+    }
+}
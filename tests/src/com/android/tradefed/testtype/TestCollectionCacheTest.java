@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link TestCollectionCache}. */
+@RunWith(JUnit4.class)
+public class TestCollectionCacheTest {
+
+    private static final TestDescription TEST1 = new TestDescription("Test", "test1");
+    private static final TestDescription TEST2 = new TestDescription("Test", "test2");
+
+    private TestCollectionCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new TestCollectionCache();
+    }
+
+    /** Test that cached collections are returned as copies. */
+    @Test
+    public void testGetPut() {
+        assertThat(mCache.get("key")).isNull();
+        mCache.put("key", Arrays.asList(TEST1, TEST2));
+
+        Collection<TestDescription> tests = mCache.get("key");
+        assertThat(tests).containsExactly(TEST1, TEST2).inOrder();
+        tests.clear();
+        assertThat(mCache.get("key")).hasSize(2);
+    }
+
+    /** Test that the least recently used collections are dropped first. */
+    @Test
+    public void testEviction() {
+        for (int i = 0; i < TestCollectionCache.MAX_ENTRIES; i++) {
+            mCache.put("key" + i, Arrays.asList(TEST1));
+        }
+        // Use the oldest entry so the second oldest one gets dropped instead.
+        mCache.get("key0");
+        mCache.put("new", Arrays.asList(TEST2));
+
+        assertThat(mCache.get("key0")).isNotNull();
+        assertThat(mCache.get("key1")).isNull();
+        assertThat(mCache.get("new")).isNotNull();
+    }
+
+    /** Test that runner calls are forwarded and the relevant ones recorded. */
+    @Test
+    public void testRecord() {
+        IRemoteAndroidTestRunner runner = mock(IRemoteAndroidTestRunner.class);
+        List<String> calls = new ArrayList<>();
+        IRemoteAndroidTestRunner recording =
+                TestCollectionCache.record(runner, calls, Collections.singleton("timeout_msec"));
+
+        recording.setClassName("com.Foo");
+        recording.addInstrumentationArg("notClass", "com.Bar");
+        recording.addInstrumentationArg("timeout_msec", "1000");
+        recording.setMaxTimeToOutputResponse(10, TimeUnit.SECONDS);
+
+        verify(runner).setClassName("com.Foo");
+        verify(runner).addInstrumentationArg("timeout_msec", "1000");
+        verify(runner).setMaxTimeToOutputResponse(10, TimeUnit.SECONDS);
+        assertThat(calls)
+                .containsExactly(
+                        "setClassName[com.Foo]", "addInstrumentationArg[notClass, com.Bar]")
+                .inOrder();
+    }
+
+    /** Test that arguments pointing to a file on the device are recorded as unknown. */
+    @Test
+    public void testRecord_testFile() {
+        IRemoteAndroidTestRunner runner = mock(IRemoteAndroidTestRunner.class);
+        List<String> calls = new ArrayList<>();
+        IRemoteAndroidTestRunner recording =
+                TestCollectionCache.record(runner, calls, Collections.emptySet());
+
+        recording.addInstrumentationArg("testFile", "/data/local/tmp/tests.txt");
+
+        assertThat(calls).containsExactly((String) null);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.FailureDescription;
+import com.android.tradefed.result.ILogSaverListener;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+
+/** Unit tests for {@link DeferredModuleListener}. */
+@RunWith(JUnit4.class)
+public class DeferredModuleListenerTest {
+
+    private static final TestDescription TEST_1 = new TestDescription("class", "test1");
+    private static final TestDescription TEST_2 = new TestDescription("class", "test2");
+
+    private IInvocationContext mModuleContext;
+
+    @Before
+    public void setUp() {
+        mModuleContext = new InvocationContext();
+        mModuleContext.addInvocationAttribute(ModuleDefinition.MODULE_ID, "module");
+    }
+
+    /** Test that the module is reported with all its attempts once replayed. */
+    @Test
+    public void testReplay() throws Exception {
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener listener = new DeferredModuleListener(main);
+        listener.testModuleStarted(mModuleContext);
+        runTests(listener, "run1", 0, true);
+        runTests(listener, "run2", 0, false);
+        listener.testModuleEnded();
+        assertFalse(main.hasTestRunResultsForName("run1"));
+
+        // The retry runs from another thread and starts over at attempt 0.
+        listener.startAttempts(1, false);
+        Thread retry =
+                new Thread(
+                        () -> {
+                            runTests(listener, "run1", 0, true);
+                            runTests(listener, "run1", 1, false);
+                        });
+        retry.start();
+        retry.join();
+
+        listener.replay();
+        assertEquals(3, main.getTestRunAttemptCount("run1"));
+        assertEquals(1, main.getTestRunAttemptCount("run2"));
+        assertTrue(main.getTestRunAtAttempt("run1", 0).hasFailedTests());
+        assertTrue(main.getTestRunAtAttempt("run1", 1).hasFailedTests());
+        assertFalse(main.getTestRunAtAttempt("run1", 2).hasFailedTests());
+        assertEquals(
+                "module",
+                main.getModuleContextForRunResult("run1")
+                        .getAttributes()
+                        .getUniqueMap()
+                        .get(ModuleDefinition.MODULE_ID));
+
+        // Replaying again does not report the module twice.
+        listener.replay();
+        assertEquals(3, main.getTestRunAttemptCount("run1"));
+    }
+
+    /** Test that nothing is reported if the module did not end. */
+    @Test
+    public void testReplay_notEnded() {
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener listener = new DeferredModuleListener(main);
+        listener.testModuleStarted(mModuleContext);
+        runTests(listener, "run1", 0, false);
+        listener.replay();
+        assertFalse(main.hasTestRunResultsForName("run1"));
+    }
+
+    /** Test that logs are only forwarded before the attempts running on another thread. */
+    @Test
+    public void testLogs() {
+        ILogSaverListener main = Mockito.mock(ILogSaverListener.class);
+        DeferredModuleListener listener = new DeferredModuleListener(main);
+        listener.testModuleStarted(mModuleContext);
+        listener.testLog("log", LogDataType.TEXT, new ByteArrayInputStreamSource(new byte[0]));
+        listener.startAttempts(1, false);
+        listener.testLog("retry", LogDataType.TEXT, new ByteArrayInputStreamSource(new byte[0]));
+        listener.testModuleEnded();
+        listener.replay();
+
+        verify(main, times(1)).testLog(Mockito.eq("log"), Mockito.any(), Mockito.any());
+        verify(main, times(0)).testLog(Mockito.eq("retry"), Mockito.any(), Mockito.any());
+        verify(main, times(1)).testModuleEnded();
+    }
+
+    private static void runTests(
+            DeferredModuleListener listener, String runName, int attempt, boolean fail) {
+        listener.testRunStarted(runName, 2, attempt, 0L);
+        listener.testStarted(TEST_1, 0L);
+        if (fail) {
+            listener.testFailed(TEST_1, FailureDescription.create("failed"));
+        }
+        listener.testEnded(TEST_1, 0L, new HashMap<String, Metric>());
+        listener.testStarted(TEST_2, 0L);
+        listener.testEnded(TEST_2, 0L, new HashMap<String, Metric>());
+        listener.testRunEnded(0L, new HashMap<String, Metric>());
+    }
+}
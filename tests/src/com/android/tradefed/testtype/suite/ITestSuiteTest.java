@@ -1814,6 +1814,84 @@ public class ITestSuiteTest {
         EasyMock.verify(mockBuildInfo);
     }
 
+    /** Test that the artifacts of each module are staged right before it runs when lazy. */
+    @Test
+    public void testStageTestArtifacts_lazy() throws Exception {
+        String remoteFilePath = "gs://module1/tests.zip";
+        List<String> stagedFilters = new ArrayList<>();
+        DynamicRemoteFileResolver dynamicResolver =
+                new DynamicRemoteFileResolver() {
+                    @Override
+                    public void resolvePartialDownloadZip(
+                            File destDir,
+                            String remoteFilePath,
+                            List<String> includeFilters,
+                            List<String> excludeFilters)
+                            throws BuildRetrievalError {
+                        assertEquals(new File("tests_dir"), destDir);
+                        stagedFilters.addAll(includeFilters);
+                    }
+                };
+        mTestSuite.setDynamicResolver(dynamicResolver);
+        OptionSetter setter = new OptionSetter(mTestSuite);
+        setter.setOptionValue("lazy-artifact-staging", "true");
+        IDeviceBuildInfo mockBuildInfo = EasyMock.createMock(IDeviceBuildInfo.class);
+        EasyMock.expect(mockBuildInfo.getTestsDir()).andStubReturn(new File("tests_dir"));
+        EasyMock.expect(mockBuildInfo.getRemoteFiles())
+                .andStubReturn(new HashSet<File>(Arrays.asList(new File(remoteFilePath))));
+        mTestSuite.setBuild(mockBuildInfo);
+
+        List<ISystemStatusChecker> checkers = new ArrayList<ISystemStatusChecker>();
+        mTestSuite.setSystemStatusChecker(checkers);
+
+        EasyMock.replay(mockBuildInfo);
+        mTestSuite.run(mTestInfo, mMockListener);
+        EasyMock.verify(mockBuildInfo);
+        assertEquals(Arrays.asList("/test/"), stagedFilters);
+    }
+
+    /** Test that a module whose artifacts fail to stage is reported as not executed. */
+    @Test
+    public void testStageTestArtifacts_lazyFailure() throws Exception {
+        String remoteFilePath = "gs://module1/tests.zip";
+        DynamicRemoteFileResolver dynamicResolver =
+                new DynamicRemoteFileResolver() {
+                    @Override
+                    public void resolvePartialDownloadZip(
+                            File destDir,
+                            String remoteFilePath,
+                            List<String> includeFilters,
+                            List<String> excludeFilters)
+                            throws BuildRetrievalError {
+                        throw new BuildRetrievalError("download failed");
+                    }
+                };
+        mTestSuite.setDynamicResolver(dynamicResolver);
+        OptionSetter setter = new OptionSetter(mTestSuite);
+        setter.setOptionValue("lazy-artifact-staging", "true");
+        IDeviceBuildInfo mockBuildInfo = EasyMock.createMock(IDeviceBuildInfo.class);
+        EasyMock.expect(mockBuildInfo.getTestsDir()).andStubReturn(new File("tests_dir"));
+        EasyMock.expect(mockBuildInfo.getRemoteFiles())
+                .andStubReturn(new HashSet<File>(Arrays.asList(new File(remoteFilePath))));
+        mTestSuite.setBuild(mockBuildInfo);
+        mTestSuite.setSystemStatusChecker(new ArrayList<ISystemStatusChecker>());
+
+        Capture<FailureDescription> failure = new Capture<>();
+        mMockListener.testModuleStarted(EasyMock.anyObject());
+        mMockListener.testRunStarted(
+                EasyMock.eq(TEST_CONFIG_NAME), EasyMock.eq(0), EasyMock.eq(0), EasyMock.anyLong());
+        mMockListener.testRunFailed(EasyMock.capture(failure));
+        mMockListener.testRunEnded(
+                EasyMock.anyLong(), EasyMock.<HashMap<String, Metric>>anyObject());
+        mMockListener.testModuleEnded();
+
+        EasyMock.replay(mockBuildInfo, mMockListener);
+        mTestSuite.run(mTestInfo, mMockListener);
+        EasyMock.verify(mockBuildInfo, mMockListener);
+        assertEquals(FailureStatus.NOT_EXECUTED, failure.getValue().getFailureStatus());
+        assertTrue(failure.getValue().getErrorMessage().contains("download failed"));
+    }
+
     /** Test for {@link ITestSuite#reportNotExecuted(ITestInvocationListener, String)}. */
     @Test
     public void testReportNotExecuted() {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link ModuleArtifactStager}. */
+@RunWith(JUnit4.class)
+public class ModuleArtifactStagerTest {
+
+    private final List<String> mStaged = Collections.synchronizedList(new ArrayList<>());
+    private ModuleArtifactStager mStager;
+
+    @After
+    public void tearDown() {
+        if (mStager != null) {
+            mStager.close();
+        }
+    }
+
+    /** Test that only the next modules are staged ahead of the running one. */
+    @Test
+    public void testWaitForModule() throws Exception {
+        CountDownLatch prefetched = new CountDownLatch(2);
+        mStager =
+                new ModuleArtifactStager(
+                        Arrays.asList("module1", "module2", "module3", "module4"),
+                        1,
+                        moduleName -> {
+                            mStaged.add(moduleName);
+                            prefetched.countDown();
+                        });
+        mStager.waitForModule("module1");
+        assertTrue(mStaged.contains("module1"));
+        assertTrue(prefetched.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("module1", "module2"), mStaged);
+
+        mStager.waitForModule("module2");
+        mStager.waitForModule("module3");
+        mStager.waitForModule("module4");
+        assertEquals(Arrays.asList("module1", "module2", "module3", "module4"), mStaged);
+    }
+
+    /** Test that a module staged more than once in the run, or unknown, is handled. */
+    @Test
+    public void testWaitForModule_duplicateAndUnknown() {
+        mStager =
+                new ModuleArtifactStager(
+                        Arrays.asList("module1", "module1", "module2"), 0, mStaged::add);
+        mStager.waitForModule("module1");
+        mStager.waitForModule("module1");
+        mStager.waitForModule("other");
+        mStager.waitForModule("module2");
+        assertEquals(Arrays.asList("module1", "other", "module2"), mStaged);
+    }
+
+    /** Test that a staging failure is reported to the module waiting for it. */
+    @Test
+    public void testWaitForModule_failure() {
+        mStager =
+                new ModuleArtifactStager(
+                        Arrays.asList("module1"),
+                        1,
+                        moduleName -> {
+                            throw new IllegalStateException("download failed");
+                        });
+        try {
+            mStager.waitForModule("module1");
+            fail("Should have thrown an exception.");
+        } catch (IllegalStateException expected) {
+            assertEquals("download failed", expected.getMessage());
+        }
+    }
+
+    /** Test that the interruption of the module waiting for its artifacts is preserved. */
+    @Test
+    public void testWaitForModule_interrupted() {
+        CountDownLatch release = new CountDownLatch(1);
+        mStager =
+                new ModuleArtifactStager(
+                        Arrays.asList("module1"),
+                        0,
+                        moduleName -> {
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                // Stopped by close()
+                            }
+                        });
+        Thread.currentThread().interrupt();
+        try {
+            mStager.waitForModule("module1");
+            fail("Should have thrown an exception.");
+        } catch (RuntimeException expected) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            release.countDown();
+        }
+    }
+}
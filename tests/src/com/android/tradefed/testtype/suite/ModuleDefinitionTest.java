@@ -18,6 +18,7 @@ package com.android.tradefed.testtype.suite;
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -41,6 +42,8 @@ import com.android.tradefed.device.ITestDevice.RecoveryMode;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.TestInformation;
 import com.android.tradefed.invoker.TestInvocation;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.invoker.shard.token.TokenProperty;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
@@ -439,6 +442,41 @@ public class ModuleDefinitionTest {
         verifyMocks();
     }
 
+    /** Test that the apk install metrics logged by the preparers are reported for the module. */
+    @Test
+    public void testRun_preparationMetrics() throws Exception {
+        mModule.setBuild(mMockBuildInfo);
+        mModule.setDevice(mMockDevice);
+        EasyMock.expect(mMockPrep.isDisabled()).andReturn(false).times(2);
+        mMockPrep.setUp(EasyMock.eq(mModuleInfo));
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.APK_INSTALL_BYTES, 100L);
+                            return null;
+                        });
+        mMockTest.setBuild(EasyMock.eq(mMockBuildInfo));
+        mMockTest.setDevice(EasyMock.eq(mMockDevice));
+        mMockTest.setConfiguration(EasyMock.anyObject());
+        EasyMock.expectLastCall().times(2);
+        mMockTest.run(EasyMock.eq(mModuleInfo), EasyMock.anyObject());
+        EasyMock.expect(mMockPrep.isTearDownDisabled()).andStubReturn(false);
+        mMockPrep.tearDown(EasyMock.eq(mModuleInfo), EasyMock.isNull());
+        mMockListener.testRunStarted(
+                EasyMock.eq(MODULE_NAME), EasyMock.eq(0), EasyMock.eq(0), EasyMock.anyLong());
+        Capture<HashMap<String, Metric>> runMetrics = new Capture<>();
+        mMockListener.testRunEnded(EasyMock.anyLong(), EasyMock.capture(runMetrics));
+        replayMocks();
+        mModule.run(mModuleInfo, mMockListener);
+        verifyMocks();
+        String prefix = ModuleDefinition.PREPARATION_METRIC_PREFIX;
+        Metric installBytes = runMetrics.getValue().get(prefix + "APK_INSTALL_BYTES");
+        assertEquals(100L, installBytes.getMeasurements().getSingleInt());
+        // Metrics not logged during the preparation are not reported
+        assertFalse(runMetrics.getValue().containsKey(prefix + "APK_INSTALL_TIME"));
+    }
+
     @Test
     public void testDynamicDownloadThrows_ReportsRunFailed() throws Exception {
         String expectedMessage = "Ooops!";
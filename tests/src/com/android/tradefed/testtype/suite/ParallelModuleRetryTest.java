@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype.suite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.ConfigurationDef;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.FreeDeviceState;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceSelection;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.retry.BaseRetryDecision;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.ITestFilterReceiver;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Unit tests for {@link ParallelModuleRetry}. */
+@RunWith(JUnit4.class)
+public class ParallelModuleRetryTest {
+
+    private static final String SERIAL = "serial";
+    private static final String IDLE_SERIAL = "idle-serial";
+    private static final String PRODUCT = "product";
+    private static final String BUILD_ID = "1234";
+    private static final String RUN_NAME = "run";
+    private static final TestDescription TEST_1 = new TestDescription("class", "test1");
+
+    private IConfiguration mMainConfiguration;
+    private ITestDevice mMockDevice;
+    private ITestDevice mMockIdleDevice;
+    private IDeviceManager mMockDeviceManager;
+    private IBuildInfo mBuild;
+    private TestInformation mTestInfo;
+    private ParallelModuleRetry mRetry;
+
+    /** A test reporting {@link #TEST_1} as passed, on the device it runs on. */
+    private static class FakeTest implements IRemoteTest, ITestFilterReceiver {
+        private final Set<String> mIncludeFilters = new HashSet<>();
+        private boolean mThrow = false;
+        private ITestDevice mRanOn = null;
+
+        @Override
+        public void run(TestInformation testInfo, ITestInvocationListener listener)
+                throws DeviceNotAvailableException {
+            mRanOn = testInfo.getDevice();
+            if (mThrow) {
+                throw new DeviceNotAvailableException("device lost", IDLE_SERIAL);
+            }
+            listener.testRunStarted(RUN_NAME, 1);
+            listener.testStarted(TEST_1);
+            listener.testEnded(TEST_1, new HashMap<String, Metric>());
+            listener.testRunEnded(0, new HashMap<String, Metric>());
+        }
+
+        @Override
+        public void addIncludeFilter(String filter) {
+            mIncludeFilters.add(filter);
+        }
+
+        @Override
+        public void addAllIncludeFilters(Set<String> filters) {
+            mIncludeFilters.addAll(filters);
+        }
+
+        @Override
+        public void addExcludeFilter(String filter) {}
+
+        @Override
+        public void addAllExcludeFilters(Set<String> filters) {}
+
+        @Override
+        public Set<String> getIncludeFilters() {
+            return mIncludeFilters;
+        }
+
+        @Override
+        public Set<String> getExcludeFilters() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public void clearIncludeFilters() {
+            mIncludeFilters.clear();
+        }
+
+        @Override
+        public void clearExcludeFilters() {}
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BaseRetryDecision decision = new BaseRetryDecision();
+        OptionSetter setter = new OptionSetter(decision);
+        setter.setOptionValue("auto-retry", "true");
+        setter.setOptionValue("max-testcase-run-count", "2");
+        setter.setOptionValue("retry-strategy", "RETRY_ANY_FAILURE");
+        mMainConfiguration = new Configuration("main", "main");
+        mMainConfiguration.setRetryDecision(decision);
+
+        mMockDevice = Mockito.mock(ITestDevice.class);
+        when(mMockDevice.getSerialNumber()).thenReturn(SERIAL);
+        when(mMockDevice.getProductType()).thenReturn(PRODUCT);
+        when(mMockDevice.getBuildId()).thenReturn(BUILD_ID);
+        mMockIdleDevice = Mockito.mock(ITestDevice.class);
+        when(mMockIdleDevice.getSerialNumber()).thenReturn(IDLE_SERIAL);
+        mMockDeviceManager = Mockito.mock(IDeviceManager.class);
+        when(mMockDeviceManager.allocateDevice(Mockito.any(IDeviceSelection.class)))
+                .thenReturn(mMockIdleDevice);
+
+        mBuild = new BuildInfo();
+        IInvocationContext context = new InvocationContext();
+        context.addAllocatedDevice(ConfigurationDef.DEFAULT_DEVICE_NAME, mMockDevice);
+        context.addDeviceBuildInfo(ConfigurationDef.DEFAULT_DEVICE_NAME, mBuild);
+        mTestInfo = TestInformation.newBuilder().setInvocationContext(context).build();
+
+        mRetry =
+                new ParallelModuleRetry(
+                        mMainConfiguration,
+                        new ArrayList<>(),
+                        ConfigurationDef.DEFAULT_DEVICE_NAME,
+                        mMockDevice,
+                        mBuild,
+                        1) {
+                    @Override
+                    IDeviceManager getDeviceManager() {
+                        return mMockDeviceManager;
+                    }
+                };
+    }
+
+    /** Returns a {@link ParallelModuleRetry} finding the given idle device, or none if null. */
+    private ParallelModuleRetry createRetry(String idleSerial) {
+        return new ParallelModuleRetry(
+                mMainConfiguration,
+                new ArrayList<>(),
+                ConfigurationDef.DEFAULT_DEVICE_NAME,
+                mMockDevice,
+                mBuild,
+                1) {
+            @Override
+            IDeviceManager getDeviceManager() {
+                return mMockDeviceManager;
+            }
+
+            @Override
+            String findIdleDevice() {
+                return idleSerial;
+            }
+        };
+    }
+
+    /** Test that only an available device running the same build is picked for the retry. */
+    @Test
+    public void testFindIdleDevice() {
+        doReturn(
+                        Arrays.asList(
+                                createDescriptor(SERIAL, DeviceAllocationState.Available, BUILD_ID),
+                                createDescriptor(
+                                        "allocated", DeviceAllocationState.Allocated, BUILD_ID),
+                                createDescriptor(
+                                        "other-build", DeviceAllocationState.Available, "5678"),
+                                createDescriptor(
+                                        IDLE_SERIAL, DeviceAllocationState.Available, BUILD_ID)))
+                .when(mMockDeviceManager)
+                .listAllDevices();
+        assertEquals(IDLE_SERIAL, mRetry.findIdleDevice());
+        assertTrue(mRetry.canDispatch());
+    }
+
+    /** Test that modules are not deferred when no device is idle. */
+    @Test
+    public void testCanDispatch_noIdleDevice() {
+        doReturn(
+                        Arrays.asList(
+                                createDescriptor(SERIAL, DeviceAllocationState.Available, BUILD_ID),
+                                createDescriptor(
+                                        "allocated", DeviceAllocationState.Allocated, BUILD_ID)))
+                .when(mMockDeviceManager)
+                .listAllDevices();
+        assertNull(mRetry.findIdleDevice());
+        assertFalse(mRetry.canDispatch());
+    }
+
+    /**
+     * Test that the retry runs on the idle device, which is released once done, and that the
+     * module is reported with all its attempts once completed.
+     */
+    @Test
+    public void testDispatch_idleDevice() throws Exception {
+        mRetry = createRetry(IDLE_SERIAL);
+        FakeTest test = new FakeTest();
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener results = createFailedFirstAttempt(main);
+
+        mRetry.dispatch(createModule(), createRetryConfig(test), results, mTestInfo);
+        // Results are held until the retry completes.
+        assertFalse(main.hasTestRunResultsForName(RUN_NAME));
+
+        mRetry.reportCompleted(true);
+        assertSame(mMockIdleDevice, test.mRanOn);
+        verify(mMockDeviceManager).freeDevice(mMockIdleDevice, FreeDeviceState.AVAILABLE);
+        assertEquals(2, main.getTestRunAttemptCount(RUN_NAME));
+        assertTrue(main.getTestRunAtAttempt(RUN_NAME, 0).hasFailedTests());
+        assertFalse(main.getTestRunAtAttempt(RUN_NAME, 1).hasFailedTests());
+        assertTrue(test.getIncludeFilters().contains(TEST_1.toString()));
+    }
+
+    /** Test that a retry device lost during the retry is released as unavailable. */
+    @Test
+    public void testDispatch_idleDeviceNotAvailable() throws Exception {
+        mRetry = createRetry(IDLE_SERIAL);
+        FakeTest test = new FakeTest();
+        test.mThrow = true;
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener results = createFailedFirstAttempt(main);
+
+        mRetry.dispatch(createModule(), createRetryConfig(test), results, mTestInfo);
+        mRetry.reportCompleted(true);
+
+        verify(mMockDeviceManager).freeDevice(mMockIdleDevice, FreeDeviceState.UNAVAILABLE);
+        assertTrue(main.hasTestRunResultsForName(RUN_NAME));
+    }
+
+    /** Test that the retry falls back to the invocation device when no device is idle. */
+    @Test
+    public void testDispatch_noIdleDevice() throws Exception {
+        mRetry = createRetry(null);
+        FakeTest test = new FakeTest();
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener results = createFailedFirstAttempt(main);
+
+        mRetry.dispatch(createModule(), createRetryConfig(test), results, mTestInfo);
+
+        // The retry ran right away and its results are already reported.
+        assertSame(mMockDevice, test.mRanOn);
+        assertEquals(2, main.getTestRunAttemptCount(RUN_NAME));
+        assertFalse(main.getTestRunAtAttempt(RUN_NAME, 1).hasFailedTests());
+        verify(mMockDeviceManager, never())
+                .allocateDevice(Mockito.any(IDeviceSelection.class));
+        verify(mMockDeviceManager, never())
+                .freeDevice(Mockito.any(ITestDevice.class), Mockito.any(FreeDeviceState.class));
+    }
+
+    /** Test that a module without failures is reported right away without any retry. */
+    @Test
+    public void testDispatch_noFailure() throws Exception {
+        mRetry = createRetry(IDLE_SERIAL);
+        FakeTest test = new FakeTest();
+        CollectingTestListener main = new CollectingTestListener();
+        DeferredModuleListener results = new DeferredModuleListener(main);
+        results.testModuleStarted(createModuleContext());
+        results.testRunStarted(RUN_NAME, 1, 0, System.currentTimeMillis());
+        results.testStarted(TEST_1);
+        results.testEnded(TEST_1, new HashMap<String, Metric>());
+        results.testRunEnded(0, new HashMap<String, Metric>());
+        results.testModuleEnded();
+        ModuleDefinition module = Mockito.mock(ModuleDefinition.class);
+        when(module.getId()).thenReturn("module");
+        when(module.getTestRunResultsForAttempt(0))
+                .thenReturn(Arrays.asList(Arrays.asList(createRunResult(false))));
+
+        mRetry.dispatch(module, createRetryConfig(test), results, mTestInfo);
+
+        assertNull(test.mRanOn);
+        assertEquals(1, main.getTestRunAttemptCount(RUN_NAME));
+        verify(mMockDeviceManager, never())
+                .allocateDevice(Mockito.any(IDeviceSelection.class));
+    }
+
+    private DeviceDescriptor createDescriptor(
+            String serial, DeviceAllocationState state, String buildId) {
+        return new DeviceDescriptor(serial, false, state, PRODUCT, "variant", "30", buildId, "50");
+    }
+
+    private IInvocationContext createModuleContext() {
+        IInvocationContext moduleContext = new InvocationContext();
+        moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_ID, "module");
+        return moduleContext;
+    }
+
+    /** Returns a module whose first attempt failed {@link #TEST_1}. */
+    private ModuleDefinition createModule() {
+        ModuleDefinition module = Mockito.mock(ModuleDefinition.class);
+        when(module.getId()).thenReturn("module");
+        when(module.getTestRunResultsForAttempt(0))
+                .thenReturn(Arrays.asList(Arrays.asList(createRunResult(true))));
+        return module;
+    }
+
+    /** Returns the deferred results of a module whose first attempt failed {@link #TEST_1}. */
+    private DeferredModuleListener createFailedFirstAttempt(ITestInvocationListener main) {
+        DeferredModuleListener results = new DeferredModuleListener(main);
+        results.testModuleStarted(createModuleContext());
+        results.testRunStarted(RUN_NAME, 1, 0, System.currentTimeMillis());
+        results.testStarted(TEST_1);
+        results.testFailed(TEST_1, "failed");
+        results.testEnded(TEST_1, new HashMap<String, Metric>());
+        results.testRunEnded(0, new HashMap<String, Metric>());
+        results.testModuleEnded();
+        return results;
+    }
+
+    private IConfiguration createRetryConfig(IRemoteTest test) {
+        IConfiguration config = new Configuration("module", "module");
+        config.setTests(Collections.singletonList(test));
+        return config;
+    }
+
+    private TestRunResult createRunResult(boolean failed) {
+        TestRunResult result = new TestRunResult();
+        result.testRunStarted(RUN_NAME, 1);
+        result.testStarted(TEST_1);
+        if (failed) {
+            result.testFailed(TEST_1, "failed");
+        }
+        result.testEnded(TEST_1, new HashMap<String, Metric>());
+        result.testRunEnded(0, new HashMap<String, Metric>());
+        return result;
+    }
+}
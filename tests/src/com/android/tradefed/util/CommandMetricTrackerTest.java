@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.CommandMetricTracker.CommandMetric;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+/** Unit tests for {@link CommandMetricTracker}. */
+@RunWith(JUnit4.class)
+public class CommandMetricTrackerTest {
+
+    /** Test that commands are aggregated per binary. */
+    @Test
+    public void testRecord() throws Exception {
+        ThreadGroup testGroup = new ThreadGroup("unit-test-group-" + UUID.randomUUID());
+        Map<String, CommandMetric> metrics =
+                runInGroup(
+                        testGroup,
+                        () -> {
+                            CommandMetricTracker.record(
+                                    Arrays.asList("/path/to/adb", "devices"),
+                                    CommandStatus.SUCCESS,
+                                    10L);
+                            CommandMetricTracker.record(
+                                    Arrays.asList("adb", "shell"), CommandStatus.FAILED, 30L);
+                            CommandMetricTracker.record(
+                                    Arrays.asList("fastboot", "devices"),
+                                    CommandStatus.TIMED_OUT,
+                                    100L);
+                        });
+        assertEquals(2, metrics.size());
+        CommandMetric adb = metrics.get("adb");
+        assertEquals(2, adb.getCount());
+        assertEquals(1, adb.getFailedCount());
+        assertEquals(0, adb.getTimedOutCount());
+        assertEquals(40, adb.getTotalTime());
+        assertEquals(30, adb.getMaxTime());
+        CommandMetric fastboot = metrics.get("fastboot");
+        assertEquals(1, fastboot.getCount());
+        assertEquals(1, fastboot.getFailedCount());
+        assertEquals(1, fastboot.getTimedOutCount());
+    }
+
+    /** Test that commands are tracked separately for each invocation. */
+    @Test
+    public void testRecord_perGroup() throws Exception {
+        ThreadGroup testGroup = new ThreadGroup("unit-test-group-" + UUID.randomUUID());
+        ThreadGroup otherGroup = new ThreadGroup("unit-test-group-" + UUID.randomUUID());
+        runInGroup(
+                testGroup,
+                () ->
+                        CommandMetricTracker.record(
+                                Arrays.asList("adb"), CommandStatus.SUCCESS, 10L));
+        Map<String, CommandMetric> metrics = runInGroup(otherGroup, () -> {});
+        assertTrue(metrics.isEmpty());
+        // Clearing the tracking of the group drops its metrics.
+        metrics = runInGroup(testGroup, () -> CommandMetricTracker.clearTracking());
+        assertTrue(metrics.isEmpty());
+    }
+
+    /** Test that commands run by {@link RunUtil} are recorded. */
+    @Test
+    public void testRunUtil() throws Exception {
+        ThreadGroup testGroup = new ThreadGroup("unit-test-group-" + UUID.randomUUID());
+        Map<String, CommandMetric> metrics =
+                runInGroup(
+                        testGroup,
+                        () -> {
+                            RunUtil runUtil = new RunUtil();
+                            runUtil.runTimedCmd(5000L, "/bin/bash", "-c", "exit 0");
+                            runUtil.runTimedCmd(5000L, "/bin/bash", "-c", "exit 1");
+                        });
+        CommandMetric bash = metrics.get("bash");
+        assertEquals(2, bash.getCount());
+        assertEquals(1, bash.getFailedCount());
+    }
+
+    /** Runs the action in the thread group and returns the metrics of the group after it. */
+    private Map<String, CommandMetric> runInGroup(ThreadGroup testGroup, Runnable action)
+            throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, CommandMetric>[] result = new Map[1];
+        Thread testThread =
+                new Thread(
+                        testGroup,
+                        () -> {
+                            action.run();
+                            result[0] = CommandMetricTracker.getMetrics();
+                        });
+        testThread.setName("CommandMetricTrackerTest-test-thread");
+        testThread.setDaemon(true);
+        testThread.start();
+        testThread.join(10000);
+        return result[0];
+    }
+}
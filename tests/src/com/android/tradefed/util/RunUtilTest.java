@@ -18,6 +18,8 @@ package com.android.tradefed.util;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.eq;
@@ -39,13 +41,17 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** Unit tests for {@link RunUtil} */
 @RunWith(JUnit4.class)
@@ -498,6 +504,122 @@ public class RunUtilTest {
         assertEquals("", result.getStderr());
     }
 
+    /** Test that the workers are reused by the next commands, in the ThreadGroup of the caller. */
+    @Test
+    public void testRunTimedCmd_reusesWorkers() throws Throwable {
+        ThreadGroup group = new ThreadGroup("RunUtilTest");
+        runInGroup(
+                group,
+                () -> {
+                    for (int i = 0; i < 10; i++) {
+                        CommandResult result =
+                                mRunUtil.runTimedCmd(VERY_LONG_TIMEOUT_MS, "echo", "hello");
+                        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+                        assertEquals("hello\n", result.getStdout());
+                    }
+                    ThreadPoolExecutor workers = RunUtil.getWorkers();
+                    assertTrue(workers.getCompletedTaskCount() > workers.getLargestPoolSize());
+                    Thread[] threads = new Thread[group.activeCount() + 1];
+                    int threadCount = group.enumerate(threads);
+                    int workerCount = 0;
+                    for (int i = 0; i < threadCount; i++) {
+                        if (threads[i].getName().startsWith("RunUtil-worker-")) {
+                            workerCount++;
+                        }
+                    }
+                    assertTrue(workerCount > 0);
+
+                    RunUtil.shutdownWorkers();
+                    assertTrue(workers.isTerminated());
+                    assertNotSame(workers, RunUtil.getWorkers());
+                    RunUtil.shutdownWorkers();
+                });
+    }
+
+    /** Test that a command cancelled while running completes without waiting for its process. */
+    @Test
+    public void testCancel_running() throws Exception {
+        RunnableResult runnable = mRunUtil.createRunnableResult(null, null, "sleep", "10");
+        CompletableFuture<Boolean> completion = runnable.start();
+        runnable.cancel();
+        assertFalse(completion.get(VERY_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(runnable.getResult().getExitCode() != 0);
+    }
+
+    /** Test that a command cancelled before running does not start its process. */
+    @Test
+    public void testCancel_beforeRun() throws Exception {
+        RunnableResult runnable =
+                Mockito.spy(mRunUtil.createRunnableResult(null, null, "sleep", "10"));
+        runnable.cancel();
+        assertFalse(runnable.run());
+        Mockito.verify(runnable, Mockito.never()).startProcess();
+    }
+
+    /** Test that an interrupt allowed while waiting for a command stops the wait. */
+    @Test
+    public void testRunTimedCmd_interruptAllowedWhileWaiting() throws Exception {
+        CommandInterrupter interrupter = new CommandInterrupter();
+        RunUtil runUtil = new RunUtil(interrupter);
+        Thread caller = Thread.currentThread();
+        interrupter.blockInterrupt();
+        interrupter.interrupt(caller, "interrupted");
+        interrupter.allowInterruptAsync(caller, SHORT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        try {
+            runUtil.runTimedCmd(0L, "sleep", "10");
+            fail("RunInterruptedException was expected, but not thrown.");
+        } catch (RunInterruptedException e) {
+            assertEquals("interrupted", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < VERY_LONG_TIMEOUT_MS);
+    }
+
+    /** Test that the output buffers are reused, and that the large ones are not kept. */
+    @Test
+    public void testBufferPool() throws IOException {
+        ByteArrayOutputStream buffer = RunUtil.acquireBuffer();
+        buffer.write("output".getBytes());
+        RunUtil.releaseBuffer(buffer);
+        ByteArrayOutputStream reused = RunUtil.acquireBuffer();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.size());
+
+        reused.write(new byte[64 * 1024 + 1]);
+        RunUtil.releaseBuffer(reused);
+        assertNotSame(reused, RunUtil.acquireBuffer());
+    }
+
+    /** Test that a command reusing the buffer of a previous one only gets its own output. */
+    @Test
+    public void testRunTimedCmd_reusedBuffer() {
+        CommandResult first = mRunUtil.runTimedCmd(VERY_LONG_TIMEOUT_MS, "echo", "first");
+        assertEquals("first\n", first.getStdout());
+        CommandResult second = mRunUtil.runTimedCmd(VERY_LONG_TIMEOUT_MS, "echo", "second");
+        assertEquals("second\n", second.getStdout());
+        assertEquals("", second.getStderr());
+    }
+
+    /** Runs the test code in a thread of the given group, and rethrows its failures. */
+    private static void runInGroup(ThreadGroup group, Runnable runnable) throws Throwable {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread =
+                new Thread(
+                        group,
+                        () -> {
+                            try {
+                                runnable.run();
+                            } catch (Throwable t) {
+                                failure.set(t);
+                            }
+                        });
+        thread.start();
+        thread.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
     /**
      * Implementation of {@link Process} to simulate a success of a command that echos to both
      * stdout and stderr without actually calling the underlying system.
@@ -17,6 +17,9 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Unit tests for {@link SimpleStats}
  */
@@ -103,5 +106,53 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
-}
 
+    /**
+     * Make sure that the stats are right when values are added out of order, after the data was
+     * already sorted for the median.
+     */
+    public void testStats_addAfterMedian() {
+        mStats.addAll(new double[] {5, 1, 3});
+        assertEquals(3, mStats.median(), 0.1);
+        mStats.add(0);
+        mStats.addAll(new double[] {4, 2});
+        assertEquals(6, mStats.size());
+        assertEquals(0, mStats.min(), 0.1);
+        assertEquals(5, mStats.max(), 0.1);
+        assertEquals(15, mStats.sum(), 0.1);
+        assertEquals(2.5, mStats.median(), 0.1);
+        assertEquals(2.916667, mStats.variance(), 0.000001);
+        assertEquals(6, mStats.getData().size());
+    }
+
+    /** Make sure that min and max order NaN values like a sort does, NaN being the largest. */
+    public void testStats_NaN() {
+        mStats.addAll(new double[] {2, Double.NaN, 1});
+        assertEquals(1, mStats.min(), 0.1);
+        assertTrue(mStats.max().isNaN());
+        assertEquals(2, mStats.median(), 0.1);
+
+        SimpleStats allNaN = new SimpleStats();
+        allNaN.addAll(new double[] {Double.NaN, Double.NaN});
+        assertTrue(allNaN.min().isNaN());
+        assertTrue(allNaN.max().isNaN());
+    }
+
+    /** Make sure that -0.0 is smaller than 0.0, like in a sort. */
+    public void testStats_negativeZero() {
+        mStats.addAll(new double[] {0.0, -0.0});
+        assertEquals(Double.valueOf(-0.0), mStats.min());
+        assertEquals(Double.valueOf(0.0), mStats.max());
+    }
+
+    /** Make sure that the returned dataset is a copy, which does not change the stats. */
+    public void testGetData_copy() {
+        mStats.addAll(new double[] {3, 1, 2});
+        List<Double> data = mStats.getData();
+        assertEquals(Arrays.asList(3.0, 1.0, 2.0), data);
+        data.clear();
+        assertEquals(3, mStats.size());
+        assertEquals(2, mStats.median(), 0.1);
+        assertEquals(3, mStats.getData().size());
+    }
+}
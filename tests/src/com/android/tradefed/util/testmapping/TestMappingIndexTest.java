@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.testmapping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.ZipUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Unit tests for {@link TestMappingIndex}. */
+@RunWith(JUnit4.class)
+public class TestMappingIndexTest {
+
+    private static final String TEST_DATA_DIR = "testdata";
+    private static final String DISABLED_PRESUBMIT_TESTS = "disabled-presubmit-tests";
+
+    private File mTempDir;
+    private File mSrcDir;
+    private File mSubDir;
+    private File mZipFile;
+
+    @Before
+    public void setUp() throws Exception {
+        TestMappingIndex.clearCache();
+        mTempDir = FileUtil.createTempDir("test_mapping_index");
+        mSrcDir = FileUtil.createTempDir("src", mTempDir);
+        saveResource("test_mapping_1", mSrcDir, TestMapping.TEST_MAPPING);
+        mSubDir = FileUtil.createTempDir("sub_dir", mSrcDir);
+        saveResource("test_mapping_2", mSubDir, TestMapping.TEST_MAPPING);
+        saveResource(DISABLED_PRESUBMIT_TESTS, mTempDir, DISABLED_PRESUBMIT_TESTS);
+        mZipFile = new File(mTempDir, "test_mappings.zip");
+        ZipUtil.createZip(
+                Arrays.asList(mSrcDir, new File(mTempDir, DISABLED_PRESUBMIT_TESTS)), mZipFile);
+    }
+
+    @After
+    public void tearDown() {
+        TestMappingIndex.clearCache();
+        FileUtil.recursiveDelete(mTempDir);
+    }
+
+    private void saveResource(String name, File dir, String fileName) throws Exception {
+        String resource = File.separator + TEST_DATA_DIR + File.separator + name;
+        InputStream resourceStream = getClass().getResourceAsStream(resource);
+        FileUtil.saveResourceFile(resourceStream, dir, fileName);
+    }
+
+    /** Test that the index of a zip is built once and reused for the same content. */
+    @Test
+    public void testGetIndex_cached() throws Exception {
+        TestMappingIndex index = TestMappingIndex.getIndex(mZipFile);
+        assertSame(index, TestMappingIndex.getIndex(mZipFile));
+
+        File copy = new File(mTempDir, "copy.zip");
+        FileUtil.copyFile(mZipFile, copy);
+        assertSame(index, TestMappingIndex.getIndex(copy));
+
+        TestMappingIndex.clearCache();
+        assertNotSame(index, TestMappingIndex.getIndex(mZipFile));
+    }
+
+    /** Test that all the TEST_MAPPING files are returned when no path is given. */
+    @Test
+    public void testGetTestMappings_all() throws Exception {
+        TestMappingIndex index = TestMappingIndex.getIndex(mZipFile);
+        assertEquals(2, index.getTestMappings(new ArrayList<>()).size());
+    }
+
+    /** Test that the TEST_MAPPING files of a path and of its parents are returned. */
+    @Test
+    public void testGetTestMappings_relativePath() throws Exception {
+        TestMappingIndex index = TestMappingIndex.getIndex(mZipFile);
+        String srcPath = mSrcDir.getName();
+        String subPath = srcPath + File.separator + mSubDir.getName();
+
+        assertEquals(1, index.getTestMappings(Arrays.asList(srcPath)).size());
+        assertEquals(2, index.getTestMappings(Arrays.asList(subPath)).size());
+        assertEquals(2, index.getTestMappings(Arrays.asList(subPath, srcPath)).size());
+        try {
+            index.getTestMappings(Arrays.asList("not_exist"));
+            fail("Should have thrown an exception.");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+    }
+
+    /** Test that the returned TEST_MAPPING files can be modified without changing the index. */
+    @Test
+    public void testGetTestMappings_copies() throws Exception {
+        TestMappingIndex index = TestMappingIndex.getIndex(mZipFile);
+        List<String> srcPath = Arrays.asList(mSrcDir.getName());
+
+        Set<TestInfo> tests =
+                index.getTestMappings(srcPath).get(0).getTests("presubmit", null, true, null);
+        for (TestInfo test : tests) {
+            test.addSources(new HashSet<>(Arrays.asList("other_source")));
+        }
+        tests = index.getTestMappings(srcPath).get(0).getTests("presubmit", null, true, null);
+        for (TestInfo test : tests) {
+            assertTrue(!test.getSources().contains("other_source"));
+        }
+    }
+
+    /** Test that a broken TEST_MAPPING file only fails the lookups that need it. */
+    @Test
+    public void testGetTestMappings_parseError() throws Exception {
+        File brokenDir = FileUtil.createTempDir("broken", mTempDir);
+        FileUtil.writeToFile("{ \"presubmit\": [", new File(brokenDir, TestMapping.TEST_MAPPING));
+        File zipFile = new File(mTempDir, "broken.zip");
+        ZipUtil.createZip(Arrays.asList(mSrcDir, brokenDir), zipFile);
+        TestMappingIndex index = TestMappingIndex.getIndex(zipFile);
+
+        assertEquals(1, index.getTestMappings(Arrays.asList(mSrcDir.getName())).size());
+        try {
+            index.getTestMappings(Arrays.asList(brokenDir.getName()));
+            fail("Should have thrown an exception.");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+        try {
+            index.getTestMappings(new ArrayList<>());
+            fail("Should have thrown an exception.");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+    }
+
+    /** Test that only presubmit tests can be disabled. */
+    @Test
+    public void testGetDisabledTests() throws Exception {
+        TestMappingIndex index = TestMappingIndex.getIndex(mZipFile);
+        assertTrue(!index.getDisabledTests("presubmit").isEmpty());
+        assertTrue(index.getDisabledTests("postsubmit").isEmpty());
+    }
+}